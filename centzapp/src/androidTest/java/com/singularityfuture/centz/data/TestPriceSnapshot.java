@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.singularityfuture.centz.utilities.CentzDateUtils;
+import com.singularityfuture.centz.utilities.FixedPointParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * Round trips rows through the {@link PriceSnapshot} file and compares how long it takes to get
+ * the first prices from the snapshot with how long the same rows take from the provider.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestPriceSnapshot {
+
+    private static final String TAG = TestPriceSnapshot.class.getSimpleName();
+
+    private static final String[] PROJECTION = {
+            CentzContract.CentzEntry.COLUMN_DATE,
+            CentzContract.CentzEntry.COLUMN_MAX_TEMP,
+            CentzContract.CentzEntry.COLUMN_MIN_TEMP,
+            CentzContract.CentzEntry.COLUMN_CENTZ_ID,
+    };
+
+    private static final int DAYS = 14;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private final long mToday = CentzDateUtils.getNormalizedUtcDateForToday();
+
+    @Before
+    @After
+    public void deleteSnapshot() {
+        PriceSnapshot.getFile(mContext).delete();
+    }
+
+    @Test
+    public void testSnapshotRoundTripsEveryColumn() throws Exception {
+        CentzBatch rows = buildRows("GOOG", 100);
+        PriceSnapshot.write(mContext, rows);
+
+        PriceSnapshot snapshot = PriceSnapshot.open(mContext);
+        assertNotNull(snapshot);
+        assertEquals(rows.size(), snapshot.size());
+        for (int row = 0; row < rows.size(); row++) {
+            assertEquals(rows.getDate(row), snapshot.getDate(row));
+            assertEquals(rows.getSymbolAt(row), snapshot.getSymbolAt(row));
+            assertEquals(rows.getPressure(row), snapshot.getPressure(row));
+            assertEquals(rows.getHumidity(row), snapshot.getHumidity(row));
+            assertEquals(rows.getWindSpeed(row), snapshot.getWindSpeed(row));
+            assertEquals(rows.getDegrees(row), snapshot.getDegrees(row));
+            assertEquals(rows.getHigh(row), snapshot.getHigh(row));
+            assertEquals(rows.getLow(row), snapshot.getLow(row));
+            assertEquals(rows.getCentzId(row), snapshot.getCentzId(row));
+        }
+
+        Cursor cursor = snapshot.newCursor(PROJECTION, "GOOG", mToday + CentzDateUtils.DAY_IN_MILLIS);
+        assertEquals(DAYS - 1, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals(mToday + CentzDateUtils.DAY_IN_MILLIS, cursor.getLong(0));
+        assertEquals(rows.getHigh(1), cursor.getLong(1));
+        cursor.close();
+    }
+
+    @Test
+    public void testSymbolsMissingFromASyncKeepTheirRows() throws Exception {
+        CentzBatch first = buildRows("GOOG", 100);
+        first.addAll(buildRows("AAPL", 200));
+        PriceSnapshot.write(mContext, first);
+
+        /* The next sync only got fresh data for GOOG */
+        PriceSnapshot.write(mContext, buildRows("GOOG", 300));
+
+        PriceSnapshot snapshot = PriceSnapshot.open(mContext);
+        assertNotNull(snapshot);
+        assertEquals(2 * DAYS, snapshot.size());
+        assertEquals(300 * FixedPointParser.ONE, snapshot.getHigh(snapshot.findFirstRow("GOOG", mToday)));
+        assertEquals(200 * FixedPointParser.ONE, snapshot.getHigh(snapshot.findFirstRow("AAPL", mToday)));
+    }
+
+    @Test
+    public void testUnreadableSnapshotIsIgnored() throws Exception {
+        FileOutputStream out = new FileOutputStream(PriceSnapshot.getFile(mContext));
+        out.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8});
+        out.close();
+        assertNull(PriceSnapshot.open(mContext));
+
+        PriceSnapshot.write(mContext, buildRows("GOOG", 100));
+        byte[] bumped = PriceSnapshot.encode(buildRows("GOOG", 100), 0).array();
+        bumped[7] = PriceSnapshot.VERSION + 1;
+        out = new FileOutputStream(PriceSnapshot.getFile(mContext));
+        out.write(bumped);
+        out.close();
+        assertNull("A snapshot of another version should be ignored",
+                PriceSnapshot.open(mContext));
+    }
+
+    @Test
+    public void benchmarkTimeToFirstPrice() throws Exception {
+        CentzBatch rows = buildRows(CentzPreferences.getPreferredCentzLocation(mContext), 100);
+        PriceSnapshot.write(mContext, rows);
+        mContext.getContentResolver().delete(CentzContract.CentzEntry.CONTENT_URI, null, null);
+        rows.insertInto(mContext.getContentResolver());
+        String symbol = CentzPreferences.getPreferredCentzLocation(mContext);
+
+        long start = System.nanoTime();
+        PriceSnapshot snapshot = PriceSnapshot.open(mContext);
+        assertNotNull(snapshot);
+        Cursor fromSnapshot = snapshot.newCursor(PROJECTION, symbol, mToday);
+        fromSnapshot.moveToFirst();
+        long snapshotPrice = fromSnapshot.getLong(1);
+        long snapshotMicros = (System.nanoTime() - start) / 1000;
+        fromSnapshot.close();
+
+        start = System.nanoTime();
+        Cursor fromDatabase = mContext.getContentResolver().query(
+                CentzContract.CentzEntry.CONTENT_URI,
+                PROJECTION,
+                CentzContract.CentzEntry.getSqlSelectForSymbolTodayOnwards(),
+                new String[]{symbol},
+                CentzContract.CentzEntry.COLUMN_DATE + " ASC");
+        assertNotNull(fromDatabase);
+        fromDatabase.moveToFirst();
+        long databasePrice = fromDatabase.getLong(1);
+        long databaseMicros = (System.nanoTime() - start) / 1000;
+        fromDatabase.close();
+
+        assertEquals(databasePrice, snapshotPrice);
+        Log.i(TAG, "first price: snapshot=" + snapshotMicros + "us database="
+                + databaseMicros + "us");
+    }
+
+    private CentzBatch buildRows(String symbol, long firstHigh) {
+        CentzBatch rows = new CentzBatch();
+        int symbolId = rows.symbolId(symbol);
+        for (int day = 0; day < DAYS; day++) {
+            rows.add(mToday + day * CentzDateUtils.DAY_IN_MILLIS, symbolId, 1013.25 + day,
+                    60 + day, 4.5, 270, (firstHigh + day) * FixedPointParser.ONE,
+                    (firstHigh - 10 + day) * FixedPointParser.ONE, 800);
+        }
+        return rows;
+    }
+}
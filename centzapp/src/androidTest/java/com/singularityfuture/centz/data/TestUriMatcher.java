@@ -44,6 +44,16 @@ public class TestUriMatcher {
     private static final String centzCodeWithDateVariableName = "CODE_CENTZ_WITH_DATE";
     private static int REFLECTED_CENTZ_WITH_DATE_CODE;
 
+    private static final Uri TEST_SYNC_META_DIR = CentzContract.SyncMetaEntry.CONTENT_URI;
+    private static final Uri TEST_SYNC_META_WITH_SYMBOL_DIR = CentzContract.SyncMetaEntry
+            .buildSyncMetaUriWithSymbol("BTC-USD");
+
+    private static final String syncMetaCodeVariableName = "CODE_SYNC_META";
+    private static int REFLECTED_SYNC_META_CODE;
+
+    private static final String syncMetaWithSymbolCodeVariableName = "CODE_SYNC_META_WITH_SYMBOL";
+    private static int REFLECTED_SYNC_META_WITH_SYMBOL_CODE;
+
     private UriMatcher testMatcher;
 
     @Before
@@ -61,6 +71,14 @@ public class TestUriMatcher {
                     CentzProvider.class,
                     centzCodeWithDateVariableName);
 
+            REFLECTED_SYNC_META_CODE = getStaticIntegerField(
+                    CentzProvider.class,
+                    syncMetaCodeVariableName);
+
+            REFLECTED_SYNC_META_WITH_SYMBOL_CODE = getStaticIntegerField(
+                    CentzProvider.class,
+                    syncMetaWithSymbolCodeVariableName);
+
         } catch (NoSuchFieldException e) {
             fail(studentReadableNoSuchField(e));
         } catch (IllegalAccessException e) {
@@ -101,5 +119,13 @@ public class TestUriMatcher {
         assertEquals(centzWithDateUriCodeDoesNotMatch,
                 expectedCentzWithDateCode,
                 actualCentzWithDateCode);
+
+        /* The sync metadata of every symbol, and of a single one */
+        assertEquals("Error: The CODE_SYNC_META URI was matched incorrectly.",
+                REFLECTED_SYNC_META_CODE,
+                testMatcher.match(TEST_SYNC_META_DIR));
+        assertEquals("Error: The CODE_SYNC_META_WITH_SYMBOL URI was matched incorrectly.",
+                REFLECTED_SYNC_META_WITH_SYMBOL_CODE,
+                testMatcher.match(TEST_SYNC_META_WITH_SYMBOL_DIR));
     }
 }
@@ -23,6 +23,7 @@ import android.os.Handler;
 import android.os.HandlerThread;
 
 import com.singularityfuture.centz.utilities.CentzDateUtils;
+import com.singularityfuture.centz.utilities.FixedPointParser;
 import com.singularityfuture.centz.utils.PollingCheck;
 
 import java.lang.reflect.Field;
@@ -124,8 +125,8 @@ class TestUtilities {
         testCentzValues.put(COLUMN_DEGREES, 1.1);
         testCentzValues.put(COLUMN_HUMIDITY, 1.2);
         testCentzValues.put(COLUMN_PRESSURE, 1.3);
-        testCentzValues.put(COLUMN_MAX_TEMP, 75);
-        testCentzValues.put(COLUMN_MIN_TEMP, 65);
+        testCentzValues.put(COLUMN_MAX_TEMP, 75 * FixedPointParser.ONE);
+        testCentzValues.put(COLUMN_MIN_TEMP, 65 * FixedPointParser.ONE);
         testCentzValues.put(COLUMN_WIND_SPEED, 5.5);
         testCentzValues.put(COLUMN_CENTZ_ID, 321);
 
@@ -161,8 +162,8 @@ class TestUtilities {
             centzValues.put(COLUMN_DEGREES, 1.1);
             centzValues.put(COLUMN_HUMIDITY, 1.2 + 0.01 * (float) i);
             centzValues.put(COLUMN_PRESSURE, 1.3 - 0.01 * (float) i);
-            centzValues.put(COLUMN_MAX_TEMP, 75 + i);
-            centzValues.put(COLUMN_MIN_TEMP, 65 - i);
+            centzValues.put(COLUMN_MAX_TEMP, (75 + i) * FixedPointParser.ONE);
+            centzValues.put(COLUMN_MIN_TEMP, (65 - i) * FixedPointParser.ONE);
             centzValues.put(COLUMN_WIND_SPEED, 5.5 + 0.2 * (float) i);
             centzValues.put(COLUMN_CENTZ_ID, 321);
 
@@ -27,14 +27,22 @@ import android.net.Uri;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.singularityfuture.centz.utilities.CentzDateUtils;
+import com.singularityfuture.centz.utilities.FixedPointParser;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.Collections;
+import java.util.List;
+
 import static com.singularityfuture.centz.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
 import static com.singularityfuture.centz.data.TestUtilities.createBulkInsertTestCentzValues;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
@@ -326,6 +334,199 @@ public class TestCentzProvider {
         cursor.close();
     }
 
+    /**
+     * Inserts a {@link CentzBatch} through the provider's batch method and checks that every
+     * column of every row arrives, that symbols are resolved from the batch's symbol table and
+     * that observers are notified like they are for bulkInsert.
+     */
+    @Test
+    public void testBatchInsert() {
+        CentzBatch batch = new CentzBatch(2);
+        long normalizedTestDate = CentzDateUtils.normalizeDate(TestUtilities.DATE_NORMALIZED);
+        int first = batch.symbolId("first");
+        int second = batch.symbolId("second");
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            normalizedTestDate += CentzDateUtils.DAY_IN_MILLIS;
+            batch.add(normalizedTestDate, i % 2 == 0 ? first : second,
+                    1.3 - 0.01 * i, 40 + i, 5.5 + 0.25 * i, 1.1,
+                    (75 + i) * FixedPointParser.ONE, (65 - i) * FixedPointParser.ONE, 321);
+        }
+
+        TestUtilities.TestContentObserver centzObserver = TestUtilities.getTestContentObserver();
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.registerContentObserver(
+                CentzContract.CentzEntry.CONTENT_URI, true, centzObserver);
+
+        int insertCount = batch.insertInto(contentResolver);
+
+        centzObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(centzObserver);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, insertCount);
+
+        Cursor cursor = contentResolver.query(
+                CentzContract.CentzEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                CentzContract.CentzEntry.COLUMN_DATE + " ASC");
+        assertNotNull(cursor);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+
+        for (int row = 0; cursor.moveToNext(); row++) {
+            assertEquals(batch.getDate(row), cursor.getLong(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_DATE)));
+            assertEquals(batch.getSymbolAt(row), cursor.getString(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_SYMBOL)));
+            assertEquals(batch.getPressure(row), cursor.getDouble(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_PRESSURE)));
+            assertEquals(batch.getHumidity(row), cursor.getInt(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_HUMIDITY)));
+            assertEquals(batch.getWindSpeed(row), cursor.getDouble(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_WIND_SPEED)));
+            assertEquals(batch.getDegrees(row), cursor.getDouble(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_DEGREES)));
+            assertEquals(batch.getHigh(row), cursor.getLong(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_MAX_TEMP)));
+            assertEquals(batch.getLow(row), cursor.getLong(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_MIN_TEMP)));
+            assertEquals(batch.getCentzId(row), cursor.getInt(
+                    cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_CENTZ_ID)));
+        }
+        cursor.close();
+
+        /* A cleared batch keeps its arrays and starts over */
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        assertEquals(0, batch.symbolId("second"));
+    }
+
+    /**
+     * Rows written from a batch keep their detail fields as text. A list projection must come
+     * back with exactly its own columns, while a detail projection gets the decoded numbers.
+     */
+    @Test
+    public void testDetailColumnsAreDecodedFromText() {
+        long date = CentzDateUtils.normalizeDate(TestUtilities.DATE_NORMALIZED);
+        CentzBatch batch = new CentzBatch();
+        batch.add(date, batch.symbolId("detail"), 1013.25, 64, 4.2, 270,
+                FixedPointParser.parse("23.5"), FixedPointParser.parse("14.25"), 800);
+        ContentResolver contentResolver = mContext.getContentResolver();
+        batch.insertInto(contentResolver);
+
+        SQLiteDatabase database = new CentzDbHelper(mContext).getReadableDatabase();
+        Cursor stored = database.query(CentzContract.CentzEntry.TABLE_NAME,
+                new String[]{CentzContract.CentzEntry.COLUMN_DETAIL,
+                        CentzContract.CentzEntry.COLUMN_PRESSURE},
+                null, null, null, null, null);
+        assertTrue(stored.moveToFirst());
+        assertEquals(batch.getDetail(0), stored.getString(0));
+        assertEquals("The detail columns should be left at their default",
+                0.0, stored.getDouble(1));
+        stored.close();
+        database.close();
+
+        String[] listProjection = {
+                CentzContract.CentzEntry.COLUMN_DATE,
+                CentzContract.CentzEntry.COLUMN_MAX_TEMP,
+        };
+        Cursor list = contentResolver.query(CentzContract.CentzEntry.CONTENT_URI,
+                listProjection, null, null, null);
+        assertNotNull(list);
+        assertEquals(listProjection.length, list.getColumnCount());
+        list.close();
+
+        String[] detailProjection = {
+                CentzContract.CentzEntry.COLUMN_PRESSURE,
+                CentzContract.CentzEntry.COLUMN_HUMIDITY,
+                CentzContract.CentzEntry.COLUMN_WIND_SPEED,
+                CentzContract.CentzEntry.COLUMN_DEGREES,
+                CentzContract.CentzEntry.COLUMN_MIN_TEMP,
+        };
+        Cursor detail = contentResolver.query(
+                CentzContract.CentzEntry.buildCentzUriWithDate(date),
+                detailProjection,
+                CentzContract.CentzEntry.COLUMN_SYMBOL + " = ?",
+                new String[]{"detail"},
+                null);
+        assertNotNull(detail);
+        assertEquals("The text column should not show up in the result",
+                detailProjection.length, detail.getColumnCount());
+        assertTrue(detail.moveToFirst());
+        assertEquals(1013.25, detail.getDouble(0));
+        assertEquals(64, detail.getInt(1));
+        assertEquals(4.2f, detail.getFloat(2));
+        assertEquals(270.0, detail.getDouble(3));
+        assertEquals(FixedPointParser.parse("14.25"), detail.getLong(4));
+        detail.close();
+    }
+
+    /**
+     * Upserting the rows a second time must leave the table alone. Changing one day writes just
+     * that day, and days a later batch no longer has are deleted unless their symbol is kept.
+     */
+    @Test
+    public void testBatchUpsertWritesOnlyChangedRows() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        List<String> noneKept = Collections.emptyList();
+
+        CentzBatch.UpsertResult first =
+                buildUpsertBatch(3, 0).upsertInto(contentResolver, noneKept);
+        assertEquals(6, first.rowsWritten);
+        assertEquals(0, first.rowsSkipped);
+
+        CentzBatch.UpsertResult unchanged =
+                buildUpsertBatch(3, 0).upsertInto(contentResolver, noneKept);
+        assertEquals(0, unchanged.rowsWritten);
+        assertEquals(6, unchanged.rowsSkipped);
+        assertEquals(0, unchanged.rowsDeleted);
+        assertFalse("Nothing changed, so observers should not be notified",
+                unchanged.hasChanges());
+
+        TestUtilities.TestContentObserver centzObserver = TestUtilities.getTestContentObserver();
+        contentResolver.registerContentObserver(
+                CentzContract.CentzEntry.CONTENT_URI, true, centzObserver);
+        CentzBatch.UpsertResult oneChanged = buildUpsertBatch(3, FixedPointParser.parse("0.01"))
+                .upsertInto(contentResolver, noneKept);
+        centzObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(centzObserver);
+        assertEquals(2, oneChanged.rowsWritten);
+        assertEquals(4, oneChanged.rowsSkipped);
+
+        /* "second" failed to sync this time, so its rows stay even though the batch lacks them */
+        CentzBatch shorter = buildUpsertBatch(2, FixedPointParser.parse("0.01"));
+        shorter.truncate(2);
+        CentzBatch.UpsertResult dropped =
+                shorter.upsertInto(contentResolver, Collections.singletonList("second"));
+        assertEquals(0, dropped.rowsWritten);
+        assertEquals(2, dropped.rowsSkipped);
+        assertEquals(1, dropped.rowsDeleted);
+
+        Cursor cursor = contentResolver.query(CentzContract.CentzEntry.CONTENT_URI,
+                new String[]{CentzContract.CentzEntry.COLUMN_MAX_TEMP},
+                CentzContract.CentzEntry.COLUMN_SYMBOL + " = ?", new String[]{"second"}, null);
+        assertNotNull(cursor);
+        assertEquals(3, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Days of "first" followed by days of "second". The high of the first day of each symbol is
+     * raised by firstDayBump.
+     */
+    private static CentzBatch buildUpsertBatch(int days, long firstDayBump) {
+        CentzBatch batch = new CentzBatch();
+        long normalizedTestDate = CentzDateUtils.normalizeDate(TestUtilities.DATE_NORMALIZED);
+        for (String symbol : new String[]{"first", "second"}) {
+            int symbolId = batch.symbolId(symbol);
+            for (int day = 0; day < days; day++) {
+                long high = (100 + day) * FixedPointParser.ONE + (day == 0 ? firstDayBump : 0);
+                batch.add(normalizedTestDate + day * CentzDateUtils.DAY_IN_MILLIS, symbolId,
+                        1013.25, 60, 4.5, 270, high, 90 * FixedPointParser.ONE, 800);
+            }
+        }
+        return batch;
+    }
+
     /**
      * This test deletes all records from the centz table using the ContentProvider. It also
      * verifies that registered ContentObservers receive onChange callbacks when data is deleted.
@@ -423,6 +624,41 @@ public class TestCentzProvider {
         shouldBeEmptyCursor.close();
     }
 
+    /**
+     * Deleting every row must also forget the validators of the deleted data, otherwise the next
+     * sync is answered with a 304 and has nothing to store.
+     */
+    @Test
+    public void testDeleteAllRecordsForgetsValidators() {
+        ContentResolver resolver = mContext.getContentResolver();
+        String symbol = "test-validators";
+        ContentValues meta = new ContentValues();
+        meta.put(CentzContract.SyncMetaEntry.COLUMN_SYMBOL, symbol);
+        meta.put(CentzContract.SyncMetaEntry.COLUMN_LAST_SUCCESS, 1000L);
+        meta.put(CentzContract.SyncMetaEntry.COLUMN_ETAG, "\"v1\"");
+        meta.put(CentzContract.SyncMetaEntry.COLUMN_LAST_MODIFIED, "Wed, 01 Jan 2020");
+        meta.put(CentzContract.SyncMetaEntry.COLUMN_ROW_COUNT, 3);
+        resolver.bulkInsert(CentzContract.SyncMetaEntry.CONTENT_URI, new ContentValues[]{meta});
+
+        try {
+            resolver.delete(CentzContract.CentzEntry.CONTENT_URI, null, null);
+
+            Cursor cursor = resolver.query(
+                    CentzContract.SyncMetaEntry.buildSyncMetaUriWithSymbol(symbol), null, null,
+                    null, null);
+            assertTrue(cursor.moveToFirst());
+            assertNull(cursor.getString(
+                    cursor.getColumnIndex(CentzContract.SyncMetaEntry.COLUMN_ETAG)));
+            assertNull(cursor.getString(
+                    cursor.getColumnIndex(CentzContract.SyncMetaEntry.COLUMN_LAST_MODIFIED)));
+            assertEquals(0, cursor.getInt(
+                    cursor.getColumnIndex(CentzContract.SyncMetaEntry.COLUMN_ROW_COUNT)));
+            cursor.close();
+        } finally {
+            resolver.delete(CentzContract.SyncMetaEntry.CONTENT_URI, null, null);
+        }
+    }
+
     /**
      * This method will clear all rows from the centz table in our database.
      * <p>
@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.singularityfuture.centz.utilities.FixedPointParser;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks the individual rules of {@link AdaptiveSyncPolicy} and replays price series through it
+ * next to the fixed three hour schedule it replaces. For each policy the replay reports syncs per
+ * day, overall and the median of calm and of busy days, and how old the data was whenever the
+ * price crossed an alert level. The report is written to logcat under the class name.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestAdaptiveSyncPolicy {
+
+    private static final String TAG = TestAdaptiveSyncPolicy.class.getSimpleName();
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+
+    /* Neither recently opened nor dormant, not charging, plenty of battery */
+    private static final long SINCE_OPENED = 12 * HOUR;
+    private static final int BATTERY = 80;
+
+    private static final int MINUTES_PER_DAY = 24 * 60;
+
+    /* Daily volatility of the calm and the busy days of the replayed series */
+    private static final double CALM_VOLATILITY = 0.005;
+    private static final double BUSY_VOLATILITY = 0.06;
+
+    /* Alerts sit on a ladder of levels this far apart, as a fraction of the opening price */
+    private static final double ALERT_STEP = 0.05;
+
+    private static AdaptiveSyncPolicy.Conditions conditions(double volatility) {
+        return new AdaptiveSyncPolicy.Conditions(volatility, Double.POSITIVE_INFINITY,
+                SINCE_OPENED, false, BATTERY);
+    }
+
+    @Test
+    public void testUnknownPricesKeepTheDefaultInterval() {
+        assertEquals(AdaptiveSyncPolicy.DEFAULT_INTERVAL_MILLIS,
+                AdaptiveSyncPolicy.nextIntervalMillis(conditions(0)));
+    }
+
+    @Test
+    public void testIntervalTightensAsPricesMove() {
+        long flat = AdaptiveSyncPolicy.nextIntervalMillis(conditions(0.001));
+        long moving = AdaptiveSyncPolicy.nextIntervalMillis(conditions(0.05));
+        long wild = AdaptiveSyncPolicy.nextIntervalMillis(conditions(0.5));
+
+        assertEquals(AdaptiveSyncPolicy.MAX_INTERVAL_MILLIS, flat);
+        assertTrue(moving < flat);
+        assertTrue(moving < HOUR);
+        assertEquals(AdaptiveSyncPolicy.MIN_INTERVAL_MILLIS, wild);
+    }
+
+    @Test
+    public void testCloseAlertTightensInterval() {
+        long noAlert = AdaptiveSyncPolicy.nextIntervalMillis(conditions(0.01));
+        long farAlert = AdaptiveSyncPolicy.nextIntervalMillis(new AdaptiveSyncPolicy.Conditions(
+                0.01, 0.5, SINCE_OPENED, false, BATTERY));
+        long closeAlert = AdaptiveSyncPolicy.nextIntervalMillis(
+                new AdaptiveSyncPolicy.Conditions(0.01, 0.002, SINCE_OPENED, false, BATTERY));
+
+        assertEquals(noAlert, farAlert);
+        assertTrue(closeAlert < noAlert);
+    }
+
+    @Test
+    public void testUserAndBatteryAdjustInterval() {
+        double volatility = 0.02;
+        long base = AdaptiveSyncPolicy.nextIntervalMillis(conditions(volatility));
+        long opened = AdaptiveSyncPolicy.nextIntervalMillis(new AdaptiveSyncPolicy.Conditions(
+                volatility, Double.POSITIVE_INFINITY, 0, false, BATTERY));
+        long dormant = AdaptiveSyncPolicy.nextIntervalMillis(new AdaptiveSyncPolicy.Conditions(
+                volatility, Double.POSITIVE_INFINITY, 7 * DAY, false, BATTERY));
+        long charging = AdaptiveSyncPolicy.nextIntervalMillis(new AdaptiveSyncPolicy.Conditions(
+                volatility, Double.POSITIVE_INFINITY, SINCE_OPENED, true, BATTERY));
+        long lowBattery = AdaptiveSyncPolicy.nextIntervalMillis(
+                new AdaptiveSyncPolicy.Conditions(0.5, Double.POSITIVE_INFINITY, SINCE_OPENED,
+                        false, 5));
+
+        assertTrue(opened < base);
+        assertTrue(dormant > base);
+        assertTrue(charging < base);
+        assertEquals(AdaptiveSyncPolicy.LOW_BATTERY_MIN_INTERVAL_MILLIS, lowBattery);
+    }
+
+    @Test
+    public void testRangeEstimates() {
+        long low = FixedPointParser.parse("100");
+        long high = FixedPointParser.parse("102");
+
+        assertEquals(0.0, AdaptiveSyncPolicy.volatilityFromRange(low, low, 1));
+        assertEquals(0.0, AdaptiveSyncPolicy.volatilityFromRange(low, high, 1));
+        double fullDay = AdaptiveSyncPolicy.volatilityFromRange(high, low, 1);
+        double quarterDay = AdaptiveSyncPolicy.volatilityFromRange(high, low, 0.25);
+        /* The same range in a quarter of the day means twice the daily volatility */
+        assertEquals(2 * fullDay, quarterDay, 1e-9);
+
+        long price = FixedPointParser.parse("101");
+        assertEquals(3 / 101.0, AdaptiveSyncPolicy.alertDistance(price, high, low,
+                FixedPointParser.parse("104")), 1e-9);
+        assertEquals(2 / 101.0, AdaptiveSyncPolicy.alertDistance(price, high, low,
+                FixedPointParser.parse("99")), 1e-9);
+    }
+
+    @Test
+    public void testAlertInsideTheDaysRangeIsIgnored() {
+        long low = FixedPointParser.parse("100");
+        long high = FixedPointParser.parse("102");
+        long price = FixedPointParser.parse("101.9");
+        long alert = FixedPointParser.parse("101");
+
+        /* The price went through the alert earlier today, even though it is away from it now */
+        double distance = AdaptiveSyncPolicy.alertDistance(price, high, low, alert);
+        assertEquals(Double.POSITIVE_INFINITY, distance);
+
+        double volatility = AdaptiveSyncPolicy.volatilityFromRange(high, low, 0.5);
+        AdaptiveSyncPolicy.Conditions crossed = new AdaptiveSyncPolicy.Conditions(volatility,
+                distance, SINCE_OPENED, false, BATTERY);
+        assertEquals(AdaptiveSyncPolicy.nextIntervalMillis(conditions(volatility)),
+                AdaptiveSyncPolicy.nextIntervalMillis(crossed));
+        assertFalse(AdaptiveSyncPolicy.isAlertClose(crossed));
+    }
+
+    @Test
+    public void testPriceAtItsAlertKeepsAnInterval() {
+        double volatility = 0.01;
+        long atAlert = AdaptiveSyncPolicy.nextIntervalMillis(new AdaptiveSyncPolicy.Conditions(
+                volatility, 0, SINCE_OPENED, false, BATTERY));
+        long atMinDistance = AdaptiveSyncPolicy.nextIntervalMillis(
+                new AdaptiveSyncPolicy.Conditions(volatility,
+                        AdaptiveSyncPolicy.MIN_ALERT_DISTANCE, SINCE_OPENED, false, BATTERY));
+
+        assertEquals(atMinDistance, atAlert);
+        assertTrue(atAlert > AdaptiveSyncPolicy.MIN_INTERVAL_MILLIS);
+    }
+
+    @Test
+    public void testReplayFixedVersusAdaptive() {
+        /* Two weeks, busy on the days the market usually moves, calm on the others */
+        boolean[] busyDays = {false, false, true, false, false, true, true,
+                false, false, false, true, false, false, false};
+        long[] prices = buildSeries(busyDays, 42);
+
+        Replay fixed = replay(prices, busyDays, false);
+        Replay adaptive = replay(prices, busyDays, true);
+
+        Log.i(TAG, "fixed:    " + fixed);
+        Log.i(TAG, "adaptive: " + adaptive);
+
+        assertTrue(fixed.alertAges.size() > 0);
+        assertEquals(fixed.alertAges.size(), adaptive.alertAges.size());
+        /* Fresher data when an alert fires, fewer syncs while nothing happens */
+        assertTrue(adaptive.meanAlertAgeMinutes() < fixed.meanAlertAgeMinutes() / 4);
+        assertTrue(adaptive.medianSyncsPerDay(false) < fixed.medianSyncsPerDay(false));
+        assertTrue(adaptive.medianSyncsPerDay(true) > fixed.medianSyncsPerDay(true));
+    }
+
+    /*
+     * A minute by minute log-normal walk standing in for a recorded series: calm and busy days
+     * with the volatility of a quiet and a hectic day in the market. Seeded, so every run replays
+     * the same prices.
+     */
+    private static long[] buildSeries(boolean[] busyDays, long seed) {
+        Random random = new Random(seed);
+        long[] prices = new long[busyDays.length * MINUTES_PER_DAY];
+        double logPrice = Math.log(100);
+        for (int minute = 0; minute < prices.length; minute++) {
+            double daily = busyDays[minute / MINUTES_PER_DAY] ? BUSY_VOLATILITY : CALM_VOLATILITY;
+            logPrice += random.nextGaussian() * daily / Math.sqrt(MINUTES_PER_DAY);
+            prices[minute] = FixedPointParser.fromDouble(Math.exp(logPrice));
+        }
+        return prices;
+    }
+
+    private static final class Replay {
+        final boolean[] busyDays;
+        final int[] syncsPerDay;
+        final List<Integer> alertAges = new ArrayList<>();
+
+        Replay(boolean[] busyDays) {
+            this.busyDays = busyDays;
+            this.syncsPerDay = new int[busyDays.length];
+        }
+
+        /* Median rather than mean, one day spent hovering at an alert shouldn't hide the rest */
+        int medianSyncsPerDay(boolean busy) {
+            List<Integer> days = new ArrayList<>();
+            for (int day = 0; day < syncsPerDay.length; day++) {
+                if (busyDays[day] == busy) days.add(syncsPerDay[day]);
+            }
+            Collections.sort(days);
+            return days.get(days.size() / 2);
+        }
+
+        double syncsPerDay() {
+            long sum = 0;
+            for (int syncs : syncsPerDay) sum += syncs;
+            return sum / (double) syncsPerDay.length;
+        }
+
+        double meanAlertAgeMinutes() {
+            long sum = 0;
+            for (int age : alertAges) sum += age;
+            return sum / (double) alertAges.size();
+        }
+
+        int percentileAlertAge(double percentile) {
+            List<Integer> sorted = new ArrayList<>(alertAges);
+            Collections.sort(sorted);
+            return sorted.get((int) Math.min(sorted.size() - 1, sorted.size() * percentile));
+        }
+
+        @Override
+        public String toString() {
+            return "syncs/day=" + Math.round(syncsPerDay() * 10) / 10.0
+                    + " (median calm " + medianSyncsPerDay(false)
+                    + ", busy " + medianSyncsPerDay(true) + ") alerts=" + alertAges.size()
+                    + " age at alert: mean=" + Math.round(meanAlertAgeMinutes() * 10) / 10.0
+                    + "min p95=" + percentileAlertAge(0.95) + "min max="
+                    + percentileAlertAge(1) + "min";
+        }
+    }
+
+    /*
+     * Walks the series minute by minute. A sync sees the day's high and low up to that minute,
+     * which is what the API returns. An alert fires whenever the price moves onto another level
+     * of the alert ladder, and its age is the time since the last sync.
+     */
+    private static Replay replay(long[] prices, boolean[] busyDays, boolean adaptive) {
+        Replay replay = new Replay(busyDays);
+
+        double open = FixedPointParser.toDouble(prices[0]);
+        int lastSync = -1;
+        int nextSync = 0;
+        int level = 0;
+        long dayHigh = 0;
+        long dayLow = Long.MAX_VALUE;
+
+        for (int minute = 0; minute < prices.length; minute++) {
+            if (minute % MINUTES_PER_DAY == 0) {
+                dayHigh = 0;
+                dayLow = Long.MAX_VALUE;
+            }
+            long price = prices[minute];
+            dayHigh = Math.max(dayHigh, price);
+            dayLow = Math.min(dayLow, price);
+
+            int priceLevel = (int) Math.floor(
+                    Math.log(FixedPointParser.toDouble(price) / open) / Math.log1p(ALERT_STEP));
+            if (priceLevel != level) {
+                level = priceLevel;
+                replay.alertAges.add(minute - lastSync);
+            }
+
+            if (minute < nextSync) continue;
+            lastSync = minute;
+            replay.syncsPerDay[minute / MINUTES_PER_DAY]++;
+
+            long interval = AdaptiveSyncPolicy.DEFAULT_INTERVAL_MILLIS;
+            if (adaptive) {
+                double dayFraction = (minute % MINUTES_PER_DAY + 1) / (double) MINUTES_PER_DAY;
+                long above = FixedPointParser.fromDouble(
+                        open * Math.pow(1 + ALERT_STEP, level + 1));
+                long below = FixedPointParser.fromDouble(open * Math.pow(1 + ALERT_STEP, level));
+                /* The user's alerts are the levels just above and below the price */
+                double alertDistance = Math.min(
+                        AdaptiveSyncPolicy.alertDistance(price, price, price, above),
+                        AdaptiveSyncPolicy.alertDistance(price, price, price, below));
+                interval = AdaptiveSyncPolicy.nextIntervalMillis(
+                        new AdaptiveSyncPolicy.Conditions(
+                                AdaptiveSyncPolicy.volatilityFromRange(dayHigh, dayLow,
+                                        dayFraction),
+                                alertDistance, SINCE_OPENED, false, BATTERY));
+            }
+            nextSync = minute + (int) TimeUnit.MILLISECONDS.toMinutes(interval);
+        }
+        return replay;
+    }
+}
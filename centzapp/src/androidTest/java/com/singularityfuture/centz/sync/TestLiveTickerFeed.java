@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.singularityfuture.centz.utilities.FixedPointParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs the live ticker feed against a local WebSocket stand-in that replays recorded ticks at a
+ * configurable rate once a client subscribes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestLiveTickerFeed {
+
+    private static final List<String> SYMBOLS = Arrays.asList("BTC-USD", "ETH-USD");
+
+    /* Recorded from the real feed, trimmed to the fields we read */
+    private static final String[] RECORDED_TICKS = {
+            "{\"type\":\"ticker\",\"product_id\":\"BTC-USD\",\"price\":\"4321.01\"}",
+            "{\"type\":\"heartbeat\",\"product_id\":\"BTC-USD\"}",
+            "{\"type\":\"ticker\",\"product_id\":\"ETH-USD\",\"price\":\"301.55\"}",
+            "{\"type\":\"ticker\",\"product_id\":\"BTC-USD\",\"price\":\"4322.50\"}",
+            "{\"type\":\"ticker\",\"product_id\":\"ETH-USD\",\"price\":\"301.20\"}"
+    };
+    private static final int TICKS_PER_REPLAY = 4;
+
+    private MockWebServer mServer;
+    private final List<String> mSubscribeMessages = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testTicksAreDeliveredAfterSubscribing() throws Exception {
+        mServer.enqueue(new MockResponse().withWebSocketUpgrade(new TickReplayer(500, false)));
+
+        RecordingListener listener = new RecordingListener(TICKS_PER_REPLAY);
+        LiveTickerFeed feed = new LiveTickerFeed(webSocketUrl(), SYMBOLS, listener);
+        feed.start();
+        try {
+            assertTrue("Ticks were not delivered", listener.await());
+        } finally {
+            feed.stop();
+        }
+
+        assertEquals(1, mSubscribeMessages.size());
+        for (String symbol : SYMBOLS) {
+            assertTrue(mSubscribeMessages.get(0).contains(symbol));
+        }
+        assertEquals(Arrays.asList("BTC-USD", "ETH-USD", "BTC-USD", "ETH-USD"), listener.symbols);
+        assertEquals(FixedPointParser.parse("4321.01"), (long) listener.prices.get(0));
+        assertEquals(TICKS_PER_REPLAY, feed.getTickCount());
+    }
+
+    @Test
+    public void testReconnectsAndResubscribesWhenServerDrops() throws Exception {
+        /* The first connection replays the recording and then goes away */
+        mServer.enqueue(new MockResponse().withWebSocketUpgrade(new TickReplayer(200, true)));
+        mServer.enqueue(new MockResponse().withWebSocketUpgrade(new TickReplayer(200, false)));
+
+        RecordingListener listener = new RecordingListener(TICKS_PER_REPLAY * 2);
+        LiveTickerFeed feed = new LiveTickerFeed(webSocketUrl(), SYMBOLS, listener, 10, 100);
+        feed.start();
+        try {
+            assertTrue("Ticks after the reconnect were not delivered", listener.await());
+            assertTrue(feed.isConnected());
+        } finally {
+            feed.stop();
+        }
+
+        assertEquals(2, feed.getConnectCount());
+        assertEquals("The feed should subscribe again after reconnecting",
+                2, mSubscribeMessages.size());
+    }
+
+    @Test
+    public void testNoTicksAreDeliveredAfterStop() throws Exception {
+        mServer.enqueue(new MockResponse().withWebSocketUpgrade(new ClosingIgnorer()));
+
+        RecordingListener listener = new RecordingListener(1);
+        LiveTickerFeed feed = new LiveTickerFeed(webSocketUrl(), SYMBOLS, listener);
+        feed.start();
+        assertTrue("Ticks were not delivered", listener.await());
+        feed.stop();
+
+        /* The server keeps sending on the closing socket, none of it may get through */
+        Thread.sleep(50);
+        int delivered = listener.count();
+        Thread.sleep(300);
+        assertEquals(delivered, listener.count());
+    }
+
+    @Test
+    public void testOnlyProductsOfTheFeedAreSubscribed() throws Exception {
+        assertEquals(SYMBOLS, LiveTickerFeed.productIds(
+                Arrays.asList("Mountain View, CA 94043", "BTC-USD", "ETH-USD")));
+
+        /* The default watchlist has no products, so there is nothing to connect for */
+        LiveTickerFeed feed = new LiveTickerFeed(webSocketUrl(),
+                Arrays.asList("Mountain View, CA 94043"), new RecordingListener(0));
+        feed.start();
+        feed.stop();
+        assertEquals(0, feed.getConnectCount());
+        assertEquals(0, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testBackoffKeepsGrowingWhenServerClosesBeforeTicking() throws Exception {
+        /* Every connection is accepted, then closed as soon as the subscription arrives */
+        for (int i = 0; i < 50; i++) {
+            mServer.enqueue(new MockResponse().withWebSocketUpgrade(new SubscriptionRejecter()));
+        }
+
+        LiveTickerFeed feed = new LiveTickerFeed(webSocketUrl(), SYMBOLS,
+                new RecordingListener(0), 10, TimeUnit.MINUTES.toMillis(1));
+        feed.start();
+        try {
+            Thread.sleep(500);
+        } finally {
+            feed.stop();
+        }
+
+        /* Delays of at least 5, 10, 20, ... ms leave room for about 7 attempts in 500ms */
+        assertTrue("Reconnected " + feed.getConnectCount() + " times without backing off",
+                feed.getConnectCount() < 10);
+    }
+
+    private String webSocketUrl() {
+        return mServer.url("/").toString().replaceFirst("^http", "ws");
+    }
+
+    /**
+     * Server side of the stand-in. Waits for the subscribe message, then replays the recording
+     * at the given number of messages per second.
+     */
+    private final class TickReplayer extends WebSocketListener {
+        private final long mIntervalMillis;
+        private final boolean mCloseWhenDone;
+
+        TickReplayer(int messagesPerSecond, boolean closeWhenDone) {
+            mIntervalMillis = 1000 / messagesPerSecond;
+            mCloseWhenDone = closeWhenDone;
+        }
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+        }
+
+        @Override
+        public void onMessage(final WebSocket webSocket, String text) {
+            mSubscribeMessages.add(text);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (String tick : RECORDED_TICKS) {
+                        webSocket.send(tick);
+                        try {
+                            Thread.sleep(mIntervalMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    if (mCloseWhenDone) webSocket.close(1001, "going away");
+                }
+            }).start();
+        }
+    }
+
+    /* Server side of a feed that doesn't accept the subscription */
+    private final class SubscriptionRejecter extends WebSocketListener {
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            mSubscribeMessages.add(text);
+            webSocket.close(1008, "unknown product");
+        }
+    }
+
+    /* Server side of a feed that keeps ticking after the client asked to close */
+    private final class ClosingIgnorer extends WebSocketListener {
+        @Override
+        public void onMessage(final WebSocket webSocket, String text) {
+            mSubscribeMessages.add(text);
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100; i++) {
+                        if (!webSocket.send(RECORDED_TICKS[0])) return;
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }).start();
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            /* Doesn't answer the close, so the client's socket stays readable */
+        }
+    }
+
+    private static final class RecordingListener implements LiveTickerFeed.TickListener {
+        final List<String> symbols = new ArrayList<>();
+        final List<Long> prices = new ArrayList<>();
+        private final CountDownLatch mLatch;
+
+        RecordingListener(int expectedTicks) {
+            mLatch = new CountDownLatch(expectedTicks);
+        }
+
+        @Override
+        public synchronized void onTick(String symbol, long price, long receivedAtMillis) {
+            symbols.add(symbol);
+            prices.add(price);
+            mLatch.countDown();
+        }
+
+        synchronized int count() {
+            return symbols.size();
+        }
+
+        boolean await() throws InterruptedException {
+            return mLatch.await(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.singularityfuture.centz.data.CentzContract.CentzEntry;
+import com.singularityfuture.centz.utilities.CentzDateUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestProviderTickWriter {
+
+    private static final String SYMBOL = "TEST-TICK";
+    private static final String SELECTION = CentzEntry.COLUMN_SYMBOL + " = ?";
+    private static final String[] SELECTION_ARGS = {SYMBOL};
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver resolver = context.getContentResolver();
+    private final long today = CentzDateUtils.getNormalizedUtcDateForToday();
+
+    @Before
+    public void setUp() {
+        ContentValues row = new ContentValues();
+        row.put(CentzEntry.COLUMN_DATE, today);
+        row.put(CentzEntry.COLUMN_SYMBOL, SYMBOL);
+        row.put(CentzEntry.COLUMN_CENTZ_ID, 800);
+        row.put(CentzEntry.COLUMN_MAX_TEMP, 100);
+        row.put(CentzEntry.COLUMN_MIN_TEMP, 50);
+        assertEquals(1, resolver.bulkInsert(CentzEntry.CONTENT_URI, new ContentValues[]{row}));
+    }
+
+    @After
+    public void tearDown() {
+        resolver.delete(CentzEntry.CONTENT_URI, SELECTION, SELECTION_ARGS);
+    }
+
+    @Test
+    public void testTicksWidenTheStoredRange() {
+        ProviderTickWriter writer = new ProviderTickWriter(context);
+        writer.onTick(SYMBOL, 120, 0);
+        writer.onTick(SYMBOL, 80, 0);
+        writer.onTick(SYMBOL, 40, 0);
+
+        long[] range = readRange();
+        assertEquals(120, range[0]);
+        assertEquals(40, range[1]);
+    }
+
+    @Test
+    public void testTickDoesNotOverwriteWhatSyncStored() {
+        ProviderTickWriter writer = new ProviderTickWriter(context);
+        writer.onTick(SYMBOL, 120, 0);
+
+        /* A sync stores a wider range behind the writer's back */
+        ContentValues synced = new ContentValues();
+        synced.put(CentzEntry.COLUMN_MAX_TEMP, 200);
+        synced.put(CentzEntry.COLUMN_MIN_TEMP, 10);
+        resolver.update(CentzEntry.CONTENT_URI, synced, SELECTION, SELECTION_ARGS);
+
+        writer.onTick(SYMBOL, 130, 0);
+        writer.onTick(SYMBOL, 20, 0);
+
+        long[] range = readRange();
+        assertEquals(200, range[0]);
+        assertEquals(10, range[1]);
+    }
+
+    private long[] readRange() {
+        Cursor cursor = resolver.query(CentzEntry.CONTENT_URI,
+                new String[]{CentzEntry.COLUMN_MAX_TEMP, CentzEntry.COLUMN_MIN_TEMP},
+                SELECTION, SELECTION_ARGS, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return new long[]{cursor.getLong(0), cursor.getLong(1)};
+        } finally {
+            cursor.close();
+        }
+    }
+}
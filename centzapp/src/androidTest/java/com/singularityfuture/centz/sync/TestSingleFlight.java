@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestSingleFlight {
+
+    private static final int CONCURRENT_CALLERS = 8;
+
+    @Test
+    public void testConcurrentCallersForSameKeyShareOneExecution() throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<>();
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch workStarted = new CountDownLatch(1);
+        final CountDownLatch releaseWork = new CountDownLatch(1);
+
+        final Callable<Integer> work = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                workStarted.countDown();
+                releaseWork.await();
+                return runs.incrementAndGet();
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_CALLERS);
+        List<Future<Integer>> results = new ArrayList<>();
+        results.add(executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return flight.execute("same-url", work);
+            }
+        }));
+        assertTrue(workStarted.await(5, TimeUnit.SECONDS));
+
+        for (int i = 1; i < CONCURRENT_CALLERS; i++) {
+            results.add(executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return flight.execute("same-url", work);
+                }
+            }));
+        }
+
+        /* Give the late callers time to attach before the work finishes */
+        while (flight.getCoalescedCount() < CONCURRENT_CALLERS - 1) {
+            Thread.sleep(5);
+        }
+        releaseWork.countDown();
+
+        for (Future<Integer> result : results) {
+            assertEquals("Every caller should see the single execution's result",
+                    Integer.valueOf(1), result.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+
+        assertEquals(1, runs.get());
+        assertEquals(1, flight.getExecutedCount());
+        assertEquals(CONCURRENT_CALLERS - 1, flight.getCoalescedCount());
+
+        /* Once the flight has landed, the next call runs the work again */
+        assertEquals(Integer.valueOf(2), flight.execute("same-url", work));
+        assertEquals(2, flight.getExecutedCount());
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestStagedPipeline {
+
+    private static final String TAG = TestStagedPipeline.class.getSimpleName();
+
+    private static final int LOAD_ITEMS = 5000;
+
+    private static final int QUEUE_CAPACITY = 4;
+
+    /* Stands in for a symbol moving through the sync */
+    private static final class Item {
+        final int index;
+        int fetched = -1;
+        int parsed = -1;
+        int stored = -1;
+
+        Item(int index) {
+            this.index = index;
+        }
+    }
+
+    private static final class CountingListener implements StagedPipeline.Listener<Item> {
+        final AtomicInteger completed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        volatile String failedStage;
+
+        @Override
+        public void onCompleted(Item item) {
+            completed.incrementAndGet();
+        }
+
+        @Override
+        public void onFailed(Item item, String stage, Exception error) {
+            failed.incrementAndGet();
+            failedStage = stage;
+        }
+    }
+
+    @Test
+    public void testEveryItemGoesThroughEveryStage() throws Exception {
+        CountingListener listener = new CountingListener();
+        final Item[] items = new Item[100];
+        StagedPipeline<Item> pipeline = new StagedPipeline<>("test", QUEUE_CAPACITY, listener)
+                .addStage("fetch", 3, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) {
+                        item.fetched = item.index;
+                    }
+                })
+                .addStage("parse", 2, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) {
+                        item.parsed = item.fetched * 2;
+                    }
+                })
+                .addStage("persist", 1, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) {
+                        item.stored = item.parsed + 1;
+                    }
+                });
+
+        pipeline.start();
+        try {
+            for (int i = 0; i < items.length; i++) {
+                items[i] = new Item(i);
+                pipeline.submit(items[i]);
+            }
+            assertTrue(pipeline.awaitCompletion(10, TimeUnit.SECONDS));
+        } finally {
+            pipeline.shutdown();
+        }
+
+        assertEquals(items.length, listener.completed.get());
+        assertEquals(0, listener.failed.get());
+        for (Item item : items) {
+            assertEquals(item.index * 2 + 1, item.stored);
+        }
+        for (StagedPipeline.StageMetrics metrics : pipeline.getMetrics()) {
+            assertEquals(items.length, metrics.processed);
+        }
+    }
+
+    @Test
+    public void testFailedItemSkipsLaterStages() throws Exception {
+        CountingListener listener = new CountingListener();
+        final AtomicInteger stored = new AtomicInteger();
+        StagedPipeline<Item> pipeline = new StagedPipeline<>("test", QUEUE_CAPACITY, listener)
+                .addStage("parse", 1, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) {
+                        if (item.index % 2 == 0) {
+                            throw new IllegalStateException("Bad response " + item.index);
+                        }
+                    }
+                })
+                .addStage("persist", 1, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) {
+                        stored.incrementAndGet();
+                    }
+                });
+
+        pipeline.start();
+        try {
+            for (int i = 0; i < 10; i++) {
+                pipeline.submit(new Item(i));
+            }
+            assertTrue(pipeline.awaitCompletion(10, TimeUnit.SECONDS));
+        } finally {
+            pipeline.shutdown();
+        }
+
+        assertEquals(5, listener.completed.get());
+        assertEquals(5, listener.failed.get());
+        assertEquals("parse", listener.failedStage);
+        assertEquals(5, stored.get());
+        assertEquals(5, pipeline.getMetrics().get(0).failed);
+    }
+
+    @Test
+    public void testAwaitTerminationWaitsForItemInProgress() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final AtomicInteger stored = new AtomicInteger();
+        StagedPipeline<Item> pipeline = new StagedPipeline<>("test", QUEUE_CAPACITY,
+                new CountingListener())
+                .addStage("persist", 1, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) {
+                        started.countDown();
+                        /* Like a transaction that runs to its end, the interrupt is ignored */
+                        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(300);
+                        while (System.nanoTime() < end) {
+                            Thread.interrupted();
+                        }
+                        stored.incrementAndGet();
+                    }
+                });
+
+        pipeline.start();
+        pipeline.submit(new Item(0));
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        pipeline.shutdown();
+
+        assertTrue(pipeline.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, stored.get());
+    }
+
+    @Test
+    public void testStagesWorkOnDifferentItemsAtTheSameTime() throws Exception {
+        final CountDownLatch persisting = new CountDownLatch(1);
+        final CountDownLatch fetchedWhilePersisting = new CountDownLatch(1);
+        CountingListener listener = new CountingListener();
+
+        /*
+         * Item 0 can only leave the second stage once item 1 went through the first one, which
+         * never happens if the stages take turns.
+         */
+        StagedPipeline<Item> pipeline = new StagedPipeline<>("test", QUEUE_CAPACITY, listener)
+                .addStage("fetch", 1, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) throws Exception {
+                        if (item.index == 1) {
+                            assertTrue(persisting.await(5, TimeUnit.SECONDS));
+                            fetchedWhilePersisting.countDown();
+                        }
+                    }
+                })
+                .addStage("persist", 1, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) throws Exception {
+                        if (item.index == 0) {
+                            persisting.countDown();
+                            assertTrue(fetchedWhilePersisting.await(5, TimeUnit.SECONDS));
+                        }
+                    }
+                });
+
+        pipeline.start();
+        try {
+            for (int i = 0; i < 3; i++) {
+                pipeline.submit(new Item(i));
+            }
+            assertTrue(pipeline.awaitCompletion(10, TimeUnit.SECONDS));
+        } finally {
+            pipeline.shutdown();
+        }
+        assertEquals(3, listener.completed.get());
+        assertEquals(0, listener.failed.get());
+    }
+
+    @Test
+    public void testSlowStageHoldsBackSubmitter() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        CountingListener listener = new CountingListener();
+        final StagedPipeline<Item> pipeline =
+                new StagedPipeline<>("test", QUEUE_CAPACITY, listener)
+                        .addStage("fetch", 2, new StagedPipeline.Stage<Item>() {
+                            @Override
+                            public void process(Item item) {
+                            }
+                        })
+                        .addStage("persist", 1, new StagedPipeline.Stage<Item>() {
+                            @Override
+                            public void process(Item item) throws Exception {
+                                release.await();
+                            }
+                        });
+
+        /*
+         * With the last stage stuck, only its own item, a full queue in front of it, one item
+         * per thread of the stage before and a full queue in front of that fit in.
+         */
+        final int fits = 1 + QUEUE_CAPACITY + 2 + QUEUE_CAPACITY;
+        final AtomicInteger submitted = new AtomicInteger();
+        pipeline.start();
+        Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < fits * 3; i++) {
+                        pipeline.submit(new Item(i));
+                        submitted.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    /* Test is over */
+                }
+            }
+        });
+        try {
+            submitter.start();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (submitted.get() < fits && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+            /* Give the submitter the chance to overrun the bound if it could */
+            Thread.sleep(100);
+            assertEquals(fits, submitted.get());
+            assertTrue(submitter.isAlive());
+
+            release.countDown();
+            submitter.join(TimeUnit.SECONDS.toMillis(5));
+            assertFalse(submitter.isAlive());
+            assertTrue(pipeline.awaitCompletion(10, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            submitter.interrupt();
+            pipeline.shutdown();
+        }
+        assertEquals(fits * 3, listener.completed.get());
+        assertTrue(pipeline.getMetrics().get(1).blockedMillis > 0);
+    }
+
+    @Test
+    public void testThousandsOfItemsStayWithinQueueBounds() throws Exception {
+        CountingListener listener = new CountingListener();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        StagedPipeline<Item> pipeline = new StagedPipeline<>("load", QUEUE_CAPACITY, listener)
+                .addStage("fetch", SyncRequestPlanner.DEFAULT_PARALLELISM,
+                        new StagedPipeline.Stage<Item>() {
+                            @Override
+                            public void process(Item item) {
+                                int now = inFlight.incrementAndGet();
+                                int max = maxInFlight.get();
+                                while (now > max && !maxInFlight.compareAndSet(max, now)) {
+                                    max = maxInFlight.get();
+                                }
+                                item.fetched = item.index;
+                            }
+                        })
+                .addStage("parse", 2, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) {
+                        item.parsed = item.fetched;
+                    }
+                })
+                /* The slow stage, like a database write that is much slower than the rest */
+                .addStage("persist", 1, new StagedPipeline.Stage<Item>() {
+                    @Override
+                    public void process(Item item) {
+                        long until = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(200);
+                        while (System.nanoTime() < until) {
+                            item.stored = item.parsed;
+                        }
+                        inFlight.decrementAndGet();
+                    }
+                });
+
+        long start = System.nanoTime();
+        pipeline.start();
+        try {
+            for (int i = 0; i < LOAD_ITEMS; i++) {
+                pipeline.submit(new Item(i));
+            }
+            assertTrue(pipeline.awaitCompletion(60, TimeUnit.SECONDS));
+        } finally {
+            pipeline.shutdown();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(LOAD_ITEMS, listener.completed.get());
+        assertEquals(0, listener.failed.get());
+
+        /* Whatever the speed of the stages, no more than threads and queue slots hold items */
+        int bound = SyncRequestPlanner.DEFAULT_PARALLELISM + 2 + 1 + 2 * QUEUE_CAPACITY;
+        assertTrue("In flight: " + maxInFlight.get(), maxInFlight.get() <= bound);
+
+        List<StagedPipeline.StageMetrics> metrics = pipeline.getMetrics();
+        for (StagedPipeline.StageMetrics stage : metrics) {
+            assertEquals(LOAD_ITEMS, stage.processed);
+            assertTrue(stage.maxQueueDepth <= QUEUE_CAPACITY);
+        }
+        /* The parse stage had to wait for the slow persist stage */
+        assertTrue(metrics.get(2).blockedMillis > 0);
+
+        Log.i(TAG, LOAD_ITEMS + " items in " + elapsedMillis + "ms: " + pipeline.summary());
+    }
+}
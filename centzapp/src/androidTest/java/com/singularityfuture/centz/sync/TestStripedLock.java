@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class TestStripedLock {
+
+    private static final String TAG = TestStripedLock.class.getSimpleName();
+
+    private static final int THREADS = 8;
+
+    private static final int SYMBOLS = 50;
+
+    private static final int SYNCS_PER_THREAD = 2000;
+
+    @Test
+    public void testSameKeyIsNeverHeldTwice() throws Exception {
+        final StripedLock locks = new StripedLock(StripedLock.DEFAULT_STRIPES);
+        StripedLock.Held held = locks.lockAll(Collections.singletonList("btc"));
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    locks.lockAll(Arrays.asList("eth", "btc")).unlock();
+                    acquired.countDown();
+                } catch (InterruptedException e) {
+                    /* Test is over */
+                }
+            }
+        });
+        other.start();
+        try {
+            assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+            held.unlock();
+            assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        } finally {
+            other.interrupt();
+        }
+        assertTrue(locks.getContendedCount() >= 1);
+    }
+
+    @Test
+    public void testInterruptedWaitHoldsNothing() throws Exception {
+        final StripedLock locks = new StripedLock(StripedLock.DEFAULT_STRIPES);
+        final List<String> keys = differentStripes(locks, 2);
+        /* The other caller gets the first stripe, then has to wait for the second */
+        StripedLock.Held held = locks.lockAll(keys.subList(1, 2));
+
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    locks.lockAll(keys).unlock();
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }
+        });
+        other.start();
+        while (locks.getContendedCount() == 0) {
+            Thread.sleep(5);
+        }
+        other.interrupt();
+        other.join(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(interrupted.get());
+        held.unlock();
+
+        /* The stripe the interrupted caller took before it had to wait was given back */
+        locks.lockAll(keys.subList(0, 1)).unlock();
+    }
+
+    /*
+     * Every thread runs syncs of random sets of symbols, in random order. A sync reads a counter
+     * per symbol and writes it back incremented, which loses updates as soon as two syncs hold
+     * the same symbol at once. Overlapping sets taken in different orders would also deadlock
+     * here if the stripes weren't always taken in the same order.
+     */
+    @Test
+    public void testNoLostUpdatesUnderContention() throws Exception {
+        final StripedLock locks = new StripedLock(StripedLock.DEFAULT_STRIPES);
+        final int[] counters = new int[SYMBOLS];
+        final AtomicInteger[] holders = new AtomicInteger[SYMBOLS];
+        final AtomicInteger[] expected = new AtomicInteger[SYMBOLS];
+        for (int i = 0; i < SYMBOLS; i++) {
+            holders[i] = new AtomicInteger();
+            expected[i] = new AtomicInteger();
+        }
+        final AtomicInteger overlaps = new AtomicInteger();
+
+        runOnThreads(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                Random random = new Random();
+                for (int sync = 0; sync < SYNCS_PER_THREAD; sync++) {
+                    List<String> symbols = new ArrayList<>();
+                    List<Integer> indexes = new ArrayList<>();
+                    int count = 1 + random.nextInt(4);
+                    while (indexes.size() < count) {
+                        int index = random.nextInt(SYMBOLS);
+                        if (indexes.contains(index)) continue;
+                        indexes.add(index);
+                        symbols.add("symbol-" + index);
+                    }
+
+                    StripedLock.Held held = locks.lockAll(symbols);
+                    try {
+                        for (int index : indexes) {
+                            if (holders[index].incrementAndGet() != 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            int value = counters[index];
+                            Thread.yield();
+                            counters[index] = value + 1;
+                            expected[index].incrementAndGet();
+                            holders[index].decrementAndGet();
+                        }
+                    } finally {
+                        held.unlock();
+                    }
+                }
+                return null;
+            }
+        });
+
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < SYMBOLS; i++) {
+            assertEquals("Lost updates for symbol-" + i, expected[i].get(), counters[i]);
+        }
+    }
+
+    /*
+     * Syncs spend most of their time waiting on the network with their symbols locked. With one
+     * stripe, which is what a lock on the whole class amounts to, they run one after the other.
+     * With stripes, syncs of different symbols overlap.
+     */
+    @Test
+    public void testThroughputScalesWithStripes() throws Exception {
+        long serialMillis = timeSyncsOfDistinctSymbols(new StripedLock(1));
+        StripedLock striped = new StripedLock(StripedLock.DEFAULT_STRIPES);
+        long stripedMillis = timeSyncsOfDistinctSymbols(striped);
+
+        Log.i(TAG, THREADS + " threads, one lock: " + serialMillis + "ms, "
+                + striped.getStripeCount() + " stripes: " + stripedMillis + "ms");
+        assertTrue("one lock: " + serialMillis + "ms, striped: " + stripedMillis + "ms",
+                stripedMillis * 2 < serialMillis);
+    }
+
+    private long timeSyncsOfDistinctSymbols(final StripedLock locks) throws Exception {
+        final List<String> symbols = differentStripes(
+                new StripedLock(StripedLock.DEFAULT_STRIPES), THREADS);
+        final AtomicInteger next = new AtomicInteger();
+        long start = System.nanoTime();
+        runOnThreads(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                List<String> mine = Collections.singletonList(
+                        symbols.get(next.getAndIncrement()));
+                for (int sync = 0; sync < 20; sync++) {
+                    StripedLock.Held held = locks.lockAll(mine);
+                    try {
+                        /* Stands in for a request on the network */
+                        Thread.sleep(5);
+                    } finally {
+                        held.unlock();
+                    }
+                }
+                return null;
+            }
+        });
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    /* Finds keys that all land on a stripe of their own, in the order the stripes are taken */
+    private static List<String> differentStripes(StripedLock locks, int count) {
+        String[] byStripe = new String[locks.getStripeCount()];
+        int found = 0;
+        for (int i = 0; found < count; i++) {
+            String key = "symbol-" + i;
+            int stripe = locks.stripeFor(key);
+            if (byStripe[stripe] != null) continue;
+            byStripe[stripe] = key;
+            found++;
+        }
+        List<String> keys = new ArrayList<>();
+        for (String key : byStripe) {
+            if (key != null) keys.add(key);
+        }
+        return keys;
+    }
+
+    private static void runOnThreads(Callable<Void> work) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(work));
+            }
+            for (Future<Void> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
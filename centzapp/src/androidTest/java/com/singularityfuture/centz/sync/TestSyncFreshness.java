@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.singularityfuture.centz.data.CentzContract.SyncMetaEntry;
+import com.singularityfuture.centz.data.CentzPreferences;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks the sync metadata kept by the provider and which symbols opening the app considers
+ * stale because of it, see {@link CentzSyncUtils#getStaleSymbols}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncFreshness {
+
+    private static final String FRESH = "test-fresh";
+    private static final String OLD = "test-old";
+    private static final String NEVER = "test-never";
+
+    private static final List<String> SYMBOLS = Arrays.asList(FRESH, OLD, NEVER);
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+    private static final long NOW = TimeUnit.DAYS.toMillis(365 * 50);
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+    private final ContentResolver resolver = context.getContentResolver();
+
+    @After
+    public void tearDown() {
+        resolver.delete(SyncMetaEntry.CONTENT_URI, null, null);
+        for (String symbol : SYMBOLS) {
+            CentzPreferences.setMaxDataAgeMillis(context, symbol, 0);
+        }
+    }
+
+    @Test
+    public void testMetadataIsMergedPerSymbol() {
+        ContentValues failed = new ContentValues();
+        failed.put(SyncMetaEntry.COLUMN_SYMBOL, FRESH);
+        failed.put(SyncMetaEntry.COLUMN_LAST_FETCH, NOW);
+        failed.put(SyncMetaEntry.COLUMN_LAST_ERROR, "timeout");
+        assertEquals(2, resolver.bulkInsert(SyncMetaEntry.CONTENT_URI, new ContentValues[]{
+                success(FRESH, NOW - MINUTE, 7), failed}));
+
+        Cursor meta = resolver.query(SyncMetaEntry.buildSyncMetaUriWithSymbol(FRESH), null,
+                null, null, null);
+        assertTrue(meta.moveToFirst());
+        assertEquals(1, meta.getCount());
+        assertEquals(NOW, meta.getLong(meta.getColumnIndex(SyncMetaEntry.COLUMN_LAST_FETCH)));
+        assertEquals(NOW - MINUTE,
+                meta.getLong(meta.getColumnIndex(SyncMetaEntry.COLUMN_LAST_SUCCESS)));
+        assertEquals(7, meta.getInt(meta.getColumnIndex(SyncMetaEntry.COLUMN_ROW_COUNT)));
+        assertEquals("timeout",
+                meta.getString(meta.getColumnIndex(SyncMetaEntry.COLUMN_LAST_ERROR)));
+        meta.close();
+
+        meta = resolver.query(SyncMetaEntry.buildSyncMetaUriWithSymbol(NEVER), null, null,
+                null, null);
+        assertEquals(0, meta.getCount());
+        meta.close();
+    }
+
+    @Test
+    public void testOnlyOldAndNeverSyncedSymbolsAreStale() {
+        long maxAge = CentzSyncUtils.DEFAULT_MAX_DATA_AGE_MILLIS;
+        record(success(FRESH, NOW - maxAge + MINUTE, 1), success(OLD, NOW - maxAge, 1));
+
+        assertEquals(Arrays.asList(OLD, NEVER),
+                CentzSyncUtils.getStaleSymbols(context, SYMBOLS, NOW));
+    }
+
+    @Test
+    public void testSymbolWithoutRowsIsStale() {
+        record(success(FRESH, NOW, 0));
+
+        assertEquals(Collections.singletonList(FRESH), CentzSyncUtils.getStaleSymbols(context,
+                Collections.singletonList(FRESH), NOW));
+    }
+
+    @Test
+    public void testMaxAgeIsPerSymbol() {
+        record(success(FRESH, NOW - 10 * MINUTE, 1), success(OLD, NOW - 10 * MINUTE, 1));
+        CentzPreferences.setMaxDataAgeMillis(context, FRESH, 60 * MINUTE);
+        CentzPreferences.setMaxDataAgeMillis(context, OLD, 5 * MINUTE);
+
+        assertEquals(Collections.singletonList(OLD), CentzSyncUtils.getStaleSymbols(context,
+                Arrays.asList(FRESH, OLD), NOW));
+    }
+
+    @Test
+    public void testSyncTimeInTheFutureIsStale() {
+        record(success(FRESH, NOW + MINUTE, 1));
+
+        assertEquals(Collections.singletonList(FRESH), CentzSyncUtils.getStaleSymbols(context,
+                Collections.singletonList(FRESH), NOW));
+    }
+
+    @Test
+    public void testFreshWatchlistAvoidsTheSync() {
+        long now = System.currentTimeMillis();
+        for (String symbol : CentzPreferences.getWatchlist(context)) {
+            record(success(symbol, now, 1));
+        }
+        long avoided = CentzSyncStats.getAvoidedSyncCount();
+
+        for (int created = 0; created < 3; created++) {
+            CentzSyncUtils.syncStaleSymbols(context);
+        }
+
+        assertEquals(avoided + 3, CentzSyncStats.getAvoidedSyncCount());
+        assertTrue(CentzSyncStats.summary().contains("avoided="));
+    }
+
+    @Test
+    public void testValidatorsOnlyGoWithStoredRows() throws Exception {
+        URL url = new URL("https://example.com/prices?symbol=" + FRESH);
+        SyncRequestPlanner.PlannedRequest request =
+                new SyncRequestPlanner.PlannedRequest(FRESH, url);
+        assertNull(SyncPipeline.Validators.load(resolver, request).etag);
+
+        ContentValues stored = success(FRESH, NOW, 3);
+        stored.put(SyncMetaEntry.COLUMN_SOURCE, url.toString());
+        stored.put(SyncMetaEntry.COLUMN_ETAG, "\"v1\"");
+        stored.put(SyncMetaEntry.COLUMN_LAST_MODIFIED, "Wed, 01 Jan 2020");
+        record(stored);
+        SyncPipeline.Validators validators = SyncPipeline.Validators.load(resolver, request);
+        assertEquals("\"v1\"", validators.etag);
+        assertEquals("Wed, 01 Jan 2020", validators.lastModified);
+
+        /* Rows from another URL, say another currency, aren't what the validators describe */
+        SyncRequestPlanner.PlannedRequest otherUrl = new SyncRequestPlanner.PlannedRequest(FRESH,
+                new URL("https://example.com/prices?symbol=" + FRESH + "&currency=eur"));
+        assertNull(SyncPipeline.Validators.load(resolver, otherUrl).etag);
+
+        ContentValues emptied = new ContentValues();
+        emptied.put(SyncMetaEntry.COLUMN_SYMBOL, FRESH);
+        emptied.put(SyncMetaEntry.COLUMN_ROW_COUNT, 0);
+        record(emptied);
+        validators = SyncPipeline.Validators.load(resolver, request);
+        assertNull(validators.etag);
+        assertNull(validators.lastModified);
+    }
+
+    private void record(ContentValues... values) {
+        resolver.bulkInsert(SyncMetaEntry.CONTENT_URI, values);
+    }
+
+    private static ContentValues success(String symbol, long time, int rowCount) {
+        ContentValues values = new ContentValues();
+        values.put(SyncMetaEntry.COLUMN_SYMBOL, symbol);
+        values.put(SyncMetaEntry.COLUMN_LAST_FETCH, time);
+        values.put(SyncMetaEntry.COLUMN_LAST_SUCCESS, time);
+        values.put(SyncMetaEntry.COLUMN_ROW_COUNT, rowCount);
+        return values;
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.singularityfuture.centz.sync.SyncRequestQueue.Priority;
+import com.singularityfuture.centz.sync.SyncRequestQueue.Ticket;
+import com.singularityfuture.centz.utilities.CancellationToken;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks the order the {@link SyncRequestQueue} runs syncs in, with a syncer that only records
+ * them. The queue gets a single thread, so the order is deterministic.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncRequestQueue {
+
+    private static final List<String> A = Collections.singletonList("test-a");
+    private static final List<String> B = Collections.singletonList("test-b");
+    private static final List<String> C = Collections.singletonList("test-c");
+    private static final List<String> D = Collections.singletonList("test-d");
+    private static final List<String> E = Collections.singletonList("test-e");
+
+    private final FakeSyncer syncer = new FakeSyncer();
+    private final SyncRequestQueue queue = new SyncRequestQueue(syncer, 1);
+
+    @Test
+    public void testRunsMostUrgentFirst() throws Exception {
+        Ticket blocker = startBlocking(A, Priority.BACKGROUND);
+        List<Ticket> tickets = Arrays.asList(
+                queue.submit(B, Priority.BACKFILL, null),
+                queue.submit(C, Priority.BACKGROUND, null),
+                queue.submit(D, Priority.ALERT_CRITICAL, null),
+                queue.submit(E, Priority.INTERACTIVE, null));
+        syncer.release(A);
+
+        assertEquals(SyncOutcome.UPDATED, blocker.await());
+        for (Ticket ticket : tickets) {
+            assertEquals(SyncOutcome.UPDATED, ticket.await());
+        }
+        assertEquals(Arrays.asList(A, E, D, C, B), syncer.calls);
+        assertEquals(0, queue.getPreemptedCount());
+    }
+
+    @Test
+    public void testDuplicateRequestsMergeAndMoveUp() throws Exception {
+        Ticket blocker = startBlocking(A, Priority.BACKGROUND);
+        Ticket backfill = queue.submit(B, Priority.BACKFILL, null);
+        Ticket background = queue.submit(C, Priority.BACKGROUND, null);
+        Ticket interactive = queue.submit(B, Priority.INTERACTIVE, null);
+        syncer.release(A);
+
+        blocker.await();
+        assertEquals(SyncOutcome.UPDATED, backfill.await());
+        assertEquals(SyncOutcome.UPDATED, interactive.await());
+        assertEquals(SyncOutcome.UPDATED, background.await());
+
+        /* B was synced once, ahead of C because of the interactive request */
+        assertEquals(Arrays.asList(A, B, C), syncer.calls);
+        assertEquals(1, queue.getMergedCount(Priority.INTERACTIVE));
+        assertEquals(0, queue.getMergedCount(Priority.BACKFILL));
+    }
+
+    @Test
+    public void testSymbolsMergeIntoQueuedWatchlistSync() throws Exception {
+        Ticket blocker = startBlocking(A, Priority.BACKGROUND);
+        Ticket watchlist = queue.submit(null, Priority.BACKGROUND, null);
+        Ticket symbols = queue.submit(B, Priority.INTERACTIVE, null);
+        syncer.release(A);
+
+        blocker.await();
+        assertEquals(SyncOutcome.UPDATED, watchlist.await());
+        assertEquals(SyncOutcome.UPDATED, symbols.await());
+        assertEquals(2, syncer.calls.size());
+        assertNull(syncer.calls.get(1));
+    }
+
+    @Test
+    public void testInteractiveRequestPreemptsRunningBackfill() throws Exception {
+        Ticket backfill = startBlocking(B, Priority.BACKFILL);
+        Ticket interactive = queue.submit(E, Priority.INTERACTIVE, null);
+
+        /* The backfill is cancelled to make room, then queued again behind the refresh */
+        assertEquals(SyncOutcome.UPDATED, interactive.await());
+        syncer.release(B);
+        assertEquals(SyncOutcome.UPDATED, backfill.await());
+
+        assertEquals(Arrays.asList(B, E, B), syncer.calls);
+        assertEquals(1, queue.getPreemptedCount());
+        assertEquals(0, queue.getFailedCount(Priority.BACKFILL));
+    }
+
+    @Test
+    public void testRequestForRunningSyncGetsSyncOfItsOwn() throws Exception {
+        SyncRequestQueue queue = new SyncRequestQueue(syncer, SyncRequestQueue.WORKER_THREADS);
+        syncer.held.add(A);
+        Ticket running = queue.submit(A, Priority.BACKGROUND, null);
+        assertTrue(syncer.started.tryAcquire(5, TimeUnit.SECONDS));
+
+        /* The running sync may have fetched already, so these wait for a second one */
+        Ticket followUp = queue.submit(A, Priority.BACKGROUND, null);
+        Ticket merged = queue.submit(A, Priority.INTERACTIVE, null);
+
+        /* Not alongside the running sync even though a thread is free */
+        assertFalse(syncer.started.tryAcquire(200, TimeUnit.MILLISECONDS));
+        syncer.release(A);
+
+        assertEquals(SyncOutcome.UPDATED, running.await());
+        assertEquals(SyncOutcome.UPDATED, followUp.await());
+        assertEquals(SyncOutcome.UPDATED, merged.await());
+        assertEquals(Arrays.asList(A, A), syncer.calls);
+        assertEquals(1, queue.getMergedCount(Priority.INTERACTIVE));
+        assertEquals(0, queue.getMergedCount(Priority.BACKGROUND));
+    }
+
+    @Test
+    public void testInteractiveRequestRestartsRunningBackfillOfSameSymbols() throws Exception {
+        Ticket backfill = startBlocking(B, Priority.BACKFILL);
+        Ticket interactive = queue.submit(B, Priority.INTERACTIVE, null);
+        syncer.release(B);
+
+        /* The restarted backfill covers the interactive request, there is no third sync */
+        assertEquals(SyncOutcome.UPDATED, backfill.await());
+        assertEquals(SyncOutcome.UPDATED, interactive.await());
+        assertEquals(Arrays.asList(B, B), syncer.calls);
+        assertEquals(1, queue.getPreemptedCount());
+    }
+
+    @Test
+    public void testBackgroundRequestDoesNotPreempt() throws Exception {
+        Ticket backfill = startBlocking(B, Priority.BACKFILL);
+        Ticket background = queue.submit(C, Priority.BACKGROUND, null);
+        syncer.release(B);
+
+        assertEquals(SyncOutcome.UPDATED, backfill.await());
+        assertEquals(SyncOutcome.UPDATED, background.await());
+        assertEquals(Arrays.asList(B, C), syncer.calls);
+        assertEquals(0, queue.getPreemptedCount());
+    }
+
+    @Test
+    public void testCancelledRequestIsDropped() throws Exception {
+        Ticket blocker = startBlocking(A, Priority.BACKGROUND);
+        Ticket cancelled = queue.submit(B, Priority.BACKFILL, null);
+        cancelled.cancel();
+        assertEquals(SyncOutcome.FAILED, cancelled.await());
+
+        Ticket other = queue.submit(C, Priority.BACKFILL, null);
+        syncer.release(A);
+        blocker.await();
+        other.await();
+        assertEquals(Arrays.asList(A, C), syncer.calls);
+    }
+
+    @Test
+    public void testCancellingRunningRequestCancelsItsSync() throws Exception {
+        Ticket running = startBlocking(A, Priority.BACKGROUND);
+        running.cancel();
+        assertEquals(SyncOutcome.FAILED, running.await());
+
+        /* The syncer only returns once its token is cancelled, so this finishes */
+        Ticket next = queue.submit(C, Priority.BACKGROUND, null);
+        assertEquals(SyncOutcome.UPDATED, next.await());
+        assertEquals(Arrays.asList(A, C), syncer.calls);
+    }
+
+    @Test
+    public void testLatencyIsKeptPerPriority() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicReference<SyncOutcome> reported = new AtomicReference<>();
+        queue.submit(E, Priority.INTERACTIVE, new SyncRequestQueue.Callback() {
+            @Override
+            public void onFinished(SyncOutcome outcome) {
+                reported.set(outcome);
+                finished.countDown();
+            }
+        });
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(SyncOutcome.UPDATED, reported.get());
+
+        syncer.failing.add(C);
+        assertEquals(SyncOutcome.FAILED, queue.submit(C, Priority.BACKGROUND, null).await());
+
+        assertEquals(1, queue.getLatencies(Priority.INTERACTIVE).getCount());
+        assertEquals(0, queue.getLatencies(Priority.BACKGROUND).getCount());
+        assertEquals(1, queue.getFailedCount(Priority.BACKGROUND));
+        assertEquals(1, queue.getSubmittedCount(Priority.INTERACTIVE));
+        assertEquals(0, queue.getSubmittedCount(Priority.BACKFILL));
+    }
+
+    /* Submits a sync that runs until it is released or cancelled, and waits for it to start */
+    private Ticket startBlocking(List<String> symbols, Priority priority) throws Exception {
+        syncer.held.add(symbols);
+        Ticket ticket = queue.submit(symbols, priority, null);
+        assertTrue(syncer.started.tryAcquire(5, TimeUnit.SECONDS));
+        return ticket;
+    }
+
+    private static final class FakeSyncer implements SyncRequestQueue.Syncer {
+        final List<List<String>> calls =
+                Collections.synchronizedList(new ArrayList<List<String>>());
+        final Set<List<String>> held =
+                Collections.newSetFromMap(new ConcurrentHashMap<List<String>, Boolean>());
+        final Set<List<String>> failing =
+                Collections.newSetFromMap(new ConcurrentHashMap<List<String>, Boolean>());
+        final Semaphore started = new Semaphore(0);
+
+        void release(List<String> symbols) {
+            held.remove(symbols);
+        }
+
+        @Override
+        public SyncOutcome sync(List<String> symbols, CancellationToken token) {
+            calls.add(symbols);
+            started.release();
+            while (symbols != null && held.contains(symbols)) {
+                if (token.isCancelled()) return SyncOutcome.FAILED;
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return SyncOutcome.FAILED;
+                }
+            }
+            return symbols != null && failing.contains(symbols)
+                    ? SyncOutcome.FAILED : SyncOutcome.UPDATED;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.singularityfuture.centz.data.CentzBatch;
+import com.singularityfuture.centz.utilities.FetchPolicy;
+import com.singularityfuture.centz.utilities.NetworkUtils;
+import com.singularityfuture.centz.utilities.TestResponseStreamingBenchmark;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Measures how long a {@link SyncPipeline} run over the whole watchlist takes for 1, 10 and 100
+ * symbols, once fetching one request at a time and once with the default parallelism. The
+ * stand-in server adds a fixed delay to every response to stand in for network latency. A load
+ * run also pushes a few thousand symbols through the pipeline. Every run stores its rows in the
+ * provider. Timings and stage metrics are written to logcat under the class name.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWatchlistSyncBenchmark {
+
+    private static final String TAG = TestWatchlistSyncBenchmark.class.getSimpleName();
+
+    private static final int[] WATCHLIST_SIZES = {1, 10, 100};
+
+    private static final long RESPONSE_DELAY_MILLIS = 50;
+
+    private static final int PIPELINE_LOAD_SYMBOLS = 2000;
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        final byte[] body = TestResponseStreamingBenchmark.buildForecastJson(4 * 1024);
+
+        mServer = new MockWebServer();
+        mServer.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse()
+                        .setBodyDelay(RESPONSE_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+                        .setBody(new Buffer().write(body));
+            }
+        });
+        mServer.start();
+        NetworkUtils.setBaseUrl(mServer.url("/centz").toString());
+        /* We are measuring the pipeline, not the rate limiter */
+        FetchPolicy.setBudget(mServer.getHostName(), 1000, 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        NetworkUtils.setBaseUrl(null);
+        FetchPolicy.resetAll();
+        mServer.shutdown();
+    }
+
+    @Test
+    public void benchmarkSyncTimeAgainstWatchlistSize() throws Exception {
+        SyncPipeline serial = new SyncPipeline(1, SyncPipeline.DEFAULT_QUEUE_CAPACITY);
+        SyncPipeline parallel = new SyncPipeline(SyncRequestPlanner.DEFAULT_PARALLELISM,
+                SyncPipeline.DEFAULT_QUEUE_CAPACITY);
+
+        try {
+            for (int size : WATCHLIST_SIZES) {
+                List<String> watchlist = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    watchlist.add("symbol-" + i);
+                }
+                List<SyncRequestPlanner.PlannedRequest> requests =
+                        SyncRequestPlanner.plan(context, watchlist);
+                assertEquals(size, requests.size());
+
+                long serialMillis = timeRun(serial, requests);
+                long parallelMillis = timeRun(parallel, requests);
+
+                Log.i(TAG, "symbols=" + size + " requests=" + requests.size()
+                        + " serial=" + serialMillis + "ms"
+                        + " parallel(" + SyncRequestPlanner.DEFAULT_PARALLELISM + ")="
+                        + parallelMillis + "ms");
+            }
+        } finally {
+            serial.shutdown();
+            parallel.shutdown();
+            CentzBatch.deleteOtherSymbols(context.getContentResolver(),
+                    new ArrayList<String>());
+        }
+    }
+
+    @Test
+    public void benchmarkPipelineWithThousandsOfSymbols() throws Exception {
+        List<String> watchlist = new ArrayList<>(PIPELINE_LOAD_SYMBOLS);
+        for (int i = 0; i < PIPELINE_LOAD_SYMBOLS; i++) {
+            watchlist.add("load-" + i);
+        }
+        List<SyncRequestPlanner.PlannedRequest> requests =
+                SyncRequestPlanner.plan(context, watchlist);
+        SyncPipeline pipeline = new SyncPipeline(SyncRequestPlanner.DEFAULT_PARALLELISM,
+                SyncPipeline.DEFAULT_QUEUE_CAPACITY);
+        CentzBatch rows = new CentzBatch();
+
+        try {
+            long start = SystemClock.elapsedRealtime();
+            List<SyncRequestPlanner.RequestResult> results =
+                    pipeline.run(context, requests, rows);
+            long elapsed = SystemClock.elapsedRealtime() - start;
+
+            assertEquals(requests.size(), results.size());
+            int rowsWritten = 0;
+            for (SyncRequestPlanner.RequestResult result : results) {
+                assertEquals(SyncOutcome.UPDATED, result.outcome);
+                rowsWritten += result.upsert.rowsWritten;
+            }
+            assertEquals(rows.size(), rowsWritten);
+
+            for (StagedPipeline.StageMetrics stage : pipeline.getMetrics()) {
+                assertEquals(requests.size(), stage.processed);
+                assertTrue(stage.maxQueueDepth <= SyncPipeline.DEFAULT_QUEUE_CAPACITY);
+            }
+            Log.i(TAG, "pipeline symbols=" + PIPELINE_LOAD_SYMBOLS + " rows=" + rows.size()
+                    + " in " + elapsed + "ms");
+        } finally {
+            pipeline.shutdown();
+            CentzBatch.deleteOtherSymbols(context.getContentResolver(),
+                    new ArrayList<String>());
+        }
+    }
+
+    private long timeRun(SyncPipeline pipeline,
+                         List<SyncRequestPlanner.PlannedRequest> requests) throws Exception {
+        long start = SystemClock.elapsedRealtime();
+        List<SyncRequestPlanner.RequestResult> results =
+                pipeline.run(context, requests, new CentzBatch());
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(requests.size(), results.size());
+        for (SyncRequestPlanner.RequestResult result : results) {
+            assertEquals(SyncOutcome.UPDATED, result.outcome);
+        }
+        return elapsed;
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Drives {@link WearPublisher} with a fake transport in place of the Wearable API.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestWearPublisher {
+
+    private static final long COALESCE_MILLIS = 50;
+
+    @Test
+    public void testBurstIsCoalescedIntoOneWrite() throws Exception {
+        FakeTransport transport = new FakeTransport(1);
+        WearPublisher publisher = new WearPublisher(transport, COALESCE_MILLIS, 10);
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publish(100 + i, 90 + i, 800);
+        }
+
+        assertTrue(transport.written.await(5, TimeUnit.SECONDS));
+        /* Nothing else may follow the single write */
+        Thread.sleep(5 * COALESCE_MILLIS);
+        assertEquals(1, transport.writes.size());
+        assertEquals(109, transport.writes.get(0)[0]);
+        assertEquals(99, transport.writes.get(0)[1]);
+        assertEquals(10, publisher.getPublishedCount());
+        assertEquals(9, publisher.getCoalescedCount());
+        assertEquals(1, publisher.getWrittenCount());
+    }
+
+    @Test
+    public void testPublishDoesNotWaitForTheWatch() throws Exception {
+        FakeTransport transport = new FakeTransport(2);
+        transport.blockWrites = new CountDownLatch(1);
+        WearPublisher publisher = new WearPublisher(transport, 0, 10);
+
+        publisher.publish(1, 0, 800);
+        assertTrue(transport.writeStarted.await(5, TimeUnit.SECONDS));
+
+        /* The first write hangs; later updates still return right away and are kept */
+        long start = System.nanoTime();
+        publisher.publish(2, 0, 800);
+        publisher.publish(3, 0, 800);
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+
+        transport.blockWrites.countDown();
+        assertTrue(transport.written.await(5, TimeUnit.SECONDS));
+        assertEquals(3, transport.writes.get(1)[0]);
+    }
+
+    @Test
+    public void testFailedWriteIsRetriedOnReconnect() throws Exception {
+        FakeTransport transport = new FakeTransport(1);
+        transport.connected = false;
+        /* A backoff far longer than the test, so only the reconnect can trigger the retry */
+        WearPublisher publisher = new WearPublisher(transport, 0, TimeUnit.MINUTES.toMillis(10));
+
+        publisher.publish(42, 41, 800);
+        while (publisher.getFailedWriteCount() == 0) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, transport.writes.size());
+
+        transport.connected = true;
+        publisher.onReconnected();
+        assertTrue(transport.written.await(5, TimeUnit.SECONDS));
+        assertEquals(42, transport.writes.get(0)[0]);
+        assertEquals(1, publisher.getWrittenCount());
+    }
+
+    private static final class FakeTransport implements WearPublisher.Transport {
+        final List<int[]> writes = new ArrayList<>();
+        final CountDownLatch written;
+        final CountDownLatch writeStarted = new CountDownLatch(1);
+        volatile CountDownLatch blockWrites;
+        volatile boolean connected = true;
+
+        FakeTransport(int expectedWrites) {
+            written = new CountDownLatch(expectedWrites);
+        }
+
+        @Override
+        public boolean connect() {
+            return connected;
+        }
+
+        @Override
+        public boolean write(int high, int low, int centzId, long timeMillis) {
+            writeStarted.countDown();
+            CountDownLatch block = blockWrites;
+            if (block != null) {
+                try {
+                    block.await();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            synchronized (writes) {
+                writes.add(new int[]{high, low, centzId});
+            }
+            written.countDown();
+            return true;
+        }
+    }
+}
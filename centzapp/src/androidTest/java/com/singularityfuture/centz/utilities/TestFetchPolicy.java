@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Checks retries, the circuit breaker and the request budget of {@link FetchPolicy} against a
+ * local stand-in server. Time is simulated, nothing in here actually sleeps.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestFetchPolicy {
+
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BASE_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 1000;
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long OPEN_MILLIS = 60 * 1000;
+
+    private MockWebServer mServer;
+    private FakeClock mClock;
+    private URL mUrl;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        mClock = new FakeClock();
+        mUrl = mServer.url("/centz").url();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    private FetchPolicy newPolicy(int bucketCapacity, double tokensPerSecond) {
+        return new FetchPolicy(mUrl.getHost(), MAX_ATTEMPTS, BASE_BACKOFF_MILLIS,
+                MAX_BACKOFF_MILLIS, FAILURE_THRESHOLD, OPEN_MILLIS,
+                bucketCapacity, tokensPerSecond, mClock);
+    }
+
+    @Test
+    public void testServerErrorsAreRetriedWithBoundedBackoff() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(503));
+        mServer.enqueue(new MockResponse().setResponseCode(500));
+        mServer.enqueue(new MockResponse().setBody("{\"cod\":200}"));
+
+        FetchPolicy policy = newPolicy(10, 1);
+        HttpFetchResult result = policy.fetch(mUrl, null, null, new ResponseBuffer());
+
+        assertEquals(200, result.getStatusCode());
+        assertEquals(3, mServer.getRequestCount());
+        assertEquals(2, policy.getRetryCount());
+        assertEquals(2, mClock.sleeps.size());
+        assertTrue(mClock.sleeps.get(0) <= BASE_BACKOFF_MILLIS);
+        assertTrue(mClock.sleeps.get(1) <= BASE_BACKOFF_MILLIS * 2);
+        assertFalse(policy.isCircuitOpen());
+    }
+
+    @Test
+    public void testClientErrorsAreNotRetried() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(404));
+
+        FetchPolicy policy = newPolicy(10, 1);
+        try {
+            policy.fetch(mUrl, null, null, new ResponseBuffer());
+            fail("A 404 should be reported");
+        } catch (HttpStatusException e) {
+            assertEquals(404, e.getStatusCode());
+        }
+        assertEquals(1, mServer.getRequestCount());
+        assertEquals(0, policy.getRetryCount());
+    }
+
+    @Test
+    public void testCircuitOpensAfterRepeatedFailuresAndProbesAfterCoolDown() throws Exception {
+        for (int i = 0; i < FAILURE_THRESHOLD; i++) {
+            mServer.enqueue(new MockResponse().setResponseCode(502));
+        }
+        FetchPolicy policy = newPolicy(10, 1);
+
+        try {
+            policy.fetch(mUrl, null, null, new ResponseBuffer());
+            fail("Every attempt failed, the fetch should too");
+        } catch (HttpStatusException expected) {
+        }
+        assertTrue(policy.isCircuitOpen());
+        assertEquals(FAILURE_THRESHOLD, mServer.getRequestCount());
+
+        /* While open, nothing reaches the server */
+        try {
+            policy.fetch(mUrl, null, null, new ResponseBuffer());
+            fail("The circuit should have refused the request");
+        } catch (FetchPolicy.RejectedException expected) {
+        }
+        assertEquals(FAILURE_THRESHOLD, mServer.getRequestCount());
+        assertEquals(1, policy.getCircuitRejectionCount());
+
+        /* After the cool down a single probe goes out and closes the circuit again */
+        mClock.advance(OPEN_MILLIS);
+        mServer.enqueue(new MockResponse().setBody("{\"cod\":200}"));
+        policy.fetch(mUrl, null, null, new ResponseBuffer());
+        assertFalse(policy.isCircuitOpen());
+        assertEquals(FAILURE_THRESHOLD + 1, mServer.getRequestCount());
+    }
+
+    @Test
+    public void testRetryAfterOn429IsHonoured() throws Exception {
+        mServer.enqueue(new MockResponse().setResponseCode(429).setHeader("Retry-After", "120"));
+        FetchPolicy policy = newPolicy(10, 1);
+
+        try {
+            policy.fetch(mUrl, null, null, new ResponseBuffer());
+            fail("A 429 should be reported");
+        } catch (HttpStatusException e) {
+            assertTrue(e.isRateLimited());
+            assertEquals(120 * 1000, e.getRetryAfterMillis());
+        }
+        assertEquals("A 429 must not be retried", 1, mServer.getRequestCount());
+
+        mClock.advance(119 * 1000);
+        try {
+            policy.fetch(mUrl, null, null, new ResponseBuffer());
+            fail("Requests before Retry-After has passed should be refused");
+        } catch (FetchPolicy.RejectedException expected) {
+        }
+        assertEquals(1, mServer.getRequestCount());
+
+        mClock.advance(2 * 1000);
+        mServer.enqueue(new MockResponse().setBody("{\"cod\":200}"));
+        policy.fetch(mUrl, null, null, new ResponseBuffer());
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, policy.getRateLimitResponseCount());
+    }
+
+    @Test
+    public void testEmptyBudgetRefusesRequests() throws Exception {
+        /* Two requests up front, then one every 100 seconds */
+        FetchPolicy policy = newPolicy(2, 0.01);
+        for (int i = 0; i < 2; i++) {
+            mServer.enqueue(new MockResponse().setBody("{\"cod\":200}"));
+            policy.fetch(mUrl, null, null, new ResponseBuffer());
+        }
+
+        try {
+            policy.fetch(mUrl, null, null, new ResponseBuffer());
+            fail("The third request should be over budget");
+        } catch (FetchPolicy.RejectedException expected) {
+        }
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, policy.getBudgetRejectionCount());
+    }
+
+    private static final class FakeClock implements FetchPolicy.Clock {
+        final List<Long> sleeps = new ArrayList<>();
+        private long mNow = 1000;
+
+        @Override
+        public synchronized long now() {
+            return mNow;
+        }
+
+        @Override
+        public synchronized void sleep(long millis) {
+            sleeps.add(millis);
+            mNow += millis;
+        }
+
+        synchronized void advance(long millis) {
+            mNow += millis;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+/**
+ * Checks {@link FixedPointParser} against BigDecimal and compares its speed with
+ * Double.parseDouble. Timings are written to logcat under the class name.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestFixedPointParser {
+
+    private static final String TAG = TestFixedPointParser.class.getSimpleName();
+
+    private static final int BENCHMARK_VALUES = 200000;
+
+    @Test
+    public void plainDecimalsAreExact() {
+        assertEquals(432101000000L, FixedPointParser.parse("4321.01"));
+        assertEquals(10000000L, FixedPointParser.parse("0.1"));
+        assertEquals(-350000000L, FixedPointParser.parse("-3.5"));
+        assertEquals(1L, FixedPointParser.parse("0.00000001"));
+        assertEquals(0L, FixedPointParser.parse("0"));
+        assertEquals(50000000L, FixedPointParser.parse(".5"));
+        assertEquals(700000000L, FixedPointParser.parse("7."));
+        assertEquals(100000000L, FixedPointParser.parse("1.000000000000"));
+    }
+
+    @Test
+    public void bytesAndStringsAgree() throws Exception {
+        byte[] data = "[4321.01,-0.00012345]".getBytes("US-ASCII");
+        assertEquals(FixedPointParser.parse("4321.01"), FixedPointParser.parse(data, 1, 8));
+        assertEquals(FixedPointParser.parse("-0.00012345"), FixedPointParser.parse(data, 9, 20));
+    }
+
+    @Test
+    public void exoticFormatsFallBackAndRoundHalfEven() {
+        assertEquals(123400000000L, FixedPointParser.parse("1.234e3"));
+        assertEquals(100000000L, FixedPointParser.parse("+1"));
+        assertEquals(2L, FixedPointParser.parse("0.000000015"));
+        assertEquals(2L, FixedPointParser.parse("0.000000025"));
+        assertEquals(0L, FixedPointParser.parse("1e-400"));
+    }
+
+    @Test
+    public void malformedOrHugeValuesAreRejected() {
+        String[] bad = {"", "-", ".", "1.2.3", "abc", "1e400", "99999999999999999999"};
+        for (String text : bad) {
+            try {
+                FixedPointParser.parse(text);
+                fail("\"" + text + "\" should not parse");
+            } catch (NumberFormatException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void randomValuesMatchBigDecimal() {
+        Random random = new Random(16);
+        for (int i = 0; i < 100000; i++) {
+            String text = randomPrice(random);
+            long expected = new BigDecimal(text).setScale(FixedPointParser.SCALE,
+                    RoundingMode.HALF_EVEN).unscaledValue().longValue();
+            assertEquals(text, expected, FixedPointParser.parse(text));
+            assertEquals(text, new BigDecimal(text).stripTrailingZeros(),
+                    new BigDecimal(FixedPointParser.format(expected)).stripTrailingZeros());
+        }
+    }
+
+    @Test
+    public void formattingAndRounding() {
+        assertEquals("4321.01", FixedPointParser.format(432101000000L));
+        assertEquals("75", FixedPointParser.format(75 * FixedPointParser.ONE));
+        assertEquals("-0.00000001", FixedPointParser.format(-1L));
+        assertEquals(3L, FixedPointParser.roundToUnits(FixedPointParser.parse("2.5")));
+        assertEquals(-3L, FixedPointParser.roundToUnits(FixedPointParser.parse("-2.5")));
+        assertEquals(2L, FixedPointParser.roundToUnits(FixedPointParser.parse("2.49999999")));
+        assertEquals(10000000L, FixedPointParser.fromDouble(0.1));
+    }
+
+    @Test
+    public void benchmarkAgainstParseDouble() {
+        Random random = new Random(42);
+        String[] prices = new String[BENCHMARK_VALUES];
+        for (int i = 0; i < prices.length; i++) {
+            prices[i] = randomPrice(random);
+        }
+
+        /* Sums keep the work from being optimized away and warm both paths up */
+        long fixedSum = 0;
+        double doubleSum = 0;
+        for (String price : prices) {
+            fixedSum += FixedPointParser.parse(price);
+            doubleSum += Double.parseDouble(price);
+        }
+
+        long start = System.nanoTime();
+        for (String price : prices) {
+            fixedSum += FixedPointParser.parse(price);
+        }
+        long fixedNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (String price : prices) {
+            doubleSum += Double.parseDouble(price);
+        }
+        long doubleNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        long bigDecimalSum = 0;
+        for (String price : prices) {
+            bigDecimalSum += new BigDecimal(price).movePointRight(FixedPointParser.SCALE)
+                    .longValue();
+        }
+        long bigDecimalNanos = System.nanoTime() - start;
+
+        Log.i(TAG, "ns per value: fixed-point=" + fixedNanos / prices.length
+                + " parseDouble=" + doubleNanos / prices.length
+                + " BigDecimal=" + bigDecimalNanos / prices.length
+                + " (" + fixedSum + ", " + doubleSum + ", " + bigDecimalSum + ")");
+    }
+
+    /* Prices the way exchanges send them: up to 8 decimal places, sometimes negative */
+    private static String randomPrice(Random random) {
+        StringBuilder text = new StringBuilder();
+        if (random.nextInt(10) == 0) text.append('-');
+        text.append(random.nextInt(1000000));
+        int places = random.nextInt(FixedPointParser.SCALE + 1);
+        if (places > 0) {
+            text.append('.');
+            for (int i = 0; i < places; i++) {
+                text.append((char) ('0' + random.nextInt(10)));
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Runs hedged fetches against two local stand-in servers that inject delay, and reports the
+ * p50/p95/p99 fetch latency with and without hedging to logcat under the class name.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestHedgedFetcher {
+
+    private static final String TAG = TestHedgedFetcher.class.getSimpleName();
+
+    private static final String BODY = "{\"cod\":200}";
+
+    private static final int FETCHES = 300;
+
+    private static final long FAST_MILLIS = 20;
+    private static final long SLOW_MILLIS = 500;
+    /* One in this many primary responses is slow, enough to own the p99 but not the p95 */
+    private static final int SLOW_EVERY = 30;
+
+    private MockWebServer mPrimary;
+    private MockWebServer mSecondary;
+    private List<PriceSource> mSources;
+
+    @Before
+    public void setUp() throws Exception {
+        mPrimary = new MockWebServer();
+        mSecondary = new MockWebServer();
+        mPrimary.start();
+        mSecondary.start();
+        mSources = Arrays.<PriceSource>asList(
+                new BaseUrlPriceSource("primary", mPrimary.url("/centz").toString()),
+                new BaseUrlPriceSource("secondary", mSecondary.url("/centz").toString()));
+        /* Both servers live on the same host, and we are not measuring the rate limiter */
+        FetchPolicy.setBudget(mPrimary.getHostName(), 10000, 10000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FetchPolicy.resetAll();
+        mPrimary.shutdown();
+        mSecondary.shutdown();
+    }
+
+    @Test
+    public void testSlowPrimaryLosesToSecondary() throws Exception {
+        mPrimary.setDispatcher(new DelayDispatcher(10 * 1000, 1));
+        mSecondary.setDispatcher(new DelayDispatcher(FAST_MILLIS, Integer.MAX_VALUE));
+
+        HedgedFetcher fetcher = new HedgedFetcher(mSources);
+        ResponseBuffer buffer = new ResponseBuffer();
+        long start = SystemClock.elapsedRealtime();
+        HttpFetchResult result = fetcher.fetch(requestUrl(), null, null, buffer);
+        long elapsed = SystemClock.elapsedRealtime() - start;
+
+        assertEquals(200, result.getStatusCode());
+        assertEquals(BODY, buffer.decodeUtf8());
+        assertEquals(1, fetcher.getHedgeCount());
+        assertEquals(1, fetcher.getHedgeWinCount());
+        assertTrue("The hedge should have answered long before the primary, took " + elapsed,
+                elapsed < fetcher.getHedgeDelayMillis() + 2000);
+    }
+
+    @Test
+    public void testFailingPrimaryIsHedged() throws Exception {
+        mPrimary.setDispatcher(new StatusDispatcher(503));
+        mSecondary.setDispatcher(new DelayDispatcher(FAST_MILLIS, Integer.MAX_VALUE));
+
+        HedgedFetcher fetcher = new HedgedFetcher(mSources);
+        ResponseBuffer buffer = new ResponseBuffer();
+        fetcher.fetch(requestUrl(), null, null, buffer);
+
+        assertEquals(BODY, buffer.decodeUtf8());
+        assertEquals(1, fetcher.getHedgeWinCount());
+    }
+
+    @Test
+    public void testClientErrorOfPrimaryIsNotHedged() throws Exception {
+        mPrimary.setDispatcher(new StatusDispatcher(404));
+        mSecondary.setDispatcher(new DelayDispatcher(FAST_MILLIS, Integer.MAX_VALUE));
+
+        HedgedFetcher fetcher = new HedgedFetcher(mSources);
+        try {
+            fetcher.fetch(requestUrl(), null, null, new ResponseBuffer());
+            fail("The primary's 404 should have been reported");
+        } catch (HttpStatusException expected) {
+            assertEquals(404, expected.getStatusCode());
+        }
+        assertEquals(0, fetcher.getHedgeCount());
+        assertEquals(0, mSecondary.getRequestCount());
+    }
+
+    @Test
+    public void testSourcesOnOneEndpointAreNotHedged() throws Exception {
+        mPrimary.setDispatcher(new DelayDispatcher(1500, 1));
+
+        HedgedFetcher fetcher = new HedgedFetcher(
+                Arrays.asList(mSources.get(0), mSources.get(0)));
+        ResponseBuffer buffer = new ResponseBuffer();
+        fetcher.fetch(requestUrl(), null, null, buffer);
+
+        assertEquals(BODY, buffer.decodeUtf8());
+        assertEquals(0, fetcher.getHedgeCount());
+        assertEquals(1, mPrimary.getRequestCount());
+    }
+
+    @Test
+    public void testHedgeOnSameHostGetsTheEtag() throws Exception {
+        mPrimary.setDispatcher(new DelayDispatcher(10 * 1000, 1));
+        mSecondary.setDispatcher(new DelayDispatcher(FAST_MILLIS, Integer.MAX_VALUE));
+
+        /* Both stand-ins listen on the same host, on different ports */
+        HedgedFetcher fetcher = new HedgedFetcher(mSources);
+        fetcher.fetch(requestUrl(), "\"v1\"", null, new ResponseBuffer());
+
+        assertEquals("\"v1\"", mSecondary.takeRequest().getHeader("If-None-Match"));
+    }
+
+    @Test
+    public void testCancellingTheTokenAbortsEveryLeg() throws Exception {
+        mPrimary.setDispatcher(new DelayDispatcher(10 * 1000, 1));
+        mSecondary.setDispatcher(new DelayDispatcher(10 * 1000, 1));
+
+        HedgedFetcher fetcher = new HedgedFetcher(mSources);
+        final CancellationToken token = new CancellationToken();
+        /* Late enough for the hedge to be on the network too */
+        final long cancelAfter = fetcher.getHedgeDelayMillis() + 300;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(cancelAfter);
+                token.cancel();
+            }
+        }).start();
+
+        long start = SystemClock.elapsedRealtime();
+        try {
+            fetcher.fetch(requestUrl(), null, null, new ResponseBuffer(), token);
+            fail("A cancelled fetch should not return a response");
+        } catch (CancellationToken.CancelledException expected) {
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            assertTrue("Cancelling should abort the slow reads, took " + elapsed,
+                    elapsed < cancelAfter + 2000);
+        }
+    }
+
+    @Test
+    public void testCancelledTokenStopsBeforeSending() throws Exception {
+        mPrimary.setDispatcher(new DelayDispatcher(FAST_MILLIS, Integer.MAX_VALUE));
+        mSecondary.setDispatcher(new DelayDispatcher(FAST_MILLIS, Integer.MAX_VALUE));
+
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        try {
+            new HedgedFetcher(mSources).fetch(requestUrl(), null, null, new ResponseBuffer(),
+                    token);
+            fail("A fetch with a cancelled token should not be sent");
+        } catch (CancellationToken.CancelledException expected) {
+            assertEquals(0, mPrimary.getRequestCount() + mSecondary.getRequestCount());
+        }
+    }
+
+    @Test
+    public void benchmarkTailLatencyWithAndWithoutHedging() throws Exception {
+        mPrimary.setDispatcher(new DelayDispatcher(SLOW_MILLIS, SLOW_EVERY));
+        mSecondary.setDispatcher(new DelayDispatcher(FAST_MILLIS, Integer.MAX_VALUE));
+
+        HedgedFetcher unhedged = new HedgedFetcher(Collections.singletonList(mSources.get(0)));
+        HedgedFetcher hedged = new HedgedFetcher(mSources);
+        ResponseBuffer buffer = new ResponseBuffer();
+        URL url = requestUrl();
+
+        for (int i = 0; i < FETCHES; i++) {
+            unhedged.fetch(url, null, null, buffer);
+        }
+        for (int i = 0; i < FETCHES; i++) {
+            hedged.fetch(url, null, null, buffer);
+        }
+
+        Log.i(TAG, "without hedging: " + unhedged.getLatencies());
+        Log.i(TAG, "with hedging: " + hedged.getLatencies() + ", " + hedged);
+
+        assertTrue("Hedging should cut the p99",
+                hedged.getLatencies().getPercentile(99)
+                        < unhedged.getLatencies().getPercentile(99));
+        assertTrue("Only the slow tail should be hedged",
+                hedged.getHedgeCount() < FETCHES / 4);
+    }
+
+    private URL requestUrl() {
+        return mPrimary.url("/centz?q=94043").url();
+    }
+
+    /**
+     * Answers every request with the same status and no body.
+     */
+    private static final class StatusDispatcher extends Dispatcher {
+        private final int mStatus;
+
+        StatusDispatcher(int status) {
+            mStatus = status;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            return new MockResponse().setResponseCode(mStatus);
+        }
+    }
+
+    /**
+     * Answers fast, except for every n-th request which is answered slowly.
+     */
+    private static final class DelayDispatcher extends Dispatcher {
+        private final long mSlowMillis;
+        private final int mSlowEvery;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        DelayDispatcher(long slowMillis, int slowEvery) {
+            mSlowMillis = slowMillis;
+            mSlowEvery = slowEvery;
+        }
+
+        @Override
+        public MockResponse dispatch(RecordedRequest request) {
+            boolean slow = mCount.incrementAndGet() % mSlowEvery == 0;
+            return new MockResponse()
+                    .setBody(BODY)
+                    .setBodyDelay(slow ? mSlowMillis : FAST_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
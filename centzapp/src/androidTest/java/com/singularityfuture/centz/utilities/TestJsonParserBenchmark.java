@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.content.Context;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.singularityfuture.centz.data.CentzBatch;
+import com.singularityfuture.centz.data.CentzPreferences;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Compares the org.json tree parse of a forecast, kept in {@link TreeForecastParser}, against the
+ * streaming {@link CentzJsonReader} path. Both run on the same bytes; allocated bytes (as counted by the runtime for this thread)
+ * and milliseconds per MB are written to logcat under the class name.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestJsonParserBenchmark {
+
+    private static final String TAG = TestJsonParserBenchmark.class.getSimpleName();
+
+    private static final int[] BODY_SIZES = {64 * 1024, 1024 * 1024, 4 * 1024 * 1024};
+
+    private static final int BENCHMARK_MAX_BODY_BYTES = 8 * 1024 * 1024;
+
+    private static final int ROUNDS = 3;
+
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    /* Allocations are counted for the calling thread, so both parses have to stay on it */
+    private static final ChunkedForecastParser SINGLE_THREADED =
+            new ChunkedForecastParser(1, Integer.MAX_VALUE);
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void streamingParseMatchesTreeParse() throws Exception {
+        ResponseBuffer buffer = fill(TestResponseStreamingBenchmark.buildForecastJson(16 * 1024));
+        String symbol = CentzPreferences.getPreferredCentzLocation(context);
+
+        CentzBatch tree = new CentzBatch();
+        CentzBatch streamed = new CentzBatch();
+        assertTrue(TreeForecastParser.parse(buffer.decodeUtf8(), symbol,
+                CentzDateUtils.getNormalizedUtcDateForToday(), tree));
+        assertTrue(OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol, buffer, streamed));
+
+        assertEquals(tree.size(), streamed.size());
+        for (int i = 0; i < tree.size(); i++) {
+            String row = "Row " + i + " differs";
+            assertEquals(row, tree.getDate(i), streamed.getDate(i));
+            assertEquals(row, tree.getSymbolAt(i), streamed.getSymbolAt(i));
+            assertEquals(row, tree.getHigh(i), streamed.getHigh(i));
+            assertEquals(row, tree.getLow(i), streamed.getLow(i));
+            assertEquals(row, tree.getCentzId(i), streamed.getCentzId(i));
+            assertEquals(row, tree.getPressure(i), streamed.getPressure(i));
+            assertEquals(row, tree.getHumidity(i), streamed.getHumidity(i));
+            assertEquals(row, tree.getWindSpeed(i), streamed.getWindSpeed(i));
+            assertEquals(row, tree.getDegrees(i), streamed.getDegrees(i));
+        }
+    }
+
+    @Test
+    public void streamingParseSkipsUnknownFieldsAndReportsErrors() throws Exception {
+        String symbol = CentzPreferences.getPreferredCentzLocation(context);
+        CentzBatch rows = new CentzBatch();
+
+        String withExtras = "{\"cod\":200,\"message\":{\"nested\":[1,\"a]}\\\"\",null,true]},"
+                + "\"city\":{\"name\":\"Z\\u00fcrich\",\"coord\":{\"lon\":8.55,\"lat\":47.37}},"
+                + "\"cnt\":1,\"list\":[{\"clouds\":12,\"temp\":{\"eve\":1,\"min\":-3.5,\"max\":2},"
+                + "\"centz\":[{\"id\":601,\"main\":\"Snow\"},{\"id\":500}],\"deg\":90,"
+                + "\"speed\":1.5,\"humidity\":80,\"pressure\":990}]}";
+        assertTrue(OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol,
+                fill(withExtras.getBytes("UTF-8")), rows));
+        assertEquals(1, rows.size());
+        assertEquals(601, rows.getCentzId(0));
+        assertEquals(FixedPointParser.parse("-3.5"), rows.getLow(0));
+
+        /* An error leaves the batch as it was */
+        String notFound = "{\"cod\":\"404\",\"message\":\"city not found\"}";
+        assertFalse(OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol,
+                fill(notFound.getBytes("UTF-8")), rows));
+        assertEquals(1, rows.size());
+
+        String missingField = "{\"cod\":200,\"city\":{\"coord\":{\"lat\":1,\"lon\":2}},"
+                + "\"list\":[{\"pressure\":1,\"humidity\":2,\"speed\":3,\"deg\":4,"
+                + "\"temp\":{\"max\":5},\"centz\":[{\"id\":800}]}]}";
+        try {
+            OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol,
+                    fill(missingField.getBytes("UTF-8")), rows);
+            fail("A day without a minimum should be rejected like the tree parse does");
+        } catch (JSONException expected) {
+            assertFalse(expected.getMessage().isEmpty());
+        }
+        assertEquals(1, rows.size());
+    }
+
+    @Test
+    public void benchmarkTreeVersusStreamingParse() throws Exception {
+        String symbol = CentzPreferences.getPreferredCentzLocation(context);
+        long today = CentzDateUtils.getNormalizedUtcDateForToday();
+        CentzBatch rows = new CentzBatch();
+
+        for (int size : BODY_SIZES) {
+            ResponseBuffer buffer = fill(TestResponseStreamingBenchmark.buildForecastJson(size));
+            double megabytes = buffer.getLength() / BYTES_PER_MB;
+
+            long treeMillis = 0;
+            long treeAllocated = 0;
+            long streamMillis = 0;
+            long streamAllocated = 0;
+            int treeRows = 0;
+            int streamRows = 0;
+
+            for (int round = 0; round < ROUNDS; round++) {
+                rows.clear();
+                Runtime.getRuntime().gc();
+                startCounting();
+                long start = SystemClock.elapsedRealtime();
+                TreeForecastParser.parse(buffer.decodeUtf8(), symbol, today, rows);
+                treeMillis += SystemClock.elapsedRealtime() - start;
+                treeAllocated += stopCounting();
+                treeRows = rows.size();
+
+                rows.clear();
+                Runtime.getRuntime().gc();
+                startCounting();
+                start = SystemClock.elapsedRealtime();
+                OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol, buffer, rows,
+                        SINGLE_THREADED);
+                streamMillis += SystemClock.elapsedRealtime() - start;
+                streamAllocated += stopCounting();
+                streamRows = rows.size();
+            }
+
+            assertEquals(treeRows, streamRows);
+            Log.i(TAG, "body=" + buffer.getLength() + "B rows=" + streamRows
+                    + " tree: " + format(treeMillis / ROUNDS / megabytes) + "ms/MB "
+                    + (treeAllocated / ROUNDS / 1024) + "KB allocated"
+                    + " | streaming: " + format(streamMillis / ROUNDS / megabytes) + "ms/MB "
+                    + (streamAllocated / ROUNDS / 1024) + "KB allocated");
+        }
+    }
+
+    @Test
+    public void benchmarkEagerVersusLazyDetail() throws Exception {
+        for (int size : BODY_SIZES) {
+            ResponseBuffer buffer = fill(TestResponseStreamingBenchmark.buildForecastJson(size));
+            double megabytes = buffer.getLength() / BYTES_PER_MB;
+            DetailCountingHandler eager = new DetailCountingHandler(true);
+            DetailCountingHandler lazy = new DetailCountingHandler(false);
+
+            long eagerMillis = 0;
+            long lazyMillis = 0;
+            for (int round = 0; round < ROUNDS; round++) {
+                long start = SystemClock.elapsedRealtime();
+                assertTrue(OpenCentzJsonUtils.readForecast(buffer, eager));
+                eagerMillis += SystemClock.elapsedRealtime() - start;
+
+                start = SystemClock.elapsedRealtime();
+                assertTrue(OpenCentzJsonUtils.readForecast(buffer, lazy));
+                lazyMillis += SystemClock.elapsedRealtime() - start;
+            }
+
+            assertEquals(eager.mDays, lazy.mDays);
+            Log.i(TAG, "body=" + buffer.getLength() + "B"
+                    + " decoding detail: " + format(eagerMillis / ROUNDS / megabytes) + "ms/MB"
+                    + " | keeping detail text: " + format(lazyMillis / ROUNDS / megabytes)
+                    + "ms/MB, " + format((double) lazy.mDetailBytes / lazy.mDays)
+                    + " detail bytes per row instead of four REAL columns");
+        }
+    }
+
+    /* Either decodes every detail field like the parser used to, or only copies the text */
+    private static final class DetailCountingHandler
+            implements OpenCentzJsonUtils.ForecastHandler {
+        private final boolean mDecode;
+        private final byte[] mText = new byte[128];
+        private long mDays;
+        private long mDetailBytes;
+        private double mSink;
+
+        DetailCountingHandler(boolean decode) {
+            mDecode = decode;
+        }
+
+        @Override
+        public void onLocation(double latitude, double longitude) {
+        }
+
+        @Override
+        public void onDay(int index, long high, long low, int centzId,
+                          ForecastDetail detail) {
+            mDays++;
+            if (mDecode) {
+                mSink += detail.getPressure() + detail.getHumidity() + detail.getWindSpeed()
+                        + detail.getWindDirection();
+            } else {
+                mDetailBytes += detail.writeTo(mText, 0);
+            }
+        }
+    }
+
+    private static ResponseBuffer fill(byte[] body) throws Exception {
+        ResponseBuffer buffer = new ResponseBuffer(BENCHMARK_MAX_BODY_BYTES);
+        buffer.readFrom(new ByteArrayInputStream(body), body.length);
+        return buffer;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void startCounting() {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long stopCounting() {
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocSize();
+    }
+
+    private static String format(double value) {
+        return String.valueOf(Math.round(value * 10) / 10.0);
+    }
+}
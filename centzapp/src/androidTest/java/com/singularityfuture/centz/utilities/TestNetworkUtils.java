@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.net.URL;
+import java.util.zip.GZIPOutputStream;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Runs the fetch layer against a local stand-in server to verify connection reuse, conditional
+ * requests and compressed responses.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestNetworkUtils {
+
+    private static final String TAG = TestNetworkUtils.class.getSimpleName();
+
+    private static final int REQUESTS_TO_MAKE = 10;
+
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        ConnectionPoolStats.reset();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testConsecutiveFetchesReusePooledConnection() throws Exception {
+        for (int i = 0; i < REQUESTS_TO_MAKE; i++) {
+            mServer.enqueue(new MockResponse().setBody("{\"cod\":200}"));
+        }
+
+        URL url = mServer.url("/centz").url();
+        long firstFetchMillis = 0;
+        long laterFetchesMillis = 0;
+
+        for (int i = 0; i < REQUESTS_TO_MAKE; i++) {
+            long start = SystemClock.elapsedRealtime();
+            String response = NetworkUtils.getResponseFromHttpUrl(url);
+            long elapsed = SystemClock.elapsedRealtime() - start;
+            assertNotNull("Stand-in server response should not be null", response);
+
+            if (i == 0) {
+                firstFetchMillis = elapsed;
+            } else {
+                laterFetchesMillis += elapsed;
+            }
+        }
+
+        ConnectionPoolStats.HostStats stats = ConnectionPoolStats.getHostStats(url.getHost());
+        assertNotNull("No pool statistics were recorded for the stand-in host", stats);
+        Log.d(TAG, "first fetch " + firstFetchMillis + "ms, later fetches average "
+                + (laterFetchesMillis / (REQUESTS_TO_MAKE - 1)) + "ms, " + stats);
+
+        assertEquals("Only the first fetch should have opened a connection",
+                1, stats.getNewConnections());
+        assertEquals(REQUESTS_TO_MAKE, stats.getConnectionsAcquired());
+        assertTrue("Connections were not reused", stats.getReuseRatio() >= 0.9);
+    }
+
+    @Test
+    public void testConditionalFetchSendsValidatorsAndHandles304() throws Exception {
+        mServer.enqueue(new MockResponse()
+                .setHeader("ETag", "\"v1\"")
+                .setHeader("Last-Modified", "Sat, 01 Oct 2016 00:00:00 GMT")
+                .setBody("{\"cod\":200}"));
+        mServer.enqueue(new MockResponse().setResponseCode(304));
+
+        URL url = mServer.url("/centz").url();
+        ResponseBuffer buffer = new ResponseBuffer();
+
+        HttpFetchResult first = NetworkUtils.fetch(url, null, null, buffer);
+        assertFalse(first.isNotModified());
+        assertTrue(first.getBodyLength() > 0);
+        assertEquals("\"v1\"", first.getEtag());
+
+        RecordedRequest unconditional = mServer.takeRequest();
+        assertNull(unconditional.getHeader("If-None-Match"));
+
+        HttpFetchResult second = NetworkUtils.fetch(url,
+                first.getEtag(), first.getLastModified(), buffer);
+        assertTrue("A 304 should be reported as not modified", second.isNotModified());
+        assertEquals(0, second.getBodyLength());
+        assertTrue(buffer.isEmpty());
+
+        RecordedRequest conditional = mServer.takeRequest();
+        assertEquals("\"v1\"", conditional.getHeader("If-None-Match"));
+        assertEquals("Sat, 01 Oct 2016 00:00:00 GMT", conditional.getHeader("If-Modified-Since"));
+    }
+
+    @Test
+    public void testGzipBodyIsDecodedAndBothSizesAreCounted() throws Exception {
+        byte[] plain = TestResponseStreamingBenchmark.buildForecastJson(64 * 1024);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+        gzip.write(plain);
+        gzip.close();
+
+        mServer.enqueue(new MockResponse()
+                .setHeader("Content-Encoding", "gzip")
+                .setBody(new Buffer().write(compressed.toByteArray())));
+
+        ResponseBuffer buffer = new ResponseBuffer();
+        HttpFetchResult result = NetworkUtils.fetch(mServer.url("/centz").url(), null, null, buffer);
+
+        RecordedRequest request = mServer.takeRequest();
+        assertTrue(request.getHeader("Accept-Encoding").contains("gzip"));
+
+        assertEquals("gzip", result.getContentEncoding());
+        assertEquals(plain.length, result.getBodyLength());
+        assertEquals(compressed.size(), result.getWireBytes());
+        assertEquals(new String(plain, "UTF-8"), buffer.decodeUtf8());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.singularityfuture.centz.data.CentzBatch;
+import com.singularityfuture.centz.data.CentzPreferences;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that {@link ChunkedForecastParser} produces exactly the rows of a single threaded parse
+ * and measures how parsing a large backfill scales with the number of threads, from one up to
+ * the number of cores. Timings and speedups are written to logcat under the class name.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestParallelParseBenchmark {
+
+    private static final String TAG = TestParallelParseBenchmark.class.getSimpleName();
+
+    private static final int BENCHMARK_BODY_BYTES = 8 * 1024 * 1024;
+
+    private static final int BENCHMARK_MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    private static final int WARM_UP_ROUNDS = 2;
+
+    private static final int ROUNDS = 5;
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void chunkedParseMatchesSingleThreadedParse() throws Exception {
+        ResponseBuffer body = fill(TestResponseStreamingBenchmark.buildForecastJson(256 * 1024));
+        String symbol = CentzPreferences.getPreferredCentzLocation(context);
+
+        CentzBatch expected = new CentzBatch();
+        assertTrue(OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol, body, expected,
+                new ChunkedForecastParser(1, Integer.MAX_VALUE)));
+
+        /* Tiny chunks, so the payload is cut into many more chunks than there are threads */
+        CentzBatch chunked = new CentzBatch();
+        assertTrue(OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol, body, chunked,
+                new ChunkedForecastParser(4, 0, 1024)));
+
+        assertEquals(expected.size(), chunked.size());
+        for (int row = 0; row < expected.size(); row++) {
+            assertEquals(expected.getDate(row), chunked.getDate(row));
+            assertEquals(expected.getSymbolAt(row), chunked.getSymbolAt(row));
+            assertEquals(expected.getPressure(row), chunked.getPressure(row));
+            assertEquals(expected.getHumidity(row), chunked.getHumidity(row));
+            assertEquals(expected.getWindSpeed(row), chunked.getWindSpeed(row));
+            assertEquals(expected.getDegrees(row), chunked.getDegrees(row));
+            assertEquals(expected.getHigh(row), chunked.getHigh(row));
+            assertEquals(expected.getLow(row), chunked.getLow(row));
+            assertEquals(expected.getCentzId(row), chunked.getCentzId(row));
+        }
+    }
+
+    @Test
+    public void benchmarkSpeedupAgainstThreadCount() throws Exception {
+        ResponseBuffer body = fill(TestResponseStreamingBenchmark
+                .buildForecastJson(BENCHMARK_BODY_BYTES));
+        String symbol = CentzPreferences.getPreferredCentzLocation(context);
+        int cores = Runtime.getRuntime().availableProcessors();
+        CentzBatch batch = new CentzBatch();
+
+        long singleThreadMillis = 0;
+        int expectedRows = -1;
+        for (int threads = 1; threads <= cores; threads *= 2) {
+            ChunkedForecastParser parser = new ChunkedForecastParser(threads, 0);
+            long[] millis = new long[ROUNDS];
+            for (int round = -WARM_UP_ROUNDS; round < ROUNDS; round++) {
+                batch.clear();
+                long start = SystemClock.elapsedRealtime();
+                OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol, body, batch, parser);
+                if (round >= 0) {
+                    millis[round] = SystemClock.elapsedRealtime() - start;
+                }
+            }
+            if (expectedRows == -1) {
+                expectedRows = batch.size();
+            }
+            assertEquals(expectedRows, batch.size());
+
+            Arrays.sort(millis);
+            long median = millis[ROUNDS / 2];
+            if (threads == 1) {
+                singleThreadMillis = median;
+            }
+            Log.i(TAG, "cores=" + cores + " threads=" + threads + " body=" + body.getLength()
+                    + "B rows=" + batch.size() + " median=" + median + "ms speedup="
+                    + (median == 0 ? "n/a" : String.valueOf(
+                    Math.round(100.0 * singleThreadMillis / median) / 100.0)));
+        }
+    }
+
+    private static ResponseBuffer fill(byte[] body) throws Exception {
+        ResponseBuffer buffer = new ResponseBuffer(BENCHMARK_MAX_BODY_BYTES);
+        buffer.readFrom(new ByteArrayInputStream(body), body.length);
+        return buffer;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that every call through the shared client leaves a timing record behind, and that the
+ * log stays bounded.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestRequestTimingLog {
+
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+        RequestTimingLog.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void testEachFetchIsTimed() throws Exception {
+        String body = "{\"cod\":200}";
+        mServer.enqueue(new MockResponse()
+                .setBody(body)
+                .setHeadersDelay(50, TimeUnit.MILLISECONDS));
+        mServer.enqueue(new MockResponse().setBody(body));
+
+        ResponseBuffer buffer = new ResponseBuffer();
+        NetworkUtils.fetch(mServer.url("/centz").url(), null, null, buffer);
+        NetworkUtils.fetch(mServer.url("/centz").url(), null, null, buffer);
+
+        List<RequestTiming> timings = RequestTimingLog.snapshot();
+        assertEquals(2, timings.size());
+
+        RequestTiming first = timings.get(0);
+        assertEquals(200, first.getStatusCode());
+        assertFalse(first.isConnectionReused());
+        assertTrue("Connect should have been timed", first.getConnectMillis() >= 0);
+        assertEquals("No TLS against a plain http server", -1, first.getTlsMillis());
+        assertTrue("The headers delay should show up as time to first byte",
+                first.getTimeToFirstByteMillis() >= 50);
+        assertEquals(body.length(), first.getBodyBytes());
+        assertNull(first.getFailure());
+
+        RequestTiming second = timings.get(1);
+        assertTrue("The second fetch should ride the pooled connection",
+                second.isConnectionReused());
+        assertEquals(-1, second.getConnectMillis());
+        assertEquals(-1, second.getDnsMillis());
+        assertEquals(second, RequestTimingLog.getLatest());
+    }
+
+    @Test
+    public void testFailedCallIsRecorded() throws Exception {
+        mServer.shutdown();
+        try {
+            NetworkUtils.fetch(mServer.url("/centz").url(), null, null, new ResponseBuffer());
+        } catch (java.io.IOException expected) {
+        }
+
+        RequestTiming latest = RequestTimingLog.getLatest();
+        assertNotNull(latest);
+        assertTrue(latest.isFailed());
+        assertEquals(-1, latest.getStatusCode());
+    }
+
+    @Test
+    public void testLogKeepsOnlyTheMostRecentRecords() {
+        int recorded = RequestTimingLog.CAPACITY + 10;
+        for (int i = 0; i < recorded; i++) {
+            RequestTimingLog.record(new RequestTiming("host/" + i, i, 200, true,
+                    -1, -1, -1, 1, 1, 2, 10, null));
+        }
+
+        List<RequestTiming> timings = RequestTimingLog.snapshot();
+        assertEquals(RequestTimingLog.CAPACITY, timings.size());
+        assertEquals("host/10", timings.get(0).getUrl());
+        assertEquals("host/" + (recorded - 1), timings.get(timings.size() - 1).getUrl());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+@RunWith(AndroidJUnit4.class)
+public class TestResponseBuffer {
+
+    private static final int MAX_BYTES = 64 * 1024;
+
+    @Test
+    public void testBodyOfAdvertisedLengthIsNotCopiedIntoLargerArray() throws Exception {
+        byte[] body = new byte[32 * 1024 + 1];
+        ResponseBuffer buffer = new ResponseBuffer(MAX_BYTES);
+
+        assertEquals(body.length, buffer.readFrom(new ByteArrayInputStream(body), body.length));
+        assertEquals(body.length, buffer.getData().length);
+    }
+
+    @Test
+    public void testBodyOfExactlyTheLimitIsAccepted() throws Exception {
+        byte[] body = new byte[MAX_BYTES];
+        body[MAX_BYTES - 1] = 42;
+
+        ResponseBuffer known = new ResponseBuffer(MAX_BYTES);
+        assertEquals(MAX_BYTES, known.readFrom(new ByteArrayInputStream(body), body.length));
+
+        ResponseBuffer unknown = new ResponseBuffer(MAX_BYTES);
+        assertEquals(MAX_BYTES, unknown.readFrom(new ByteArrayInputStream(body), -1));
+        assertEquals(42, unknown.getData()[MAX_BYTES - 1]);
+    }
+
+    @Test
+    public void testBodyOverTheLimitIsRejected() throws Exception {
+        byte[] body = new byte[MAX_BYTES + 1];
+        try {
+            new ResponseBuffer(MAX_BYTES).readFrom(new ByteArrayInputStream(body), -1);
+            fail("A body over the limit was accepted");
+        } catch (IOException expected) {
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import com.singularityfuture.centz.data.CentzBatch;
+import com.singularityfuture.centz.data.CentzPreferences;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Scanner;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okio.Buffer;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+
+/**
+ * Compares the old Scanner("\\A") read against streaming into a reused {@link ResponseBuffer}
+ * for 10 KB, 1 MB and 20 MB bodies served from a local stand-in server. Peak heap and timings
+ * are written to logcat under the class name.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestResponseStreamingBenchmark {
+
+    private static final String TAG = TestResponseStreamingBenchmark.class.getSimpleName();
+
+    private static final int[] BODY_SIZES = {10 * 1024, 1024 * 1024, 20 * 1024 * 1024};
+
+    /* Large enough for the biggest benchmark body */
+    private static final int BENCHMARK_MAX_BODY_BYTES = 32 * 1024 * 1024;
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+
+    private MockWebServer mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new MockWebServer();
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.shutdown();
+    }
+
+    @Test
+    public void benchmarkScannerVersusStreamingBuffer() throws Exception {
+        ResponseBuffer buffer = new ResponseBuffer(BENCHMARK_MAX_BODY_BYTES);
+        String symbol = CentzPreferences.getPreferredCentzLocation(context);
+        CentzBatch rows = new CentzBatch();
+
+        for (int size : BODY_SIZES) {
+            byte[] body = buildForecastJson(size);
+
+            mServer.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+            HeapSampler sampler = HeapSampler.begin();
+            long start = SystemClock.elapsedRealtime();
+            String scanned = readWithScanner(mServer.url("/centz").url());
+            long scannerReadMillis = SystemClock.elapsedRealtime() - start;
+            TreeForecastParser.parse(scanned, symbol,
+                    CentzDateUtils.getNormalizedUtcDateForToday(), rows);
+            int scannerParsed = rows.size();
+            rows.clear();
+            long scannerTotalMillis = SystemClock.elapsedRealtime() - start;
+            long scannerPeak = sampler.finish();
+            scanned = null;
+
+            mServer.enqueue(new MockResponse().setBody(new Buffer().write(body)));
+            sampler = HeapSampler.begin();
+            start = SystemClock.elapsedRealtime();
+            NetworkUtils.fetchIntoBuffer(mServer.url("/centz").url(), buffer);
+            long bufferReadMillis = SystemClock.elapsedRealtime() - start;
+            OpenCentzJsonUtils.appendCentzRowsFromJson(context, symbol, buffer, rows);
+            int bufferParsed = rows.size();
+            rows.clear();
+            long bufferTotalMillis = SystemClock.elapsedRealtime() - start;
+            long bufferPeak = sampler.finish();
+            buffer.clear();
+
+            assertEquals(scannerParsed, bufferParsed);
+            Log.i(TAG, "body=" + size + "B"
+                    + " scanner: read=" + scannerReadMillis + "ms total=" + scannerTotalMillis
+                    + "ms peakHeap=" + (scannerPeak / 1024) + "KB"
+                    + " | buffer: read=" + bufferReadMillis + "ms total=" + bufferTotalMillis
+                    + "ms peakHeap=" + (bufferPeak / 1024) + "KB");
+        }
+    }
+
+    /* The read path NetworkUtils used before bodies were streamed into a ResponseBuffer */
+    private static String readWithScanner(URL url) throws Exception {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        try {
+            InputStream in = urlConnection.getInputStream();
+            Scanner scanner = new Scanner(in);
+            scanner.useDelimiter("\\A");
+            String response = scanner.hasNext() ? scanner.next() : null;
+            scanner.close();
+            assertNotNull(response);
+            return response;
+        } finally {
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Builds a forecast payload of roughly the requested size by repeating day entries.
+     */
+    public static byte[] buildForecastJson(int approximateSize) {
+        String day = "{\"dt\":1475280000,\"pressure\":1013.25,\"humidity\":64,\"speed\":4.2,"
+                + "\"deg\":270,\"temp\":{\"day\":20.5,\"min\":14.25,\"max\":23.75,"
+                + "\"night\":15.0,\"eve\":19.5,\"morn\":14.5},"
+                + "\"centz\":[{\"id\":800,\"main\":\"Clear\",\"description\":\"sky is clear\","
+                + "\"icon\":\"01d\"}],\"clouds\":0}";
+        StringBuilder json = new StringBuilder(approximateSize + day.length() * 2);
+        json.append("{\"cod\":\"200\",\"city\":{\"name\":\"Mountain View\",")
+                .append("\"coord\":{\"lat\":37.4,\"lon\":-122.08}},\"list\":[");
+        boolean first = true;
+        while (json.length() < approximateSize) {
+            if (!first) json.append(',');
+            json.append(day);
+            first = false;
+        }
+        json.append("]}");
+        try {
+            return json.toString().getBytes("UTF-8");
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Polls the used heap from a background thread and remembers the highest value seen.
+     */
+    static final class HeapSampler extends Thread {
+        private volatile boolean mRunning = true;
+        private volatile long mPeak;
+        private final long mBaseline;
+
+        private HeapSampler(long baseline) {
+            mBaseline = baseline;
+        }
+
+        static HeapSampler begin() {
+            Runtime runtime = Runtime.getRuntime();
+            runtime.gc();
+            HeapSampler sampler = new HeapSampler(runtime.totalMemory() - runtime.freeMemory());
+            sampler.start();
+            return sampler;
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (mRunning) {
+                long used = runtime.totalMemory() - runtime.freeMemory();
+                if (used > mPeak) mPeak = used;
+                SystemClock.sleep(1);
+            }
+        }
+
+        /**
+         * @return Peak heap growth over the baseline, in bytes
+         */
+        long finish() throws InterruptedException {
+            mRunning = false;
+            join();
+            return Math.max(0, mPeak - mBaseline);
+        }
+    }
+}
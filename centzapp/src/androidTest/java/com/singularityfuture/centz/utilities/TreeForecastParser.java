@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import com.singularityfuture.centz.data.CentzBatch;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.HttpURLConnection;
+
+/**
+ * The org.json tree parse that sync used before the streaming {@link CentzJsonReader}. The
+ * whole response is turned into JSONObjects before the rows are read off them. Tests check the
+ * streaming path against it and benchmark the two, the app itself no longer uses it.
+ */
+final class TreeForecastParser {
+
+    private TreeForecastParser() {
+    }
+
+    /**
+     * Parses a forecast response into the same batch rows the streaming path produces.
+     *
+     * @param forecastJsonStr       The response body
+     * @param symbol                The symbol the response belongs to
+     * @param normalizedUtcStartDay The date of the first day in the response
+     * @param batch                 Receives one row per day
+     * @return false if the server reported an error, the batch is left as it was then
+     * @throws JSONException If JSON data cannot be properly parsed
+     */
+    static boolean parse(String forecastJsonStr, String symbol, long normalizedUtcStartDay,
+                         CentzBatch batch) throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        /* Is there an error? */
+        if (forecastJson.has("cod")
+                && forecastJson.getInt("cod") != HttpURLConnection.HTTP_OK) {
+            return false;
+        }
+
+        JSONArray days = forecastJson.getJSONArray("list");
+        JSONObject coord = forecastJson.getJSONObject("city").getJSONObject("coord");
+        coord.getDouble("lat");
+        coord.getDouble("lon");
+
+        int symbolId = batch.symbolId(symbol);
+        for (int i = 0; i < days.length(); i++) {
+            JSONObject day = days.getJSONObject(i);
+            JSONObject temperature = day.getJSONObject("temp");
+            batch.add(normalizedUtcStartDay + CentzDateUtils.DAY_IN_MILLIS * i, symbolId,
+                    day.getDouble("pressure"),
+                    day.getInt("humidity"),
+                    day.getDouble("speed"),
+                    day.getDouble("deg"),
+                    getFixedPoint(temperature, "max"),
+                    getFixedPoint(temperature, "min"),
+                    day.getJSONArray("centz").getJSONObject(0).getInt("id"));
+        }
+        return true;
+    }
+
+    /* Reads a price as fixed-point from the text of the value rather than from a double */
+    private static long getFixedPoint(JSONObject object, String name) throws JSONException {
+        String text = object.getString(name);
+        try {
+            return FixedPointParser.parse(text);
+        } catch (NumberFormatException e) {
+            throw new JSONException("Value " + text + " at " + name + " is not a number");
+        }
+    }
+}
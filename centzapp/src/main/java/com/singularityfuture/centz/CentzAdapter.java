@@ -182,14 +182,14 @@ class CentzAdapter extends RecyclerView.Adapter<CentzAdapter.CentzAdapterViewHol
         /**************************
          * High (max) temperature *
          **************************/
-         /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = mCursor.getDouble(MainActivity.INDEX_CENTZ_MAX_TEMP);
+         /* Read high temperature from the cursor (fixed-point, in degrees celsius) */
+        long highInCelsius = mCursor.getLong(MainActivity.INDEX_CENTZ_MAX_TEMP);
          /*
-          * If the user's preference for centz is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
+          * If the user's preference for centz is fahrenheit, formatFixedPointTemperature will
+          * convert the temperature. This method will also append either °C or °F to the
+          * temperature String.
           */
-        String highString = CentzCentzUtils.formatTemperature(mContext, highInCelsius);
+        String highString = CentzCentzUtils.formatFixedPointTemperature(mContext, highInCelsius);
          /* Create the accessibility (a11y) String from the centz description */
         String highA11y = mContext.getString(R.string.a11y_high_temp, highString);
 
@@ -200,14 +200,14 @@ class CentzAdapter extends RecyclerView.Adapter<CentzAdapter.CentzAdapterViewHol
         /*************************
          * Low (min) temperature *
          *************************/
-         /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = mCursor.getDouble(MainActivity.INDEX_CENTZ_MIN_TEMP);
+         /* Read low temperature from the cursor (fixed-point, in degrees celsius) */
+        long lowInCelsius = mCursor.getLong(MainActivity.INDEX_CENTZ_MIN_TEMP);
          /*
-          * If the user's preference for centz is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
+          * If the user's preference for centz is fahrenheit, formatFixedPointTemperature will
+          * convert the temperature. This method will also append either °C or °F to the
+          * temperature String.
           */
-        String lowString = CentzCentzUtils.formatTemperature(mContext, lowInCelsius);
+        String lowString = CentzCentzUtils.formatFixedPointTemperature(mContext, lowInCelsius);
         String lowA11y = mContext.getString(R.string.a11y_low_temp, lowString);
 
          /* Set the text and content description (for accessibility purposes) */
@@ -30,6 +30,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 
 import com.singularityfuture.centz.data.CentzContract;
+import com.singularityfuture.centz.data.CentzPreferences;
 import com.singularityfuture.centz.databinding.ActivityDetailBinding;
 import com.singularityfuture.centz.utilities.CentzDateUtils;
 import com.singularityfuture.centz.utilities.CentzCentzUtils;
@@ -193,11 +194,12 @@ public class DetailActivity extends AppCompatActivity implements
 
             case ID_DETAIL_LOADER:
 
+                /* Several symbols can share a date, we want the preferred location's row */
                 return new CursorLoader(this,
                         mUri,
                         CENTZ_DETAIL_PROJECTION,
-                        null,
-                        null,
+                        CentzContract.CentzEntry.COLUMN_SYMBOL + " = ?",
+                        new String[]{CentzPreferences.getPreferredCentzLocation(this)},
                         null);
 
             default:
@@ -286,14 +288,14 @@ public class DetailActivity extends AppCompatActivity implements
         /**************************
          * High (max) temperature *
          **************************/
-        /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = data.getDouble(INDEX_CENTZ_MAX_TEMP);
+        /* Read high temperature from the cursor (fixed-point, in degrees celsius) */
+        long highInCelsius = data.getLong(INDEX_CENTZ_MAX_TEMP);
         /*
-         * If the user's preference for centz is fahrenheit, formatTemperature will convert
-         * the temperature. This method will also append either °C or °F to the temperature
-         * String.
+         * If the user's preference for centz is fahrenheit, formatFixedPointTemperature will
+         * convert the temperature. This method will also append either °C or °F to the
+         * temperature String.
          */
-        String highString = CentzCentzUtils.formatTemperature(this, highInCelsius);
+        String highString = CentzCentzUtils.formatFixedPointTemperature(this, highInCelsius);
 
         /* Create the accessibility (a11y) String from the centz description */
         String highA11y = getString(R.string.a11y_high_temp, highString);
@@ -305,14 +307,14 @@ public class DetailActivity extends AppCompatActivity implements
         /*************************
          * Low (min) temperature *
          *************************/
-        /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = data.getDouble(INDEX_CENTZ_MIN_TEMP);
+        /* Read low temperature from the cursor (fixed-point, in degrees celsius) */
+        long lowInCelsius = data.getLong(INDEX_CENTZ_MIN_TEMP);
         /*
-         * If the user's preference for centz is fahrenheit, formatTemperature will convert
-         * the temperature. This method will also append either °C or °F to the temperature
-         * String.
+         * If the user's preference for centz is fahrenheit, formatFixedPointTemperature will
+         * convert the temperature. This method will also append either °C or °F to the
+         * temperature String.
          */
-        String lowString = CentzCentzUtils.formatTemperature(this, lowInCelsius);
+        String lowString = CentzCentzUtils.formatFixedPointTemperature(this, lowInCelsius);
 
         String lowA11y = getString(R.string.a11y_low_temp, lowString);
 
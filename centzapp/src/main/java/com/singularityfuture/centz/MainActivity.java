@@ -19,6 +19,7 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
@@ -34,7 +35,10 @@ import android.widget.ProgressBar;
 
 import com.singularityfuture.centz.data.CentzPreferences;
 import com.singularityfuture.centz.data.CentzContract;
+import com.singularityfuture.centz.data.PriceSnapshot;
 import com.singularityfuture.centz.sync.CentzSyncUtils;
+import com.singularityfuture.centz.sync.LiveTickerFeed;
+import com.singularityfuture.centz.utilities.CentzDateUtils;
 
 public class MainActivity extends AppCompatActivity implements
         LoaderManager.LoaderCallbacks<Cursor>,
@@ -79,10 +83,21 @@ public class MainActivity extends AppCompatActivity implements
 
     private ProgressBar mLoadingIndicator;
 
+    /* Live prices while we are visible, the periodic sync takes over when we are not */
+    private LiveTickerFeed mLiveTickerFeed;
+
+    /* Rows from the price snapshot, shown until the loader delivers the database's rows */
+    private Cursor mSnapshotCursor;
+
+    /* When onCreate started, time to first price is measured from here */
+    private long mCreatedAtMillis;
+    private boolean mDatabaseRowsShown;
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mCreatedAtMillis = SystemClock.elapsedRealtime();
         setContentView(R.layout.activity_centz);
         getSupportActionBar().setElevation(0f);
 
@@ -142,8 +157,14 @@ public class MainActivity extends AppCompatActivity implements
         /* Setting the adapter attaches it to the RecyclerView in our layout. */
         mRecyclerView.setAdapter(mForecastAdapter);
 
-
-        showLoading();
+        /*
+         * The last sync left a snapshot of its prices behind. Showing it takes a few
+         * milliseconds, long before the database is opened or the network answers, so we only
+         * show the loading indicator when there is no snapshot.
+         */
+        if (!showSnapshot()) {
+            showLoading();
+        }
 
         /*
          * Ensures a loader is initialized and active. If the loader doesn't already exist, one is
@@ -153,10 +174,34 @@ public class MainActivity extends AppCompatActivity implements
         getSupportLoaderManager().initLoader(ID_FORECAST_LOADER, null, this);
 
         CentzSyncUtils.initialize(this);
-        CentzSyncUtils.startImmediateSync(this);
+
+        /*
+         * onCreate runs again on every rotation, so only the symbols without data or whose data
+         * is older than their max age are fetched.
+         */
+        CentzSyncUtils.startImmediateSyncIfStale(this);
 
     }
 
+    @Override
+    protected void onStart() {
+        super.onStart();
+        /* The sync scheduler syncs more often while the user is using the app */
+        CentzPreferences.saveLastAppOpenTime(this, System.currentTimeMillis());
+        /* Picked up fresh every time so watchlist changes made in the settings take effect */
+        mLiveTickerFeed = LiveTickerFeed.create(this);
+        mLiveTickerFeed.start();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        if (mLiveTickerFeed != null) {
+            mLiveTickerFeed.stop();
+            mLiveTickerFeed = null;
+        }
+    }
+
     /**
      * Uses the URI scheme for showing a location found on a map in conjunction with
      * an implicit Intent. This super-handy Intent is detailed in the "Common Intents" page of
@@ -206,15 +251,19 @@ public class MainActivity extends AppCompatActivity implements
                 /*
                  * A SELECTION in SQL declares which rows you'd like to return. In our case, we
                  * want all centz data from today onwards that is stored in our centz table.
-                 * We created a handy method to do that in our CentzEntry class.
+                 * We created a handy method to do that in our CentzEntry class. The list only
+                 * shows the preferred location, the rest of the watchlist is kept for the watch
+                 * and for later screens.
                  */
-                String selection = CentzContract.CentzEntry.getSqlSelectForTodayOnwards();
+                String selection = CentzContract.CentzEntry.getSqlSelectForSymbolTodayOnwards();
+                String[] selectionArgs =
+                        new String[]{CentzPreferences.getPreferredCentzLocation(this)};
 
                 return new CursorLoader(this,
                         forecastQueryUri,
                         MAIN_FORECAST_PROJECTION,
                         selection,
-                        null,
+                        selectionArgs,
                         sortOrder);
 
             default:
@@ -237,10 +286,48 @@ public class MainActivity extends AppCompatActivity implements
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
 
 
+        /* Keep showing the snapshot rather than an empty list while the first sync runs */
+        if (data.getCount() == 0 && mSnapshotCursor != null) return;
+
         mForecastAdapter.swapCursor(data);
+        if (mSnapshotCursor != null) {
+            mSnapshotCursor.close();
+            mSnapshotCursor = null;
+        }
         if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
         mRecyclerView.smoothScrollToPosition(mPosition);
-        if (data.getCount() != 0) showCentzDataView();
+        if (data.getCount() != 0) {
+            showCentzDataView();
+            if (!mDatabaseRowsShown) {
+                mDatabaseRowsShown = true;
+                Log.i(TAG, "First prices from the database after "
+                        + (SystemClock.elapsedRealtime() - mCreatedAtMillis) + "ms");
+            }
+        }
+    }
+
+    /*
+     * Shows the preferred location's rows from the price snapshot, if there is one with rows
+     * from today onwards.
+     */
+    private boolean showSnapshot() {
+        PriceSnapshot snapshot = PriceSnapshot.open(this);
+        if (snapshot == null) return false;
+
+        Cursor cursor = snapshot.newCursor(MAIN_FORECAST_PROJECTION,
+                CentzPreferences.getPreferredCentzLocation(this),
+                CentzDateUtils.normalizeDate(System.currentTimeMillis()));
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            return false;
+        }
+
+        mSnapshotCursor = cursor;
+        mForecastAdapter.swapCursor(cursor);
+        showCentzDataView();
+        Log.i(TAG, "First prices from the snapshot after "
+                + (SystemClock.elapsedRealtime() - mCreatedAtMillis) + "ms");
+        return true;
     }
 
     /**
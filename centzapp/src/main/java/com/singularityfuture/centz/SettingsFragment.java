@@ -99,6 +99,9 @@ public class SettingsFragment extends PreferenceFragmentCompat implements
             // Wipe out any potential PlacePicker latlng values so that we can use this text entry.
             CentzPreferences.resetLocationCoordinates(activity);
             CentzSyncUtils.startImmediateSync(activity);
+        } else if (key.equals(getString(R.string.pref_watchlist_key))) {
+            // symbols were added or removed, fetch the new watchlist
+            CentzSyncUtils.startImmediateSync(activity);
         } else if (key.equals(getString(R.string.pref_units_key))) {
             // units have changed. update lists of centz entries accordingly
             activity.getContentResolver().notifyChange(CentzContract.CentzEntry.CONTENT_URI, null);
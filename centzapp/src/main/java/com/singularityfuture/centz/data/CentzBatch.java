@@ -0,0 +1,461 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.data;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+
+import com.singularityfuture.centz.utilities.FixedPointParser;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Rows of the centz table kept column by column in primitive arrays. The parser writes into a
+ * batch in place and {@link CentzProvider} reads the arrays straight into a compiled insert, so
+ * no ContentValues map or boxed number is created per row. Symbols are stored once in a small
+ * table and referenced from each row by index. The detail fields of a row are not decoded at
+ * all, they are kept as {@link CentzDetail} text in one shared byte array.
+ * <p>
+ * A batch is meant to be cleared and reused from sync to sync; once its arrays have grown to
+ * the size of a typical sync, steady state polling allocates nothing for rows. A batch is not
+ * thread safe.
+ */
+public final class CentzBatch {
+
+    /* Keys of the arrays when a batch is handed to the provider in a Bundle */
+    static final String KEY_SIZE = "size";
+    static final String KEY_SYMBOLS = "symbols";
+    static final String KEY_DATES = "dates";
+    static final String KEY_SYMBOL_IDS = "symbol_ids";
+    static final String KEY_DETAIL = "detail";
+    static final String KEY_DETAIL_ENDS = "detail_ends";
+    static final String KEY_HIGHS = "highs";
+    static final String KEY_LOWS = "lows";
+    static final String KEY_CENTZ_IDS = "centz_ids";
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /* Room for the detail text of a typical row */
+    private static final int DETAIL_BYTES_PER_ROW = 24;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final List<String> mSymbols = new ArrayList<>();
+
+    private int mSize;
+    private long[] mDates;
+    private int[] mSymbolIds;
+    /* The detail text of every row back to back, row i ending at mDetailEnds[i] */
+    private byte[] mDetail;
+    private int mDetailLength;
+    private int[] mDetailEnds;
+    /* Fixed-point, see FixedPointParser */
+    private long[] mHighs;
+    private long[] mLows;
+    private int[] mCentzIds;
+
+    public CentzBatch() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of rows to make room for up front
+     */
+    public CentzBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        mDates = new long[capacity];
+        mSymbolIds = new int[capacity];
+        mDetail = new byte[capacity * DETAIL_BYTES_PER_ROW];
+        mDetailEnds = new int[capacity];
+        mHighs = new long[capacity];
+        mLows = new long[capacity];
+        mCentzIds = new int[capacity];
+    }
+
+    /**
+     * @return The id rows of this symbol are tagged with, adding the symbol if it is new
+     */
+    public int symbolId(String symbol) {
+        int id = mSymbols.indexOf(symbol);
+        if (id == -1) {
+            id = mSymbols.size();
+            mSymbols.add(symbol);
+        }
+        return id;
+    }
+
+    public String getSymbol(int symbolId) {
+        return mSymbols.get(symbolId);
+    }
+
+    /**
+     * @return Number of symbols known to this batch, including any without rows
+     */
+    public int getSymbolCount() {
+        return mSymbols.size();
+    }
+
+    /**
+     * Appends a row. The symbol id must come from {@link #symbolId(String)} of this batch.
+     *
+     * @param high The day's high as a {@link FixedPointParser} fixed-point value
+     * @param low  The day's low, also fixed-point
+     */
+    public void add(long date, int symbolId, double pressure, int humidity, double windSpeed,
+                    double degrees, long high, long low, int centzId) {
+        byte[] detail = CentzDetail.format(pressure, humidity, windSpeed, degrees)
+                .getBytes(US_ASCII);
+        add(date, symbolId, detail, 0, detail.length, high, low, centzId);
+    }
+
+    /**
+     * Appends a row whose detail fields are still text in the {@link CentzDetail} format. The
+     * text is copied, nothing is decoded.
+     */
+    public void add(long date, int symbolId, byte[] detail, int detailOffset, int detailLength,
+                    long high, long low, int centzId) {
+        if (mSize == mDates.length) {
+            grow(mSize * 2);
+        }
+        ensureDetailCapacity(mDetailLength + detailLength);
+        System.arraycopy(detail, detailOffset, mDetail, mDetailLength, detailLength);
+        mDetailLength += detailLength;
+        mDetailEnds[mSize] = mDetailLength;
+        mDates[mSize] = date;
+        mSymbolIds[mSize] = symbolId;
+        mHighs[mSize] = high;
+        mLows[mSize] = low;
+        mCentzIds[mSize] = centzId;
+        mSize++;
+    }
+
+    /**
+     * Appends every row of another batch, translating its symbol ids into ids of this batch.
+     *
+     * @return The index in this batch of the first appended row
+     */
+    public int addAll(CentzBatch other) {
+        int first = mSize;
+        if (mSize + other.mSize > mDates.length) {
+            grow(Math.max(mSize + other.mSize, mDates.length * 2));
+        }
+        System.arraycopy(other.mDates, 0, mDates, mSize, other.mSize);
+        ensureDetailCapacity(mDetailLength + other.mDetailLength);
+        System.arraycopy(other.mDetail, 0, mDetail, mDetailLength, other.mDetailLength);
+        for (int i = 0; i < other.mSize; i++) {
+            mDetailEnds[mSize + i] = mDetailLength + other.mDetailEnds[i];
+        }
+        mDetailLength += other.mDetailLength;
+        System.arraycopy(other.mHighs, 0, mHighs, mSize, other.mSize);
+        System.arraycopy(other.mLows, 0, mLows, mSize, other.mSize);
+        System.arraycopy(other.mCentzIds, 0, mCentzIds, mSize, other.mSize);
+        for (int i = 0; i < other.mSize; i++) {
+            mSymbolIds[mSize + i] = symbolId(other.mSymbols.get(other.mSymbolIds[i]));
+        }
+        mSize += other.mSize;
+        return first;
+    }
+
+    private void grow(int capacity) {
+        mDates = Arrays.copyOf(mDates, capacity);
+        mSymbolIds = Arrays.copyOf(mSymbolIds, capacity);
+        mDetailEnds = Arrays.copyOf(mDetailEnds, capacity);
+        mHighs = Arrays.copyOf(mHighs, capacity);
+        mLows = Arrays.copyOf(mLows, capacity);
+        mCentzIds = Arrays.copyOf(mCentzIds, capacity);
+    }
+
+    private void ensureDetailCapacity(int capacity) {
+        if (capacity > mDetail.length) {
+            mDetail = Arrays.copyOf(mDetail, Math.max(capacity, mDetail.length * 2));
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * Drops rows from the end, keeping the first newSize. Used to undo a partially parsed
+     * response.
+     */
+    public void truncate(int newSize) {
+        if (newSize < 0 || newSize > mSize) {
+            throw new IndexOutOfBoundsException("Cannot truncate " + mSize + " rows to " + newSize);
+        }
+        mSize = newSize;
+        mDetailLength = newSize == 0 ? 0 : mDetailEnds[newSize - 1];
+    }
+
+    /**
+     * Forgets all rows and symbols but keeps the arrays for the next sync.
+     */
+    public void clear() {
+        mSize = 0;
+        mDetailLength = 0;
+        mSymbols.clear();
+    }
+
+    public long getDate(int row) {
+        return mDates[checkRow(row)];
+    }
+
+    public String getSymbolAt(int row) {
+        return mSymbols.get(mSymbolIds[checkRow(row)]);
+    }
+
+    /*
+     * The detail getters decode the row's text on every call. They are meant for the odd row
+     * that is looked at, not for loops over the whole batch.
+     */
+
+    public double getPressure(int row) {
+        return getDetailField(row, CentzDetail.PRESSURE);
+    }
+
+    public int getHumidity(int row) {
+        return (int) getDetailField(row, CentzDetail.HUMIDITY);
+    }
+
+    public double getWindSpeed(int row) {
+        return getDetailField(row, CentzDetail.WIND_SPEED);
+    }
+
+    public double getDegrees(int row) {
+        return getDetailField(row, CentzDetail.DEGREES);
+    }
+
+    private double getDetailField(int row, int field) {
+        int start = getDetailOffset(row);
+        return CentzDetail.get(mDetail, start, mDetailEnds[row] - start, field);
+    }
+
+    /**
+     * @return The row's detail fields as {@link CentzDetail} text, undecoded
+     */
+    public String getDetail(int row) {
+        int start = getDetailOffset(row);
+        return new String(mDetail, start, mDetailEnds[row] - start, US_ASCII);
+    }
+
+    /* The detail text of a row is getDetailLength(row) bytes of getDetailData() from here */
+    int getDetailOffset(int row) {
+        return checkRow(row) == 0 ? 0 : mDetailEnds[row - 1];
+    }
+
+    int getDetailLength(int row) {
+        return mDetailEnds[checkRow(row)] - getDetailOffset(row);
+    }
+
+    byte[] getDetailData() {
+        return mDetail;
+    }
+
+    /**
+     * @return The row's high as a {@link FixedPointParser} fixed-point value
+     */
+    public long getHigh(int row) {
+        return mHighs[checkRow(row)];
+    }
+
+    /**
+     * @return The row's low as a {@link FixedPointParser} fixed-point value
+     */
+    public long getLow(int row) {
+        return mLows[checkRow(row)];
+    }
+
+    public int getCentzId(int row) {
+        return mCentzIds[checkRow(row)];
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= mSize) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + mSize);
+        }
+        return row;
+    }
+
+    /**
+     * Wraps the column arrays in a Bundle for {@link android.content.ContentResolver#call}. The
+     * arrays are not copied; within our own process the provider receives this very Bundle.
+     */
+    Bundle toBundle() {
+        Bundle extras = new Bundle();
+        extras.putInt(KEY_SIZE, mSize);
+        extras.putStringArray(KEY_SYMBOLS, mSymbols.toArray(new String[mSymbols.size()]));
+        extras.putLongArray(KEY_DATES, mDates);
+        extras.putIntArray(KEY_SYMBOL_IDS, mSymbolIds);
+        extras.putByteArray(KEY_DETAIL, mDetail);
+        extras.putIntArray(KEY_DETAIL_ENDS, mDetailEnds);
+        extras.putLongArray(KEY_HIGHS, mHighs);
+        extras.putLongArray(KEY_LOWS, mLows);
+        extras.putIntArray(KEY_CENTZ_IDS, mCentzIds);
+        return extras;
+    }
+
+    /**
+     * The reverse of {@link #toBundle()}, again without copying the arrays. The returned batch
+     * must only be read.
+     */
+    static CentzBatch fromBundle(Bundle extras) {
+        CentzBatch batch = new CentzBatch(1);
+        batch.mSize = extras.getInt(KEY_SIZE);
+        String[] symbols = extras.getStringArray(KEY_SYMBOLS);
+        if (symbols != null) {
+            batch.mSymbols.addAll(Arrays.asList(symbols));
+        }
+        batch.mDates = extras.getLongArray(KEY_DATES);
+        batch.mSymbolIds = extras.getIntArray(KEY_SYMBOL_IDS);
+        batch.mDetail = extras.getByteArray(KEY_DETAIL);
+        batch.mDetailEnds = extras.getIntArray(KEY_DETAIL_ENDS);
+        batch.mHighs = extras.getLongArray(KEY_HIGHS);
+        batch.mLows = extras.getLongArray(KEY_LOWS);
+        batch.mCentzIds = extras.getIntArray(KEY_CENTZ_IDS);
+        if (batch.mDates == null || batch.mSymbolIds == null || batch.mDetail == null
+                || batch.mDetailEnds == null || batch.mHighs == null || batch.mLows == null
+                || batch.mCentzIds == null || batch.mSize > batch.mDates.length) {
+            throw new IllegalArgumentException("Bundle does not hold a complete batch");
+        }
+        batch.mDetailLength = batch.mSize == 0 ? 0 : batch.mDetailEnds[batch.mSize - 1];
+        return batch;
+    }
+
+    /**
+     * Writes the batch through {@link CentzProvider}'s batch insert.
+     *
+     * @param resolver Used to reach the provider
+     * @return The number of rows inserted
+     */
+    public int insertInto(ContentResolver resolver) {
+        Bundle result = resolver.call(CentzContract.CentzEntry.CONTENT_URI,
+                CentzContract.METHOD_BULK_INSERT_BATCH, null, toBundle());
+        return result == null ? 0 : result.getInt(CentzContract.EXTRA_ROWS_INSERTED);
+    }
+
+    /**
+     * Writes the batch through {@link CentzProvider}'s batch upsert: only rows that differ from
+     * the stored ones are written, and stored rows the batch no longer has are deleted unless
+     * they belong to one of the kept symbols. Observers are notified once, and only if
+     * something changed.
+     *
+     * @param resolver    Used to reach the provider
+     * @param keptSymbols Symbols whose stored rows must be left alone, for example because
+     *                    their request failed or came back unchanged
+     * @return What the provider did
+     */
+    public UpsertResult upsertInto(ContentResolver resolver, Collection<String> keptSymbols) {
+        Bundle extras = toBundle();
+        extras.putStringArray(CentzContract.EXTRA_KEPT_SYMBOLS,
+                keptSymbols.toArray(new String[keptSymbols.size()]));
+        return upsert(resolver, extras);
+    }
+
+    /**
+     * Like {@link #upsertInto(ContentResolver, Collection)}, but only stored rows of the symbols
+     * in this batch are compared, updated or deleted, and no change notification is sent. Used
+     * to store a sync one request at a time; the caller notifies once the whole sync is stored.
+     *
+     * @param resolver Used to reach the provider
+     * @return What the provider did
+     */
+    public UpsertResult upsertOwnSymbolsInto(ContentResolver resolver) {
+        Bundle extras = toBundle();
+        extras.putBoolean(CentzContract.EXTRA_ONLY_BATCH_SYMBOLS, true);
+        extras.putBoolean(CentzContract.EXTRA_NOTIFY, false);
+        return upsert(resolver, extras);
+    }
+
+    /**
+     * Deletes the stored rows of every symbol that isn't listed, for example after the user took
+     * symbols off the watchlist. This is a single delete in the database, the stored rows aren't
+     * read. Observers are notified by the provider if rows were deleted.
+     *
+     * @param resolver Used to reach the provider
+     * @param symbols  Symbols whose rows stay, none to delete every row
+     * @return What the provider did, only rowsDeleted can be non zero
+     */
+    public static UpsertResult deleteOtherSymbols(ContentResolver resolver,
+                                                  Collection<String> symbols) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if (!symbols.isEmpty()) {
+            selectionArgs = symbols.toArray(new String[symbols.size()]);
+            StringBuilder notIn = new StringBuilder(CentzContract.CentzEntry.COLUMN_SYMBOL)
+                    .append(" NOT IN (");
+            for (int i = 0; i < selectionArgs.length; i++) {
+                notIn.append(i == 0 ? "?" : ",?");
+            }
+            selection = notIn.append(')').toString();
+        }
+        int rowsDeleted = resolver.delete(CentzContract.CentzEntry.CONTENT_URI, selection,
+                selectionArgs);
+        return new UpsertResult(0, 0, rowsDeleted);
+    }
+
+    private UpsertResult upsert(ContentResolver resolver, Bundle extras) {
+        Bundle result = resolver.call(CentzContract.CentzEntry.CONTENT_URI,
+                CentzContract.METHOD_UPSERT_BATCH, null, extras);
+        if (result == null) return new UpsertResult(0, 0, 0);
+        return new UpsertResult(result.getInt(CentzContract.EXTRA_ROWS_WRITTEN),
+                result.getInt(CentzContract.EXTRA_ROWS_SKIPPED),
+                result.getInt(CentzContract.EXTRA_ROWS_DELETED));
+    }
+
+    /**
+     * The outcome of {@link #upsertInto(ContentResolver, Collection)}.
+     */
+    public static final class UpsertResult {
+        /* Nothing written, skipped or deleted */
+        public static final UpsertResult NONE = new UpsertResult(0, 0, 0);
+
+        /* Rows inserted or updated because they were new or differed from the stored row */
+        public final int rowsWritten;
+        /* Rows left alone because the stored row was already the same */
+        public final int rowsSkipped;
+        public final int rowsDeleted;
+
+        UpsertResult(int rowsWritten, int rowsSkipped, int rowsDeleted) {
+            this.rowsWritten = rowsWritten;
+            this.rowsSkipped = rowsSkipped;
+            this.rowsDeleted = rowsDeleted;
+        }
+
+        /**
+         * @return Whether the table changed, which is also whether a change notification was sent
+         * unless the caller asked for none
+         */
+        public boolean hasChanges() {
+            return rowsWritten != 0 || rowsDeleted != 0;
+        }
+
+        /**
+         * @return The counts of this and another upsert added up
+         */
+        public UpsertResult plus(UpsertResult other) {
+            return new UpsertResult(rowsWritten + other.rowsWritten,
+                    rowsSkipped + other.rowsSkipped, rowsDeleted + other.rowsDeleted);
+        }
+    }
+}
@@ -56,6 +56,36 @@ public class CentzContract {
      */
     public static final String PATH_CENTZ = "centz";
 
+    /* Path of the sync metadata, content://com.singularityfuture.centz/sync_meta/ */
+    public static final String PATH_SYNC_META = "sync_meta";
+
+    /*
+     * Provider method, used with ContentResolver#call, that inserts a whole CentzBatch at once.
+     * The number of rows inserted comes back under EXTRA_ROWS_INSERTED.
+     */
+    public static final String METHOD_BULK_INSERT_BATCH = "bulk_insert_batch";
+    public static final String EXTRA_ROWS_INSERTED = "rows_inserted";
+
+    /*
+     * Provider method, used with ContentResolver#call, that brings the stored rows in line with a
+     * CentzBatch. Rows are matched by date and symbol and only those that differ are written.
+     * Stored rows the batch doesn't have are deleted, except those of the symbols listed under
+     * EXTRA_KEPT_SYMBOLS. What was done comes back under the EXTRA_ROWS_* keys.
+     */
+    public static final String METHOD_UPSERT_BATCH = "upsert_batch";
+    public static final String EXTRA_KEPT_SYMBOLS = "kept_symbols";
+    public static final String EXTRA_ROWS_WRITTEN = "rows_written";
+    public static final String EXTRA_ROWS_SKIPPED = "rows_skipped";
+    public static final String EXTRA_ROWS_DELETED = "rows_deleted";
+
+    /*
+     * Optional upsert extras. With EXTRA_ONLY_BATCH_SYMBOLS set, stored rows of symbols that are
+     * not in the batch are left alone. With EXTRA_NOTIFY set to false, the provider doesn't send
+     * a change notification and the caller is expected to send one when it is done.
+     */
+    public static final String EXTRA_ONLY_BATCH_SYMBOLS = "only_batch_symbols";
+    public static final String EXTRA_NOTIFY = "notify";
+
     /* Inner class that defines the table contents of the centz table */
     public static final class CentzEntry implements BaseColumns {
 
@@ -85,10 +115,20 @@ public class CentzContract {
          */
         public static final String COLUMN_DATE = "date";
 
+        /*
+         * The symbol (the query sent to the API) that this row belongs to. Every symbol on the
+         * user's watchlist gets its own set of rows.
+         */
+        public static final String COLUMN_SYMBOL = "symbol";
+
         /* Centz ID as returned by API, used to identify the icon to be used */
         public static final String COLUMN_CENTZ_ID = "centz_id";
 
-        /* Min and max temperatures in °C for the day (stored as floats in the database) */
+        /*
+         * Min and max prices for the day, stored as fixed-point integers with
+         * FixedPointParser.SCALE decimal places so they never round through a float. Use
+         * Cursor#getLong to read them and FixedPointParser to format them.
+         */
         public static final String COLUMN_MIN_TEMP = "min";
         public static final String COLUMN_MAX_TEMP = "max";
 
@@ -109,6 +149,14 @@ public class CentzContract {
          */
         public static final String COLUMN_DEGREES = "degrees";
 
+        /*
+         * Rows written by a sync don't fill in the four detail columns above. Only the list
+         * columns are decoded while parsing, the detail fields are kept as the raw number text
+         * of the response in this column (see CentzDetail) and the provider decodes them when a
+         * query asks for them. Rows with an empty detail use the columns above as before.
+         */
+        public static final String COLUMN_DETAIL = "detail";
+
         /**
          * Builds a URI that adds the centz date to the end of the forecast content URI path.
          * This is used to query details about a single centz entry by date. This is what we
@@ -134,5 +182,69 @@ public class CentzContract {
             long normalizedUtcNow = CentzDateUtils.normalizeDate(System.currentTimeMillis());
             return CentzContract.CentzEntry.COLUMN_DATE + " >= " + normalizedUtcNow;
         }
+
+        /**
+         * Returns the selection part of a query restricted to a single symbol. The symbol itself
+         * must be passed as the matching selection argument.
+         *
+         * @return The selection part of the centz query for one symbol from today onwards
+         */
+        public static String getSqlSelectForSymbolTodayOnwards() {
+            return getSqlSelectForTodayOnwards() + " AND " + COLUMN_SYMBOL + " = ?";
+        }
+    }
+
+    /*
+     * Inner class that defines the table contents of the sync metadata table. It holds one row
+     * per symbol describing how syncing it has been going, so that deciding whether a symbol
+     * needs a sync takes a single primary key lookup instead of a scan of the centz table.
+     */
+    public static final class SyncMetaEntry {
+
+        /* The base CONTENT_URI used to query the sync metadata from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_SYNC_META)
+                .build();
+
+        /* Used internally as the name of our sync metadata table. */
+        public static final String TABLE_NAME = "sync_meta";
+
+        /* The symbol the row is about, also the table's primary key */
+        public static final String COLUMN_SYMBOL = "symbol";
+
+        /*
+         * The request URL the symbol was last fetched with. The validators below are only sent
+         * again with the same URL.
+         */
+        public static final String COLUMN_SOURCE = "source";
+
+        /* When a sync last tried to fetch the symbol, and when it last got a good answer */
+        public static final String COLUMN_LAST_FETCH = "last_fetch";
+        public static final String COLUMN_LAST_SUCCESS = "last_success";
+
+        /*
+         * Validators of the last response with fresh data, null if the server sent none. The
+         * next request for the symbol only sends them while its row count is above zero.
+         */
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        /* How many centz rows the last response with fresh data stored for the symbol */
+        public static final String COLUMN_ROW_COUNT = "row_count";
+
+        /* Why the last fetch failed, null if it didn't */
+        public static final String COLUMN_LAST_ERROR = "last_error";
+
+        /**
+         * Builds a URI for the sync metadata of a single symbol.
+         *
+         * @param symbol The symbol
+         * @return Uri to query or update the metadata of the symbol
+         */
+        public static Uri buildSyncMetaUriWithSymbol(String symbol) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(symbol)
+                    .build();
+        }
     }
-}
\ No newline at end of file
+}
@@ -20,6 +20,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import com.singularityfuture.centz.data.CentzContract.CentzEntry;
+import com.singularityfuture.centz.data.CentzContract.SyncMetaEntry;
 
 /**
  * Manages a local database for centz data.
@@ -43,10 +44,13 @@ public class CentzDbHelper extends SQLiteOpenHelper {
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
      */
-    private static final int DATABASE_VERSION = 3;
+    private static final int DATABASE_VERSION = 8;
+
+    private final Context mContext;
 
     public CentzDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContext = context;
     }
 
     /**
@@ -75,30 +79,65 @@ public class CentzDbHelper extends SQLiteOpenHelper {
 
                 CentzEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
 
+                CentzEntry.COLUMN_SYMBOL     + " TEXT NOT NULL DEFAULT '', "         +
+
                 CentzEntry.COLUMN_CENTZ_ID + " INTEGER NOT NULL,"                  +
 
-                CentzEntry.COLUMN_MIN_TEMP   + " REAL NOT NULL, "                    +
-                CentzEntry.COLUMN_MAX_TEMP   + " REAL NOT NULL, "                    +
+                /* Prices are fixed-point integers, see FixedPointParser */
+                CentzEntry.COLUMN_MIN_TEMP   + " INTEGER NOT NULL, "                 +
+                CentzEntry.COLUMN_MAX_TEMP   + " INTEGER NOT NULL, "                 +
 
-                CentzEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
-                CentzEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
+                /*
+                 * Rows written by a sync leave the detail columns at their default and keep the
+                 * detail fields as text instead. A zero default takes no space in the record.
+                 */
+                CentzEntry.COLUMN_HUMIDITY   + " REAL NOT NULL DEFAULT 0, "          +
+                CentzEntry.COLUMN_PRESSURE   + " REAL NOT NULL DEFAULT 0, "          +
 
-                CentzEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
-                CentzEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
+                CentzEntry.COLUMN_WIND_SPEED + " REAL NOT NULL DEFAULT 0, "          +
+                CentzEntry.COLUMN_DEGREES    + " REAL NOT NULL DEFAULT 0, "          +
+
+                CentzEntry.COLUMN_DETAIL     + " TEXT NOT NULL DEFAULT '', "         +
 
                 /*
-                 * To ensure this table can only contain one centz entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a centz entry for a certain date and we attempt to
-                 * insert another centz entry with that date, we replace the old centz entry.
+                 * To ensure this table can only contain one centz entry per date for each symbol,
+                 * we declare the date and symbol pair to be unique. We also specify "ON CONFLICT
+                 * REPLACE". This tells SQLite that if we have a centz entry for a certain date and
+                 * symbol and we attempt to insert another one, we replace the old centz entry.
+                 *
+                 * The symbol comes first so the index behind this constraint also serves the
+                 * per-symbol lookups of a sync, which stores the watchlist one symbol at a time.
                  */
-                " UNIQUE (" + CentzEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+                " UNIQUE (" + CentzEntry.COLUMN_SYMBOL + ", " + CentzEntry.COLUMN_DATE
+                        + ") ON CONFLICT REPLACE);";
 
         /*
          * After we've spelled out our SQLite table creation statement above, we actually execute
          * that SQL with the execSQL method of our SQLite database object.
          */
         sqLiteDatabase.execSQL(SQL_CREATE_CENTZ_TABLE);
+
+        /*
+         * One row per symbol about how syncing it has been going. The symbol is the primary key,
+         * so the lookups made when the app starts or a sync is scheduled read a single row.
+         */
+        final String SQL_CREATE_SYNC_META_TABLE =
+
+                "CREATE TABLE " + SyncMetaEntry.TABLE_NAME + " (" +
+
+                SyncMetaEntry.COLUMN_SYMBOL        + " TEXT PRIMARY KEY NOT NULL, "    +
+                SyncMetaEntry.COLUMN_SOURCE        + " TEXT, "                         +
+
+                SyncMetaEntry.COLUMN_LAST_FETCH    + " INTEGER NOT NULL DEFAULT 0, "   +
+                SyncMetaEntry.COLUMN_LAST_SUCCESS  + " INTEGER NOT NULL DEFAULT 0, "   +
+
+                SyncMetaEntry.COLUMN_ETAG          + " TEXT, "                         +
+                SyncMetaEntry.COLUMN_LAST_MODIFIED + " TEXT, "                         +
+
+                SyncMetaEntry.COLUMN_ROW_COUNT     + " INTEGER NOT NULL DEFAULT 0, "   +
+                SyncMetaEntry.COLUMN_LAST_ERROR    + " TEXT);";
+
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_META_TABLE);
     }
 
     /**
@@ -116,6 +155,9 @@ public class CentzDbHelper extends SQLiteOpenHelper {
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CentzEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetaEntry.TABLE_NAME);
+        /* Older versions kept validators in the preferences, for the rows just dropped */
+        CentzPreferences.clearValidators(mContext);
         onCreate(sqLiteDatabase);
     }
 }
\ No newline at end of file
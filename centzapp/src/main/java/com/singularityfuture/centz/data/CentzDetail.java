@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.data;
+
+import java.nio.charset.Charset;
+
+/**
+ * The detail fields of a row (pressure, humidity, wind speed and wind direction) kept as text
+ * instead of as decoded numbers. Only the detail screen ever shows them, and then for a single
+ * row, so the sync copies the number text of the response as it is and leaves the decoding to
+ * whoever asks for a value.
+ * <p>
+ * The text is the four numbers in {@link #PRESSURE}, {@link #HUMIDITY}, {@link #WIND_SPEED},
+ * {@link #DEGREES} order, separated by commas, for example {@code 1013.25,64,4.2,270}.
+ */
+public final class CentzDetail {
+
+    public static final int PRESSURE = 0;
+    public static final int HUMIDITY = 1;
+    public static final int WIND_SPEED = 2;
+    public static final int DEGREES = 3;
+
+    public static final int FIELD_COUNT = 4;
+
+    public static final byte SEPARATOR = ',';
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private CentzDetail() {
+    }
+
+    /**
+     * Builds the text for values that were already decoded.
+     */
+    public static String format(double pressure, int humidity, double windSpeed, double degrees) {
+        return new StringBuilder(32)
+                .append(pressure).append((char) SEPARATOR)
+                .append(humidity).append((char) SEPARATOR)
+                .append(windSpeed).append((char) SEPARATOR)
+                .append(degrees)
+                .toString();
+    }
+
+    /**
+     * Decodes one field of a detail text held in a byte array.
+     *
+     * @param field One of {@link #PRESSURE}, {@link #HUMIDITY}, {@link #WIND_SPEED} or
+     *              {@link #DEGREES}
+     * @throws IllegalArgumentException If the text has no such field or it isn't a number
+     */
+    public static double get(byte[] data, int offset, int length, int field) {
+        int end = offset + length;
+        int start = offset;
+        for (int i = 0; i < field; i++) {
+            while (start < end && data[start] != SEPARATOR) start++;
+            start++;
+        }
+        int fieldEnd = start;
+        while (fieldEnd < end && data[fieldEnd] != SEPARATOR) fieldEnd++;
+        if (start >= fieldEnd) {
+            throw new IllegalArgumentException("Detail has no field " + field);
+        }
+        return parse(new String(data, start, fieldEnd - start, US_ASCII));
+    }
+
+    /**
+     * Decodes every field of a detail text read back from the database.
+     *
+     * @param detail The text, as stored in {@link CentzContract.CentzEntry#COLUMN_DETAIL}
+     * @param values Receives the fields, indexed by field
+     * @throws IllegalArgumentException If the text doesn't hold four numbers
+     */
+    public static void getAll(String detail, double[] values) {
+        int start = 0;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            int end = detail.indexOf(SEPARATOR, start);
+            if (end == -1) {
+                if (field != FIELD_COUNT - 1) {
+                    throw new IllegalArgumentException("Detail has no field " + (field + 1));
+                }
+                end = detail.length();
+            }
+            values[field] = parse(detail.substring(start, end));
+            start = end + 1;
+        }
+    }
+
+    /**
+     * @return The field stored in the given column, or -1 if the column isn't a detail column
+     */
+    public static int fieldOf(String column) {
+        switch (column) {
+            case CentzContract.CentzEntry.COLUMN_PRESSURE:
+                return PRESSURE;
+            case CentzContract.CentzEntry.COLUMN_HUMIDITY:
+                return HUMIDITY;
+            case CentzContract.CentzEntry.COLUMN_WIND_SPEED:
+                return WIND_SPEED;
+            case CentzContract.CentzEntry.COLUMN_DEGREES:
+                return DEGREES;
+            default:
+                return -1;
+        }
+    }
+
+    private static double parse(String number) {
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed detail field " + number, e);
+        }
+    }
+}
@@ -21,6 +21,9 @@ import android.preference.PreferenceManager;
 
 import com.singularityfuture.centz.R;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public final class CentzPreferences {
 
     /*
@@ -31,6 +34,26 @@ public final class CentzPreferences {
     public static final String PREF_COORD_LAT = "coord_lat";
     public static final String PREF_COORD_LONG = "coord_long";
 
+    /*
+     * Older versions kept the validators of the last successful response here, per request URL.
+     * They are in the sync metadata now, these keys are only needed to remove what was left.
+     */
+    private static final String PREF_ETAG_PREFIX = "validator_etag:";
+    private static final String PREF_LAST_MODIFIED_PREFIX = "validator_last_modified:";
+
+    /*
+     * Price per symbol the user wants to be alerted at, fixed-point. The sync scheduler syncs
+     * more often while a price is close to its alert.
+     */
+    private static final String PREF_ALERT_PRICE_PREFIX = "alert_price:";
+
+    /* When the user last opened the app, and the interval the background sync was set up with */
+    private static final String PREF_LAST_APP_OPEN = "last_app_open";
+    private static final String PREF_SCHEDULED_SYNC_INTERVAL = "scheduled_sync_interval";
+
+    /* Per symbol, how old its data may get before opening the app syncs it again */
+    private static final String PREF_MAX_DATA_AGE_PREFIX = "max_data_age:";
+
     /**
      * Helper method to handle setting location details in Preferences (city name, latitude,
      * longitude)
@@ -82,6 +105,32 @@ public final class CentzPreferences {
         return sp.getString(keyForLocation, defaultLocation);
     }
 
+    /**
+     * Returns every symbol the user wants to keep track of. The preferred location always comes
+     * first and is followed by the extra entries of the watchlist preference, which is a comma
+     * separated list. Blank entries and duplicates are dropped.
+     *
+     * @param context Context used to access SharedPreferences
+     * @return The watchlist, never empty
+     */
+    public static List<String> getWatchlist(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+
+        String keyForWatchlist = context.getString(R.string.pref_watchlist_key);
+        String defaultWatchlist = context.getString(R.string.pref_watchlist_default);
+        String watchlist = sp.getString(keyForWatchlist, defaultWatchlist);
+
+        List<String> symbols = new ArrayList<>();
+        symbols.add(getPreferredCentzLocation(context));
+        for (String entry : watchlist.split(",")) {
+            String symbol = entry.trim();
+            if (!symbol.isEmpty() && !symbols.contains(symbol)) {
+                symbols.add(symbol);
+            }
+        }
+        return symbols;
+    }
+
     /**
      * Returns true if the user has selected metric temperature display.
      *
@@ -242,4 +291,118 @@ public final class CentzPreferences {
         editor.putLong(lastNotificationKey, timeOfNotification);
         editor.apply();
     }
-}
\ No newline at end of file
+
+    /**
+     * Forgets the validators older versions kept per request URL. They describe rows that are
+     * gone once the database is rebuilt, and nothing reads them anymore.
+     *
+     * @param context Used to access SharedPreferences
+     */
+    public static void clearValidators(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        for (String key : sp.getAll().keySet()) {
+            if (key.startsWith(PREF_ETAG_PREFIX) || key.startsWith(PREF_LAST_MODIFIED_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns the price the user wants to be alerted at for a symbol.
+     *
+     * @param context Used to access SharedPreferences
+     * @param symbol  The symbol the alert is for
+     * @return The alert price as a fixed-point value, or 0 if there is no alert
+     */
+    public static long getAlertPrice(Context context, String symbol) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_ALERT_PRICE_PREFIX + symbol, 0);
+    }
+
+    /**
+     * Saves the price the user wants to be alerted at for a symbol.
+     *
+     * @param context Used to access SharedPreferences
+     * @param symbol  The symbol the alert is for
+     * @param price   The alert price as a fixed-point value, or 0 to remove the alert
+     */
+    public static void setAlertPrice(Context context, String symbol, long price) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        if (price > 0) {
+            editor.putLong(PREF_ALERT_PRICE_PREFIX + symbol, price);
+        } else {
+            editor.remove(PREF_ALERT_PRICE_PREFIX + symbol);
+        }
+        editor.apply();
+    }
+
+    /**
+     * Returns the last time the user opened the app (in UNIX time), or 0 if never.
+     *
+     * @param context Used to access SharedPreferences
+     * @return UNIX time of when the app was last opened
+     */
+    public static long getLastAppOpenTimeInMillis(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_LAST_APP_OPEN, 0);
+    }
+
+    /**
+     * Saves the time the user opened the app.
+     *
+     * @param context     Used to access SharedPreferences
+     * @param timeOfOpen  Time the app was opened (in UNIX time)
+     */
+    public static void saveLastAppOpenTime(Context context, long timeOfOpen) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit().putLong(PREF_LAST_APP_OPEN, timeOfOpen).apply();
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return The interval the background sync was last scheduled with, 0 if not scheduled yet
+     */
+    public static long getScheduledSyncIntervalMillis(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_SCHEDULED_SYNC_INTERVAL, 0);
+    }
+
+    /**
+     * @param context        Used to access SharedPreferences
+     * @param intervalMillis The interval the background sync was just scheduled with
+     */
+    public static void saveScheduledSyncIntervalMillis(Context context, long intervalMillis) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        sp.edit().putLong(PREF_SCHEDULED_SYNC_INTERVAL, intervalMillis).apply();
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @param symbol  The symbol whose data it is
+     * @return How old the symbol's data may get before it is synced again when the app is
+     * opened, 0 if the default applies
+     */
+    public static long getMaxDataAgeMillis(Context context, String symbol) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_MAX_DATA_AGE_PREFIX + symbol, 0);
+    }
+
+    /**
+     * @param context      Used to access SharedPreferences
+     * @param symbol       The symbol whose data it is
+     * @param maxAgeMillis How old the symbol's data may get, or 0 for the default
+     */
+    public static void setMaxDataAgeMillis(Context context, String symbol, long maxAgeMillis) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        if (maxAgeMillis > 0) {
+            editor.putLong(PREF_MAX_DATA_AGE_PREFIX + symbol, maxAgeMillis);
+        } else {
+            editor.remove(PREF_MAX_DATA_AGE_PREFIX + symbol);
+        }
+        editor.apply();
+    }
+}
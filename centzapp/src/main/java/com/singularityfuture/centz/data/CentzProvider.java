@@ -17,15 +17,25 @@ package com.singularityfuture.centz.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 
 import com.singularityfuture.centz.utilities.CentzDateUtils;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
 /**
  * This class serves as the ContentProvider for all of Centz's data. This class allows us to
  * bulkInsert data, query data, and delete data.
@@ -45,6 +55,8 @@ public class CentzProvider extends ContentProvider {
      */
     public static final int CODE_CENTZ = 100;
     public static final int CODE_CENTZ_WITH_DATE = 101;
+    public static final int CODE_SYNC_META = 200;
+    public static final int CODE_SYNC_META_WITH_SYMBOL = 201;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -96,6 +108,15 @@ public class CentzProvider extends ContentProvider {
          */
         matcher.addURI(authority, CentzContract.PATH_CENTZ + "/#", CODE_CENTZ_WITH_DATE);
 
+        /*
+         * content://com.singularityfuture.centz/sync_meta/ for the metadata of every symbol, and
+         * content://com.singularityfuture.centz/sync_meta/BTC-USD for that of one. The "/*"
+         * matches any text, symbols aren't numbers.
+         */
+        matcher.addURI(authority, CentzContract.PATH_SYNC_META, CODE_SYNC_META);
+        matcher.addURI(authority, CentzContract.PATH_SYNC_META + "/*",
+                CODE_SYNC_META_WITH_SYMBOL);
+
         return matcher;
     }
 
@@ -131,6 +152,9 @@ public class CentzProvider extends ContentProvider {
      * for inserting a single row of data into our ContentProvider, and so we are only going to
      * implement bulkInsert. In a normal ContentProvider's implementation, you will probably want
      * to provide proper functionality for the insert method as well.
+     * <p>
+     * Rows for {@link CentzContract.SyncMetaEntry#CONTENT_URI} are merged into the stored
+     * metadata of their symbol rather than inserted, see {@link #mergeSyncMeta}.
      *
      * @param uri    The content:// URI of the insertion request.
      * @param values An array of sets of column_name/value pairs to add to the database.
@@ -171,11 +195,310 @@ public class CentzProvider extends ContentProvider {
 
                 return rowsInserted;
 
+            case CODE_SYNC_META:
+                return mergeSyncMeta(db, uri, values);
+
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Merges rows into the sync metadata, all in one transaction. Each row is matched to the
+     * stored one by its symbol and only the columns it has are changed, a symbol without a
+     * stored row gets a new one.
+     *
+     * @return The number of rows changed or added
+     */
+    private int mergeSyncMeta(SQLiteDatabase db, Uri uri, ContentValues[] values) {
+        int rowsMerged = 0;
+        db.beginTransaction();
+        try {
+            String[] symbol = new String[1];
+            for (ContentValues value : values) {
+                symbol[0] = value.getAsString(CentzContract.SyncMetaEntry.COLUMN_SYMBOL);
+                if (symbol[0] == null) {
+                    throw new IllegalArgumentException("Sync metadata needs a symbol");
+                }
+                if (db.update(CentzContract.SyncMetaEntry.TABLE_NAME, value,
+                        CentzContract.SyncMetaEntry.COLUMN_SYMBOL + " = ?", symbol) > 0
+                        || db.insert(CentzContract.SyncMetaEntry.TABLE_NAME, null, value) != -1) {
+                    rowsMerged++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (rowsMerged > 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return rowsMerged;
+    }
+
+    /* Sync metadata of symbols whose centz rows were all deleted */
+    private static ContentValues forgetStoredRows() {
+        ContentValues values = new ContentValues();
+        values.putNull(CentzContract.SyncMetaEntry.COLUMN_ETAG);
+        values.putNull(CentzContract.SyncMetaEntry.COLUMN_LAST_MODIFIED);
+        values.put(CentzContract.SyncMetaEntry.COLUMN_ROW_COUNT, 0);
+        return values;
+    }
+
+    /* Column order matches the bind indices used in insertBatch */
+    private static final String SQL_INSERT_CENTZ_ROW =
+            "INSERT INTO " + CentzContract.CentzEntry.TABLE_NAME + " ("
+                    + CentzContract.CentzEntry.COLUMN_DATE + ", "
+                    + CentzContract.CentzEntry.COLUMN_SYMBOL + ", "
+                    + CentzContract.CentzEntry.COLUMN_DETAIL + ", "
+                    + CentzContract.CentzEntry.COLUMN_MAX_TEMP + ", "
+                    + CentzContract.CentzEntry.COLUMN_MIN_TEMP + ", "
+                    + CentzContract.CentzEntry.COLUMN_CENTZ_ID
+                    + ") VALUES (?, ?, ?, ?, ?, ?)";
+
+    /* Columns read back to compare the stored rows with an upserted batch */
+    private static final String[] UPSERT_PROJECTION = {
+            CentzContract.CentzEntry._ID,
+            CentzContract.CentzEntry.COLUMN_DATE,
+            CentzContract.CentzEntry.COLUMN_SYMBOL,
+            CentzContract.CentzEntry.COLUMN_DETAIL,
+            CentzContract.CentzEntry.COLUMN_MAX_TEMP,
+            CentzContract.CentzEntry.COLUMN_MIN_TEMP,
+            CentzContract.CentzEntry.COLUMN_CENTZ_ID
+    };
+
+    private static final int UPSERT_INDEX_ID = 0;
+    private static final int UPSERT_INDEX_DATE = 1;
+    private static final int UPSERT_INDEX_SYMBOL = 2;
+    private static final int UPSERT_INDEX_DETAIL = 3;
+    private static final int UPSERT_INDEX_MAX = 4;
+    private static final int UPSERT_INDEX_MIN = 5;
+    private static final int UPSERT_INDEX_CENTZ_ID = 6;
+
+    private static final String SQL_UPDATE_CENTZ_ROW =
+            "UPDATE " + CentzContract.CentzEntry.TABLE_NAME + " SET "
+                    + CentzContract.CentzEntry.COLUMN_DETAIL + " = ?, "
+                    + CentzContract.CentzEntry.COLUMN_MAX_TEMP + " = ?, "
+                    + CentzContract.CentzEntry.COLUMN_MIN_TEMP + " = ?, "
+                    + CentzContract.CentzEntry.COLUMN_CENTZ_ID + " = ? WHERE "
+                    + CentzContract.CentzEntry._ID + " = ?";
+
+    private static final String SQL_DELETE_CENTZ_ROW =
+            "DELETE FROM " + CentzContract.CentzEntry.TABLE_NAME + " WHERE "
+                    + CentzContract.CentzEntry._ID + " = ?";
+
+    /**
+     * Handles {@link CentzContract#METHOD_BULK_INSERT_BATCH}, which does the same job as
+     * {@link #bulkInsert} for rows held in a {@link CentzBatch}. The rows are bound from the
+     * batch's primitive arrays into one compiled statement, so nothing is boxed along the way.
+     * The detail fields are stored as the batch's text, see
+     * {@link CentzContract.CentzEntry#COLUMN_DETAIL}.
+     * <p>
+     * Also handles {@link CentzContract#METHOD_UPSERT_BATCH}, see
+     * {@link #upsertBatch(CentzBatch, String[], boolean, boolean)}.
+     *
+     * @param method The provider method to run
+     * @param arg    Unused
+     * @param extras The batch, as built by {@link CentzBatch#insertInto(ContentResolver)} or
+     *               {@link CentzBatch#upsertInto(ContentResolver, java.util.Collection)}
+     * @return A Bundle with the number of rows inserted, or the upsert counts
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        boolean upsert = CentzContract.METHOD_UPSERT_BATCH.equals(method);
+        if (!upsert && !CentzContract.METHOD_BULK_INSERT_BATCH.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        if (extras == null) {
+            throw new IllegalArgumentException("A batch insert needs the batch as extras");
+        }
+        if (upsert) {
+            return upsertBatch(CentzBatch.fromBundle(extras),
+                    extras.getStringArray(CentzContract.EXTRA_KEPT_SYMBOLS),
+                    extras.getBoolean(CentzContract.EXTRA_ONLY_BATCH_SYMBOLS, false),
+                    extras.getBoolean(CentzContract.EXTRA_NOTIFY, true));
+        }
+
+        int rowsInserted = insertBatch(CentzBatch.fromBundle(extras));
+        if (rowsInserted > 0) {
+            getContext().getContentResolver()
+                    .notifyChange(CentzContract.CentzEntry.CONTENT_URI, null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(CentzContract.EXTRA_ROWS_INSERTED, rowsInserted);
+        return result;
+    }
+
+    private int insertBatch(CentzBatch batch) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int rowsInserted = 0;
+
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_CENTZ_ROW);
+        try {
+            for (int row = 0; row < batch.size(); row++) {
+                checkNotInterrupted();
+                checkDateNormalized(batch.getDate(row));
+                if (insertRow(insert, batch, row)) {
+                    rowsInserted++;
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            db.endTransaction();
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Brings the stored rows in line with a batch without rewriting the table. Stored rows are
+     * matched with the batch by date and symbol: identical rows are skipped, rows that differ
+     * are updated in place, batch rows without a stored row are inserted and stored rows the
+     * batch doesn't have are deleted, unless their symbol is kept. All of it happens in one
+     * transaction and observers get a single notification, only if something changed.
+     * <p>
+     * A sync that is cancelled interrupts the thread storing its rows. The upsert then stops
+     * between rows and throws, and the transaction is rolled back so no half written batch is
+     * left behind.
+     *
+     * @param batch             The rows as they should be stored
+     * @param keptSymbols       Symbols whose stored rows are left alone, may be null
+     * @param onlyBatchSymbols  Whether to only look at stored rows of the batch's own symbols
+     * @param notify            Whether to notify observers when something changed
+     * @return A Bundle with the number of rows written, skipped and deleted
+     * @throws CancellationException If the calling thread was interrupted
+     */
+    private Bundle upsertBatch(CentzBatch batch, String[] keptSymbols, boolean onlyBatchSymbols,
+                               boolean notify) {
+        Set<String> kept = new HashSet<>();
+        if (keptSymbols != null) {
+            kept.addAll(Arrays.asList(keptSymbols));
+        }
+
+        Map<String, Integer> rowsByKey = new HashMap<>(batch.size() * 2);
+        for (int row = 0; row < batch.size(); row++) {
+            checkDateNormalized(batch.getDate(row));
+            rowsByKey.put(upsertKey(batch.getSymbolAt(row), batch.getDate(row)), row);
+        }
+        boolean[] stored = new boolean[batch.size()];
+
+        int rowsWritten = 0;
+        int rowsSkipped = 0;
+        int rowsDeleted = 0;
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        SQLiteStatement insert = db.compileStatement(SQL_INSERT_CENTZ_ROW);
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE_CENTZ_ROW);
+        SQLiteStatement delete = db.compileStatement(SQL_DELETE_CENTZ_ROW);
+        Cursor current = null;
+        try {
+            String selection = null;
+            String[] selectionArgs = null;
+            if (onlyBatchSymbols) {
+                selectionArgs = new String[batch.getSymbolCount()];
+                StringBuilder in = new StringBuilder(CentzContract.CentzEntry.COLUMN_SYMBOL)
+                        .append(" IN (");
+                for (int i = 0; i < selectionArgs.length; i++) {
+                    selectionArgs[i] = batch.getSymbol(i);
+                    in.append(i == 0 ? "?" : ",?");
+                }
+                selection = in.append(')').toString();
+            }
+            current = db.query(CentzContract.CentzEntry.TABLE_NAME, UPSERT_PROJECTION,
+                    selection, selectionArgs, null, null, null);
+            while (current.moveToNext()) {
+                checkNotInterrupted();
+                String symbol = current.getString(UPSERT_INDEX_SYMBOL);
+                if (kept.contains(symbol)) continue;
+
+                long id = current.getLong(UPSERT_INDEX_ID);
+                long date = current.getLong(UPSERT_INDEX_DATE);
+                Integer match = rowsByKey.get(upsertKey(symbol, date));
+                if (match == null) {
+                    delete.bindLong(1, id);
+                    rowsDeleted += delete.executeUpdateDelete();
+                    continue;
+                }
+
+                int row = match;
+                stored[row] = true;
+                String detail = batch.getDetail(row);
+                if (detail.equals(current.getString(UPSERT_INDEX_DETAIL))
+                        && batch.getHigh(row) == current.getLong(UPSERT_INDEX_MAX)
+                        && batch.getLow(row) == current.getLong(UPSERT_INDEX_MIN)
+                        && batch.getCentzId(row) == current.getInt(UPSERT_INDEX_CENTZ_ID)) {
+                    rowsSkipped++;
+                    continue;
+                }
+
+                update.bindString(1, detail);
+                update.bindLong(2, batch.getHigh(row));
+                update.bindLong(3, batch.getLow(row));
+                update.bindLong(4, batch.getCentzId(row));
+                update.bindLong(5, id);
+                rowsWritten += update.executeUpdateDelete();
+            }
+
+            for (int row = 0; row < batch.size(); row++) {
+                checkNotInterrupted();
+                if (!stored[row] && insertRow(insert, batch, row)) {
+                    rowsWritten++;
+                }
+            }
+            checkNotInterrupted();
+            db.setTransactionSuccessful();
+        } finally {
+            if (current != null) current.close();
+            insert.close();
+            update.close();
+            delete.close();
+            db.endTransaction();
+        }
+
+        if (notify && (rowsWritten > 0 || rowsDeleted > 0)) {
+            getContext().getContentResolver()
+                    .notifyChange(CentzContract.CentzEntry.CONTENT_URI, null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(CentzContract.EXTRA_ROWS_WRITTEN, rowsWritten);
+        result.putInt(CentzContract.EXTRA_ROWS_SKIPPED, rowsSkipped);
+        result.putInt(CentzContract.EXTRA_ROWS_DELETED, rowsDeleted);
+        return result;
+    }
+
+    private static String upsertKey(String symbol, long date) {
+        return symbol + '/' + date;
+    }
+
+    /* Batches are stored in process, on the thread of the sync that may have been cancelled */
+    private static void checkNotInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Interrupted while storing a batch");
+        }
+    }
+
+    private static void checkDateNormalized(long centzDate) {
+        if (!CentzDateUtils.isDateNormalized(centzDate)) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+    }
+
+    /* Binds one batch row to SQL_INSERT_CENTZ_ROW and runs it */
+    private static boolean insertRow(SQLiteStatement insert, CentzBatch batch, int row) {
+        insert.bindLong(1, batch.getDate(row));
+        insert.bindString(2, batch.getSymbolAt(row));
+        insert.bindString(3, batch.getDetail(row));
+        insert.bindLong(4, batch.getHigh(row));
+        insert.bindLong(5, batch.getLow(row));
+        insert.bindLong(6, batch.getCentzId(row));
+        return insert.executeInsert() != -1;
+    }
+
     /**
      * Handles query requests from clients. We will use this method in Centz to query for all
      * of our centz data as well as to query for the centz on a particular day.
@@ -232,6 +555,23 @@ public class CentzProvider extends ContentProvider {
                  * because this method signature accepts a string array.
                  */
                 String[] selectionArguments = new String[]{normalizedUtcDateString};
+                String dateSelection = CentzContract.CentzEntry.COLUMN_DATE + " = ? ";
+
+                /*
+                 * With more than one symbol on the watchlist, several rows can share a date.
+                 * Callers narrow the result down (usually to one symbol) with their own
+                 * selection, which we append after the date.
+                 */
+                if (selection != null) {
+                    dateSelection += " AND (" + selection + ")";
+                    if (selectionArgs != null) {
+                        String[] combinedArguments = new String[1 + selectionArgs.length];
+                        combinedArguments[0] = normalizedUtcDateString;
+                        System.arraycopy(selectionArgs, 0, combinedArguments, 1,
+                                selectionArgs.length);
+                        selectionArguments = combinedArguments;
+                    }
+                }
 
                 cursor = mOpenHelper.getReadableDatabase().query(
                         /* Table we are going to query */
@@ -242,7 +582,7 @@ public class CentzProvider extends ContentProvider {
                          * However, if you don't need all the data from the table, it's best
                          * practice to limit the columns returned in the Cursor with a projection.
                          */
-                        projection,
+                        DetailDecodingCursor.projectionFor(projection),
                         /*
                          * The URI that matches CODE_CENTZ_WITH_DATE contains a date at the end
                          * of it. We extract that date and use it with these next two lines to
@@ -252,7 +592,7 @@ public class CentzProvider extends ContentProvider {
                          * within the selectionArguments array will be inserted into the
                          * selection statement by SQLite under the hood.
                          */
-                        CentzContract.CentzEntry.COLUMN_DATE + " = ? ",
+                        dateSelection,
                         selectionArguments,
                         null,
                         null,
@@ -275,7 +615,7 @@ public class CentzProvider extends ContentProvider {
             case CODE_CENTZ: {
                 cursor = mOpenHelper.getReadableDatabase().query(
                         CentzContract.CentzEntry.TABLE_NAME,
-                        projection,
+                        DetailDecodingCursor.projectionFor(projection),
                         selection,
                         selectionArgs,
                         null,
@@ -285,10 +625,40 @@ public class CentzProvider extends ContentProvider {
                 break;
             }
 
+            /* The sync metadata has no detail columns, its cursors are returned as they are */
+            case CODE_SYNC_META: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        CentzContract.SyncMetaEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder);
+                cursor.setNotificationUri(getContext().getContentResolver(), uri);
+                return cursor;
+            }
+
+            /* A single row, looked up by its primary key */
+            case CODE_SYNC_META_WITH_SYMBOL: {
+                cursor = mOpenHelper.getReadableDatabase().query(
+                        CentzContract.SyncMetaEntry.TABLE_NAME,
+                        projection,
+                        CentzContract.SyncMetaEntry.COLUMN_SYMBOL + " = ?",
+                        new String[]{uri.getLastPathSegment()},
+                        null,
+                        null,
+                        null);
+                cursor.setNotificationUri(getContext().getContentResolver(), uri);
+                return cursor;
+            }
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
+        /* Detail columns of rows written by a sync are decoded from their text on demand */
+        cursor = DetailDecodingCursor.wrap(cursor, projection);
         cursor.setNotificationUri(getContext().getContentResolver(), uri);
         return cursor;
     }
@@ -314,13 +684,39 @@ public class CentzProvider extends ContentProvider {
          * passing "1" for the selection will delete all rows and return the number of rows
          * deleted, which is what the caller of this method expects.
          */
-        if (null == selection) selection = "1";
+        boolean wholeTable = null == selection;
+        if (wholeTable) selection = "1";
 
         switch (sUriMatcher.match(uri)) {
 
-            case CODE_CENTZ:
+            case CODE_CENTZ: {
+                SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    numRowsDeleted = db.delete(
+                            CentzContract.CentzEntry.TABLE_NAME,
+                            selection,
+                            selectionArgs);
+
+                    /*
+                     * Without rows, a 304 for the old validators would leave nothing to show.
+                     * The metadata forgets them and counts no rows, which also makes every
+                     * symbol stale.
+                     */
+                    if (wholeTable) {
+                        db.update(CentzContract.SyncMetaEntry.TABLE_NAME, forgetStoredRows(),
+                                null, null);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                break;
+            }
+
+            case CODE_SYNC_META:
                 numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
-                        CentzContract.CentzEntry.TABLE_NAME,
+                        CentzContract.SyncMetaEntry.TABLE_NAME,
                         selection,
                         selectionArgs);
 
@@ -370,9 +766,40 @@ public class CentzProvider extends ContentProvider {
                 "We are not implementing insert in Centz. Use bulkInsert instead");
     }
 
+    /**
+     * Updates rows of the centz table in place. This is used by the live ticker feed, which
+     * changes a handful of columns of today's row on every tick rather than rewriting the whole
+     * table the way a sync does.
+     *
+     * @param uri           The full URI to update, only CONTENT_URI is supported
+     * @param values        The columns to change and their new values
+     * @param selection     Restricts the rows that are updated
+     * @param selectionArgs Used in conjunction with the selection statement
+     * @return The number of rows updated
+     */
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new RuntimeException("We are not implementing update in Centz");
+        int numRowsUpdated;
+
+        switch (sUriMatcher.match(uri)) {
+
+            case CODE_CENTZ:
+                numRowsUpdated = mOpenHelper.getWritableDatabase().update(
+                        CentzContract.CentzEntry.TABLE_NAME,
+                        values,
+                        selection,
+                        selectionArgs);
+                break;
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        if (numRowsUpdated != 0) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+
+        return numRowsUpdated;
     }
 
     /**
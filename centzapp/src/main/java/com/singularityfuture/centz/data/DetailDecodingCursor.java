@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.data;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+
+/**
+ * Serves the detail columns of rows that keep their detail fields as {@link CentzDetail} text.
+ * A row's text is decoded the first time one of its detail columns is read; rows without text
+ * are passed through untouched. The text column itself is hidden again unless the caller asked
+ * for it.
+ */
+final class DetailDecodingCursor extends CursorWrapper {
+
+    private final int[] mFields;
+    private final int mDetailColumn;
+    private final boolean mHideDetailColumn;
+
+    private final double[] mValues = new double[CentzDetail.FIELD_COUNT];
+    private int mDecodedPosition = -1;
+    private boolean mDecoded;
+
+    private DetailDecodingCursor(Cursor cursor, boolean hideDetailColumn) {
+        super(cursor);
+        String[] columns = cursor.getColumnNames();
+        mFields = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            mFields[i] = CentzDetail.fieldOf(columns[i]);
+        }
+        mDetailColumn = cursor.getColumnIndex(CentzContract.CentzEntry.COLUMN_DETAIL);
+        mHideDetailColumn = hideDetailColumn;
+    }
+
+    /**
+     * @param projection The projection a caller passed to the provider, null meaning all columns
+     * @return The projection to query the table with, the same one unless the detail text has
+     *         to be read to serve it. The text column then comes last.
+     */
+    static String[] projectionFor(String[] projection) {
+        if (!needsDetail(projection) || projection == null
+                || Arrays.asList(projection).contains(CentzContract.CentzEntry.COLUMN_DETAIL)) {
+            return projection;
+        }
+        String[] columns = Arrays.copyOf(projection, projection.length + 1);
+        columns[projection.length] = CentzContract.CentzEntry.COLUMN_DETAIL;
+        return columns;
+    }
+
+    /**
+     * @param cursor     The result of a query made with {@link #projectionFor(String[])}
+     * @param projection The projection the caller asked for
+     * @return A cursor with the columns of the projection and the detail columns decoded
+     */
+    static Cursor wrap(Cursor cursor, String[] projection) {
+        if (!needsDetail(projection)) return cursor;
+        return new DetailDecodingCursor(cursor, projectionFor(projection) != projection);
+    }
+
+    private static boolean needsDetail(String[] projection) {
+        if (projection == null) return true;
+        for (String column : projection) {
+            if (CentzDetail.fieldOf(column) != -1) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return mHideDetailColumn ? super.getColumnCount() - 1 : super.getColumnCount();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        String[] columns = super.getColumnNames();
+        return mHideDetailColumn ? Arrays.copyOf(columns, columns.length - 1) : columns;
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return isDecoded(column) ? mValues[mFields[column]] : super.getDouble(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return isDecoded(column) ? (float) mValues[mFields[column]] : super.getFloat(column);
+    }
+
+    @Override
+    public long getLong(int column) {
+        return isDecoded(column) ? (long) mValues[mFields[column]] : super.getLong(column);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return isDecoded(column) ? (int) mValues[mFields[column]] : super.getInt(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return isDecoded(column) ? (short) mValues[mFields[column]] : super.getShort(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        return isDecoded(column)
+                ? Double.toString(mValues[mFields[column]]) : super.getString(column);
+    }
+
+    @Override
+    public int getType(int column) {
+        return isDecoded(column) ? FIELD_TYPE_FLOAT : super.getType(column);
+    }
+
+    /* True if the column is a detail column of a row that has detail text, decoding it once */
+    private boolean isDecoded(int column) {
+        if (column < 0 || column >= mFields.length || mFields[column] == -1
+                || mDetailColumn == -1) {
+            return false;
+        }
+        int position = getPosition();
+        if (position != mDecodedPosition) {
+            String detail = super.getString(mDetailColumn);
+            mDecoded = !TextUtils.isEmpty(detail);
+            if (mDecoded) {
+                CentzDetail.getAll(detail, mValues);
+            }
+            mDecodedPosition = position;
+        }
+        return mDecoded;
+    }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A small binary file holding the latest rows of every symbol, written by the sync next to the
+ * database. It is meant to be read right after process start, before the database is opened or
+ * the network is touched: the file is memory mapped and every record has a fixed width, so
+ * reading a row is a handful of absolute reads with no parsing at all.
+ * <p>
+ * Layout, all numbers big endian:
+ * <pre>
+ *   header   magic, version, record count, symbol count (ints), written at (long),
+ *            record size (int), reserved (int)                            32 bytes
+ *   symbols  symbol count slots of one length byte and up to 31 UTF-8 bytes 32 bytes each
+ *   records  date (long), symbol index, centz id (ints), high, low (fixed-point longs),
+ *            one length byte and up to 31 bytes of detail text            64 bytes each
+ * </pre>
+ * The detail text is the row's {@link CentzDetail} text as the sync stored it. Text that
+ * doesn't fit is left out; the list and the watch don't use it, and the detail screen reads
+ * the database.
+ * A file whose magic, version or sizes don't match is ignored, so the format can change by
+ * bumping {@link #VERSION}; the next sync simply writes a new file.
+ */
+public final class PriceSnapshot {
+
+    private static final String TAG = PriceSnapshot.class.getSimpleName();
+
+    static final String FILE_NAME = "price_snapshot.bin";
+
+    /* "CZSN" */
+    private static final int MAGIC = 0x435A534E;
+
+    static final int VERSION = 3;
+
+    private static final int HEADER_BYTES = 32;
+    private static final int SYMBOL_SLOT_BYTES = 32;
+    private static final int MAX_SYMBOL_BYTES = SYMBOL_SLOT_BYTES - 1;
+    private static final int RECORD_BYTES = 64;
+
+    /* Offsets within a record */
+    private static final int DATE = 0;
+    private static final int SYMBOL_INDEX = 8;
+    private static final int CENTZ_ID = 12;
+    private static final int HIGH = 16;
+    private static final int LOW = 24;
+    private static final int DETAIL = 32;
+    private static final int MAX_DETAIL_BYTES = RECORD_BYTES - DETAIL - 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer mBuffer;
+    private final String[] mSymbols;
+    private final int mSize;
+    private final long mWrittenAtMillis;
+    private final int mRecordsOffset;
+
+    private PriceSnapshot(ByteBuffer buffer, String[] symbols, int size, long writtenAtMillis) {
+        mBuffer = buffer;
+        mSymbols = symbols;
+        mSize = size;
+        mWrittenAtMillis = writtenAtMillis;
+        mRecordsOffset = HEADER_BYTES + symbols.length * SYMBOL_SLOT_BYTES;
+    }
+
+    static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Maps the snapshot written by the last successful sync.
+     *
+     * @param context Used to find the file
+     * @return The snapshot, or null if there is none or it can't be read
+     */
+    public static PriceSnapshot open(Context context) {
+        File file = getFile(context);
+        if (!file.exists()) return null;
+
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            /* The mapping stays valid after the file is closed */
+            return read(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the price snapshot", e);
+            return null;
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static PriceSnapshot read(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_BYTES
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION
+                || buffer.getInt(24) != RECORD_BYTES) {
+            Log.w(TAG, "Ignoring a price snapshot with an unknown header");
+            return null;
+        }
+        int size = buffer.getInt(8);
+        int symbolCount = buffer.getInt(12);
+        long writtenAtMillis = buffer.getLong(16);
+        long expectedBytes = HEADER_BYTES + (long) symbolCount * SYMBOL_SLOT_BYTES
+                + (long) size * RECORD_BYTES;
+        if (size < 0 || symbolCount < 0 || buffer.capacity() != expectedBytes) {
+            Log.w(TAG, "Ignoring a truncated price snapshot");
+            return null;
+        }
+
+        String[] symbols = new String[symbolCount];
+        byte[] slot = new byte[MAX_SYMBOL_BYTES];
+        for (int i = 0; i < symbolCount; i++) {
+            int offset = HEADER_BYTES + i * SYMBOL_SLOT_BYTES;
+            int length = buffer.get(offset) & 0xFF;
+            if (length > MAX_SYMBOL_BYTES) return null;
+            for (int b = 0; b < length; b++) {
+                slot[b] = buffer.get(offset + 1 + b);
+            }
+            symbols[i] = new String(slot, 0, length, UTF_8);
+        }
+        return new PriceSnapshot(buffer, symbols, size, writtenAtMillis);
+    }
+
+    /**
+     * Replaces the snapshot with the rows of a sync. Symbols that are not in the batch, because
+     * their data didn't change or couldn't be fetched, keep the rows of the previous snapshot.
+     * The new file is written next to the old one and renamed over it, so a reader never sees a
+     * half written snapshot. Syncs of different symbols can finish at the same time, so writes
+     * take turns; otherwise one would drop the rows the other just merged in.
+     *
+     * @param context Used to find the file
+     * @param fresh   The rows the sync just stored
+     * @throws IOException If the file can't be written
+     */
+    public static synchronized void write(Context context, CentzBatch fresh) throws IOException {
+        CentzBatch rows = new CentzBatch(fresh.size());
+        Set<String> freshSymbols = new HashSet<>();
+        for (int row = 0; row < fresh.size(); row++) {
+            freshSymbols.add(fresh.getSymbolAt(row));
+        }
+        PriceSnapshot previous = open(context);
+        if (previous != null) {
+            byte[] detail = new byte[MAX_DETAIL_BYTES];
+            for (int row = 0; row < previous.size(); row++) {
+                String symbol = previous.getSymbolAt(row);
+                if (freshSymbols.contains(symbol)) continue;
+                int detailLength = previous.readDetail(row, detail);
+                rows.add(previous.getDate(row), rows.symbolId(symbol), detail, 0, detailLength,
+                        previous.getHigh(row), previous.getLow(row), previous.getCentzId(row));
+            }
+        }
+        rows.addAll(fresh);
+
+        File file = getFile(context);
+        File temp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(encode(rows, System.currentTimeMillis()).array());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /* Rows of symbols too long for a slot are left out, the list simply falls back to the DB */
+    static ByteBuffer encode(CentzBatch rows, long writtenAtMillis) {
+        int[] symbolIndex = new int[rows.size()];
+        String[] symbols = new String[rows.size()];
+        byte[][] encodedSymbols = new byte[rows.size()][];
+        int symbolCount = 0;
+        int size = 0;
+        for (int row = 0; row < rows.size(); row++) {
+            String symbol = rows.getSymbolAt(row);
+            int index = -1;
+            for (int i = 0; i < symbolCount; i++) {
+                if (symbols[i].equals(symbol)) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index == -1) {
+                byte[] encoded = symbol.getBytes(UTF_8);
+                if (encoded.length > MAX_SYMBOL_BYTES) {
+                    symbolIndex[row] = -1;
+                    continue;
+                }
+                index = symbolCount++;
+                symbols[index] = symbol;
+                encodedSymbols[index] = encoded;
+            }
+            symbolIndex[row] = index;
+            size++;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + symbolCount * SYMBOL_SLOT_BYTES
+                + size * RECORD_BYTES).order(ByteOrder.BIG_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(symbolCount)
+                .putLong(writtenAtMillis).putInt(RECORD_BYTES).putInt(0);
+        for (int i = 0; i < symbolCount; i++) {
+            int offset = HEADER_BYTES + i * SYMBOL_SLOT_BYTES;
+            buffer.put(offset, (byte) encodedSymbols[i].length);
+            for (int b = 0; b < encodedSymbols[i].length; b++) {
+                buffer.put(offset + 1 + b, encodedSymbols[i][b]);
+            }
+        }
+        int offset = HEADER_BYTES + symbolCount * SYMBOL_SLOT_BYTES;
+        for (int row = 0; row < rows.size(); row++) {
+            if (symbolIndex[row] == -1) continue;
+            buffer.putLong(offset + DATE, rows.getDate(row));
+            buffer.putInt(offset + SYMBOL_INDEX, symbolIndex[row]);
+            buffer.putInt(offset + CENTZ_ID, rows.getCentzId(row));
+            buffer.putLong(offset + HIGH, rows.getHigh(row));
+            buffer.putLong(offset + LOW, rows.getLow(row));
+            int detailLength = rows.getDetailLength(row);
+            if (detailLength <= MAX_DETAIL_BYTES) {
+                byte[] detail = rows.getDetailData();
+                int detailOffset = rows.getDetailOffset(row);
+                buffer.put(offset + DETAIL, (byte) detailLength);
+                for (int b = 0; b < detailLength; b++) {
+                    buffer.put(offset + DETAIL + 1 + b, detail[detailOffset + b]);
+                }
+            }
+            offset += RECORD_BYTES;
+        }
+        return buffer;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return When the sync that wrote this snapshot finished, in milliseconds since the epoch
+     */
+    public long getWrittenAtMillis() {
+        return mWrittenAtMillis;
+    }
+
+    public long getDate(int row) {
+        return mBuffer.getLong(record(row) + DATE);
+    }
+
+    public String getSymbolAt(int row) {
+        return mSymbols[mBuffer.getInt(record(row) + SYMBOL_INDEX)];
+    }
+
+    /*
+     * The detail getters decode the row's text and return NaN (0 for the humidity) when the
+     * text didn't fit in the record.
+     */
+
+    public int getHumidity(int row) {
+        return (int) getDetailField(row, CentzDetail.HUMIDITY);
+    }
+
+    public double getPressure(int row) {
+        return getDetailField(row, CentzDetail.PRESSURE);
+    }
+
+    public double getWindSpeed(int row) {
+        return getDetailField(row, CentzDetail.WIND_SPEED);
+    }
+
+    public double getDegrees(int row) {
+        return getDetailField(row, CentzDetail.DEGREES);
+    }
+
+    private double getDetailField(int row, int field) {
+        byte[] detail = new byte[MAX_DETAIL_BYTES];
+        int length = readDetail(row, detail);
+        return length == 0 ? Double.NaN : CentzDetail.get(detail, 0, length, field);
+    }
+
+    /* Copies the row's detail text into dest, which must hold MAX_DETAIL_BYTES */
+    private int readDetail(int row, byte[] dest) {
+        int offset = record(row) + DETAIL;
+        int length = mBuffer.get(offset) & 0xFF;
+        if (length > MAX_DETAIL_BYTES) return 0;
+        for (int b = 0; b < length; b++) {
+            dest[b] = mBuffer.get(offset + 1 + b);
+        }
+        return length;
+    }
+
+    public long getHigh(int row) {
+        return mBuffer.getLong(record(row) + HIGH);
+    }
+
+    public long getLow(int row) {
+        return mBuffer.getLong(record(row) + LOW);
+    }
+
+    public int getCentzId(int row) {
+        return mBuffer.getInt(record(row) + CENTZ_ID);
+    }
+
+    private int record(int row) {
+        if (row < 0 || row >= mSize) {
+            throw new IndexOutOfBoundsException("Row " + row + " of " + mSize);
+        }
+        return mRecordsOffset + row * RECORD_BYTES;
+    }
+
+    /**
+     * @return The first row of the symbol dated on or after the given day, or -1 if there is none
+     */
+    public int findFirstRow(String symbol, long fromDate) {
+        int first = -1;
+        for (int row = 0; row < mSize; row++) {
+            long date = getDate(row);
+            if (date >= fromDate && getSymbolAt(row).equals(symbol)
+                    && (first == -1 || date < getDate(first))) {
+                first = row;
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Builds a cursor over the rows of one symbol, dated on or after the given day, in date
+     * order. It has the same columns a query of the provider with the same projection would
+     * have, so it can be shown by any code that shows the provider's rows.
+     *
+     * @param projection Columns from {@link CentzContract.CentzEntry}
+     * @param symbol     The symbol to show
+     * @param fromDate   Normalized date of the first day to include
+     * @return A cursor, possibly empty
+     */
+    public Cursor newCursor(String[] projection, String symbol, long fromDate) {
+        MatrixCursor cursor = new MatrixCursor(projection);
+        long lastDate = Long.MIN_VALUE;
+        /* The sync writes each symbol's days in date order, one day after the other */
+        for (int row = 0; row < mSize; row++) {
+            long date = getDate(row);
+            if (date < fromDate || date <= lastDate || !getSymbolAt(row).equals(symbol)) {
+                continue;
+            }
+            lastDate = date;
+            Object[] values = new Object[projection.length];
+            for (int column = 0; column < projection.length; column++) {
+                values[column] = getColumn(row, projection[column]);
+            }
+            cursor.addRow(values);
+        }
+        return cursor;
+    }
+
+    private Object getColumn(int row, String column) {
+        switch (column) {
+            case CentzContract.CentzEntry.COLUMN_DATE:
+                return getDate(row);
+            case CentzContract.CentzEntry.COLUMN_SYMBOL:
+                return getSymbolAt(row);
+            case CentzContract.CentzEntry.COLUMN_HUMIDITY:
+                return getHumidity(row);
+            case CentzContract.CentzEntry.COLUMN_PRESSURE:
+                return getPressure(row);
+            case CentzContract.CentzEntry.COLUMN_WIND_SPEED:
+                return getWindSpeed(row);
+            case CentzContract.CentzEntry.COLUMN_DEGREES:
+                return getDegrees(row);
+            case CentzContract.CentzEntry.COLUMN_MAX_TEMP:
+                return getHigh(row);
+            case CentzContract.CentzEntry.COLUMN_MIN_TEMP:
+                return getLow(row);
+            case CentzContract.CentzEntry.COLUMN_CENTZ_ID:
+                return getCentzId(row);
+            case CentzContract.CentzEntry._ID:
+                return row;
+            default:
+                throw new IllegalArgumentException("The snapshot has no column " + column);
+        }
+    }
+}
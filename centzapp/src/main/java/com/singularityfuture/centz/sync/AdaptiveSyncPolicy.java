@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks how long the background sync waits before it runs again. The interval comes from how
+ * fast the watched prices move: it is the time in which a typical move stays within
+ * {@link #MOVE_TOLERANCE} of the price, or in which the price could reach one of the user's alert
+ * prices, whichever is shorter. It is then shortened while the user is actively using the app or
+ * the phone charges, lengthened when the app hasn't been opened in days or the battery is low,
+ * and kept between {@link #MIN_INTERVAL_MILLIS} and {@link #MAX_INTERVAL_MILLIS}.
+ *
+ * The policy itself only does arithmetic, {@link CentzSyncUtils} gathers the
+ * {@link Conditions} and schedules the job.
+ */
+final class AdaptiveSyncPolicy {
+
+    /* Used while nothing is known about the prices yet, the interval Centz always used */
+    static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(3);
+
+    static final long MIN_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    static final long MAX_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(6);
+
+    /* How far, as a fraction of the price, a price may typically move before we look again */
+    static final double MOVE_TOLERANCE = 0.005;
+
+    /* An alert price is within reach once it is this many standard deviations away */
+    static final double ALERT_SIGMAS = 2;
+
+    /*
+     * A closer alert counts as this far away, 0.2% of the price. A price hovering at its alert
+     * would otherwise pull the interval down to the minimum for as long as it stays there.
+     */
+    static final double MIN_ALERT_DISTANCE = 0.002;
+
+    /* The user opened the app this recently, so fresh prices are likely to be looked at */
+    static final long RECENTLY_OPENED_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /* The user hasn't opened the app for this long, so nobody is waiting for the prices */
+    static final long DORMANT_MILLIS = TimeUnit.DAYS.toMillis(3);
+
+    /* Below this charge, and not charging, syncs are spaced out to at least LOW_BATTERY_MIN */
+    static final int LOW_BATTERY_PERCENT = 15;
+    static final long LOW_BATTERY_MIN_INTERVAL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    /* A day's range observed over less than this is too short to say much about the day */
+    private static final double MIN_DAY_FRACTION = 1.0 / 24;
+
+    private static final double DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    /* Parkinson's estimator, the variance of log returns from a high/low range */
+    private static final double PARKINSON_FACTOR = 1 / (4 * Math.log(2));
+
+    /**
+     * What the policy looks at to pick the next interval.
+     */
+    static final class Conditions {
+        /* Highest daily volatility of the watched symbols, 0 when unknown */
+        final double dailyVolatility;
+        /* Smallest distance to an alert price as a fraction of the price, infinite for none */
+        final double alertDistance;
+        final long sinceAppOpenedMillis;
+        final boolean charging;
+        final int batteryPercent;
+
+        Conditions(double dailyVolatility, double alertDistance, long sinceAppOpenedMillis,
+                   boolean charging, int batteryPercent) {
+            this.dailyVolatility = dailyVolatility;
+            this.alertDistance = alertDistance;
+            this.sinceAppOpenedMillis = sinceAppOpenedMillis;
+            this.charging = charging;
+            this.batteryPercent = batteryPercent;
+        }
+
+        @Override
+        public String toString() {
+            return "volatility=" + dailyVolatility + " alertDistance=" + alertDistance
+                    + " sinceOpened=" + TimeUnit.MILLISECONDS.toMinutes(sinceAppOpenedMillis)
+                    + "min charging=" + charging + " battery=" + batteryPercent + "%";
+        }
+    }
+
+    private AdaptiveSyncPolicy() {
+    }
+
+    /**
+     * @param conditions What is known about the prices, the user and the device
+     * @return How long to wait before the next sync, in milliseconds
+     */
+    static long nextIntervalMillis(Conditions conditions) {
+        double interval = DEFAULT_INTERVAL_MILLIS;
+        double volatility = conditions.dailyVolatility;
+        if (volatility > 0) {
+            /* A move grows with the square root of time, solve for the time to the tolerance */
+            interval = daysToMove(MOVE_TOLERANCE, volatility) * DAY_MILLIS;
+            if (conditions.alertDistance < Double.POSITIVE_INFINITY) {
+                double toAlert = daysToMove(
+                        Math.max(MIN_ALERT_DISTANCE, conditions.alertDistance),
+                        ALERT_SIGMAS * volatility) * DAY_MILLIS;
+                interval = Math.min(interval, toAlert);
+            }
+        }
+
+        if (conditions.sinceAppOpenedMillis < RECENTLY_OPENED_MILLIS) {
+            interval /= 2;
+        } else if (conditions.sinceAppOpenedMillis > DORMANT_MILLIS) {
+            interval *= 2;
+        }
+
+        long min = MIN_INTERVAL_MILLIS;
+        if (conditions.charging) {
+            interval /= 2;
+        } else if (conditions.batteryPercent < LOW_BATTERY_PERCENT) {
+            interval *= 4;
+            min = LOW_BATTERY_MIN_INTERVAL_MILLIS;
+        }
+        return Math.max(min, Math.min(MAX_INTERVAL_MILLIS, (long) interval));
+    }
+
+    /**
+     * @param conditions What is known about the prices
+     * @return Whether a price is within {@link #ALERT_SIGMAS} daily moves of one of its alerts
+     */
+    static boolean isAlertClose(Conditions conditions) {
+        return conditions.alertDistance < Double.POSITIVE_INFINITY
+                && conditions.alertDistance <= ALERT_SIGMAS * conditions.dailyVolatility;
+    }
+
+    private static double daysToMove(double move, double dailyVolatility) {
+        double ratio = move / dailyVolatility;
+        return ratio * ratio;
+    }
+
+    /**
+     * Estimates the daily volatility of a price from the range it moved in so far today.
+     *
+     * @param high        Highest price of the day so far, fixed-point
+     * @param low         Lowest price of the day so far, fixed-point
+     * @param dayFraction How much of the day the range covers, from 0 to 1
+     * @return The standard deviation of a day's log return, 0 if the range says nothing
+     */
+    static double volatilityFromRange(long high, long low, double dayFraction) {
+        if (low <= 0 || high <= low) return 0;
+        double logRange = Math.log((double) high / low);
+        double variance = PARKINSON_FACTOR * logRange * logRange;
+        return Math.sqrt(variance / Math.max(MIN_DAY_FRACTION, Math.min(1, dayFraction)));
+    }
+
+    /**
+     * @param price The latest price, fixed-point
+     * @param high  Highest price of the day so far, fixed-point
+     * @param low   Lowest price of the day so far, fixed-point
+     * @param alert The alert price, fixed-point
+     * @return How far the alert price is from the latest price as a fraction of the price,
+     * infinite when the day's range already reached it, since that alert has gone off
+     */
+    static double alertDistance(long price, long high, long low, long alert) {
+        if (price <= 0) return Double.POSITIVE_INFINITY;
+        if (low > 0 && low <= alert && alert <= high) return Double.POSITIVE_INFINITY;
+        return Math.abs(alert - price) / (double) price;
+    }
+}
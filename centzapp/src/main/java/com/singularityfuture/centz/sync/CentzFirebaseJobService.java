@@ -16,17 +16,47 @@
 package com.singularityfuture.centz.sync;
 
 import android.content.Context;
-import android.os.AsyncTask;
+import android.util.Log;
 
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
 import com.firebase.jobdispatcher.JobService;
 import com.firebase.jobdispatcher.RetryStrategy;
 
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 public class CentzFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchCentzTask;
+    private static final String TAG = CentzFirebaseJobService.class.getSimpleName();
+
+    /*
+     * Jobs run one at a time on a thread of their own instead of the shared AsyncTask executor.
+     * The thread queues the job's sync with the SyncRequestQueue and waits for it.
+     */
+    private static final int JOB_THREADS = 1;
+
+    /*
+     * Jobs that may wait for the thread. Every job syncs the whole watchlist, so a job turned
+     * away while this many are waiting is covered by the ones in front of it.
+     */
+    private static final int QUEUED_JOBS = 2;
+
+    private static final long JOB_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor sJobExecutor = newJobExecutor();
+
+    /* Jobs that were started and haven't finished or been stopped yet, by tag */
+    private final ConcurrentMap<String, RunningJob> mRunningJobs = new ConcurrentHashMap<>();
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
@@ -40,23 +70,16 @@ public class CentzFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
-
-        mFetchCentzTask = new AsyncTask<Void, Void, Void>(){
-            @Override
-            protected Void doInBackground(Void... voids) {
-                Context context = getApplicationContext();
-                CentzSyncTask.syncCentz(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
-
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                jobFinished(jobParameters, false);
-            }
-        };
-
-        mFetchCentzTask.execute();
+        RunningJob job = new RunningJob(jobParameters);
+        mRunningJobs.put(jobParameters.getTag(), job);
+        try {
+            job.mFuture = sJobExecutor.submit(job);
+        } catch (RejectedExecutionException e) {
+            mRunningJobs.remove(jobParameters.getTag(), job);
+            Log.d(TAG, "Dropping job " + jobParameters.getTag() + ", " + QUEUED_JOBS
+                    + " syncs are already waiting to run");
+            return false;
+        }
         return true;
     }
 
@@ -64,15 +87,94 @@ public class CentzFirebaseJobService extends JobService {
      * Called when the scheduling engine has decided to interrupt the execution of a running job,
      * most likely because the runtime constraints associated with the job are no longer satisfied.
      *
+     * The job's request is withdrawn from the SyncRequestQueue. If nothing else waits for its
+     * sync, the sync is cancelled: requests on the network are aborted and the request being
+     * stored is rolled back.
+     *
      * @return whether the job should be retried
      * @see Job.Builder#setRetryStrategy(RetryStrategy)
      * @see RetryStrategy
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchCentzTask != null) {
-            mFetchCentzTask.cancel(true);
+        RunningJob job = mRunningJobs.remove(jobParameters.getTag());
+        return job != null && job.stop();
+    }
+
+    /*
+     * A job between onStartJob and its end. It ends either by finishing, when the sync's outcome
+     * is handed to the dispatcher, or by being stopped, when onStopJob answers for it. Whichever
+     * comes first settles the job and the other one does nothing.
+     */
+    private final class RunningJob implements Runnable {
+        private final JobParameters mParams;
+        private final AtomicBoolean mSettled = new AtomicBoolean();
+        private volatile Future<?> mFuture;
+        private volatile SyncRequestQueue.Ticket mTicket;
+
+        RunningJob(JobParameters params) {
+            mParams = params;
+        }
+
+        @Override
+        public void run() {
+            Context context = getApplicationContext();
+            SyncRequestQueue.Priority priority = CentzSyncUtils.pickBackgroundPriority(context);
+            SyncRequestQueue.Ticket ticket = SyncRequestQueue.getInstance(context)
+                    .submit(null, priority, null);
+            mTicket = ticket;
+            SyncOutcome outcome;
+            try {
+                outcome = ticket.await();
+            } catch (InterruptedException e) {
+                /* Stopped, possibly before stop() could see the ticket */
+                ticket.cancel();
+                outcome = SyncOutcome.FAILED;
+            }
+            mRunningJobs.remove(mParams.getTag(), this);
+            if (!mSettled.compareAndSet(false, true)) {
+                /* Stopped, the dispatcher already has its answer from onStopJob */
+                return;
+            }
+            long nextInterval = CentzSyncUtils.pickSyncInterval(context);
+
+            /*
+             * A failed sync is handed back to the dispatcher, which retries it with its own
+             * exponential backoff. Retries inside a sync are already handled by FetchPolicy.
+             */
+            jobFinished(mParams, outcome == SyncOutcome.FAILED);
+
+            /* Only now that this job is done can it be replaced by one with a new interval */
+            CentzSyncUtils.rescheduleSync(context, nextInterval);
+        }
+
+        /* Returns whether the job still has work to do, which is false once it has finished */
+        boolean stop() {
+            if (!mSettled.compareAndSet(false, true)) return false;
+            SyncRequestQueue.Ticket ticket = mTicket;
+            if (ticket != null) ticket.cancel();
+            Future<?> future = mFuture;
+            if (future != null) future.cancel(true);
+            return true;
+        }
+    }
+
+    private static ThreadPoolExecutor newJobExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(JOB_THREADS, JOB_THREADS,
+                JOB_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUED_JOBS), new JobThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final class JobThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "centz-job-" + mCount.incrementAndGet());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
         }
-        return true;
     }
-}
\ No newline at end of file
+}
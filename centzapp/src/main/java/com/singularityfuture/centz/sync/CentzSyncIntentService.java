@@ -15,21 +15,67 @@
  */
 package com.singularityfuture.centz.sync;
 
-import android.app.IntentService;
+import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import java.util.List;
 
 /**
- * An {@link IntentService} subclass for handling asynchronous task requests in
- * a service on a separate handler thread.
+ * Hands the syncs started through {@link CentzSyncUtils#startImmediateSync} to the
+ * {@link SyncRequestQueue}. The service stays started until every sync it queued is done, so the
+ * process isn't killed halfway through one. The queue runs them on threads of its own.
  */
-public class CentzSyncIntentService extends IntentService {
+public class CentzSyncIntentService extends Service {
+
+    /* Optional, limits the sync to these symbols instead of the whole watchlist */
+    static final String EXTRA_SYMBOLS = "symbols";
+
+    /* Optional, name of the SyncRequestQueue.Priority to queue the sync with */
+    static final String EXTRA_PRIORITY = "priority";
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    /* Only touched on the main thread */
+    private int mPendingSyncs;
+    private int mLastStartId;
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        mPendingSyncs++;
+
+        List<String> symbols = intent != null
+                ? intent.getStringArrayListExtra(EXTRA_SYMBOLS) : null;
+        String priorityName = intent != null ? intent.getStringExtra(EXTRA_PRIORITY) : null;
+        SyncRequestQueue.Priority priority = priorityName != null
+                ? SyncRequestQueue.Priority.valueOf(priorityName)
+                : SyncRequestQueue.Priority.INTERACTIVE;
 
-    public CentzSyncIntentService() {
-        super("CentzSyncIntentService");
+        final Context appContext = getApplicationContext();
+        SyncRequestQueue.getInstance(this).submit(symbols, priority,
+                new SyncRequestQueue.Callback() {
+                    @Override
+                    public void onFinished(SyncOutcome outcome) {
+                        /* No job is running here, so the background sync can be rescheduled */
+                        CentzSyncUtils.rescheduleSync(appContext,
+                                CentzSyncUtils.pickSyncInterval(appContext));
+                        mHandler.post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (--mPendingSyncs == 0) stopSelf(mLastStartId);
+                            }
+                        });
+                    }
+                });
+        return START_NOT_STICKY;
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
-        CentzSyncTask.syncCentz(this);
+    public IBinder onBind(Intent intent) {
+        return null;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import com.singularityfuture.centz.data.CentzBatch;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide counters describing how syncs have been going. These are kept in memory only and
+ * are meant for logging, debugging and tests.
+ */
+public final class CentzSyncStats {
+
+    private static final AtomicLong sUpdated = new AtomicLong();
+    private static final AtomicLong sNotModified = new AtomicLong();
+    private static final AtomicLong sFailed = new AtomicLong();
+
+    /* Body bytes as they crossed the wire, and after decompression */
+    private static final AtomicLong sWireBytes = new AtomicLong();
+    private static final AtomicLong sDecodedBytes = new AtomicLong();
+    private static volatile long sLastSyncWireBytes;
+    private static volatile long sLastSyncDecodedBytes;
+
+    /* What the provider did with the rows of each sync, see CentzBatch#upsertInto */
+    private static final AtomicLong sRowsWritten = new AtomicLong();
+    private static final AtomicLong sRowsSkipped = new AtomicLong();
+    private static final AtomicLong sRowsDeleted = new AtomicLong();
+    private static final AtomicLong sChangeNotifications = new AtomicLong();
+    private static volatile CentzBatch.UpsertResult sLastUpsert;
+
+    /* Syncs the app didn't start when it was opened because the data was still fresh */
+    private static final AtomicLong sAvoidedSyncs = new AtomicLong();
+    private static final AtomicLong sSkippedFreshSymbols = new AtomicLong();
+
+    private CentzSyncStats() {
+    }
+
+    /**
+     * Records how a sync ended.
+     *
+     * @param outcome The outcome of the sync
+     */
+    static void recordOutcome(SyncOutcome outcome) {
+        switch (outcome) {
+            case UPDATED:
+                sUpdated.incrementAndGet();
+                break;
+            case NOT_MODIFIED:
+                sNotModified.incrementAndGet();
+                break;
+            case FAILED:
+                sFailed.incrementAndGet();
+                break;
+        }
+    }
+
+    /**
+     * Records the size of a downloaded body. Syncs answered with 304 record zero for both.
+     *
+     * @param wireBytes    Bytes received from the network, before decompression
+     * @param decodedBytes Bytes after decompression
+     */
+    static void recordBytes(long wireBytes, long decodedBytes) {
+        sWireBytes.addAndGet(wireBytes);
+        sDecodedBytes.addAndGet(decodedBytes);
+        sLastSyncWireBytes = wireBytes;
+        sLastSyncDecodedBytes = decodedBytes;
+    }
+
+    /**
+     * Records how the rows of a sync were stored.
+     *
+     * @param result What the provider did with the rows
+     */
+    static void recordUpsert(CentzBatch.UpsertResult result) {
+        sRowsWritten.addAndGet(result.rowsWritten);
+        sRowsSkipped.addAndGet(result.rowsSkipped);
+        sRowsDeleted.addAndGet(result.rowsDeleted);
+        if (result.hasChanges()) {
+            sChangeNotifications.incrementAndGet();
+        }
+        sLastUpsert = result;
+    }
+
+    /**
+     * Records that the app was opened with fresh data for every symbol and didn't sync.
+     */
+    static void recordAvoidedSync() {
+        sAvoidedSyncs.incrementAndGet();
+    }
+
+    /**
+     * Records symbols left out of a sync started when the app was opened, as their data was
+     * still fresh.
+     *
+     * @param symbols Number of symbols left out
+     */
+    static void recordSkippedFreshSymbols(int symbols) {
+        sSkippedFreshSymbols.addAndGet(symbols);
+    }
+
+    /**
+     * @return Number of times the app was opened without syncing, as nothing was stale
+     */
+    public static long getAvoidedSyncCount() {
+        return sAvoidedSyncs.get();
+    }
+
+    /**
+     * @return Number of symbols left out of syncs started when the app was opened
+     */
+    public static long getSkippedFreshSymbolCount() {
+        return sSkippedFreshSymbols.get();
+    }
+
+    public static long getRowsWritten() {
+        return sRowsWritten.get();
+    }
+
+    public static long getRowsSkipped() {
+        return sRowsSkipped.get();
+    }
+
+    public static long getRowsDeleted() {
+        return sRowsDeleted.get();
+    }
+
+    /**
+     * @return Number of change notifications syncs have sent, at most one per sync
+     */
+    public static long getChangeNotificationCount() {
+        return sChangeNotifications.get();
+    }
+
+    /**
+     * @return What the provider did with the rows of the last sync that stored any, or null
+     */
+    public static CentzBatch.UpsertResult getLastUpsert() {
+        return sLastUpsert;
+    }
+
+    public static long getTotalWireBytes() {
+        return sWireBytes.get();
+    }
+
+    public static long getTotalDecodedBytes() {
+        return sDecodedBytes.get();
+    }
+
+    public static long getLastSyncWireBytes() {
+        return sLastSyncWireBytes;
+    }
+
+    public static long getLastSyncDecodedBytes() {
+        return sLastSyncDecodedBytes;
+    }
+
+    /**
+     * @return Decoded bytes per wire byte over all syncs, 1 when nothing was compressed
+     */
+    public static double getCompressionRatio() {
+        long wire = sWireBytes.get();
+        if (wire == 0) return 1;
+        return sDecodedBytes.get() / (double) wire;
+    }
+
+    public static long getUpdatedCount() {
+        return sUpdated.get();
+    }
+
+    public static long getNotModifiedCount() {
+        return sNotModified.get();
+    }
+
+    public static long getFailedCount() {
+        return sFailed.get();
+    }
+
+    /**
+     * Returns the share of completed syncs that were answered with 304 Not Modified. Each of
+     * those skipped the download, the JSON parse, the database rewrite and the Wear push.
+     *
+     * @return Hit rate between 0 and 1, or 0 if no sync has completed yet
+     */
+    public static double getConditionalHitRate() {
+        long notModified = sNotModified.get();
+        long completed = notModified + sUpdated.get();
+        if (completed == 0) return 0;
+        return notModified / (double) completed;
+    }
+
+    /**
+     * @return Number of syncs that actually hit the network
+     */
+    public static long getExecutedSyncCount() {
+        return CentzSyncTask.sSyncFlights.getExecutedCount();
+    }
+
+    /**
+     * @return Number of sync requests that attached to a sync already in flight for the same
+     * request instead of fetching again
+     */
+    public static long getCoalescedSyncCount() {
+        return CentzSyncTask.sSyncFlights.getCoalescedCount();
+    }
+
+    /**
+     * Clears all counters.
+     */
+    public static void reset() {
+        sUpdated.set(0);
+        sNotModified.set(0);
+        sFailed.set(0);
+        sWireBytes.set(0);
+        sDecodedBytes.set(0);
+        sLastSyncWireBytes = 0;
+        sLastSyncDecodedBytes = 0;
+        sRowsWritten.set(0);
+        sRowsSkipped.set(0);
+        sRowsDeleted.set(0);
+        sChangeNotifications.set(0);
+        sLastUpsert = null;
+        sAvoidedSyncs.set(0);
+        sSkippedFreshSymbols.set(0);
+    }
+
+    /**
+     * @return A one line summary suitable for logcat
+     */
+    public static String summary() {
+        return "executed=" + getExecutedSyncCount()
+                + " coalesced=" + getCoalescedSyncCount()
+                + " avoided=" + getAvoidedSyncCount()
+                + " skippedFreshSymbols=" + getSkippedFreshSymbolCount()
+                + " updated=" + getUpdatedCount()
+                + " notModified=" + getNotModifiedCount()
+                + " failed=" + getFailedCount()
+                + " conditionalHitRate=" + String.format("%.2f", getConditionalHitRate())
+                + " lastWireBytes=" + getLastSyncWireBytes()
+                + " lastDecodedBytes=" + getLastSyncDecodedBytes()
+                + " totalWireBytes=" + getTotalWireBytes()
+                + " totalDecodedBytes=" + getTotalDecodedBytes()
+                + " rowsWritten=" + getRowsWritten()
+                + " rowsSkipped=" + getRowsSkipped()
+                + " rowsDeleted=" + getRowsDeleted()
+                + " changeNotifications=" + getChangeNotificationCount();
+    }
+}
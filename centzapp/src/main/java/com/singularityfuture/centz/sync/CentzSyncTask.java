@@ -18,35 +18,31 @@ package com.singularityfuture.centz.sync;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
-import android.os.Bundle;
+import android.database.Cursor;
+import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
 
-import com.singularityfuture.centz.data.CentzPreferences;
+import com.singularityfuture.centz.data.CentzBatch;
 import com.singularityfuture.centz.data.CentzContract;
-import com.singularityfuture.centz.utilities.NetworkUtils;
+import com.singularityfuture.centz.data.CentzPreferences;
+import com.singularityfuture.centz.data.PriceSnapshot;
+import com.singularityfuture.centz.utilities.CancellationToken;
+import com.singularityfuture.centz.utilities.CentzDateUtils;
+import com.singularityfuture.centz.utilities.CentzUtils;
+import com.singularityfuture.centz.utilities.FixedPointParser;
 import com.singularityfuture.centz.utilities.NotificationUtils;
-import com.singularityfuture.centz.utilities.OpenCentzJsonUtils;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.GoogleApiClient.ConnectionCallbacks;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.DataEvent;
-import com.google.android.gms.wearable.DataEventBuffer;
-import com.google.android.gms.wearable.DataItem;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
-
-import java.net.URL;
-
-public class CentzSyncTask implements DataApi.DataListener{
-
-    /*implements
-    DataApi.DataListener,
-    GoogleApiClient.ConnectionCallbacks,
-    GoogleApiClient.OnConnectionFailedListener*/
+import com.singularityfuture.centz.utilities.RequestTimingLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+public class CentzSyncTask {
 
     /**
      * Performs the network request for updated centz, parses the JSON from that request, and
@@ -57,68 +53,234 @@ public class CentzSyncTask implements DataApi.DataListener{
      * @param context Used to access utility methods and the ContentResolver
      */
 
-    private static final String MAX_TEMP = "com.singularityfuture.centz.key.max_temp";
-    private static final String MIN_TEMP = "com.singularityfuture.centz.key.min_temp";
-    private static final String CURRENT_TIME= "com.singularityfuture.centz.key.time";
     private static final String TAG = "Sync Task";
-    private static final String CENTZ_ID = "com.singularityfuture.centz.key.centz_id";
-    //private static final int REQUEST_RESOLVE_ERROR = 1000;
-    private static boolean mResolvingError = false;
-    private static GoogleApiClient mGoogleApiClient;
-    private static Context mContext;
 
-    synchronized static public void syncCentz(Context context) {
-        mContext=context;
+    /*
+     * Fetches, parses and stores the watchlist, at most DEFAULT_PARALLELISM requests on the
+     * network at a time
+     */
+    private static final SyncPipeline sPipeline = new SyncPipeline(
+            SyncRequestPlanner.DEFAULT_PARALLELISM, SyncPipeline.DEFAULT_QUEUE_CAPACITY);
+
+    /*
+     * Rows parsed by a sync. Each thread that syncs clears and reuses its own batch, so steady
+     * state polling doesn't allocate per row.
+     */
+    private static final ThreadLocal<CentzBatch> sSyncRows = new ThreadLocal<CentzBatch>() {
+        @Override
+        protected CentzBatch initialValue() {
+            return new CentzBatch();
+        }
+    };
+
+    /*
+     * Syncs can be requested at the same moment by the IntentService, the job dispatcher and the
+     * watch. Requests for the same symbols that arrive while a sync is running attach to it.
+     */
+    static final SingleFlight<String, SyncOutcome> sSyncFlights = new SingleFlight<>();
+
+    /*
+     * Syncs of different symbols run side by side, but a symbol is only ever written by one sync
+     * at a time. Every sync holds the stripes of its symbols from the first request it sends
+     * until its rows are stored.
+     */
+    static final StripedLock sSymbolLocks = new StripedLock(StripedLock.DEFAULT_STRIPES);
+
+    static public SyncOutcome syncCentz(final Context context) {
+        return syncCentz(context, new CancellationToken());
+    }
+
+    /**
+     * Syncs the whole watchlist like {@link #syncCentz(Context)}, but can be cancelled from
+     * another thread. Cancelling aborts the requests on the network and rolls back the request
+     * being stored. Requests stored before that stay stored, but the sync reports
+     * {@link SyncOutcome#FAILED} so that it is run again.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @param token   Cancels the sync
+     * @return What the sync did
+     */
+    public static SyncOutcome syncCentz(Context context, CancellationToken token) {
+        /*
+         * The watchlist always starts with the preferred location, followed by any extra
+         * symbols the user added in the settings.
+         */
+        List<String> watchlist = CentzPreferences.getWatchlist(context);
+        return sync(context, TextUtils.join(",", watchlist), watchlist, true, token);
+    }
+
+    /**
+     * Syncs only the given symbols, for example the one coin the user asked to refresh. Rows of
+     * other symbols are left alone, and the sync runs alongside syncs of other symbols.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @param symbols The symbols to refresh
+     * @return What the sync did
+     */
+    public static SyncOutcome syncSymbols(Context context, List<String> symbols) {
+        return syncSymbols(context, symbols, new CancellationToken());
+    }
+
+    /**
+     * Syncs only the given symbols like {@link #syncSymbols(Context, List)}, but can be cancelled
+     * from another thread like {@link #syncCentz(Context, CancellationToken)}.
+     *
+     * @param context Used to access utility methods and the ContentResolver
+     * @param symbols The symbols to refresh
+     * @param token   Cancels the sync
+     * @return What the sync did
+     */
+    public static SyncOutcome syncSymbols(Context context, List<String> symbols,
+                                          CancellationToken token) {
+        return sync(context, "symbols:" + TextUtils.join(",", symbols), symbols, false, token);
+    }
 
+    private static SyncOutcome sync(final Context context, String requestKey,
+                                    final List<String> symbols, final boolean wholeWatchlist,
+                                    final CancellationToken token) {
         try {
+            return sSyncFlights.execute(requestKey, new Callable<SyncOutcome>() {
+                @Override
+                public SyncOutcome call() {
+                    return performSync(context, symbols, wholeWatchlist, token);
+                }
+            });
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Sync failed", e.getCause());
+            return SyncOutcome.FAILED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return SyncOutcome.FAILED;
+        }
+    }
+
+    private static SyncOutcome performSync(Context context, List<String> symbols,
+                                           boolean wholeWatchlist, CancellationToken token) {
+        StripedLock.Held locked;
+        try {
+            locked = sSymbolLocks.lockAll(symbols);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            CentzSyncStats.recordOutcome(SyncOutcome.FAILED);
+            return SyncOutcome.FAILED;
+        }
+        try {
+            return performLockedSync(context, symbols, wholeWatchlist, sSyncRows.get(), token);
+        } finally {
+            locked.unlock();
+        }
+    }
+
+    private static SyncOutcome performLockedSync(Context context, List<String> symbols,
+                                                 boolean wholeWatchlist, CentzBatch rows,
+                                                 CancellationToken token) {
+        SyncOutcome outcome = SyncOutcome.FAILED;
+        long wireBytes = 0;
+        long decodedBytes = 0;
+
+        try {
+            /*
+             * Group the symbols into as few requests as the API allows and run them through
+             * the pipeline, which fetches, parses and stores them one after the other with each
+             * stage working on a different request. Each request sends the validators recorded
+             * for its symbol so the server can tell us nothing has changed. Only the rows
+             * of requests that came back with fresh data are touched, symbols whose request
+             * came back 304 or failed keep the rows they already have.
+             */
+            List<SyncRequestPlanner.PlannedRequest> requests =
+                    SyncRequestPlanner.plan(context, symbols);
+            rows.clear();
+            List<SyncRequestPlanner.RequestResult> results =
+                    sPipeline.run(context, requests, rows, token);
+            ProviderTickWriter.onRowsStored();
+
+            ContentResolver centzContentResolver = context.getContentResolver();
+
             /*
-             * The getUrl method will return the URL that we need to get the forecast JSON for the
-             * centz. It will decide whether to create a URL based off of the latitude and
-             * longitude or off of a simple location as a String.
+             * Rows of symbols the user took off the watchlist since the last sync. The provider
+             * notifies about these itself.
              */
-            URL centzRequestUrl = NetworkUtils.getUrl(context);
-
-            /* Use the URL to retrieve the JSON */
-            String jsonCentzResponse = NetworkUtils.getResponseFromHttpUrl(centzRequestUrl);
-
-            /* Parse the JSON into a list of centz values */
-            ContentValues[] centzValues = OpenCentzJsonUtils
-                    .getCentzContentValuesFromJson(context, jsonCentzResponse);
-
-            double max_temp = centzValues[0].getAsInteger(CentzContract.CentzEntry.COLUMN_MAX_TEMP);
-            double min_temp = centzValues[0].getAsInteger(CentzContract.CentzEntry.COLUMN_MIN_TEMP);
-            int centz_id = centzValues[0].getAsInteger(CentzContract.CentzEntry.COLUMN_CENTZ_ID);
-            double max_temp_correct_units;
-            double min_temp_correct_units;
-            if (!CentzPreferences.isMetric(context)) {
-                max_temp_correct_units= (max_temp * 1.8) + 32;
-                min_temp_correct_units= (min_temp * 1.8) + 32;
+            CentzBatch.UpsertResult removed = wholeWatchlist && !token.isCancelled()
+                    ? CentzBatch.deleteOtherSymbols(centzContentResolver, symbols)
+                    : CentzBatch.UpsertResult.NONE;
+            CentzBatch.UpsertResult upsert = CentzBatch.UpsertResult.NONE;
+            boolean anyFailed = false;
+            for (SyncRequestPlanner.RequestResult result : results) {
+                if (result.fetch != null) {
+                    wireBytes += result.fetch.getWireBytes();
+                    decodedBytes += result.fetch.getBodyLength();
+                }
+                if (result.upsert != null) {
+                    upsert = upsert.plus(result.upsert);
+                }
+                if (result.outcome == SyncOutcome.FAILED) {
+                    anyFailed = true;
+                    Log.w(TAG, "Fetching " + result.request.symbol + " failed", result.error);
+                }
             }
-            else {
-                max_temp_correct_units=max_temp;
-                min_temp_correct_units=min_temp;
+
+            /* When each symbol was fetched and how it went, with the validators for next time */
+            recordSyncMeta(centzContentResolver, results, wholeWatchlist ? symbols : null);
+
+            /*
+             * The requests were stored without notifying anybody, so loaders requery once for
+             * the whole sync, and only if something changed.
+             */
+            CentzBatch.UpsertResult total = upsert.plus(removed);
+            CentzSyncStats.recordUpsert(total);
+            Log.d(TAG, "Stored rows: written=" + total.rowsWritten + " skipped="
+                    + total.rowsSkipped + " deleted=" + total.rowsDeleted);
+            if (upsert.hasChanges()) {
+                centzContentResolver.notifyChange(CentzContract.CentzEntry.CONTENT_URI, null);
             }
 
             /*
-             * In cases where our JSON contained an error code, getCentzContentValuesFromJson
-             * would have returned null. We need to check for those cases here to prevent any
-             * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
-             * there isn't any to insert.
+             * A cancelled sync stops here, whatever it managed to store. The outcome stays
+             * FAILED so that it is run again in full.
              */
-            if (centzValues != null && centzValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver centzContentResolver = context.getContentResolver();
+            if (token.isCancelled()) {
+                Log.d(TAG, "Sync was cancelled");
+                return outcome;
+            }
 
-                /* Delete old centz data because we don't need to keep multiple days' data */
-                centzContentResolver.delete(
-                        CentzContract.CentzEntry.CONTENT_URI,
-                        null,
-                        null);
+            /*
+             * A 304 for every request means the rows we already have are current. There is
+             * nothing to write and nothing new to tell the watch, so we are done.
+             */
+            if (rows.isEmpty()) {
+                outcome = anyFailed ? SyncOutcome.FAILED : SyncOutcome.NOT_MODIFIED;
+                return outcome;
+            }
 
-                /* Insert our new centz data into Centz's ContentProvider */
-                centzContentResolver.bulkInsert(
-                        CentzContract.CentzEntry.CONTENT_URI,
-                        centzValues);
+            /*
+             * The watch only shows the preferred location, which is always the first request of
+             * a watchlist sync. If that one didn't change, or this sync didn't include it, there
+             * is nothing new to push.
+             */
+            SyncRequestPlanner.RequestResult primary = results.get(0);
+            boolean primaryUpdated = primary.outcome == SyncOutcome.UPDATED
+                    && primary.rowCount != 0
+                    && primary.request.symbol.equals(
+                            CentzPreferences.getPreferredCentzLocation(context));
+            int primaryRow = primaryUpdated ? primary.firstRow : -1;
+
+            /*
+             * Responses that contained an error code added no rows to the batch. The pipeline
+             * already stored the fresh rows there are.
+             */
+            if (!rows.isEmpty()) {
+                /* Keep the snapshot that cold starts render from in step with the database */
+                try {
+                    PriceSnapshot.write(context, rows);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not write the price snapshot", e);
+                }
+
+                /*
+                 * What was fetched is stored and shown, but symbols whose request failed are
+                 * still stale. The sync reports FAILED so the job is retried for them.
+                 */
+                outcome = anyFailed ? SyncOutcome.FAILED : SyncOutcome.UPDATED;
 
                 /*
                  * Finally, after we insert data into the ContentProvider, determine whether or not
@@ -148,89 +310,140 @@ public class CentzSyncTask implements DataApi.DataListener{
                     NotificationUtils.notifyUserOfNewCentz(context);
                 }
 
-                final CentzSyncTask sync_instance = new CentzSyncTask();
-                /* If the code reaches this point, we have successfully performed our sync */
-                mGoogleApiClient = new GoogleApiClient.Builder(context)
-                        .addApi(Wearable.API)
-                        .addConnectionCallbacks(new ConnectionCallbacks() {
-                            @Override
-                            public void onConnected (Bundle connectionHint){
-                                Log.d(TAG, "onConnected: " + connectionHint);
-                                mResolvingError = false;
-                                // Now you can use the Data Layer API
-                                Wearable.DataApi.addListener(mGoogleApiClient,sync_instance);
-                                //sync_instance.addListener(mGoogleApiClient);
-                            }
-                            @Override
-                            public void onConnectionSuspended ( int cause){
-                                Log.d(TAG, "onConnectionSuspended: " + cause);
-                            }
-                        })
-                        .addOnConnectionFailedListener(new GoogleApiClient.OnConnectionFailedListener(){
-                            @Override
-                            public void onConnectionFailed(ConnectionResult connectionResult){
-                                Log.d(TAG, "onConnectionFailed");
-                                if (!mResolvingError) {
-                                    if (connectionResult.hasResolution()) {
-            /*                try {
-                                mResolvingError = true;
-                                connectionResult.startResolutionForResult(this, REQUEST_RESOLVE_ERROR);
-                            } catch (IntentSender.SendIntentException e) {
-                                // There was an error with the resolution intent. Try again.
-                                mGoogleApiClient.connect();
-                            }*/
-                                    } else {
-                                        Log.e(TAG, "Connection to Google API client has failed");
-                                        mResolvingError = false;
-                                        //CentzSyncTask sync_instance = new CentzSyncTask();
-                                        Wearable.DataApi.removeListener(mGoogleApiClient,sync_instance);
-                                        //sync_instance.removeListener(mGoogleApiClient);
-                                    }
-                                }
-
-                            }
-                        })
-                        .build();
-                if (!mResolvingError) {
-                    mGoogleApiClient.connect();
+                if (primaryRow == -1) {
+                    return outcome;
                 }
 
-                PutDataMapRequest putDataMapReq = PutDataMapRequest.create("/centz_info");
-                putDataMapReq.getDataMap().putInt(MAX_TEMP, (int) max_temp_correct_units);
-                putDataMapReq.getDataMap().putInt(MIN_TEMP, (int) min_temp_correct_units);
-                putDataMapReq.getDataMap().putInt(CENTZ_ID, centz_id);
-                putDataMapReq.getDataMap().putLong(CURRENT_TIME, System.currentTimeMillis());
-                PutDataRequest putDataReq = putDataMapReq.asPutDataRequest();
-                putDataReq.setUrgent();
-                Wearable.DataApi.putDataItem(mGoogleApiClient, putDataReq)
-                        .setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-                            @Override
-                            public void onResult(DataApi.DataItemResult dataItemResult) {
-                                Log.d(TAG, "Sending data was successful: " + dataItemResult.getStatus()
-                                        .isSuccess());
-                            }
-                        });
+                sendToWear(context, rows.getHigh(primaryRow), rows.getLow(primaryRow),
+                        rows.getCentzId(primaryRow));
 
             }
 
         } catch (Exception e) {
-            /* Server probably invalid */
-            e.printStackTrace();
+            /* Server probably invalid. The outcome stays FAILED so the job gets rescheduled */
+            Log.e(TAG, "Sync failed", e);
+        } finally {
+            CentzSyncStats.recordBytes(wireBytes, decodedBytes);
+            CentzSyncStats.recordOutcome(outcome);
+            Log.d(TAG, "Sync finished: " + outcome + ", " + CentzSyncStats.summary());
+            Log.d(TAG, "Request timings: " + RequestTimingLog.summary());
         }
+        return outcome;
     }
 
-    @Override
-    public void onDataChanged(DataEventBuffer dataEvents) {
-        for (DataEvent event : dataEvents) {
-            if (event.getType() == DataEvent.TYPE_DELETED) {
-                Log.d(TAG, "DataItem deleted: " + event.getDataItem().getUri());
-            } else if (event.getType() == DataEvent.TYPE_CHANGED) {
-                Log.d(TAG, "DataItem changed: " + event.getDataItem().getUri());
-                DataItem item = event.getDataItem();
-                if (item.getUri().getPath().compareTo("/centz_installed") == 0) {
-                    syncCentz(mContext);
-                }
+    /*
+     * Writes how the request of each symbol went to the sync metadata, which the provider merges
+     * in one transaction. After a sync of the whole watchlist, the metadata of symbols no longer
+     * on it is dropped with a separate delete.
+     */
+    private static void recordSyncMeta(ContentResolver resolver,
+                                       List<SyncRequestPlanner.RequestResult> results,
+                                       List<String> watchlist) {
+        long now = System.currentTimeMillis();
+        Set<String> withStoredRows = symbolsWithStoredRows(resolver, results);
+        List<ContentValues> values = new ArrayList<>();
+        for (SyncRequestPlanner.RequestResult result : results) {
+            ContentValues meta = new ContentValues();
+            meta.put(CentzContract.SyncMetaEntry.COLUMN_SYMBOL, result.request.symbol);
+            meta.put(CentzContract.SyncMetaEntry.COLUMN_SOURCE,
+                    result.request.url.toString());
+            meta.put(CentzContract.SyncMetaEntry.COLUMN_LAST_FETCH, now);
+            if (result.outcome == SyncOutcome.FAILED) {
+                meta.put(CentzContract.SyncMetaEntry.COLUMN_LAST_ERROR,
+                        String.valueOf(result.error));
+            } else if (result.outcome == SyncOutcome.UPDATED
+                    || withStoredRows.contains(result.request.symbol)) {
+                meta.put(CentzContract.SyncMetaEntry.COLUMN_LAST_SUCCESS, now);
+                meta.putNull(CentzContract.SyncMetaEntry.COLUMN_LAST_ERROR);
+            }
+
+            /* A 304 leaves the validators and the rows of the last fresh answer as they are */
+            if (result.outcome == SyncOutcome.UPDATED) {
+                meta.put(CentzContract.SyncMetaEntry.COLUMN_ETAG, result.fetch.getEtag());
+                meta.put(CentzContract.SyncMetaEntry.COLUMN_LAST_MODIFIED,
+                        result.fetch.getLastModified());
+                meta.put(CentzContract.SyncMetaEntry.COLUMN_ROW_COUNT, result.rowCount);
+            }
+            values.add(meta);
+        }
+        if (!values.isEmpty()) {
+            resolver.bulkInsert(CentzContract.SyncMetaEntry.CONTENT_URI,
+                    values.toArray(new ContentValues[values.size()]));
+        }
+
+        if (watchlist != null && !watchlist.isEmpty()) {
+            StringBuilder notIn = new StringBuilder(CentzContract.SyncMetaEntry.COLUMN_SYMBOL)
+                    .append(" NOT IN (");
+            for (int i = 0; i < watchlist.size(); i++) {
+                notIn.append(i == 0 ? "?" : ",?");
+            }
+            resolver.delete(CentzContract.SyncMetaEntry.CONTENT_URI, notIn.append(')').toString(),
+                    watchlist.toArray(new String[watchlist.size()]));
+        }
+    }
+
+    /*
+     * The symbols answered with a 304 whose last fresh answer stored rows that are still there,
+     * read with one query. A 304 for a symbol without them confirms nothing, so it must not make
+     * the symbol look fresh.
+     */
+    private static Set<String> symbolsWithStoredRows(
+            ContentResolver resolver, List<SyncRequestPlanner.RequestResult> results) {
+        List<String> notModified = new ArrayList<>();
+        for (SyncRequestPlanner.RequestResult result : results) {
+            if (result.outcome == SyncOutcome.NOT_MODIFIED) {
+                notModified.add(result.request.symbol);
             }
         }
+        Set<String> symbols = new HashSet<>();
+        if (notModified.isEmpty()) return symbols;
+
+        StringBuilder selection = new StringBuilder(CentzContract.SyncMetaEntry.COLUMN_ROW_COUNT)
+                .append(" > 0 AND ").append(CentzContract.SyncMetaEntry.COLUMN_SYMBOL)
+                .append(" IN (");
+        for (int i = 0; i < notModified.size(); i++) {
+            selection.append(i == 0 ? "?" : ",?");
+        }
+        Cursor meta = resolver.query(CentzContract.SyncMetaEntry.CONTENT_URI,
+                new String[]{CentzContract.SyncMetaEntry.COLUMN_SYMBOL},
+                selection.append(')').toString(),
+                notModified.toArray(new String[notModified.size()]), null);
+        if (meta == null) return symbols;
+        try {
+            while (meta.moveToNext()) {
+                symbols.add(meta.getString(0));
+            }
+        } finally {
+            meta.close();
+        }
+        return symbols;
+    }
+
+    /*
+     * Hands today's prices of the preferred location to the Wear publisher, which writes them to
+     * the watch on its own thread. The values are fixed-point and are converted to the units the
+     * user picked before they are rounded for the watch.
+     */
+    private static void sendToWear(Context context, long max_temp, long min_temp,
+                                   int centz_id) {
+        long max_temp_correct_units = CentzUtils.toPreferredUnits(context, max_temp);
+        long min_temp_correct_units = CentzUtils.toPreferredUnits(context, min_temp);
+        WearPublisher.getInstance(context).publish(
+                (int) FixedPointParser.roundToUnits(max_temp_correct_units),
+                (int) FixedPointParser.roundToUnits(min_temp_correct_units),
+                centz_id);
+    }
+
+    /*
+     * Gives a watch that just asked for data the prices of the last sync straight from the
+     * snapshot, so it has something to show before the sync that follows has finished.
+     */
+    static void sendSnapshotToWear(Context context) {
+        PriceSnapshot snapshot = PriceSnapshot.open(context);
+        if (snapshot == null) return;
+        int row = snapshot.findFirstRow(CentzPreferences.getPreferredCentzLocation(context),
+                CentzDateUtils.getNormalizedUtcDateForToday());
+        if (row == -1) return;
+        sendToWear(context, snapshot.getHigh(row), snapshot.getLow(row), snapshot.getCentzId(row));
     }
-}
\ No newline at end of file
+}
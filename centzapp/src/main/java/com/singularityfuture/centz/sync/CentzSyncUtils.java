@@ -15,32 +15,59 @@
  */
 package com.singularityfuture.centz.sync;
 
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.database.Cursor;
-import android.net.Uri;
+import android.os.AsyncTask;
+import android.os.BatteryManager;
 import android.support.annotation.NonNull;
+import android.text.format.DateUtils;
+import android.util.Log;
 
 import com.singularityfuture.centz.data.CentzContract;
+import com.singularityfuture.centz.data.CentzPreferences;
+import com.singularityfuture.centz.data.PriceSnapshot;
+import com.singularityfuture.centz.utilities.CentzDateUtils;
 import com.firebase.jobdispatcher.Constraint;
 import com.firebase.jobdispatcher.Driver;
 import com.firebase.jobdispatcher.FirebaseJobDispatcher;
 import com.firebase.jobdispatcher.GooglePlayDriver;
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.Lifetime;
+import com.firebase.jobdispatcher.RetryStrategy;
 import com.firebase.jobdispatcher.Trigger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 public class CentzSyncUtils {
 
+    private static final String TAG = CentzSyncUtils.class.getSimpleName();
+
+    /*
+     * The interval at which to sync with the centz is picked by AdaptiveSyncPolicy. It is only
+     * rescheduled once it moved by more than this fraction, so small changes in the prices don't
+     * keep replacing the job.
+     */
+    private static final double RESCHEDULE_THRESHOLD = 0.25;
+
     /*
-     * Interval at which to sync with the centz. Use TimeUnit for convenience, rather than
-     * writing out a bunch of multiplication ourselves and risk making a silly mistake.
+     * How old a symbol's data may get before opening the app syncs it again, unless the symbol
+     * has a max age of its own in the preferences. The background sync keeps data fresher than
+     * this while prices move.
      */
-    private static final int SYNC_INTERVAL_HOURS = 3;
-    private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
+    static final long DEFAULT_MAX_DATA_AGE_MILLIS = 15 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final String[] FRESHNESS_PROJECTION = {
+            CentzContract.SyncMetaEntry.COLUMN_LAST_SUCCESS,
+            CentzContract.SyncMetaEntry.COLUMN_ROW_COUNT
+    };
+    private static final int INDEX_LAST_SUCCESS = 0;
+    private static final int INDEX_ROW_COUNT = 1;
 
     private static boolean sInitialized;
 
@@ -48,10 +75,14 @@ public class CentzSyncUtils {
 
     /**
      * Schedules a repeating sync of Centz's centz data using FirebaseJobDispatcher.
-     * @param context Context used to create the GooglePlayDriver that powers the
-     *                FirebaseJobDispatcher
+     * @param context        Context used to create the GooglePlayDriver that powers the
+     *                       FirebaseJobDispatcher
+     * @param intervalMillis How long to wait between syncs
      */
-    static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context) {
+    static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context,
+                                                  long intervalMillis) {
+        int intervalSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(intervalMillis);
+        int flextimeSeconds = intervalSeconds / 3;
 
         Driver driver = new GooglePlayDriver(context);
         FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
@@ -79,29 +110,132 @@ public class CentzSyncUtils {
                  */
                 .setRecurring(true)
                 /*
-                 * We want the centz data to be synced every 3 to 4 hours. The first argument for
-                 * Trigger's static executionWindow method is the start of the time frame when the
-                 * sync should be performed. The second argument is the latest point in time at
-                 * which the data should be synced. Please note that this end time is not
-                 * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
+                 * We want the centz data to be synced once per interval, with a third of the
+                 * interval of slack. The first argument for Trigger's static executionWindow
+                 * method is the start of the time frame when the sync should be performed. The
+                 * second argument is the latest point in time at which the data should be
+                 * synced. Please note that this end time is not guaranteed, but is more of a
+                 * guideline for FirebaseJobDispatcher to go off of.
                  */
                 .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                        intervalSeconds,
+                        intervalSeconds + flextimeSeconds))
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
                  * the old one.
                  */
                 .setReplaceCurrent(true)
+                /*
+                 * A failed sync reports that it needs to be rescheduled. Back off exponentially
+                 * so an outage doesn't turn into a stream of wake ups.
+                 */
+                .setRetryStrategy(RetryStrategy.DEFAULT_EXPONENTIAL)
                 /* Once the Job is ready, call the builder's build method to return the Job */
                 .build();
 
         /* Schedule the Job with the dispatcher */
         dispatcher.schedule(syncCentzJob);
+        CentzPreferences.saveScheduledSyncIntervalMillis(context, intervalMillis);
+    }
+
+    /**
+     * Picks the interval the next background syncs should run at from the prices of the last
+     * sync, how recently the user opened the app and the battery. Reads the price snapshot, so
+     * call it off the main thread.
+     *
+     * @param context Used to read the snapshot, the preferences and the battery state
+     * @return The interval in milliseconds
+     */
+    static long pickSyncInterval(@NonNull Context context) {
+        AdaptiveSyncPolicy.Conditions conditions = currentConditions(context);
+        long interval = AdaptiveSyncPolicy.nextIntervalMillis(conditions);
+        Log.d(TAG, "Next sync in " + TimeUnit.MILLISECONDS.toMinutes(interval) + "min, "
+                + conditions);
+        return interval;
+    }
+
+    /**
+     * Reschedules the background sync with a new interval, unless it is close to the interval
+     * the sync already runs at. Don't call it from a running sync job, replacing the job could
+     * stop it; call it once the job is finished.
+     *
+     * @param context        Used to reach the job dispatcher
+     * @param intervalMillis The interval from {@link #pickSyncInterval}
+     */
+    static void rescheduleSync(@NonNull Context context, long intervalMillis) {
+        long scheduled = CentzPreferences.getScheduledSyncIntervalMillis(context);
+        if (scheduled != 0
+                && Math.abs(intervalMillis - scheduled) <= scheduled * RESCHEDULE_THRESHOLD) {
+            return;
+        }
+        scheduleFirebaseJobDispatcherSync(context, intervalMillis);
+    }
+
+    /**
+     * Picks the priority of a sync nobody is waiting for, like the periodic one. It is raised when
+     * a price is close enough to one of its alerts that the sync might trigger it. Reads the price
+     * snapshot, so call it off the main thread.
+     *
+     * @param context Used to read the snapshot and the preferences
+     * @return {@link SyncRequestQueue.Priority#ALERT_CRITICAL} or
+     * {@link SyncRequestQueue.Priority#BACKGROUND}
+     */
+    static SyncRequestQueue.Priority pickBackgroundPriority(@NonNull Context context) {
+        return AdaptiveSyncPolicy.isAlertClose(currentConditions(context))
+                ? SyncRequestQueue.Priority.ALERT_CRITICAL
+                : SyncRequestQueue.Priority.BACKGROUND;
     }
+
+    private static AdaptiveSyncPolicy.Conditions currentConditions(Context context) {
+        long now = System.currentTimeMillis();
+        long today = CentzDateUtils.getNormalizedUtcDateForToday();
+        double dayFraction = (now - today) / (double) DateUtils.DAY_IN_MILLIS;
+
+        /* The snapshot has today's range of every symbol, also after a sync that got a 304 */
+        double volatility = 0;
+        double alertDistance = Double.POSITIVE_INFINITY;
+        PriceSnapshot snapshot = PriceSnapshot.open(context);
+        if (snapshot != null) {
+            List<String> watchlist = CentzPreferences.getWatchlist(context);
+            for (String symbol : watchlist) {
+                int row = snapshot.findFirstRow(symbol, today);
+                if (row == -1) continue;
+                long high = snapshot.getHigh(row);
+                long low = snapshot.getLow(row);
+                volatility = Math.max(volatility,
+                        AdaptiveSyncPolicy.volatilityFromRange(high, low, dayFraction));
+                long alert = CentzPreferences.getAlertPrice(context, symbol);
+                if (alert > 0) {
+                    /* Without a tick today, the middle of the day's range stands in for it */
+                    long price = ProviderTickWriter.getLastPrice(symbol, today);
+                    if (price == 0) price = (high + low) / 2;
+                    alertDistance = Math.min(alertDistance,
+                            AdaptiveSyncPolicy.alertDistance(price, high, low, alert));
+                }
+            }
+        }
+
+        /* ACTION_BATTERY_CHANGED is sticky, so this returns the last state right away */
+        Intent battery = context.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        boolean charging = false;
+        int batteryPercent = 100;
+        if (battery != null) {
+            charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+            if (level >= 0 && scale > 0) {
+                batteryPercent = level * 100 / scale;
+            }
+        }
+
+        long sinceAppOpened = now - CentzPreferences.getLastAppOpenTimeInMillis(context);
+        return new AdaptiveSyncPolicy.Conditions(volatility, alertDistance, sinceAppOpened,
+                charging, batteryPercent);
+    }
+
     /**
-     * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
-     * immediate sync is required, this method will take care of making sure that sync occurs.
+     * Creates periodic sync tasks and starts the Wear publisher, once per app lifetime.
      *
      * @param context Context that will be passed to other methods and used to access the
      *                ContentResolver
@@ -118,75 +252,173 @@ public class CentzSyncUtils {
 
         /*
          * This method call triggers Centz to create its task to synchronize centz data
-         * periodically.
+         * periodically. We start from the interval it last ran at, the syncs adapt it from
+         * there as prices move.
          */
-        scheduleFirebaseJobDispatcherSync(context);
+        long interval = CentzPreferences.getScheduledSyncIntervalMillis(context);
+        if (interval == 0) {
+            interval = AdaptiveSyncPolicy.DEFAULT_INTERVAL_MILLIS;
+        }
+        scheduleFirebaseJobDispatcherSync(context, interval);
 
         /*
-         * We need to check to see if our ContentProvider has data to display in our forecast
-         * list. However, performing a query on the main thread is a bad idea as this may
-         * cause our UI to lag. Therefore, we create a thread in which we will run the query
-         * to check the contents of our ContentProvider.
+         * Start the Wear publisher, so a watch that installs the app is heard even before the
+         * first sync has anything to publish.
          */
-        Thread checkForEmpty = new Thread(new Runnable() {
-            @Override
-            public void run() {
+        WearPublisher.getInstance(context);
 
-                /* URI for every row of centz data in our centz table*/
-                Uri forecastQueryUri = CentzContract.CentzEntry.CONTENT_URI;
+        /*
+         * Whether there is any data to show, or whether it is stale, is decided per symbol from
+         * the sync metadata by startImmediateSyncIfStale, which the activity calls every time it
+         * is created.
+         */
+    }
 
-                /*
-                 * Since this query is going to be used only as a check to see if we have any
-                 * data (rather than to display data), we just need to PROJECT the ID of each
-                 * row. In our queries where we display data, we need to PROJECT more columns
-                 * to determine what centz details need to be displayed.
-                 */
-                String[] projectionColumns = {CentzContract.CentzEntry._ID};
-                String selectionStatement = CentzContract.CentzEntry
-                        .getSqlSelectForTodayOnwards();
-
-                /* Here, we perform the query to check to see if we have any centz data */
-                Cursor cursor = context.getContentResolver().query(
-                        forecastQueryUri,
-                        projectionColumns,
-                        selectionStatement,
-                        null,
-                        null);
-                /*
-                 * A Cursor object can be null for various different reasons. A few are
-                 * listed below.
-                 *
-                 *   1) Invalid URI
-                 *   2) A certain ContentProvider's query method returns null
-                 *   3) A RemoteException was thrown.
-                 *
-                 * Bottom line, it is generally a good idea to check if a Cursor returned
-                 * from a ContentResolver is null.
-                 *
-                 * If the Cursor was null OR if it was empty, we need to sync immediately to
-                 * be able to display data to the user.
-                 */
-                if (null == cursor || cursor.getCount() == 0) {
-                    startImmediateSync(context);
-                }
+    /**
+     * Helper method to perform a sync immediately. The sync is queued as
+     * {@link SyncRequestQueue.Priority#INTERACTIVE}, since somebody is usually waiting for it.
+     *
+     * @param context The Context used to start the service that queues the sync.
+     */
+    public static void startImmediateSync(@NonNull final Context context) {
+        startImmediateSync(context, SyncRequestQueue.Priority.INTERACTIVE);
+    }
 
-                /* Make sure to close the Cursor to avoid memory leaks! */
-                cursor.close();
-            }
-        });
+    /**
+     * Like {@link #startImmediateSync(Context)}, with the priority the sync is queued with.
+     *
+     * @param context  The Context used to start the service that queues the sync.
+     * @param priority How urgent the sync is
+     */
+    public static void startImmediateSync(@NonNull final Context context,
+                                          @NonNull SyncRequestQueue.Priority priority) {
+        Intent intentToSyncImmediately = new Intent(context, CentzSyncIntentService.class);
+        intentToSyncImmediately.putExtra(CentzSyncIntentService.EXTRA_PRIORITY, priority.name());
+        context.startService(intentToSyncImmediately);
+    }
+
+    /**
+     * Like {@link #startImmediateSync(Context)}, but only refreshes one symbol, for example the
+     * coin the user is looking at. Only that symbol is locked while it runs, so a background
+     * sync of other symbols isn't held up by it.
+     *
+     * @param context The Context used to start the service that queues the sync.
+     * @param symbol  The symbol to refresh
+     */
+    public static void startImmediateSync(@NonNull final Context context,
+                                          @NonNull String symbol) {
+        startImmediateSync(context, Collections.singletonList(symbol));
+    }
 
-        /* Finally, once the thread is prepared, fire it off to perform our checks. */
-        checkForEmpty.start();
+    /**
+     * Like {@link #startImmediateSync(Context)}, but only refreshes the given symbols.
+     *
+     * @param context The Context used to start the service that queues the sync.
+     * @param symbols The symbols to refresh
+     */
+    public static void startImmediateSync(@NonNull final Context context,
+                                          @NonNull List<String> symbols) {
+        startImmediateSync(context, symbols, SyncRequestQueue.Priority.INTERACTIVE);
     }
 
     /**
-     * Helper method to perform a sync immediately using an IntentService for asynchronous
-     * execution.
+     * Like {@link #startImmediateSync(Context, List)}, with the priority the sync is queued with.
      *
-     * @param context The Context used to start the IntentService for the sync.
+     * @param context  The Context used to start the service that queues the sync.
+     * @param symbols  The symbols to refresh
+     * @param priority How urgent the sync is
      */
-    public static void startImmediateSync(@NonNull final Context context) {
+    public static void startImmediateSync(@NonNull final Context context,
+                                          @NonNull List<String> symbols,
+                                          @NonNull SyncRequestQueue.Priority priority) {
         Intent intentToSyncImmediately = new Intent(context, CentzSyncIntentService.class);
+        intentToSyncImmediately.putStringArrayListExtra(CentzSyncIntentService.EXTRA_SYMBOLS,
+                new ArrayList<>(symbols));
+        intentToSyncImmediately.putExtra(CentzSyncIntentService.EXTRA_PRIORITY, priority.name());
         context.startService(intentToSyncImmediately);
     }
+
+    /**
+     * Syncs the symbols of the watchlist that have no data or whose data is older than their max
+     * age, and nothing if every symbol is fresh. Meant for places like activity creation that run
+     * again on every rotation, where an unconditional sync would mostly fetch what was just
+     * fetched. The sync metadata is read on a background thread.
+     *
+     * @param context The Context used to read the sync metadata and start the sync
+     */
+    public static void startImmediateSyncIfStale(@NonNull final Context context) {
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                syncStaleSymbols(appContext);
+            }
+        });
+    }
+
+    /* Does the work of startImmediateSyncIfStale on the calling thread */
+    static void syncStaleSymbols(@NonNull Context context) {
+        List<String> watchlist = CentzPreferences.getWatchlist(context);
+        List<String> stale = getStaleSymbols(context, watchlist, System.currentTimeMillis());
+        if (stale.isEmpty()) {
+            CentzSyncStats.recordAvoidedSync();
+            Log.d(TAG, "Data is fresh, not syncing. Avoided "
+                    + CentzSyncStats.getAvoidedSyncCount() + " syncs so far");
+            return;
+        }
+
+        CentzSyncStats.recordSkippedFreshSymbols(watchlist.size() - stale.size());
+        if (stale.size() == watchlist.size()) {
+            startImmediateSync(context);
+            return;
+        }
+
+        /*
+         * The preferred symbol is what the activity shows first, the others can wait behind
+         * anything somebody is actually waiting for.
+         */
+        String preferred = watchlist.get(0);
+        List<String> backfill = new ArrayList<>(stale);
+        if (backfill.remove(preferred)) {
+            startImmediateSync(context, preferred);
+        }
+        if (!backfill.isEmpty()) {
+            startImmediateSync(context, backfill, SyncRequestQueue.Priority.BACKFILL);
+        }
+    }
+
+    /**
+     * Looks up the sync metadata of each symbol, one row by its primary key each.
+     *
+     * @param context Used to read the sync metadata and the max ages from the preferences
+     * @param symbols The symbols to check
+     * @param now     The current time (in UNIX time)
+     * @return The symbols that have no rows stored or whose last successful sync is older than
+     * their max age, in the order given
+     */
+    static List<String> getStaleSymbols(Context context, List<String> symbols, long now) {
+        ContentResolver resolver = context.getContentResolver();
+        List<String> stale = new ArrayList<>(symbols.size());
+        for (String symbol : symbols) {
+            long maxAge = CentzPreferences.getMaxDataAgeMillis(context, symbol);
+            if (maxAge == 0) maxAge = DEFAULT_MAX_DATA_AGE_MILLIS;
+
+            long lastSync = 0;
+            Cursor meta = resolver.query(
+                    CentzContract.SyncMetaEntry.buildSyncMetaUriWithSymbol(symbol),
+                    FRESHNESS_PROJECTION, null, null, null);
+            if (meta != null) {
+                if (meta.moveToFirst() && meta.getInt(INDEX_ROW_COUNT) > 0) {
+                    lastSync = meta.getLong(INDEX_LAST_SUCCESS);
+                }
+                meta.close();
+            }
+
+            /* A sync time in the future means the clock was changed, so we can't trust it */
+            if (lastSync == 0 || lastSync > now || now - lastSync >= maxAge) {
+                stale.add(symbol);
+            }
+        }
+        return stale;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.Context;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.singularityfuture.centz.data.CentzPreferences;
+import com.singularityfuture.centz.utilities.FixedPointParser;
+import com.singularityfuture.centz.utilities.NetworkUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * Holds a WebSocket subscription to the ticker channel while the app is in the foreground and
+ * hands every tick to a {@link TickListener}. If the socket drops, the feed reconnects with
+ * exponential backoff and subscribes again. The periodic job scheduled by {@link CentzSyncUtils}
+ * keeps running the whole time, so once the feed is stopped the app simply falls back to polling.
+ */
+public final class LiveTickerFeed {
+
+    private static final String TAG = LiveTickerFeed.class.getSimpleName();
+
+    private static final long DEFAULT_INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    /* Lets us notice a dead connection even when no ticks are flowing */
+    private static final long PING_INTERVAL_SECONDS = 20;
+
+    private static final int CLOSE_NORMAL = 1000;
+
+    private static final String TYPE = "type";
+    private static final String TYPE_SUBSCRIBE = "subscribe";
+    private static final String TYPE_TICKER = "ticker";
+    private static final String PRODUCT_IDS = "product_ids";
+    private static final String PRODUCT_ID = "product_id";
+    private static final String CHANNELS = "channels";
+    private static final String PRICE = "price";
+
+    /*
+     * Products on the feed are a base and a quote currency, like "BTC-USD". Watchlist entries
+     * that aren't, like the default location, have no ticker and are left to the polling sync.
+     */
+    private static final Pattern PRODUCT_ID_PATTERN =
+            Pattern.compile("[A-Z0-9]{2,10}-[A-Z0-9]{2,10}");
+
+    /**
+     * Receives the ticks. Called on the socket's reader thread, one tick at a time. The price is
+     * fixed-point, see {@link FixedPointParser}.
+     */
+    public interface TickListener {
+        void onTick(String symbol, long price, long receivedAtMillis);
+    }
+
+    private final String mUrl;
+    private final List<String> mSymbols;
+    private final TickListener mListener;
+    private final long mInitialBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final OkHttpClient mClient;
+    private final Random mJitter = new Random();
+
+    private final AtomicLong mTicks = new AtomicLong();
+    private final AtomicLong mConnects = new AtomicLong();
+
+    /* Everything below is guarded by this */
+    private ScheduledExecutorService mReconnectExecutor;
+    private ScheduledFuture<?> mPendingReconnect;
+    private WebSocket mSocket;
+    private boolean mRunning;
+    private boolean mConnected;
+    private boolean mTickedSinceConnect;
+    private int mFailedAttempts;
+
+    /**
+     * Creates a feed for the products on the user's watchlist that writes every tick to the
+     * provider.
+     *
+     * @param context Used to read the watchlist and to reach the ContentResolver
+     * @return A feed that still needs to be started
+     */
+    public static LiveTickerFeed create(Context context) {
+        Context appContext = context.getApplicationContext();
+        return new LiveTickerFeed(NetworkUtils.getLiveTickerUrl(),
+                CentzPreferences.getWatchlist(appContext),
+                new ProviderTickWriter(appContext));
+    }
+
+    /**
+     * @param url      The feed to connect to
+     * @param symbols  The watchlist, entries that aren't products of the feed are left out
+     * @param listener Receives the ticks
+     */
+    public LiveTickerFeed(String url, List<String> symbols, TickListener listener) {
+        this(url, symbols, listener, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS);
+    }
+
+    @VisibleForTesting
+    LiveTickerFeed(String url, List<String> symbols, TickListener listener,
+                   long initialBackoffMillis, long maxBackoffMillis) {
+        mUrl = url;
+        mSymbols = Collections.unmodifiableList(productIds(symbols));
+        mListener = listener;
+        mInitialBackoffMillis = initialBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        /* Shares the connection pool and dispatcher of the client used for syncs */
+        mClient = NetworkUtils.getHttpClient().newBuilder()
+                .pingInterval(PING_INTERVAL_SECONDS, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * @param symbols Watchlist entries
+     * @return The entries that are products of the feed, in the same order
+     */
+    static List<String> productIds(List<String> symbols) {
+        List<String> productIds = new ArrayList<>(symbols.size());
+        for (String symbol : symbols) {
+            if (PRODUCT_ID_PATTERN.matcher(symbol).matches()) productIds.add(symbol);
+        }
+        return productIds;
+    }
+
+    /**
+     * Opens the socket. Does nothing if the feed is already running, or if none of the symbols
+     * is a product of the feed.
+     */
+    public synchronized void start() {
+        if (mRunning) return;
+        if (mSymbols.isEmpty()) {
+            Log.d(TAG, "No products on the watchlist, not connecting");
+            return;
+        }
+        mRunning = true;
+        mFailedAttempts = 0;
+        mReconnectExecutor = Executors.newSingleThreadScheduledExecutor();
+        connect();
+    }
+
+    /**
+     * Closes the socket and cancels any pending reconnect. Safe to call more than once.
+     */
+    public synchronized void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        mConnected = false;
+        if (mPendingReconnect != null) {
+            mPendingReconnect.cancel(false);
+            mPendingReconnect = null;
+        }
+        mReconnectExecutor.shutdownNow();
+        mReconnectExecutor = null;
+        if (mSocket != null) {
+            mSocket.close(CLOSE_NORMAL, null);
+            mSocket = null;
+        }
+    }
+
+    public synchronized boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * @return Number of ticks handed to the listener since the feed was created
+     */
+    public long getTickCount() {
+        return mTicks.get();
+    }
+
+    /**
+     * @return Number of times a socket was opened, the first connect included
+     */
+    public long getConnectCount() {
+        return mConnects.get();
+    }
+
+    private void connect() {
+        Request request = new Request.Builder().url(mUrl).build();
+        mSocket = mClient.newWebSocket(request, new FeedListener());
+    }
+
+    private synchronized void onOpen(WebSocket socket) {
+        if (socket != mSocket) return;
+        mConnected = true;
+        mTickedSinceConnect = false;
+        mConnects.incrementAndGet();
+        /* A fresh connection knows nothing about us, so we subscribe every time */
+        socket.send(buildSubscribeMessage());
+    }
+
+    private synchronized void onDisconnected(WebSocket socket, Throwable cause) {
+        if (socket != mSocket) return;
+        mConnected = false;
+        mSocket = null;
+        if (!mRunning) return;
+
+        long delay = nextBackoffMillis();
+        Log.w(TAG, "Ticker feed dropped, reconnecting in " + delay + "ms", cause);
+        mPendingReconnect = mReconnectExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (LiveTickerFeed.this) {
+                    mPendingReconnect = null;
+                    if (mRunning && mSocket == null) connect();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * A server can accept the connection and then close it, for example on a subscription it
+     * doesn't like. So the backoff is only reset once ticks actually arrive.
+     */
+    private synchronized void onFirstTick() {
+        if (mTickedSinceConnect) return;
+        mTickedSinceConnect = true;
+        mFailedAttempts = 0;
+    }
+
+    /*
+     * A socket that stop() is closing, or one a reconnect replaced, can still deliver what the
+     * server sent before it saw the close. Only the current socket of a running feed counts.
+     */
+    private synchronized boolean isCurrent(WebSocket socket) {
+        return mRunning && socket == mSocket;
+    }
+
+    /*
+     * Doubles the delay after every failed attempt up to the maximum. Half of the delay is
+     * randomised so a server restart doesn't get every client back at the same instant.
+     */
+    private long nextBackoffMillis() {
+        int exponent = Math.min(mFailedAttempts, 30);
+        mFailedAttempts++;
+        long delay = Math.min(mMaxBackoffMillis, mInitialBackoffMillis << exponent);
+        long half = delay / 2;
+        return half + (half > 0 ? (long) (mJitter.nextDouble() * half) : 0);
+    }
+
+    private String buildSubscribeMessage() {
+        try {
+            JSONObject subscribe = new JSONObject();
+            subscribe.put(TYPE, TYPE_SUBSCRIBE);
+            subscribe.put(PRODUCT_IDS, new JSONArray(mSymbols));
+            subscribe.put(CHANNELS, new JSONArray().put(TYPE_TICKER));
+            return subscribe.toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void onMessage(WebSocket socket, String text) {
+        if (!isCurrent(socket)) return;
+        try {
+            JSONObject message = new JSONObject(text);
+            /* Subscription confirmations, heartbeats and the like are of no interest to us */
+            if (!TYPE_TICKER.equals(message.optString(TYPE))) return;
+            String symbol = message.getString(PRODUCT_ID);
+            long price = FixedPointParser.parse(message.getString(PRICE));
+            onFirstTick();
+            mTicks.incrementAndGet();
+            mListener.onTick(symbol, price, System.currentTimeMillis());
+        } catch (JSONException | NumberFormatException e) {
+            Log.w(TAG, "Ignoring malformed tick: " + text, e);
+        }
+    }
+
+    private final class FeedListener extends WebSocketListener {
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            LiveTickerFeed.this.onOpen(webSocket);
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            LiveTickerFeed.this.onMessage(webSocket, text);
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(CLOSE_NORMAL, null);
+            onDisconnected(webSocket, null);
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+            onDisconnected(webSocket, t);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import com.singularityfuture.centz.data.CentzContract;
+import com.singularityfuture.centz.utilities.CentzDateUtils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies live ticks to today's row of the tick's symbol. Only the day's high and low are touched
+ * and only when a tick moves one of them, so most ticks never reach the database at all.
+ * <p>
+ * The row is only ever widened with a conditional update, never overwritten with a range read
+ * earlier. A sync that stores the row between a read and a tick therefore can't lose its values
+ * to the tick, and the tick doesn't need the sync's symbol lock, which a sync holds for as long
+ * as its requests take and would stall the socket's reader thread.
+ * <p>
+ * The latest tick of every symbol is also kept, for the sync policy to measure alerts from.
+ */
+final class ProviderTickWriter implements LiveTickerFeed.TickListener {
+
+    private static final String SELECTION = CentzContract.CentzEntry.COLUMN_DATE + " = ? AND "
+            + CentzContract.CentzEntry.COLUMN_SYMBOL + " = ?";
+
+    private static final String[] RANGE_PROJECTION = {
+            CentzContract.CentzEntry.COLUMN_MAX_TEMP,
+            CentzContract.CentzEntry.COLUMN_MIN_TEMP
+    };
+
+    private static final String RAISE_MAX_SELECTION = SELECTION + " AND "
+            + CentzContract.CentzEntry.COLUMN_MAX_TEMP + " < ?";
+    private static final String LOWER_MIN_SELECTION = SELECTION + " AND "
+            + CentzContract.CentzEntry.COLUMN_MIN_TEMP + " > ?";
+
+    /* Bumped whenever a sync stored rows, the cached ranges may no longer match the table */
+    private static final AtomicLong sStoredGeneration = new AtomicLong();
+
+    /* The latest price of every symbol and when it was received, guarded by itself */
+    private static final Map<String, long[]> sLastTicks = new HashMap<>();
+
+    private final ContentResolver mResolver;
+
+    /*
+     * Today's high and low per symbol, so we don't have to read the row on every tick. Only used
+     * to skip ticks inside the range, the database decides whether a tick moves it.
+     */
+    private final Map<String, long[]> mRanges = new HashMap<>();
+    private long mRangesDay;
+    private long mRangesGeneration = -1;
+
+    ProviderTickWriter(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Tells every writer that a sync stored rows, so the ranges they cached are read again.
+     */
+    static void onRowsStored() {
+        sStoredGeneration.incrementAndGet();
+    }
+
+    /**
+     * @param symbol      The symbol to look up
+     * @param sinceMillis Ticks received before this are too old to be of use
+     * @return The price of the latest tick of the symbol, fixed-point, or 0 if there is none
+     */
+    static long getLastPrice(String symbol, long sinceMillis) {
+        synchronized (sLastTicks) {
+            long[] tick = sLastTicks.get(symbol);
+            return tick != null && tick[1] >= sinceMillis ? tick[0] : 0;
+        }
+    }
+
+    @Override
+    public synchronized void onTick(String symbol, long price, long receivedAtMillis) {
+        synchronized (sLastTicks) {
+            long[] tick = sLastTicks.get(symbol);
+            if (tick == null) {
+                tick = new long[2];
+                sLastTicks.put(symbol, tick);
+            }
+            tick[0] = price;
+            tick[1] = receivedAtMillis;
+        }
+
+        long today = CentzDateUtils.getNormalizedUtcDateForToday();
+        long generation = sStoredGeneration.get();
+        if (today != mRangesDay || generation != mRangesGeneration) {
+            mRanges.clear();
+            mRangesDay = today;
+            mRangesGeneration = generation;
+        }
+        String[] selectionArgs = {Long.toString(today), symbol};
+
+        long[] range = mRanges.get(symbol);
+        if (range == null) {
+            range = readRange(selectionArgs);
+            /* No row for today yet, the next sync will create it */
+            if (range == null) return;
+            mRanges.put(symbol, range);
+        }
+
+        if (price > range[0]) {
+            range[0] = price;
+            widen(CentzContract.CentzEntry.COLUMN_MAX_TEMP, RAISE_MAX_SELECTION, today, symbol,
+                    price);
+        } else if (price < range[1]) {
+            range[1] = price;
+            widen(CentzContract.CentzEntry.COLUMN_MIN_TEMP, LOWER_MIN_SELECTION, today, symbol,
+                    price);
+        }
+    }
+
+    /* Sets the column to the price, unless the stored value is already further out */
+    private void widen(String column, String selection, long today, String symbol, long price) {
+        ContentValues values = new ContentValues();
+        values.put(column, price);
+        mResolver.update(CentzContract.CentzEntry.CONTENT_URI, values, selection,
+                new String[]{Long.toString(today), symbol, Long.toString(price)});
+    }
+
+    private long[] readRange(String[] selectionArgs) {
+        Cursor cursor = mResolver.query(CentzContract.CentzEntry.CONTENT_URI,
+                RANGE_PROJECTION, SELECTION, selectionArgs, null);
+        if (cursor == null) return null;
+        try {
+            if (!cursor.moveToFirst()) return null;
+            return new long[]{cursor.getLong(0), cursor.getLong(1)};
+        } finally {
+            cursor.close();
+        }
+    }
+}
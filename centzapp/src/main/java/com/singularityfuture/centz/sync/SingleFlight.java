@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure that at most one piece of work runs per key at any time. Callers that ask for a key
+ * while its work is already in flight don't start a second copy, they wait for the running one
+ * and receive the same result.
+ *
+ * @param <K> The type of key identifying a piece of work, for example a request URL
+ * @param <V> The type of result produced by the work
+ */
+final class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, FutureTask<V>> mInFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong mExecuted = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+
+    /**
+     * Runs the work on the calling thread, unless work for the same key is already running, in
+     * which case the calling thread waits for that work to finish and returns its result.
+     *
+     * @param key  Identifies the work
+     * @param work The work to run if nothing is in flight for the key
+     * @return The result of the work, shared by every caller that arrived while it was running
+     * @throws ExecutionException   If the work threw an exception
+     * @throws InterruptedException If the calling thread was interrupted while waiting
+     */
+    V execute(K key, Callable<V> work) throws ExecutionException, InterruptedException {
+        FutureTask<V> task = new FutureTask<>(work);
+        FutureTask<V> existing = mInFlight.putIfAbsent(key, task);
+
+        if (existing != null) {
+            mCoalesced.incrementAndGet();
+            return existing.get();
+        }
+
+        mExecuted.incrementAndGet();
+        try {
+            task.run();
+        } finally {
+            mInFlight.remove(key, task);
+        }
+        return task.get();
+    }
+
+    /**
+     * @return Number of times the work actually ran
+     */
+    long getExecutedCount() {
+        return mExecuted.get();
+    }
+
+    /**
+     * @return Number of callers that attached to work already in flight instead of running it
+     */
+    long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+}
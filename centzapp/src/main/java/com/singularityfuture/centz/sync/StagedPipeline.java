@@ -0,0 +1,387 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs items through a fixed sequence of stages. Every stage has its own threads and takes its
+ * work from a bounded queue, so different items are in different stages at the same time. When a
+ * stage falls behind its queue fills up and the stage before it blocks handing over its next
+ * item, all the way back to {@link #submit}. The amount of work in flight is therefore bounded by
+ * the queue capacity and thread count of every stage, however slow one of them is.
+ *
+ * A pipeline is built with {@link #addStage}, started once with {@link #start} and shut down with
+ * {@link #shutdown} when the caller is done with it.
+ *
+ * @param <T> The type of item that moves through the stages
+ */
+final class StagedPipeline<T> {
+
+    /**
+     * One step of the pipeline. The same item is passed from stage to stage, so a stage keeps
+     * what it produced on the item for the next one.
+     */
+    interface Stage<T> {
+        void process(T item) throws Exception;
+    }
+
+    /**
+     * Told about every item that leaves the pipeline, called on the thread of the stage it left.
+     */
+    interface Listener<T> {
+        /* The item went through every stage */
+        void onCompleted(T item);
+
+        /* A stage threw, the item skips the stages after it */
+        void onFailed(T item, String stage, Exception error);
+    }
+
+    private final String mName;
+    private final int mQueueCapacity;
+    private final Listener<T> mListener;
+    private final List<StageRunner> mStages = new ArrayList<>();
+
+    /* Items submitted that haven't completed or failed yet, waiters wait on its monitor */
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    private volatile long mStartNanos;
+
+    /**
+     * @param name          Names the threads of the pipeline
+     * @param queueCapacity How many items may wait in front of each stage
+     * @param listener      Told about every item that leaves the pipeline
+     */
+    StagedPipeline(String name, int queueCapacity, Listener<T> listener) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least 1: "
+                    + queueCapacity);
+        }
+        mName = name;
+        mQueueCapacity = queueCapacity;
+        mListener = listener;
+    }
+
+    /**
+     * Appends a stage. Stages run in the order they were added.
+     *
+     * @param name    Names the stage in metrics and failures
+     * @param threads How many items the stage works on at the same time
+     * @param stage   The work
+     * @return This pipeline, to chain calls
+     */
+    StagedPipeline<T> addStage(String name, int threads, Stage<T> stage) {
+        if (mStartNanos != 0) {
+            throw new IllegalStateException("Stages can't be added after start");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("A stage needs at least 1 thread: " + threads);
+        }
+        mStages.add(new StageRunner(name, threads, stage));
+        return this;
+    }
+
+    /**
+     * Starts the threads of every stage.
+     */
+    void start() {
+        if (mStages.isEmpty()) {
+            throw new IllegalStateException("A pipeline needs at least one stage");
+        }
+        if (mStartNanos != 0) {
+            throw new IllegalStateException("Already started");
+        }
+        mStartNanos = System.nanoTime();
+        for (int i = 0; i < mStages.size(); i++) {
+            StageRunner next = i + 1 < mStages.size() ? mStages.get(i + 1) : null;
+            mStages.get(i).start(next);
+        }
+    }
+
+    /**
+     * Hands an item to the first stage. Blocks while the queue of the first stage is full, which
+     * is how a slow stage slows down whoever feeds the pipeline.
+     *
+     * @param item The item to run through the stages
+     * @throws InterruptedException If the calling thread was interrupted while waiting
+     */
+    void submit(T item) throws InterruptedException {
+        if (mStartNanos == 0) {
+            throw new IllegalStateException("Not started");
+        }
+        mInFlight.incrementAndGet();
+        try {
+            mStages.get(0).enqueue(item);
+        } catch (InterruptedException e) {
+            itemLeft();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until every submitted item has completed or failed.
+     *
+     * @param timeout How long to wait at most
+     * @param unit    The unit of timeout
+     * @return Whether every item left the pipeline before the timeout
+     * @throws InterruptedException If the calling thread was interrupted while waiting
+     */
+    boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mInFlight) {
+            while (mInFlight.get() > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(mInFlight, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops the threads of every stage. Items still in the pipeline are dropped without telling
+     * the listener. Threads in the middle of an item are interrupted but may still be finishing
+     * it when this returns, {@link #awaitTermination} waits for them.
+     */
+    void shutdown() {
+        for (StageRunner stage : mStages) {
+            stage.stop();
+        }
+    }
+
+    /**
+     * Waits after {@link #shutdown} until the threads of every stage have ended.
+     *
+     * @param timeout How long to wait at most
+     * @param unit    The unit of timeout
+     * @return Whether every thread ended before the timeout
+     * @throws InterruptedException If the calling thread was interrupted while waiting
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (StageRunner stage : mStages) {
+            if (!stage.awaitTermination(deadline - System.nanoTime())) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The current metrics of every stage, in stage order
+     */
+    List<StageMetrics> getMetrics() {
+        long elapsedNanos = mStartNanos == 0 ? 0 : System.nanoTime() - mStartNanos;
+        List<StageMetrics> metrics = new ArrayList<>(mStages.size());
+        for (StageRunner stage : mStages) {
+            metrics.add(stage.snapshot(elapsedNanos));
+        }
+        return metrics;
+    }
+
+    /**
+     * @return The metrics of every stage on one line, for logging
+     */
+    String summary() {
+        StringBuilder summary = new StringBuilder();
+        for (StageMetrics metrics : getMetrics()) {
+            if (summary.length() > 0) summary.append(" -> ");
+            summary.append(metrics);
+        }
+        return summary.toString();
+    }
+
+    private void itemLeft() {
+        if (mInFlight.decrementAndGet() == 0) {
+            synchronized (mInFlight) {
+                mInFlight.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * What one stage has done since the pipeline started.
+     */
+    static final class StageMetrics {
+        final String name;
+        final int threads;
+        /* Items the stage finished, and those it threw on */
+        final long processed;
+        final long failed;
+        /* Time spent inside the stage, summed over its threads */
+        final long busyMillis;
+        /*
+         * Time the stage before (or whoever submits, for the first stage) spent waiting for
+         * room in this stage's queue. Non zero means this stage held the pipeline back.
+         */
+        final long blockedMillis;
+        final int queueDepth;
+        final int maxQueueDepth;
+        final int queueCapacity;
+        /* Items finished per second of pipeline wall time */
+        final double throughput;
+
+        StageMetrics(String name, int threads, long processed, long failed, long busyMillis,
+                     long blockedMillis, int queueDepth, int maxQueueDepth, int queueCapacity,
+                     double throughput) {
+            this.name = name;
+            this.threads = threads;
+            this.processed = processed;
+            this.failed = failed;
+            this.busyMillis = busyMillis;
+            this.blockedMillis = blockedMillis;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.queueCapacity = queueCapacity;
+            this.throughput = throughput;
+        }
+
+        @Override
+        public String toString() {
+            return name + "[x" + threads + " done=" + processed + " failed=" + failed
+                    + " busy=" + busyMillis + "ms blocked=" + blockedMillis + "ms queue="
+                    + queueDepth + "/" + queueCapacity + " max=" + maxQueueDepth
+                    + " " + Math.round(throughput * 10) / 10.0 + "/s]";
+        }
+    }
+
+    private final class StageRunner implements Runnable {
+        private final String mStageName;
+        private final int mThreads;
+        private final Stage<T> mStage;
+        private final BlockingQueue<T> mQueue;
+
+        private final AtomicLong mProcessed = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+        private final AtomicLong mBusyNanos = new AtomicLong();
+        private final AtomicLong mBlockedNanos = new AtomicLong();
+        private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+
+        private StageRunner mNext;
+        private ExecutorService mExecutor;
+
+        /* Set before the interrupt, which a stage may swallow while finishing its item */
+        private volatile boolean mStopped;
+
+        StageRunner(String name, int threads, Stage<T> stage) {
+            mStageName = name;
+            mThreads = threads;
+            mStage = stage;
+            mQueue = new ArrayBlockingQueue<>(mQueueCapacity);
+        }
+
+        void start(StageRunner next) {
+            mNext = next;
+            mExecutor = Executors.newFixedThreadPool(mThreads,
+                    new StageThreadFactory(mName + "-" + mStageName));
+            for (int i = 0; i < mThreads; i++) {
+                mExecutor.execute(this);
+            }
+        }
+
+        void stop() {
+            mStopped = true;
+            if (mExecutor != null) {
+                /* Workers sit in take() or put() when idle, the interrupt ends their loop */
+                mExecutor.shutdownNow();
+            }
+        }
+
+        boolean awaitTermination(long timeoutNanos) throws InterruptedException {
+            return mExecutor == null
+                    || mExecutor.awaitTermination(timeoutNanos, TimeUnit.NANOSECONDS);
+        }
+
+        void enqueue(T item) throws InterruptedException {
+            if (!mQueue.offer(item)) {
+                long start = System.nanoTime();
+                mQueue.put(item);
+                mBlockedNanos.addAndGet(System.nanoTime() - start);
+            }
+            int depth = mQueue.size();
+            int max = mMaxQueueDepth.get();
+            while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+                max = mMaxQueueDepth.get();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!mStopped && !Thread.currentThread().isInterrupted()) {
+                    T item = mQueue.take();
+                    long start = System.nanoTime();
+                    try {
+                        mStage.process(item);
+                    } catch (Exception e) {
+                        mBusyNanos.addAndGet(System.nanoTime() - start);
+                        mFailed.incrementAndGet();
+                        mListener.onFailed(item, mStageName, e);
+                        itemLeft();
+                        continue;
+                    }
+                    mBusyNanos.addAndGet(System.nanoTime() - start);
+                    mProcessed.incrementAndGet();
+
+                    /* Shut down while processing, the item is dropped like those still queued */
+                    if (mStopped) break;
+                    if (mNext != null) {
+                        mNext.enqueue(item);
+                    } else {
+                        mListener.onCompleted(item);
+                        itemLeft();
+                    }
+                }
+            } catch (InterruptedException e) {
+                /* The pipeline was shut down */
+            }
+        }
+
+        StageMetrics snapshot(long elapsedNanos) {
+            long processed = mProcessed.get();
+            double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            return new StageMetrics(mStageName, mThreads, processed, mFailed.get(),
+                    TimeUnit.NANOSECONDS.toMillis(mBusyNanos.get()),
+                    TimeUnit.NANOSECONDS.toMillis(mBlockedNanos.get()),
+                    mQueue.size(), mMaxQueueDepth.get(), mQueueCapacity,
+                    seconds > 0 ? processed / seconds : 0);
+        }
+    }
+
+    private static final class StageThreadFactory implements ThreadFactory {
+        private final String mPrefix;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        StageThreadFactory(String prefix) {
+            mPrefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "centz-" + mPrefix + "-"
+                    + mCount.incrementAndGet());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
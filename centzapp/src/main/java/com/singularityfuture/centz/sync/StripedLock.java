@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks that keys are spread over by hash. Work on keys that land on different
+ * stripes runs concurrently, work on the same key never does. Two keys may share a stripe, which
+ * only costs some concurrency, never correctness.
+ *
+ * Work that needs several keys takes their stripes with {@link #lockAll}, always in ascending
+ * stripe order, so two callers with overlapping keys can't deadlock on each other.
+ */
+final class StripedLock {
+
+    /* Plenty for a watchlist, and small enough that every stripe is cheap to keep */
+    static final int DEFAULT_STRIPES = 32;
+
+    private final ReentrantLock[] mStripes;
+
+    private final AtomicLong mAcquired = new AtomicLong();
+    private final AtomicLong mContended = new AtomicLong();
+
+    /**
+     * @param stripes How many locks keys are spread over
+     */
+    StripedLock(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Need at least 1 stripe: " + stripes);
+        }
+        mStripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            mStripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * The stripes held by one {@link #lockAll} call. Must be unlocked on the thread that locked.
+     */
+    final class Held {
+        private final int[] mHeld;
+
+        private Held(int[] held) {
+            mHeld = held;
+        }
+
+        void unlock() {
+            for (int i = mHeld.length - 1; i >= 0; i--) {
+                mStripes[mHeld[i]].unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the stripes of every key, blocking until all of them are free.
+     *
+     * @param keys The keys about to be worked on
+     * @return The stripes taken, to be unlocked when the work is done
+     * @throws InterruptedException If the calling thread was interrupted while waiting, in which
+     *                              case no stripe is held
+     */
+    Held lockAll(Collection<?> keys) throws InterruptedException {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Object key : keys) {
+            stripes.add(stripeFor(key));
+        }
+
+        int[] held = new int[stripes.size()];
+        int count = 0;
+        try {
+            for (int stripe : stripes) {
+                ReentrantLock lock = mStripes[stripe];
+                if (!lock.tryLock()) {
+                    mContended.incrementAndGet();
+                    lock.lockInterruptibly();
+                }
+                held[count++] = stripe;
+            }
+        } catch (InterruptedException e) {
+            while (count > 0) {
+                mStripes[held[--count]].unlock();
+            }
+            throw e;
+        }
+        mAcquired.addAndGet(count);
+        return new Held(held);
+    }
+
+    int stripeFor(Object key) {
+        /* Spread the hash so keys that only differ in their high bits still land apart */
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return (hash & 0x7fffffff) % mStripes.length;
+    }
+
+    int getStripeCount() {
+        return mStripes.length;
+    }
+
+    /**
+     * @return Number of stripes taken so far
+     */
+    long getAcquiredCount() {
+        return mAcquired.get();
+    }
+
+    /**
+     * @return Number of times a stripe was already held by someone else and had to be waited for
+     */
+    long getContendedCount() {
+        return mContended.get();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+/**
+ * The result of a single call to {@link CentzSyncTask#syncCentz}.
+ */
+public enum SyncOutcome {
+
+    /* New data was downloaded and written to the ContentProvider */
+    UPDATED,
+
+    /* The server confirmed that our data is current (HTTP 304), nothing was parsed or written */
+    NOT_MODIFIED,
+
+    /*
+     * The fetch, parse or write of at least one request failed and its rows were left
+     * untouched. Requests of the same sync that succeeded may have been stored.
+     */
+    FAILED
+}
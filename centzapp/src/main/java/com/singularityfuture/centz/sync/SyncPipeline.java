@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.singularityfuture.centz.data.CentzBatch;
+import com.singularityfuture.centz.data.CentzContract;
+import com.singularityfuture.centz.utilities.CancellationToken;
+import com.singularityfuture.centz.utilities.HedgedFetcher;
+import com.singularityfuture.centz.utilities.HttpFetchResult;
+import com.singularityfuture.centz.utilities.OpenCentzJsonUtils;
+import com.singularityfuture.centz.utilities.ResponseBuffer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the requests of a sync through a {@link StagedPipeline} of three stages: fetch, parse and
+ * persist. While one request is being stored the next is parsed and the ones after it are on the
+ * network, and a stage that falls behind holds the stages before it back instead of letting
+ * responses pile up in memory.
+ *
+ * The stages and their threads are started by the first run and shared by every run after it, so
+ * syncs running at the same time take turns on the same threads and queue slots. The limits on
+ * requests in flight hold for the whole process, not for each sync.
+ *
+ * Every request is stored on its own with a provider upsert limited to its symbols that doesn't
+ * notify observers; the caller sends the one change notification once the whole sync is stored.
+ * The rows of every stored request are also collected in a batch supplied by the caller, for the
+ * snapshot and the watch.
+ *
+ * A run can be cancelled through a {@link CancellationToken}. Fetches in flight are aborted and
+ * requests of the run still waiting in the pipeline skip the stages they haven't reached. An
+ * upsert in progress is finished, and the run waits for it before returning. Requests stored by
+ * then stay stored.
+ */
+final class SyncPipeline {
+
+    private static final String TAG = SyncPipeline.class.getSimpleName();
+
+    /* How many requests may wait in front of each stage */
+    static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    /* Parsing is much quicker than the network, two threads keep up with several fetches */
+    private static final int PARSE_THREADS = 2;
+
+    /* SQLite has a single writer, more persist threads would only wait for each other */
+    private static final int PERSIST_THREADS = 1;
+
+    /* A run that takes longer than this has stalled, its stragglers are reported as failed */
+    private static final long RUN_TIMEOUT_MINUTES = 10;
+
+    /* How often a run waiting for its requests checks whether it was cancelled */
+    private static final long CANCEL_POLL_MILLIS = 100;
+
+    /* How long a cancelled run waits for its requests to leave the pipeline */
+    private static final long TERMINATION_TIMEOUT_SECONDS = 30;
+
+    private final int mFetchThreads;
+    private final int mQueueCapacity;
+
+    /*
+     * Buffers and batches are handed from request to request. The pipeline never has more in use
+     * than it has threads and queue slots, which is also as many as are kept around between runs.
+     */
+    private final BlockingQueue<ResponseBuffer> mBuffers;
+    private final BlockingQueue<CentzBatch> mBatches;
+
+    /* Started by the first run, then shared by every run */
+    private StagedPipeline<Job> mPipeline;
+
+    /**
+     * @param fetchThreads  The most requests that may be on the network at the same time
+     * @param queueCapacity How many requests may wait in front of each stage
+     */
+    SyncPipeline(int fetchThreads, int queueCapacity) {
+        if (fetchThreads < 1) {
+            throw new IllegalArgumentException("Need at least 1 fetch thread: " + fetchThreads);
+        }
+        mFetchThreads = fetchThreads;
+        mQueueCapacity = queueCapacity;
+        int inUse = fetchThreads + PARSE_THREADS + PERSIST_THREADS + 3 * queueCapacity;
+        mBuffers = new ArrayBlockingQueue<>(inUse);
+        mBatches = new ArrayBlockingQueue<>(inUse);
+    }
+
+    /*
+     * One call to run. Its requests may share the pipeline with those of other runs, so they
+     * carry what the stages need to handle them and the run counts them out itself.
+     */
+    private static final class Run {
+        final Context context;
+        final ContentResolver resolver;
+        final CentzBatch rows;
+
+        /* Linked to the caller's token, also cancelled when the run gives up on its requests */
+        final CancellationToken token = new CancellationToken();
+
+        /* Requests submitted that haven't left the pipeline yet */
+        private int mPending;
+
+        Run(Context context, CentzBatch rows) {
+            this.context = context;
+            this.resolver = context.getContentResolver();
+            this.rows = rows;
+        }
+
+        synchronized void jobEntered() {
+            mPending++;
+        }
+
+        synchronized void jobLeft() {
+            if (--mPending == 0) notifyAll();
+        }
+
+        /* Whether every request submitted so far left the pipeline within the timeout */
+        synchronized boolean awaitJobs(long timeoutNanos) throws InterruptedException {
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (mPending > 0) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+    }
+
+    /* One request on its way through the stages */
+    private static final class Job {
+        final Run run;
+        final SyncRequestPlanner.PlannedRequest request;
+        HttpFetchResult fetch;
+        ResponseBuffer body;
+        CentzBatch rows;
+        volatile SyncRequestPlanner.RequestResult result;
+
+        Job(Run run, SyncRequestPlanner.PlannedRequest request) {
+            this.run = run;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Same as {@link #run(Context, List, CentzBatch, CancellationToken)} for a run that can't be
+     * cancelled.
+     */
+    List<SyncRequestPlanner.RequestResult> run(Context context,
+                                               List<SyncRequestPlanner.PlannedRequest> requests,
+                                               CentzBatch rows)
+            throws InterruptedException {
+        return run(context, requests, rows, new CancellationToken());
+    }
+
+    /**
+     * Fetches, parses and stores every planned request. Blocks until all of them are done or the
+     * run is cancelled, and until none of its requests is left in the pipeline.
+     *
+     * @param context  Used by the parser and to read the validators and store the rows
+     * @param requests The requests to run
+     * @param rows     Receives the rows of every stored request
+     * @param token    Cancels the run, requests that weren't stored by then are reported as
+     *                 failed with a {@link CancellationToken.CancelledException}
+     * @return One result per request, in the same order as the requests
+     * @throws InterruptedException If the calling thread was interrupted while waiting
+     */
+    List<SyncRequestPlanner.RequestResult> run(Context context,
+                                               List<SyncRequestPlanner.PlannedRequest> requests,
+                                               CentzBatch rows,
+                                               CancellationToken token)
+            throws InterruptedException {
+        List<SyncRequestPlanner.RequestResult> results = new ArrayList<>(requests.size());
+        if (requests.isEmpty()) return results;
+
+        Run run = new Run(context, rows);
+        token.link(run.token);
+        List<Job> jobs = new ArrayList<>(requests.size());
+        boolean timedOut = false;
+        try {
+            StagedPipeline<Job> pipeline = started();
+            for (SyncRequestPlanner.PlannedRequest request : requests) {
+                if (run.token.isCancelled()) break;
+                Job job = new Job(run, request);
+                jobs.add(job);
+                run.jobEntered();
+                try {
+                    pipeline.submit(job);
+                } catch (InterruptedException e) {
+                    run.jobLeft();
+                    throw e;
+                }
+            }
+            if (!awaitCompletion(run)) {
+                timedOut = true;
+                Log.w(TAG, "Sync run didn't finish within " + RUN_TIMEOUT_MINUTES + " minutes");
+            }
+        } finally {
+            /* Requests of the run still in the pipeline skip their remaining stages */
+            run.token.cancel();
+            awaitTermination(run);
+            token.unlink(run.token);
+            Log.d(TAG, "Stages: " + getSummary());
+        }
+
+        Exception unfinished = timedOut
+                ? new TimeoutException("Request didn't finish")
+                : new CancellationToken.CancelledException();
+        for (int i = 0; i < requests.size(); i++) {
+            Job job = i < jobs.size() ? jobs.get(i) : new Job(run, requests.get(i));
+            SyncRequestPlanner.RequestResult result = job.result;
+            if (result == null || (timedOut
+                    && result.error instanceof CancellationToken.CancelledException)) {
+                result = SyncRequestPlanner.RequestResult.failed(job.request, job.fetch,
+                        unfinished);
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    private synchronized StagedPipeline<Job> started() {
+        if (mPipeline != null) return mPipeline;
+
+        StagedPipeline<Job> pipeline = new StagedPipeline<>("sync", mQueueCapacity,
+                new StagedPipeline.Listener<Job>() {
+                    @Override
+                    public void onCompleted(Job job) {
+                        job.run.jobLeft();
+                    }
+
+                    @Override
+                    public void onFailed(Job job, String stage, Exception error) {
+                        /* The stages catch what they expect, this is a programming error */
+                        release(job);
+                        job.result = SyncRequestPlanner.RequestResult.failed(job.request,
+                                job.fetch, error);
+                        job.run.jobLeft();
+                    }
+                });
+
+        pipeline.addStage("fetch", mFetchThreads, new StagedPipeline.Stage<Job>() {
+                    @Override
+                    public void process(Job job) {
+                        fetch(job);
+                    }
+                })
+                .addStage("parse", PARSE_THREADS, new StagedPipeline.Stage<Job>() {
+                    @Override
+                    public void process(Job job) {
+                        parse(job);
+                    }
+                })
+                .addStage("persist", PERSIST_THREADS, new StagedPipeline.Stage<Job>() {
+                    @Override
+                    public void process(Job job) {
+                        persist(job);
+                    }
+                });
+        pipeline.start();
+        mPipeline = pipeline;
+        return pipeline;
+    }
+
+    /* Waits for the requests of the run, but gives up as soon as the run is cancelled */
+    private static boolean awaitCompletion(Run run) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(RUN_TIMEOUT_MINUTES);
+        while (!run.token.isCancelled()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            if (run.awaitJobs(Math.min(remaining,
+                    TimeUnit.MILLISECONDS.toNanos(CANCEL_POLL_MILLIS)))) {
+                return true;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Waits for the requests of a cancelled run to leave the pipeline. The caller holds the
+     * locks of the symbols being synced and the results are read off the jobs after this, so a
+     * run must not return while a persist is still writing. An interrupt doesn't cut that short,
+     * it is kept for the caller to see once the requests are gone.
+     */
+    private static void awaitTermination(Run run) {
+        boolean interrupted = false;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TERMINATION_TIMEOUT_SECONDS);
+        try {
+            while (true) {
+                try {
+                    if (!run.awaitJobs(deadline - System.nanoTime())) {
+                        Log.w(TAG, "Sync requests didn't leave the pipeline within "
+                                + TERMINATION_TIMEOUT_SECONDS + " seconds");
+                    }
+                    return;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return The stage metrics of every run so far, empty before the first one
+     */
+    synchronized List<StagedPipeline.StageMetrics> getMetrics() {
+        return mPipeline != null
+                ? mPipeline.getMetrics()
+                : Collections.<StagedPipeline.StageMetrics>emptyList();
+    }
+
+    private synchronized String getSummary() {
+        return mPipeline != null ? mPipeline.summary() : "";
+    }
+
+    /**
+     * Stops the stage threads, for a pipeline that won't run again. Runs still in progress are
+     * left with requests that never finish.
+     */
+    synchronized void shutdown() {
+        if (mPipeline != null) mPipeline.shutdown();
+    }
+
+    /**
+     * The validators a request sends so the server can answer 304 when nothing changed. They
+     * come from the sync metadata of the request's symbol and are only sent while rows of that
+     * answer are stored, because a 304 leaves the sync with nothing else to show.
+     */
+    static final class Validators {
+        static final Validators NONE = new Validators(null, null);
+
+        private static final String[] PROJECTION = {
+                CentzContract.SyncMetaEntry.COLUMN_SOURCE,
+                CentzContract.SyncMetaEntry.COLUMN_ETAG,
+                CentzContract.SyncMetaEntry.COLUMN_LAST_MODIFIED,
+                CentzContract.SyncMetaEntry.COLUMN_ROW_COUNT
+        };
+        private static final int INDEX_SOURCE = 0;
+        private static final int INDEX_ETAG = 1;
+        private static final int INDEX_LAST_MODIFIED = 2;
+        private static final int INDEX_ROW_COUNT = 3;
+
+        final String etag;
+        final String lastModified;
+
+        Validators(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+
+        /*
+         * None for a symbol without metadata, without stored rows, or whose rows came from
+         * another URL, say a different source or currency.
+         */
+        static Validators load(ContentResolver resolver,
+                               SyncRequestPlanner.PlannedRequest request) {
+            Cursor meta = resolver.query(
+                    CentzContract.SyncMetaEntry.buildSyncMetaUriWithSymbol(request.symbol),
+                    PROJECTION, null, null, null);
+            if (meta == null) return NONE;
+            try {
+                if (!meta.moveToFirst()
+                        || meta.getInt(INDEX_ROW_COUNT) <= 0
+                        || !request.url.toString().equals(meta.getString(INDEX_SOURCE))) {
+                    return NONE;
+                }
+                return new Validators(meta.getString(INDEX_ETAG),
+                        meta.getString(INDEX_LAST_MODIFIED));
+            } finally {
+                meta.close();
+            }
+        }
+    }
+
+    private void fetch(Job job) {
+        CancellationToken token = job.run.token;
+        if (token.isCancelled()) {
+            cancel(job);
+            return;
+        }
+
+        ResponseBuffer body = takeBuffer();
+
+        /* Each fetch gets a token of its own, a token only tracks one call at a time */
+        CancellationToken fetchToken = new CancellationToken();
+        token.link(fetchToken);
+        try {
+            Validators validators = Validators.load(job.run.resolver, job.request);
+            job.fetch = HedgedFetcher.getDefault().fetch(job.request.url, validators.etag,
+                    validators.lastModified, body, fetchToken);
+            if (job.fetch.isNotModified()) {
+                job.result = new SyncRequestPlanner.RequestResult(job.request,
+                        SyncOutcome.NOT_MODIFIED, job.fetch, -1, 0, null);
+                return;
+            }
+            job.body = body;
+            body = null;
+        } catch (Exception e) {
+            job.result = SyncRequestPlanner.RequestResult.failed(job.request, null, e);
+        } finally {
+            token.unlink(fetchToken);
+            if (body != null) releaseBuffer(body);
+        }
+    }
+
+    private void parse(Job job) {
+        if (job.result != null) return;
+        if (job.run.token.isCancelled()) {
+            cancel(job);
+            return;
+        }
+
+        CentzBatch parsed = takeBatch();
+        try {
+            String symbol = job.request.symbol;
+            if (!OpenCentzJsonUtils.appendCentzRowsFromJson(job.run.context, symbol, job.body, parsed)) {
+                job.result = SyncRequestPlanner.RequestResult.failed(job.request, job.fetch,
+                        new IllegalStateException("Server reported an error for " + symbol));
+                return;
+            }
+            job.rows = parsed;
+            parsed = null;
+        } catch (Exception e) {
+            job.result = SyncRequestPlanner.RequestResult.failed(job.request, job.fetch, e);
+        } finally {
+            releaseBuffer(job.body);
+            job.body = null;
+            if (parsed != null) releaseBatch(parsed);
+        }
+    }
+
+    /*
+     * Only ever runs on the single persist thread, which is what makes adding to the rows of the
+     * run safe
+     */
+    private void persist(Job job) {
+        if (job.result != null) return;
+        if (job.run.token.isCancelled()) {
+            cancel(job);
+            return;
+        }
+
+        try {
+            CentzBatch.UpsertResult upsert = job.rows.upsertOwnSymbolsInto(job.run.resolver);
+            int firstRow = job.run.rows.addAll(job.rows);
+
+            /* The caller records the validators in the sync metadata, next to the row count */
+            job.result = new SyncRequestPlanner.RequestResult(job.request, SyncOutcome.UPDATED,
+                    job.fetch, firstRow, job.rows.size(), null, upsert);
+        } catch (Exception e) {
+            job.result = SyncRequestPlanner.RequestResult.failed(job.request, job.fetch, e);
+        } finally {
+            releaseBatch(job.rows);
+            job.rows = null;
+        }
+    }
+
+    private void cancel(Job job) {
+        release(job);
+        job.result = SyncRequestPlanner.RequestResult.failed(job.request, job.fetch,
+                new CancellationToken.CancelledException());
+    }
+
+    private void release(Job job) {
+        if (job.body != null) {
+            releaseBuffer(job.body);
+            job.body = null;
+        }
+        if (job.rows != null) {
+            releaseBatch(job.rows);
+            job.rows = null;
+        }
+    }
+
+    private ResponseBuffer takeBuffer() {
+        ResponseBuffer buffer = mBuffers.poll();
+        return buffer != null ? buffer : new ResponseBuffer();
+    }
+
+    private void releaseBuffer(ResponseBuffer buffer) {
+        buffer.clear();
+        mBuffers.offer(buffer);
+    }
+
+    private CentzBatch takeBatch() {
+        CentzBatch batch = mBatches.poll();
+        return batch != null ? batch : new CentzBatch();
+    }
+
+    private void releaseBatch(CentzBatch batch) {
+        batch.clear();
+        mBatches.offer(batch);
+    }
+}
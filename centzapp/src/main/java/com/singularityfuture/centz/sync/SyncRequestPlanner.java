@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.singularityfuture.centz.data.CentzBatch;
+import com.singularityfuture.centz.utilities.HttpFetchResult;
+import com.singularityfuture.centz.utilities.NetworkUtils;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns the user's watchlist into upstream requests, one per symbol since the API has no batch
+ * endpoint. The planned requests are run through a {@link SyncPipeline}, which reports back one
+ * {@link RequestResult} per request.
+ */
+final class SyncRequestPlanner {
+
+    private static final String TAG = SyncRequestPlanner.class.getSimpleName();
+
+    /* How many requests may be in flight at once unless the caller asks for something else */
+    static final int DEFAULT_PARALLELISM = 4;
+
+    private SyncRequestPlanner() {
+    }
+
+    /**
+     * A single upstream call for one symbol.
+     */
+    static final class PlannedRequest {
+        final String symbol;
+        final URL url;
+
+        PlannedRequest(String symbol, URL url) {
+            this.symbol = symbol;
+            this.url = url;
+        }
+    }
+
+    /**
+     * What happened to one {@link PlannedRequest}. An UPDATED result owns rowCount rows of the
+     * batch the run collected its rows in, starting at firstRow, and says what the provider did
+     * with them. A FAILED result carries the error and no rows, a NOT_MODIFIED result carries
+     * neither.
+     */
+    static final class RequestResult {
+        final PlannedRequest request;
+        final SyncOutcome outcome;
+        final HttpFetchResult fetch;
+        final int firstRow;
+        final int rowCount;
+        final Exception error;
+        final CentzBatch.UpsertResult upsert;
+
+        RequestResult(PlannedRequest request, SyncOutcome outcome, HttpFetchResult fetch,
+                      int firstRow, int rowCount, Exception error) {
+            this(request, outcome, fetch, firstRow, rowCount, error, null);
+        }
+
+        RequestResult(PlannedRequest request, SyncOutcome outcome, HttpFetchResult fetch,
+                      int firstRow, int rowCount, Exception error,
+                      CentzBatch.UpsertResult upsert) {
+            this.request = request;
+            this.outcome = outcome;
+            this.fetch = fetch;
+            this.firstRow = firstRow;
+            this.rowCount = rowCount;
+            this.error = error;
+            this.upsert = upsert;
+        }
+
+        static RequestResult failed(PlannedRequest request, HttpFetchResult fetch,
+                                    Exception error) {
+            return new RequestResult(request, SyncOutcome.FAILED, fetch, -1, 0, error);
+        }
+    }
+
+    /**
+     * Plans one request per symbol of the watchlist. The order of the watchlist is kept, so the
+     * preferred location is always the first request.
+     *
+     * @param context   Used to build the request URLs
+     * @param watchlist The symbols to fetch
+     * @return The planned requests
+     */
+    static List<PlannedRequest> plan(Context context, List<String> watchlist) {
+        List<PlannedRequest> requests = new ArrayList<>();
+        for (String symbol : watchlist) {
+            URL url = NetworkUtils.buildUrlForSymbol(context, symbol);
+            if (url == null) {
+                Log.w(TAG, "Could not build a URL for " + symbol + ", skipping");
+                continue;
+            }
+            requests.add(new PlannedRequest(symbol, url));
+        }
+        return requests;
+    }
+}
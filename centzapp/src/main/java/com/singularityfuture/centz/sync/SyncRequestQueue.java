@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.singularityfuture.centz.utilities.CancellationToken;
+import com.singularityfuture.centz.utilities.LatencyTracker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Every sync the app asks for goes through this queue, ordered by how much somebody is waiting
+ * for it. Requests are run by a couple of dedicated threads, the most urgent first and in the
+ * order they came in within a {@link Priority}.
+ * <p>
+ * A request for symbols that are already waiting to be synced doesn't queue a second sync, it
+ * is merged into the waiting one, which moves up if the new request is more urgent. So is a
+ * request for some symbols while a sync of the whole watchlist waits. A sync that is already
+ * running may have fetched before the request came in, so a request for the same symbols waits
+ * for it to end and then gets a sync of its own. When every thread is busy
+ * and an {@link Priority#INTERACTIVE} request comes in, a running {@link Priority#BACKFILL} sync
+ * is cancelled and queued again behind it.
+ * <p>
+ * For each priority the queue keeps the time from a request to the fresh data it asked for, so
+ * that the interactive syncs can be held to a target.
+ */
+public final class SyncRequestQueue {
+
+    private static final String TAG = SyncRequestQueue.class.getSimpleName();
+
+    /**
+     * How urgent a sync is, most urgent first.
+     */
+    public enum Priority {
+        /* Somebody is looking at the screen, for example after changing a setting */
+        INTERACTIVE,
+        /* A price is close to one of the user's alerts */
+        ALERT_CRITICAL,
+        /* The periodic sync, and syncs nobody in particular is waiting for */
+        BACKGROUND,
+        /* Data of symbols the user isn't looking at, which can wait for anything else */
+        BACKFILL
+    }
+
+    /**
+     * Told how the sync a request ended up in went. Not called for cancelled tickets.
+     */
+    public interface Callback {
+        void onFinished(SyncOutcome outcome);
+    }
+
+    /* Does the actual syncing, of the whole watchlist when symbols is null */
+    interface Syncer {
+        SyncOutcome sync(List<String> symbols, CancellationToken token);
+    }
+
+    /*
+     * Two syncs run side by side, so a refresh of one symbol doesn't wait for a long sync of the
+     * whole watchlist. Each sync already spreads its requests over the pipeline's threads.
+     */
+    static final int WORKER_THREADS = 2;
+
+    /* Interactive requests should see fresh data within this, at the p95 */
+    public static final long INTERACTIVE_TARGET_MILLIS = 5000;
+
+    private static final int LATENCY_SAMPLES = 200;
+
+    private static final String WATCHLIST_KEY = "watchlist";
+
+    private static SyncRequestQueue sInstance;
+
+    private final Syncer mSyncer;
+    private final int mWorkers;
+
+    /* Everything below is guarded by mLock, except the counters */
+    private final Object mLock = new Object();
+    private final PriorityQueue<Request> mQueue = new PriorityQueue<>();
+    private final Map<String, Request> mByKey = new HashMap<>();
+    private final List<Request> mRunning = new ArrayList<>();
+    private long mSequence;
+
+    private final LatencyTracker[] mLatencies = new LatencyTracker[Priority.values().length];
+    private final AtomicLong[] mSubmitted = new AtomicLong[Priority.values().length];
+    private final AtomicLong[] mMerged = new AtomicLong[Priority.values().length];
+    private final AtomicLong[] mFailed = new AtomicLong[Priority.values().length];
+    private final AtomicLong mPreempted = new AtomicLong();
+
+    /**
+     * @param context Used to run the syncs, the application context is kept
+     * @return The queue all of the app's syncs go through
+     */
+    public static synchronized SyncRequestQueue getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new SyncRequestQueue(new Syncer() {
+                @Override
+                public SyncOutcome sync(List<String> symbols, CancellationToken token) {
+                    return symbols == null
+                            ? CentzSyncTask.syncCentz(appContext, token)
+                            : CentzSyncTask.syncSymbols(appContext, symbols, token);
+                }
+            }, WORKER_THREADS);
+        }
+        return sInstance;
+    }
+
+    SyncRequestQueue(Syncer syncer, int workers) {
+        mSyncer = syncer;
+        mWorkers = workers;
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyTracker(LATENCY_SAMPLES);
+            mSubmitted[i] = new AtomicLong();
+            mMerged[i] = new AtomicLong();
+            mFailed[i] = new AtomicLong();
+        }
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "centz-sync-queue-" + (i + 1));
+            worker.setPriority(Thread.MIN_PRIORITY);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Asks for a sync.
+     *
+     * @param symbols  The symbols to sync, or null for the whole watchlist
+     * @param priority How urgent the sync is
+     * @param callback Told when the sync is done, on the thread that ran it, may be null
+     * @return A ticket to wait for the sync with, or to withdraw the request
+     */
+    public Ticket submit(List<String> symbols, Priority priority, Callback callback) {
+        Ticket ticket = new Ticket(this, priority, callback);
+        String key = symbols == null ? WATCHLIST_KEY : "symbols:" + TextUtils.join(",", symbols);
+        mSubmitted[priority.ordinal()].incrementAndGet();
+
+        synchronized (mLock) {
+            Request request = mByKey.get(key);
+            if (request != null && mRunning.contains(request)) request = null;
+            if (request == null && symbols != null) {
+                /* A sync of the whole watchlist that hasn't started yet covers these symbols */
+                Request watchlist = mByKey.get(WATCHLIST_KEY);
+                if (watchlist != null && !mRunning.contains(watchlist)) request = watchlist;
+            }
+
+            if (request != null) {
+                mMerged[priority.ordinal()].incrementAndGet();
+                request.tickets.add(ticket);
+                ticket.mRequest = request;
+                if (priority.compareTo(request.priority) < 0) {
+                    boolean queued = mQueue.remove(request);
+                    request.priority = priority;
+                    if (queued) mQueue.add(request);
+                }
+                return ticket;
+            }
+
+            request = new Request(key, symbols, priority, mSequence++);
+            request.tickets.add(ticket);
+            ticket.mRequest = request;
+            mByKey.put(key, request);
+
+            /* Running both at once would only join the running sync, see CentzSyncTask#sync */
+            Request running = findRunning(key);
+            if (running != null) {
+                running.followUp = request;
+                if (priority == Priority.INTERACTIVE && running.priority == Priority.BACKFILL) {
+                    preempt(running);
+                }
+                return ticket;
+            }
+            mQueue.add(request);
+
+            if (priority == Priority.INTERACTIVE && mRunning.size() >= mWorkers) {
+                preemptBackfill();
+            }
+            mLock.notifyAll();
+        }
+        return ticket;
+    }
+
+    private Request findRunning(String key) {
+        for (Request running : mRunning) {
+            if (running.key.equals(key)) return running;
+        }
+        return null;
+    }
+
+    /* Cancels a running backfill sync, which is queued again once it has stopped */
+    private void preemptBackfill() {
+        for (Request running : mRunning) {
+            if (running.priority == Priority.BACKFILL && !running.preempted) {
+                preempt(running);
+                return;
+            }
+        }
+    }
+
+    private void preempt(Request running) {
+        if (running.preempted) return;
+        running.preempted = true;
+        running.token.cancel();
+        mPreempted.incrementAndGet();
+        Log.d(TAG, "Preempting backfill of " + running.key);
+    }
+
+    private void work() {
+        while (true) {
+            Request request;
+            synchronized (mLock) {
+                while (mQueue.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                request = mQueue.poll();
+                mRunning.add(request);
+            }
+
+            SyncOutcome outcome;
+            try {
+                outcome = mSyncer.sync(request.symbols, request.token);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Sync of " + request.key + " failed", e);
+                outcome = SyncOutcome.FAILED;
+            }
+            finish(request, outcome);
+        }
+    }
+
+    private void finish(Request request, SyncOutcome outcome) {
+        List<Ticket> tickets;
+        synchronized (mLock) {
+            mRunning.remove(request);
+            Request followUp = request.followUp;
+            request.followUp = null;
+            if (followUp != null && followUp.tickets.isEmpty()) followUp = null;
+
+            if (request.preempted && !request.tickets.isEmpty()) {
+                /* Keeps its place among the backfill, it was there first */
+                request.preempted = false;
+                request.token = new CancellationToken();
+                if (followUp != null) {
+                    /* It starts over, so it fetches late enough for the follow-up as well */
+                    mergeInto(request, followUp);
+                }
+                mQueue.add(request);
+                mLock.notifyAll();
+                return;
+            }
+            if (mByKey.get(request.key) == request) mByKey.remove(request.key);
+            if (followUp != null) {
+                mQueue.add(followUp);
+                mLock.notifyAll();
+            }
+            tickets = new ArrayList<>(request.tickets);
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        for (Ticket ticket : tickets) {
+            int priority = ticket.mPriority.ordinal();
+            if (outcome == SyncOutcome.FAILED) {
+                mFailed[priority].incrementAndGet();
+            } else {
+                mLatencies[priority].record(now - ticket.mSubmittedAt);
+            }
+            if (ticket.complete(outcome) && ticket.mCallback != null) {
+                ticket.mCallback.onFinished(outcome);
+            }
+        }
+
+        LatencyTracker interactive = getLatencies(Priority.INTERACTIVE);
+        if (interactive.getPercentile(95) > INTERACTIVE_TARGET_MILLIS) {
+            Log.w(TAG, "Interactive syncs are over their " + INTERACTIVE_TARGET_MILLIS
+                    + "ms target: " + interactive);
+        }
+        Log.d(TAG, summary());
+    }
+
+    /* Moves the tickets of a follow-up that never got queued into the request it followed */
+    private void mergeInto(Request request, Request followUp) {
+        for (Ticket ticket : followUp.tickets) {
+            request.tickets.add(ticket);
+            ticket.mRequest = request;
+        }
+        if (followUp.priority.compareTo(request.priority) < 0) {
+            request.priority = followUp.priority;
+        }
+        if (mByKey.get(request.key) == followUp) mByKey.put(request.key, request);
+    }
+
+    private void cancel(Ticket ticket) {
+        synchronized (mLock) {
+            Request request = ticket.mRequest;
+            if (request == null || !request.tickets.remove(ticket)) return;
+            if (request.tickets.isEmpty()) {
+                /* Nobody is waiting for it any more */
+                if (mRunning.contains(request)) {
+                    request.token.cancel();
+                } else {
+                    mQueue.remove(request);
+                }
+                if (mByKey.get(request.key) == request) mByKey.remove(request.key);
+            }
+        }
+        ticket.complete(SyncOutcome.FAILED);
+    }
+
+    /**
+     * @param priority The priority class
+     * @return Time from a request to the fresh data it asked for, of requests that got it
+     */
+    public LatencyTracker getLatencies(Priority priority) {
+        return mLatencies[priority.ordinal()];
+    }
+
+    /**
+     * @param priority The priority class
+     * @return Number of requests made with the priority
+     */
+    public long getSubmittedCount(Priority priority) {
+        return mSubmitted[priority.ordinal()].get();
+    }
+
+    /**
+     * @param priority The priority class
+     * @return Number of requests with the priority that were merged into a waiting sync
+     */
+    public long getMergedCount(Priority priority) {
+        return mMerged[priority.ordinal()].get();
+    }
+
+    /**
+     * @param priority The priority class
+     * @return Number of requests with the priority whose sync failed
+     */
+    public long getFailedCount(Priority priority) {
+        return mFailed[priority.ordinal()].get();
+    }
+
+    /**
+     * @return Number of backfill syncs that were cancelled for an interactive request
+     */
+    public long getPreemptedCount() {
+        return mPreempted.get();
+    }
+
+    /**
+     * @return A one line summary suitable for logcat
+     */
+    public String summary() {
+        StringBuilder summary = new StringBuilder("preempted=").append(getPreemptedCount());
+        for (Priority priority : Priority.values()) {
+            summary.append(' ').append(priority.name().toLowerCase()).append(": submitted=")
+                    .append(getSubmittedCount(priority))
+                    .append(" merged=").append(getMergedCount(priority))
+                    .append(" failed=").append(getFailedCount(priority))
+                    .append(' ').append(getLatencies(priority));
+        }
+        return summary.toString();
+    }
+
+    /* A sync waiting or running, with everyone waiting for it */
+    private static final class Request implements Comparable<Request> {
+        final String key;
+        final List<String> symbols;
+        final long sequence;
+        final List<Ticket> tickets = new ArrayList<>();
+        Priority priority;
+        CancellationToken token = new CancellationToken();
+        boolean preempted;
+        /* Queued once this one has run, for requests that came in while it was running */
+        Request followUp;
+
+        Request(String key, List<String> symbols, Priority priority, long sequence) {
+            this.key = key;
+            this.symbols = symbols;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int byPriority = priority.compareTo(other.priority);
+            if (byPriority != 0) return byPriority;
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * One request for a sync. Several tickets can share a sync when their requests were merged.
+     */
+    public static final class Ticket {
+        private final SyncRequestQueue mQueue;
+        private final Priority mPriority;
+        private final Callback mCallback;
+        private final long mSubmittedAt = SystemClock.elapsedRealtime();
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private final AtomicBoolean mCompleted = new AtomicBoolean();
+        private volatile SyncOutcome mOutcome;
+
+        /* Guarded by the queue's lock */
+        private Request mRequest;
+
+        private Ticket(SyncRequestQueue queue, Priority priority, Callback callback) {
+            mQueue = queue;
+            mPriority = priority;
+            mCallback = callback;
+        }
+
+        /**
+         * Waits for the sync.
+         *
+         * @return What the sync did, FAILED if the ticket was cancelled
+         * @throws InterruptedException If the calling thread was interrupted while waiting
+         */
+        public SyncOutcome await() throws InterruptedException {
+            mDone.await();
+            return mOutcome;
+        }
+
+        /**
+         * Withdraws the request. The sync is dropped, or cancelled if it is running, once no
+         * other request is waiting for it.
+         */
+        public void cancel() {
+            mQueue.cancel(this);
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+
+        /* Returns whether this call completed the ticket */
+        private boolean complete(SyncOutcome outcome) {
+            if (!mCompleted.compareAndSet(false, true)) return false;
+            mOutcome = outcome;
+            mDone.countDown();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.sync;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataEvent;
+import com.google.android.gms.wearable.DataEventBuffer;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pushes today's prices of the preferred location to the watch, off the sync's thread. Syncs
+ * hand their prices to {@link #publish(int, int, int)}, which only stores them and returns.
+ * A background thread owns the one connection to the Wearable API for the whole process and
+ * writes the DataItem: updates that arrive in a burst are coalesced into one write of the
+ * latest values, and a failed write is retried with backoff and right after a reconnect.
+ * <p>
+ * The publisher also answers a watch that just installed the app, see
+ * {@link GmsTransport#onDataChanged(DataEventBuffer)}.
+ */
+public final class WearPublisher {
+
+    private static final String TAG = WearPublisher.class.getSimpleName();
+
+    static final String PATH_CENTZ_INFO = "/centz_info";
+    static final String PATH_CENTZ_INSTALLED = "/centz_installed";
+
+    static final String KEY_MAX_TEMP = "com.singularityfuture.centz.key.max_temp";
+    static final String KEY_MIN_TEMP = "com.singularityfuture.centz.key.min_temp";
+    static final String KEY_CURRENT_TIME = "com.singularityfuture.centz.key.time";
+    static final String KEY_CENTZ_ID = "com.singularityfuture.centz.key.centz_id";
+
+    /* How long a burst of updates is collected before the latest one is written */
+    static final long DEFAULT_COALESCE_MILLIS = 500;
+
+    /* Backoff after a failed write, doubled up to MAX_RETRY_MILLIS until a write succeeds */
+    static final long DEFAULT_INITIAL_RETRY_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    static final long MAX_RETRY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long CONNECT_TIMEOUT_SECONDS = 30;
+    private static final long WRITE_TIMEOUT_SECONDS = 30;
+
+    private static final int MSG_FLUSH = 1;
+
+    /**
+     * The connection to the watch. Both methods are only called on the publisher's thread and
+     * may block it.
+     */
+    interface Transport {
+        /**
+         * @return Whether a connection is up, connecting first if needed
+         */
+        boolean connect();
+
+        /**
+         * @return Whether the DataItem was written
+         */
+        boolean write(int high, int low, int centzId, long timeMillis);
+    }
+
+    private static WearPublisher sInstance;
+
+    private final Transport mTransport;
+    private final Handler mHandler;
+    private final long mCoalesceMillis;
+    private final long mInitialRetryMillis;
+
+    private final Object mLock = new Object();
+    /* The latest update that hasn't been written yet, guarded by mLock */
+    private Update mPending;
+    /* Whether a flush is posted to the handler, guarded by mLock */
+    private boolean mFlushScheduled;
+
+    /* Only touched on the publisher's thread */
+    private long mRetryMillis;
+
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mWritten = new AtomicLong();
+    private final AtomicLong mFailedWrites = new AtomicLong();
+
+    /**
+     * @return The publisher of this process, started on first use
+     */
+    public static synchronized WearPublisher getInstance(Context context) {
+        if (sInstance == null) {
+            GmsTransport transport = new GmsTransport(context.getApplicationContext());
+            sInstance = new WearPublisher(transport, DEFAULT_COALESCE_MILLIS,
+                    DEFAULT_INITIAL_RETRY_MILLIS);
+            transport.mPublisher = sInstance;
+            sInstance.connectInBackground();
+        }
+        return sInstance;
+    }
+
+    @VisibleForTesting
+    WearPublisher(Transport transport, long coalesceMillis, long initialRetryMillis) {
+        mTransport = transport;
+        mCoalesceMillis = coalesceMillis;
+        mInitialRetryMillis = initialRetryMillis;
+        mRetryMillis = initialRetryMillis;
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper(), new Handler.Callback() {
+            @Override
+            public boolean handleMessage(Message msg) {
+                if (msg.what != MSG_FLUSH) return false;
+                flush();
+                return true;
+            }
+        });
+    }
+
+    /*
+     * Connects ahead of the first update, so the watch can reach us before we have anything to
+     * publish.
+     */
+    private void connectInBackground() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTransport.connect();
+            }
+        });
+    }
+
+    /**
+     * Queues prices for the watch and returns right away. If an update is still waiting to be
+     * written, it is replaced by this one.
+     *
+     * @param high    Today's high, in the units the user picked
+     * @param low     Today's low, in the units the user picked
+     * @param centzId Identifies the icon to show
+     */
+    public void publish(int high, int low, int centzId) {
+        mPublished.incrementAndGet();
+        Update update = new Update(high, low, centzId, System.currentTimeMillis());
+        synchronized (mLock) {
+            if (mPending != null) {
+                mCoalesced.incrementAndGet();
+            }
+            mPending = update;
+            if (mFlushScheduled) return;
+            mFlushScheduled = true;
+        }
+        mHandler.sendEmptyMessageDelayed(MSG_FLUSH, mCoalesceMillis);
+    }
+
+    /*
+     * Called when the connection came back. An update that is waiting for its retry is written
+     * right away instead of after the rest of its backoff.
+     */
+    void onReconnected() {
+        synchronized (mLock) {
+            if (mPending == null || !mFlushScheduled) return;
+        }
+        mHandler.removeMessages(MSG_FLUSH);
+        mHandler.sendEmptyMessage(MSG_FLUSH);
+    }
+
+    private void flush() {
+        Update update;
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            update = mPending;
+            mPending = null;
+        }
+        if (update == null) return;
+
+        if (mTransport.connect()
+                && mTransport.write(update.high, update.low, update.centzId, update.timeMillis)) {
+            mWritten.incrementAndGet();
+            mRetryMillis = mInitialRetryMillis;
+            return;
+        }
+
+        mFailedWrites.incrementAndGet();
+        long delay = mRetryMillis;
+        mRetryMillis = Math.min(MAX_RETRY_MILLIS, mRetryMillis * 2);
+        Log.w(TAG, "Writing to the watch failed, retrying in " + delay + "ms");
+        synchronized (mLock) {
+            /* A newer update that arrived meanwhile wins over the one we failed to write */
+            if (mPending == null) {
+                mPending = update;
+            }
+            if (mFlushScheduled) {
+                mHandler.removeMessages(MSG_FLUSH);
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.sendEmptyMessageDelayed(MSG_FLUSH, delay);
+    }
+
+    /**
+     * @return Number of updates handed to {@link #publish(int, int, int)}
+     */
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    /**
+     * @return Number of updates replaced by a newer one before they were written
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    /**
+     * @return Number of DataItems written to the watch
+     */
+    public long getWrittenCount() {
+        return mWritten.get();
+    }
+
+    /**
+     * @return Number of writes that failed and were retried
+     */
+    public long getFailedWriteCount() {
+        return mFailedWrites.get();
+    }
+
+    private static final class Update {
+        final int high;
+        final int low;
+        final int centzId;
+        final long timeMillis;
+
+        Update(int high, int low, int centzId, long timeMillis) {
+            this.high = high;
+            this.low = low;
+            this.centzId = centzId;
+            this.timeMillis = timeMillis;
+        }
+    }
+
+    /**
+     * Writes through one GoogleApiClient that lives as long as the process. The client
+     * reconnects by itself after a suspension, and we listen for the watch on every connection.
+     */
+    static final class GmsTransport implements Transport, DataApi.DataListener,
+            GoogleApiClient.ConnectionCallbacks, GoogleApiClient.OnConnectionFailedListener {
+
+        private final Context mContext;
+        private final GoogleApiClient mClient;
+        volatile WearPublisher mPublisher;
+
+        GmsTransport(Context context) {
+            mContext = context;
+            mClient = new GoogleApiClient.Builder(context)
+                    .addApi(Wearable.API)
+                    .addConnectionCallbacks(this)
+                    .addOnConnectionFailedListener(this)
+                    .build();
+        }
+
+        @Override
+        public boolean connect() {
+            if (mClient.isConnected()) return true;
+            ConnectionResult result =
+                    mClient.blockingConnect(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return result.isSuccess();
+        }
+
+        @Override
+        public boolean write(int high, int low, int centzId, long timeMillis) {
+            PutDataMapRequest putDataMapReq = PutDataMapRequest.create(PATH_CENTZ_INFO);
+            putDataMapReq.getDataMap().putInt(KEY_MAX_TEMP, high);
+            putDataMapReq.getDataMap().putInt(KEY_MIN_TEMP, low);
+            putDataMapReq.getDataMap().putInt(KEY_CENTZ_ID, centzId);
+            putDataMapReq.getDataMap().putLong(KEY_CURRENT_TIME, timeMillis);
+            PutDataRequest putDataReq = putDataMapReq.asPutDataRequest();
+            putDataReq.setUrgent();
+            DataApi.DataItemResult result = Wearable.DataApi.putDataItem(mClient, putDataReq)
+                    .await(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return result.getStatus().isSuccess();
+        }
+
+        @Override
+        public void onConnected(Bundle connectionHint) {
+            Log.d(TAG, "onConnected: " + connectionHint);
+            /* Listeners don't survive a disconnect; adding the same one again is harmless */
+            Wearable.DataApi.addListener(mClient, this);
+            WearPublisher publisher = mPublisher;
+            if (publisher != null) {
+                publisher.onReconnected();
+            }
+        }
+
+        @Override
+        public void onConnectionSuspended(int cause) {
+            Log.d(TAG, "onConnectionSuspended: " + cause);
+        }
+
+        @Override
+        public void onConnectionFailed(ConnectionResult connectionResult) {
+            /* The pending write retries with backoff, which also retries the connection */
+            Log.w(TAG, "Connection to Google API client has failed: "
+                    + connectionResult.getErrorCode());
+        }
+
+        /**
+         * A watch that just installed the app gets the prices of the last sync from the
+         * snapshot right away, then a sync is queued for fresh ones. Nobody is looking at the
+         * phone, so it waits behind syncs somebody is.
+         */
+        @Override
+        public void onDataChanged(DataEventBuffer dataEvents) {
+            for (DataEvent event : dataEvents) {
+                if (event.getType() != DataEvent.TYPE_CHANGED) continue;
+                String path = event.getDataItem().getUri().getPath();
+                Log.d(TAG, "DataItem changed: " + path);
+                if (PATH_CENTZ_INSTALLED.equals(path)) {
+                    CentzSyncTask.sendSnapshotToWear(mContext);
+                    CentzSyncUtils.startImmediateSync(mContext,
+                            SyncRequestQueue.Priority.BACKGROUND);
+                }
+            }
+        }
+    }
+}
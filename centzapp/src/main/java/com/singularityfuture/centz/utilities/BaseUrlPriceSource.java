@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.util.Log;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+
+/**
+ * A {@link PriceSource} that serves the same API as the default endpoint under another base URL,
+ * so only the part in front of the query string changes.
+ */
+public final class BaseUrlPriceSource implements PriceSource {
+
+    private static final String TAG = BaseUrlPriceSource.class.getSimpleName();
+
+    private final String mName;
+    private final String mBaseUrl;
+
+    public BaseUrlPriceSource(String name, String baseUrl) {
+        mName = name;
+        mBaseUrl = baseUrl;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public URL buildUrl(URL requestUrl) {
+        String query = requestUrl.getQuery();
+        try {
+            return new URL(query == null ? mBaseUrl : mBaseUrl + "?" + query);
+        } catch (MalformedURLException e) {
+            Log.e(TAG, "Bad base URL for " + mName + ": " + mBaseUrl, e);
+            return requestUrl;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return mName + " (" + mBaseUrl + ")";
+    }
+}
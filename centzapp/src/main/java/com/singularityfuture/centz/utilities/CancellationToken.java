@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.Call;
+
+/**
+ * Lets one thread abandon a fetch that another thread is running. Cancelling aborts the HTTP
+ * call in flight, if there is one, and makes every later step of the fetch bail out with
+ * {@link CancelledException}. A token can only be cancelled once and never resets.
+ *
+ * Work made of several fetches gives each of them a token of its own and {@link #link}s it to
+ * the token of the whole, so cancelling the whole cancels every fetch still running.
+ */
+public final class CancellationToken {
+
+    /**
+     * Thrown by a fetch whose token was cancelled.
+     */
+    public static final class CancelledException extends InterruptedIOException {
+        private static final long serialVersionUID = 1L;
+
+        public CancelledException() {
+            super("Fetch was cancelled");
+        }
+    }
+
+    private boolean mCancelled;
+    private Call mCall;
+    private List<CancellationToken> mChildren;
+
+    /**
+     * Cancels the fetch. Safe to call from any thread, any number of times.
+     */
+    public void cancel() {
+        Call call;
+        List<CancellationToken> children;
+        synchronized (this) {
+            if (mCancelled) return;
+            mCancelled = true;
+            call = mCall;
+            mCall = null;
+            children = mChildren;
+            mChildren = null;
+        }
+        if (call != null) call.cancel();
+        if (children != null) {
+            for (CancellationToken child : children) {
+                child.cancel();
+            }
+        }
+    }
+
+    /**
+     * Makes cancelling this token cancel the child too, until the child is unlinked. A child
+     * linked to a token that is already cancelled is cancelled right away.
+     *
+     * @param child The token of a part of the work this token stands for
+     */
+    public void link(CancellationToken child) {
+        synchronized (this) {
+            if (!mCancelled) {
+                if (mChildren == null) mChildren = new ArrayList<>();
+                mChildren.add(child);
+                return;
+            }
+        }
+        child.cancel();
+    }
+
+    /**
+     * @param child A token linked earlier, whose work is done
+     */
+    public synchronized void unlink(CancellationToken child) {
+        if (mChildren != null) mChildren.remove(child);
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * @throws CancelledException If the token has been cancelled
+     */
+    public void throwIfCancelled() throws CancelledException {
+        if (isCancelled()) throw new CancelledException();
+    }
+
+    /*
+     * Remembers the call that is about to run so cancel() can abort it. A call registered after
+     * the token was cancelled is aborted right away.
+     */
+    synchronized void attach(Call call) {
+        if (mCancelled) {
+            call.cancel();
+        } else {
+            mCall = call;
+        }
+    }
+
+    synchronized void detach(Call call) {
+        if (mCall == call) mCall = null;
+    }
+}
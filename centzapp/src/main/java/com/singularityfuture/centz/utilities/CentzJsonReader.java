@@ -0,0 +1,611 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import org.json.JSONException;
+
+import java.nio.charset.Charset;
+
+/**
+ * A pull parser that reads JSON straight out of a byte array, one token at a time. Unlike
+ * {@link org.json.JSONObject} it never builds a tree: names can be matched against byte arrays
+ * without creating Strings, numbers are parsed in place and values we don't care about are
+ * skipped by scanning over their bytes.
+ * <p>
+ * The API follows {@link android.util.JsonReader}: call {@link #peek()} to see what comes next,
+ * then the matching begin, end or next method to consume it.
+ */
+public final class CentzJsonReader {
+
+    public enum Token {
+        BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL,
+        END_DOCUMENT
+    }
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    /* What the parser expects next at each nesting level */
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int NONEMPTY_OBJECT = 3;
+    private static final int DANGLING_NAME = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+    /* Bottom scope of a reader over a run of array elements, see forElements */
+    private static final int FIRST_ELEMENT = 7;
+    private static final int NEXT_ELEMENT = 8;
+
+    /* Powers of ten that a double represents exactly, used by the fast number path */
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /* Integers up to 15 digits fit in a double's mantissa without rounding */
+    private static final int MAX_EXACT_DIGITS = 15;
+
+    private final byte[] mData;
+    private final int mLimit;
+    private int mPos;
+
+    private int[] mStack = new int[16];
+    private int mDepth = 1;
+
+    private Token mPeeked;
+
+    /**
+     * @param data   The JSON text, UTF-8 encoded
+     * @param offset Where the JSON starts
+     * @param limit  One past the last byte of the JSON
+     */
+    public CentzJsonReader(byte[] data, int offset, int limit) {
+        mData = data;
+        mPos = offset;
+        mLimit = limit;
+        mStack[0] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * @param body A response body that was streamed into a buffer
+     */
+    public CentzJsonReader(ResponseBuffer body) {
+        this(body.getData(), 0, body.getLength());
+    }
+
+    /**
+     * Creates a reader over a slice of an array's contents, the elements and the commas between
+     * them but not the brackets. {@link #hasNext()} returns false at the end of the slice. Used
+     * to parse parts of one large array on several threads.
+     */
+    static CentzJsonReader forElements(byte[] data, int offset, int limit) {
+        CentzJsonReader reader = new CentzJsonReader(data, offset, limit);
+        reader.mStack[0] = FIRST_ELEMENT;
+        return reader;
+    }
+
+    /**
+     * @return Offset of the next unread byte. Right after {@link #peek()} returned a value token
+     *         this is where that value starts.
+     */
+    int getPosition() {
+        return mPos;
+    }
+
+    /* The bytes being read, as passed to the constructor */
+    byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * @return The kind of the next token, without consuming it
+     * @throws JSONException If the input is not well formed JSON
+     */
+    public Token peek() throws JSONException {
+        if (mPeeked != null) return mPeeked;
+
+        int scope = mStack[mDepth - 1];
+        switch (scope) {
+            case EMPTY_ARRAY:
+            case NONEMPTY_ARRAY: {
+                mStack[mDepth - 1] = NONEMPTY_ARRAY;
+                int c = nextNonWhitespace();
+                if (c == ']') return mPeeked = Token.END_ARRAY;
+                if (scope == NONEMPTY_ARRAY) {
+                    if (c != ',') throw syntaxError("Expected ',' or ']'");
+                    mPos++;
+                }
+                return mPeeked = peekValue();
+            }
+            case EMPTY_OBJECT:
+            case NONEMPTY_OBJECT: {
+                int c = nextNonWhitespace();
+                if (c == '}') return mPeeked = Token.END_OBJECT;
+                if (scope == NONEMPTY_OBJECT) {
+                    if (c != ',') throw syntaxError("Expected ',' or '}'");
+                    mPos++;
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') throw syntaxError("Expected a name");
+                mStack[mDepth - 1] = DANGLING_NAME;
+                return mPeeked = Token.NAME;
+            }
+            case DANGLING_NAME: {
+                if (nextNonWhitespace() != ':') throw syntaxError("Expected ':'");
+                mPos++;
+                mStack[mDepth - 1] = NONEMPTY_OBJECT;
+                return mPeeked = peekValue();
+            }
+            case FIRST_ELEMENT:
+            case NEXT_ELEMENT: {
+                mStack[mDepth - 1] = NEXT_ELEMENT;
+                int c = nextNonWhitespace();
+                if (c == -1) return mPeeked = Token.END_DOCUMENT;
+                if (scope == NEXT_ELEMENT) {
+                    if (c != ',') throw syntaxError("Expected ','");
+                    mPos++;
+                }
+                return mPeeked = peekValue();
+            }
+            case EMPTY_DOCUMENT:
+                mStack[mDepth - 1] = NONEMPTY_DOCUMENT;
+                return mPeeked = peekValue();
+            default:
+                if (nextNonWhitespace() != -1) throw syntaxError("Expected end of document");
+                return mPeeked = Token.END_DOCUMENT;
+        }
+    }
+
+    private Token peekValue() throws JSONException {
+        int c = nextNonWhitespace();
+        switch (c) {
+            case '{':
+                return Token.BEGIN_OBJECT;
+            case '[':
+                return Token.BEGIN_ARRAY;
+            case '"':
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return Token.NUMBER;
+                throw syntaxError("Expected a value");
+        }
+    }
+
+    /* Leaves mPos on the next significant byte and returns it, or -1 at the end */
+    private int nextNonWhitespace() {
+        while (mPos < mLimit) {
+            byte c = mData[mPos];
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') return c;
+            mPos++;
+        }
+        return -1;
+    }
+
+    private void expect(Token token) throws JSONException {
+        if (peek() != token) throw syntaxError("Expected " + token + " but was " + mPeeked);
+        mPeeked = null;
+    }
+
+    public void beginObject() throws JSONException {
+        expect(Token.BEGIN_OBJECT);
+        mPos++;
+        push(EMPTY_OBJECT);
+    }
+
+    public void endObject() throws JSONException {
+        expect(Token.END_OBJECT);
+        mPos++;
+        mDepth--;
+    }
+
+    public void beginArray() throws JSONException {
+        expect(Token.BEGIN_ARRAY);
+        mPos++;
+        push(EMPTY_ARRAY);
+    }
+
+    public void endArray() throws JSONException {
+        expect(Token.END_ARRAY);
+        mPos++;
+        mDepth--;
+    }
+
+    private void push(int scope) {
+        if (mDepth == mStack.length) {
+            int[] grown = new int[mDepth * 2];
+            System.arraycopy(mStack, 0, grown, 0, mDepth);
+            mStack = grown;
+        }
+        mStack[mDepth++] = scope;
+    }
+
+    /**
+     * @return true if the current object or array has another element
+     */
+    public boolean hasNext() throws JSONException {
+        Token token = peek();
+        return token != Token.END_OBJECT && token != Token.END_ARRAY
+                && token != Token.END_DOCUMENT;
+    }
+
+    /**
+     * Consumes the next name and looks it up in the given candidates by comparing raw bytes, so
+     * no String is created.
+     *
+     * @param candidates Names encoded as UTF-8
+     * @return The index of the matching candidate, or -1 if the name is none of them
+     */
+    public int selectName(byte[][] candidates) throws JSONException {
+        expect(Token.NAME);
+        int start = mPos + 1;
+        int end = findStringEnd(start);
+        mPos = end + 1;
+        if (containsEscape(start, end)) {
+            String name = decodeString(start, end);
+            for (int i = 0; i < candidates.length; i++) {
+                if (name.equals(new String(candidates[i], UTF_8))) return i;
+            }
+            return -1;
+        }
+        int length = end - start;
+        for (int i = 0; i < candidates.length; i++) {
+            byte[] candidate = candidates[i];
+            if (candidate.length != length) continue;
+            int j = 0;
+            while (j < length && candidate[j] == mData[start + j]) j++;
+            if (j == length) return i;
+        }
+        return -1;
+    }
+
+    public String nextName() throws JSONException {
+        expect(Token.NAME);
+        return readString();
+    }
+
+    /**
+     * @return The next string value, or the text of the next number
+     */
+    public String nextString() throws JSONException {
+        Token token = peek();
+        if (token == Token.NUMBER) {
+            mPeeked = null;
+            int start = mPos;
+            mPos = findNumberEnd(start);
+            return new String(mData, start, mPos - start, US_ASCII);
+        }
+        expect(Token.STRING);
+        return readString();
+    }
+
+    private String readString() throws JSONException {
+        int start = mPos + 1;
+        int end = findStringEnd(start);
+        mPos = end + 1;
+        return decodeString(start, end);
+    }
+
+    /**
+     * @return The next number. Numbers written as strings, like "200", are accepted too.
+     */
+    public double nextDouble() throws JSONException {
+        Token token = peek();
+        int start;
+        int end;
+        if (token == Token.STRING) {
+            start = mPos + 1;
+            end = findStringEnd(start);
+            mPeeked = null;
+            mPos = end + 1;
+        } else {
+            expect(Token.NUMBER);
+            start = mPos;
+            end = findNumberEnd(start);
+            mPos = end;
+        }
+        return parseDouble(start, end);
+    }
+
+    /**
+     * @return The next number as a {@link FixedPointParser} fixed-point value. Numbers written
+     *         as strings, like "4321.01", are accepted too.
+     */
+    public long nextFixedPoint() throws JSONException {
+        long span = nextNumberSpan();
+        int start = (int) (span >>> 32);
+        try {
+            return FixedPointParser.parse(mData, start, start + (int) span);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Number out of range");
+        }
+    }
+
+    /**
+     * Consumes the next number without converting it, for callers that only need its text.
+     * The number is still checked against the JSON grammar, so malformed input fails here just
+     * like it would in {@link #nextDouble()}.
+     *
+     * @return The offset of the number text in the upper and its length in the lower 32 bits.
+     *         For a number written as a string the span covers what is between the quotes.
+     */
+    long nextNumberSpan() throws JSONException {
+        Token token = peek();
+        int start;
+        int end;
+        if (token == Token.STRING) {
+            start = mPos + 1;
+            end = findStringEnd(start);
+            mPeeked = null;
+            mPos = end + 1;
+        } else {
+            expect(Token.NUMBER);
+            start = mPos;
+            end = findNumberEnd(start);
+            mPos = end;
+        }
+        checkNumber(start, end);
+        return ((long) start << 32) | (end - start);
+    }
+
+    /* -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)? */
+    private void checkNumber(int start, int end) throws JSONException {
+        int i = start;
+        if (i < end && mData[i] == '-') i++;
+        int digits = i;
+        while (i < end && mData[i] >= '0' && mData[i] <= '9') i++;
+        boolean valid = i > digits && (mData[digits] != '0' || i == digits + 1);
+        if (valid && i < end && mData[i] == '.') {
+            digits = ++i;
+            while (i < end && mData[i] >= '0' && mData[i] <= '9') i++;
+            valid = i > digits;
+        }
+        if (valid && i < end && (mData[i] == 'e' || mData[i] == 'E')) {
+            i++;
+            if (i < end && (mData[i] == '+' || mData[i] == '-')) i++;
+            digits = i;
+            while (i < end && mData[i] >= '0' && mData[i] <= '9') i++;
+            valid = i > digits;
+        }
+        if (!valid || i != end) throw syntaxError("Malformed number");
+    }
+
+    public int nextInt() throws JSONException {
+        double value = nextDouble();
+        int result = (int) value;
+        if (result != value) throw syntaxError("Expected an int but was " + value);
+        return result;
+    }
+
+    public long nextLong() throws JSONException {
+        double value = nextDouble();
+        long result = (long) value;
+        if (result != value) throw syntaxError("Expected a long but was " + value);
+        return result;
+    }
+
+    public boolean nextBoolean() throws JSONException {
+        expect(Token.BOOLEAN);
+        if (matchLiteral("true")) return true;
+        if (matchLiteral("false")) return false;
+        throw syntaxError("Expected a boolean");
+    }
+
+    public void nextNull() throws JSONException {
+        expect(Token.NULL);
+        if (!matchLiteral("null")) throw syntaxError("Expected null");
+    }
+
+    private boolean matchLiteral(String literal) {
+        int length = literal.length();
+        if (mPos + length > mLimit) return false;
+        for (int i = 0; i < length; i++) {
+            if (mData[mPos + i] != literal.charAt(i)) return false;
+        }
+        mPos += length;
+        return true;
+    }
+
+    /**
+     * Skips the next value, or the next name if a name comes next. Objects and arrays are
+     * skipped by scanning for the matching bracket, nothing inside them is parsed.
+     */
+    public void skipValue() throws JSONException {
+        Token token = peek();
+        mPeeked = null;
+        switch (token) {
+            case NAME:
+            case STRING:
+                mPos = findStringEnd(mPos + 1) + 1;
+                break;
+            case NUMBER:
+                mPos = findNumberEnd(mPos);
+                break;
+            case BOOLEAN:
+            case NULL:
+                while (mPos < mLimit && mData[mPos] >= 'a' && mData[mPos] <= 'z') mPos++;
+                break;
+            case BEGIN_OBJECT:
+            case BEGIN_ARRAY:
+                skipContainer();
+                break;
+            default:
+                throw syntaxError("Cannot skip " + token);
+        }
+    }
+
+    /**
+     * Skips the value that {@link #peek()} just returned when somebody else already knows where
+     * it ends, for example because they parsed it themselves.
+     *
+     * @param end Offset of the byte after the value
+     */
+    void skipValueTo(int end) throws JSONException {
+        Token token = peek();
+        if (token == Token.NAME || token == Token.END_OBJECT || token == Token.END_ARRAY
+                || token == Token.END_DOCUMENT || end <= mPos || end > mLimit) {
+            throw syntaxError("Cannot skip " + token + " to byte " + end);
+        }
+        mPeeked = null;
+        mPos = end;
+    }
+
+    private void skipContainer() throws JSONException {
+        int depth = 0;
+        while (mPos < mLimit) {
+            byte c = mData[mPos];
+            if (c == '"') {
+                mPos = findStringEnd(mPos + 1) + 1;
+                continue;
+            }
+            mPos++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (--depth == 0) return;
+            }
+        }
+        throw syntaxError("Unterminated container");
+    }
+
+    /* Returns the index of the closing quote of a string whose content starts at start */
+    private int findStringEnd(int start) throws JSONException {
+        int i = start;
+        while (i < mLimit) {
+            byte c = mData[i];
+            if (c == '"') return i;
+            i += c == '\\' ? 2 : 1;
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private int findNumberEnd(int start) {
+        int i = start;
+        while (i < mLimit) {
+            byte c = mData[i];
+            if ((c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e'
+                    || c == 'E') {
+                i++;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private boolean containsEscape(int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (mData[i] == '\\') return true;
+        }
+        return false;
+    }
+
+    private String decodeString(int start, int end) throws JSONException {
+        if (!containsEscape(start, end)) return new String(mData, start, end - start, UTF_8);
+
+        StringBuilder builder = new StringBuilder(end - start);
+        int runStart = start;
+        int i = start;
+        while (i < end) {
+            if (mData[i] != '\\') {
+                i++;
+                continue;
+            }
+            builder.append(new String(mData, runStart, i - runStart, UTF_8));
+            byte escaped = mData[i + 1];
+            switch (escaped) {
+                case 'b': builder.append('\b'); break;
+                case 'f': builder.append('\f'); break;
+                case 'n': builder.append('\n'); break;
+                case 'r': builder.append('\r'); break;
+                case 't': builder.append('\t'); break;
+                case 'u':
+                    if (i + 6 > end) throw syntaxError("Bad unicode escape");
+                    try {
+                        builder.append((char) Integer.parseInt(
+                                new String(mData, i + 2, 4, US_ASCII), 16));
+                    } catch (NumberFormatException e) {
+                        throw syntaxError("Bad unicode escape");
+                    }
+                    i += 4;
+                    break;
+                default:
+                    builder.append((char) escaped);
+                    break;
+            }
+            i += 2;
+            runStart = i;
+        }
+        builder.append(new String(mData, runStart, end - runStart, UTF_8));
+        return builder.toString();
+    }
+
+    /*
+     * Short decimals, which is nearly every number in a price payload, are parsed without
+     * allocating: the digits become an exact integer which is then scaled by an exact power of
+     * ten, giving a correctly rounded result. Anything longer goes through Double.parseDouble.
+     */
+    private double parseDouble(int start, int end) throws JSONException {
+        int i = start;
+        boolean negative = false;
+        if (i < end && mData[i] == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean seenDot = false;
+        boolean fastPath = i < end;
+        for (; i < end; i++) {
+            byte c = mData[i];
+            if (c >= '0' && c <= '9') {
+                if (mantissa == 0 && c == '0' && !seenDot) continue;
+                if (++digits > MAX_EXACT_DIGITS) {
+                    fastPath = false;
+                    break;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (seenDot) scale++;
+            } else if (c == '.' && !seenDot) {
+                seenDot = true;
+            } else if (c == 'e' || c == 'E') {
+                fastPath = false;
+                break;
+            } else {
+                throw syntaxError("Malformed number");
+            }
+        }
+        if (fastPath && scale < POWERS_OF_TEN.length) {
+            double value = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(new String(mData, start, end - start, US_ASCII));
+        } catch (NumberFormatException e) {
+            throw syntaxError("Malformed number");
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at byte " + mPos);
+    }
+}
@@ -65,6 +65,42 @@ public final class CentzUtils {
         return String.format(context.getString(temperatureFormatResourceId), temperature);
     }
 
+    /**
+     * Prices are stored as fixed-point longs (see {@link FixedPointParser}). This method converts
+     * such a value to the user's preferred units the same way
+     * {@link #formatTemperature(Context, double)} does, but on the fixed-point value itself, so
+     * the only rounding that happens is the final one to a whole number.
+     *
+     * @param context     Android Context to access preferences and resources
+     * @param temperature Fixed-point temperature in degrees Celsius (°C)
+     *
+     * @return Formatted temperature String in the following form:
+     * "21°"
+     */
+    public static String formatFixedPointTemperature(Context context, long temperature) {
+        long rounded = FixedPointParser.roundToUnits(toPreferredUnits(context, temperature));
+
+        int temperatureFormatResourceId = R.string.format_temperature;
+
+        /* The format string expects a floating point argument, a whole number is exact in it */
+        return String.format(context.getString(temperatureFormatResourceId), (double) rounded);
+    }
+
+    /**
+     * Converts a fixed-point temperature in Celsius to the units the user picked.
+     *
+     * @param context     Android Context to access preferences
+     * @param temperature Fixed-point temperature in degrees Celsius (°C)
+     *
+     * @return Fixed-point temperature in the user's preferred units
+     */
+    public static long toPreferredUnits(Context context, long temperature) {
+        if (CentzPreferences.isMetric(context)) {
+            return temperature;
+        }
+        return temperature * 9 / 5 + 32 * FixedPointParser.ONE;
+    }
+
     /**
      * This method will format the temperatures to be displayed in the
      * following form: "HIGH° / LOW°"
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.support.annotation.VisibleForTesting;
+
+import com.singularityfuture.centz.data.CentzBatch;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parses the days of a forecast response into a {@link CentzBatch}, splitting large responses
+ * over several threads. The envelope (error code and city) is read on the calling thread. When
+ * it reaches the "list" array, a quick scan of the array's bytes that tracks nothing but nesting
+ * depth and strings finds the element boundaries and the end of the array. The elements are cut
+ * into contiguous chunks that are parsed in parallel, each into a batch of its own, and the
+ * chunk batches are appended to the target in array order, which is also date order.
+ * <p>
+ * Responses smaller than the threshold are parsed on the calling thread in a single pass, for
+ * them handing work to other threads costs more than it saves.
+ */
+public final class ChunkedForecastParser {
+
+    /* Responses smaller than this are parsed on the calling thread */
+    public static final int DEFAULT_THRESHOLD_BYTES = 512 * 1024;
+
+    /* Chunks smaller than this aren't worth a task of their own */
+    private static final int DEFAULT_MIN_CHUNK_BYTES = 64 * 1024;
+
+    /* More chunks than threads, so one slow chunk doesn't leave the other threads idle */
+    private static final int CHUNKS_PER_THREAD = 2;
+
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    private static ChunkedForecastParser sDefault;
+
+    private final int mParallelism;
+    private final int mThresholdBytes;
+    private final int mMinChunkBytes;
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * @return The parser used by the sync, with one thread per core
+     */
+    public static synchronized ChunkedForecastParser getDefault() {
+        if (sDefault == null) {
+            sDefault = new ChunkedForecastParser(Runtime.getRuntime().availableProcessors(),
+                    DEFAULT_THRESHOLD_BYTES);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param parallelism    The most threads a single response is parsed on
+     * @param thresholdBytes Responses smaller than this are parsed on the calling thread
+     */
+    public ChunkedForecastParser(int parallelism, int thresholdBytes) {
+        this(parallelism, thresholdBytes, DEFAULT_MIN_CHUNK_BYTES);
+    }
+
+    @VisibleForTesting
+    ChunkedForecastParser(int parallelism, int thresholdBytes, int minChunkBytes) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+        }
+        mParallelism = parallelism;
+        mThresholdBytes = thresholdBytes;
+        mMinChunkBytes = Math.max(1, minChunkBytes);
+        mExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    public int getThresholdBytes() {
+        return mThresholdBytes;
+    }
+
+    /**
+     * Appends one row per day of the response to the batch. On an error some rows may already
+     * have been appended, the caller is expected to truncate the batch.
+     *
+     * @param body     Buffer holding the raw response body
+     * @param symbol   The symbol every row is tagged with
+     * @param startDay Normalized date of the first day in the response
+     * @param batch    Receives the rows
+     * @param location Receives the latitude and longitude of the city
+     * @return false if the server reported an error
+     * @throws JSONException If the response is malformed or misses a required field
+     */
+    boolean readInto(ResponseBuffer body, String symbol, long startDay, CentzBatch batch,
+                     double[] location) throws JSONException {
+        if (mParallelism == 1 || body.getLength() < mThresholdBytes) {
+            return OpenCentzJsonUtils.readForecast(body,
+                    new BatchHandler(batch, symbol, startDay, location));
+        }
+
+        final byte[] data = body.getData();
+        final int limit = body.getLength();
+        final List<Chunk> chunks = new ArrayList<>();
+        boolean ok = OpenCentzJsonUtils.readForecast(new CentzJsonReader(body),
+                new BatchHandler(batch, symbol, startDay, location),
+                new OpenCentzJsonUtils.DaysReader() {
+                    @Override
+                    public int readDays(int open) throws JSONException {
+                        return split(data, open + 1, limit, chunkBytes(limit - open), chunks) + 1;
+                    }
+                });
+        if (!ok) return false;
+
+        if (chunks.size() <= 1) {
+            for (Chunk chunk : chunks) {
+                chunk.parse(data, batch, symbol, startDay);
+            }
+            return true;
+        }
+
+        parseInParallel(data, chunks, batch, symbol, startDay);
+        return true;
+    }
+
+    private int chunkBytes(int arrayBytes) {
+        return Math.max(mMinChunkBytes, arrayBytes / (mParallelism * CHUNKS_PER_THREAD) + 1);
+    }
+
+    private void parseInParallel(final byte[] data, List<Chunk> chunks, CentzBatch batch,
+                                 final String symbol, final long startDay)
+            throws JSONException {
+        List<Future<CentzBatch>> futures = new ArrayList<>(chunks.size());
+        for (final Chunk chunk : chunks) {
+            futures.add(mExecutor.submit(new Callable<CentzBatch>() {
+                @Override
+                public CentzBatch call() throws JSONException {
+                    CentzBatch rows = new CentzBatch(chunk.elements);
+                    chunk.parse(data, rows, symbol, startDay);
+                    return rows;
+                }
+            }));
+        }
+
+        try {
+            for (Future<CentzBatch> future : futures) {
+                batch.addAll(future.get());
+            }
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            if (e.getCause() instanceof JSONException) {
+                throw (JSONException) e.getCause();
+            }
+            throw new IllegalStateException("Parsing a chunk failed", e.getCause());
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new JSONException("Interrupted while parsing");
+        }
+    }
+
+    private static void cancelAll(List<Future<CentzBatch>> futures) {
+        for (Future<CentzBatch> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Cuts the contents of an array into runs of whole elements of roughly chunkBytes each, and
+     * finds where the array ends on the way. Only commas outside of any string, object or nested
+     * array separate elements.
+     *
+     * @param data       The response bytes
+     * @param from       First byte after the array's opening bracket
+     * @param limit      End of the response
+     * @param chunkBytes A chunk is closed at the first element boundary past this size
+     * @param chunks     Receives the chunks, in array order
+     * @return Offset of the array's closing bracket
+     * @throws JSONException If the array isn't closed before the limit
+     */
+    @VisibleForTesting
+    static int split(byte[] data, int from, int limit, int chunkBytes, List<Chunk> chunks)
+            throws JSONException {
+        int depth = 0;
+        int chunkStart = from;
+        int chunkFirstIndex = 0;
+        int elementIndex = 0;
+        boolean empty = true;
+
+        for (int i = from; i < limit; i++) {
+            switch (data[i]) {
+                case '"':
+                    /* Leave i on the closing quote, escaped characters are jumped over */
+                    i++;
+                    while (i < limit && data[i] != '"') {
+                        i += data[i] == '\\' ? 2 : 1;
+                    }
+                    empty = false;
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    empty = false;
+                    break;
+                case '}':
+                    depth--;
+                    break;
+                case ']':
+                    if (depth-- != 0) break;
+                    if (!empty) {
+                        chunks.add(new Chunk(chunkStart, i, chunkFirstIndex,
+                                elementIndex + 1 - chunkFirstIndex));
+                    }
+                    return i;
+                case ',':
+                    if (depth != 0) break;
+                    elementIndex++;
+                    if (i - chunkStart >= chunkBytes) {
+                        chunks.add(new Chunk(chunkStart, i, chunkFirstIndex,
+                                elementIndex - chunkFirstIndex));
+                        chunkStart = i + 1;
+                        chunkFirstIndex = elementIndex;
+                    }
+                    break;
+                case ' ':
+                case '\n':
+                case '\r':
+                case '\t':
+                    break;
+                default:
+                    empty = false;
+                    break;
+            }
+        }
+        throw new JSONException("Unterminated array");
+    }
+
+    /**
+     * A run of whole array elements, without the commas at either end.
+     */
+    @VisibleForTesting
+    static final class Chunk {
+        final int from;
+        final int to;
+        final int firstIndex;
+        final int elements;
+
+        Chunk(int from, int to, int firstIndex, int elements) {
+            this.from = from;
+            this.to = to;
+            this.firstIndex = firstIndex;
+            this.elements = elements;
+        }
+
+        void parse(byte[] data, CentzBatch rows, String symbol, long startDay)
+                throws JSONException {
+            CentzJsonReader reader = CentzJsonReader.forElements(data, from, to);
+            OpenCentzJsonUtils.ForecastHandler handler =
+                    new BatchHandler(rows, symbol, startDay, null);
+            ForecastDetail detail = new ForecastDetail();
+            int index = firstIndex;
+            while (reader.hasNext()) {
+                OpenCentzJsonUtils.readDay(reader, handler, index++, detail);
+            }
+        }
+    }
+
+    /* Appends every day to a batch, dating it from its position in the response */
+    private static final class BatchHandler implements OpenCentzJsonUtils.ForecastHandler {
+        private final CentzBatch mBatch;
+        private final int mSymbolId;
+        private final long mStartDay;
+        private final double[] mLocation;
+
+        /* The detail text of the current day, copied into the batch as it is */
+        private byte[] mDetail = new byte[64];
+
+        BatchHandler(CentzBatch batch, String symbol, long startDay, double[] location) {
+            mBatch = batch;
+            mSymbolId = batch.symbolId(symbol);
+            mStartDay = startDay;
+            mLocation = location;
+        }
+
+        @Override
+        public void onLocation(double latitude, double longitude) {
+            if (mLocation != null) {
+                mLocation[0] = latitude;
+                mLocation[1] = longitude;
+            }
+        }
+
+        @Override
+        public void onDay(int index, long high, long low, int centzId,
+                          ForecastDetail detail) {
+            if (detail.length() > mDetail.length) {
+                mDetail = new byte[detail.length()];
+            }
+            int length = detail.writeTo(mDetail, 0);
+            mBatch.add(mStartDay + CentzDateUtils.DAY_IN_MILLIS * index, mSymbolId, mDetail, 0,
+                    length, high, low, centzId);
+        }
+    }
+
+    private static final class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "centz-parse-" + mCount.incrementAndGet());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    }
+}
@@ -15,15 +15,13 @@
  */
 package com.singularityfuture.centz.utilities;
 
-import android.content.ContentValues;
 import android.content.Context;
 
+import com.singularityfuture.centz.data.CentzBatch;
 import com.singularityfuture.centz.data.CentzPreferences;
-import com.singularityfuture.centz.data.CentzContract;
+import com.singularityfuture.centz.data.CentzDetail;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
 import java.net.HttpURLConnection;
 
@@ -60,125 +58,319 @@ public final class OpenCentzJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+    /* Names the streaming parser looks for, pre-encoded so they can be matched against raw bytes */
+    private static final byte[][] TOP_LEVEL_NAMES = encode(OWM_MESSAGE_CODE, OWM_CITY, OWM_LIST);
+    private static final int TOP_CODE = 0;
+    private static final int TOP_CITY = 1;
+    private static final int TOP_LIST = 2;
+
+    private static final byte[][] CITY_NAMES = encode(OWM_COORD);
+    private static final byte[][] COORD_NAMES = encode(OWM_LATITUDE, OWM_LONGITUDE);
+
+    private static final byte[][] DAY_NAMES = encode(OWM_PRESSURE, OWM_HUMIDITY, OWM_WINDSPEED,
+            OWM_WIND_DIRECTION, OWM_TEMPERATURE, OWM_CENTZ);
+    private static final int DAY_PRESSURE = 0;
+    private static final int DAY_HUMIDITY = 1;
+    private static final int DAY_WINDSPEED = 2;
+    private static final int DAY_WIND_DIRECTION = 3;
+    private static final int DAY_TEMPERATURE = 4;
+    private static final int DAY_CENTZ = 5;
+
+    private static final byte[][] TEMPERATURE_NAMES = encode(OWM_MAX, OWM_MIN);
+    private static final byte[][] CENTZ_NAMES = encode(OWM_CENTZ_ID);
+
+    /* One bit per field a day must have */
+    private static final int DAY_FIELDS_REQUIRED = (1 << 8) - 1;
+    private static final int FIELD_MAX = 1 << 6;
+    private static final int FIELD_MIN = 1 << 7;
+
     /**
-     * This method parses JSON from a web response and returns an array of Strings
-     * describing the centz over various days from the forecast.
-     * <p/>
-     * Later on, we'll be parsing the JSON into structured data within the
-     * getFullCentzDataFromJson function, leveraging the data we have stored in the JSON. For
-     * now, we just convert the JSON into human-readable strings.
-     *
-     * @param forecastJsonStr JSON response from server
-     *
-     * @return Array of Strings describing centz data
+     * Receives the records of a forecast response as the streaming parser reads them.
+     */
+    public interface ForecastHandler {
+
+        /**
+         * Called once the city coordinates have been read.
+         */
+        void onLocation(double latitude, double longitude);
+
+        /**
+         * Called for each element of the "list" array, in order. Only the fields the list
+         * shows are decoded, the rest are passed on as text.
+         *
+         * @param index  Position of the day in the response, 0 being today
+         * @param high   The day's high as a {@link FixedPointParser} fixed-point value
+         * @param low    The day's low, also fixed-point
+         * @param detail The day's detail fields, only valid during this call
+         */
+        void onDay(int index, long high, long low, int centzId, ForecastDetail detail);
+    }
+
+    /**
+     * Parses the response for one symbol of the watchlist straight into the columns of a batch,
+     * without creating a ContentValues per row. If the server reported an error, the batch is
+     * left as it was.
      *
+     * @param context Used to store the location details reported by the server
+     * @param symbol  The symbol the response belongs to
+     * @param body    Buffer holding the raw response body
+     * @param batch   Receives one row per day
+     * @return false if the server reported an error
      * @throws JSONException If JSON data cannot be properly parsed
      */
-    public static ContentValues[] getCentzContentValuesFromJson(Context context, String forecastJsonStr)
+    public static boolean appendCentzRowsFromJson(Context context, String symbol,
+                                                  ResponseBuffer body, CentzBatch batch)
+            throws JSONException {
+        return appendCentzRowsFromJson(context, symbol, body, batch,
+                ChunkedForecastParser.getDefault());
+    }
+
+    /**
+     * Same as {@link #appendCentzRowsFromJson(Context, String, ResponseBuffer, CentzBatch)},
+     * with the parser that decides whether and how the days are parsed in parallel.
+     */
+    public static boolean appendCentzRowsFromJson(Context context, String symbol,
+                                                  ResponseBuffer body, CentzBatch batch,
+                                                  ChunkedForecastParser parser)
+            throws JSONException {
+        long normalizedUtcStartDay = CentzDateUtils.getNormalizedUtcDateForToday();
+        double[] location = new double[2];
+        int sizeBefore = batch.size();
+
+        boolean ok;
+        try {
+            ok = parser.readInto(body, symbol, normalizedUtcStartDay, batch, location);
+        } catch (JSONException e) {
+            batch.truncate(sizeBefore);
+            throw e;
+        }
+        if (!ok) {
+            batch.truncate(sizeBefore);
+            return false;
+        }
+
+        if (symbol.equals(CentzPreferences.getPreferredCentzLocation(context))) {
+            CentzPreferences.setLocationDetails(context, location[0], location[1]);
+        }
+        return true;
+    }
+
+    /**
+     * Reads a forecast response in a single pass with {@link CentzJsonReader}, handing every day
+     * to the handler as soon as it has been read. No tree is built and fields we don't use are
+     * skipped over without being decoded.
+     *
+     * @param body    Buffer holding the raw response body
+     * @param handler Receives the location and the days
+     * @return false if the server reported an error, in which case the records already handed
+     *         to the handler should be discarded
+     * @throws JSONException If the response is malformed or misses a required field
+     */
+    public static boolean readForecast(ResponseBuffer body, ForecastHandler handler)
             throws JSONException {
+        return readForecast(new CentzJsonReader(body), handler, null);
+    }
 
-        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+    /**
+     * Takes over the "list" array from {@link #readForecast}, for callers that parse the days
+     * some other way than one after another.
+     */
+    interface DaysReader {
 
-        /* Is there an error? */
-        if (forecastJson.has(OWM_MESSAGE_CODE)) {
-            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+        /**
+         * @param open Offset of the array's opening bracket
+         * @return Offset of the byte after the array's closing bracket
+         */
+        int readDays(int open) throws JSONException;
+    }
 
-            switch (errorCode) {
-                case HttpURLConnection.HTTP_OK:
+    /*
+     * When daysReader is not null the "list" array is left to it, otherwise the days are read
+     * in place and handed to the handler.
+     */
+    static boolean readForecast(CentzJsonReader reader, ForecastHandler handler,
+                                DaysReader daysReader)
+            throws JSONException {
+        boolean sawList = false;
+        boolean sawCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.selectName(TOP_LEVEL_NAMES)) {
+                case TOP_CODE:
+                    if (reader.nextInt() != HttpURLConnection.HTTP_OK) {
+                        /* Location invalid or server probably down */
+                        return false;
+                    }
+                    break;
+                case TOP_CITY:
+                    sawCoord |= readCity(reader, handler);
+                    break;
+                case TOP_LIST:
+                    if (daysReader == null) {
+                        readDays(reader, handler);
+                    } else {
+                        if (reader.peek() != CentzJsonReader.Token.BEGIN_ARRAY) {
+                            throw new JSONException("Expected an array for " + OWM_LIST);
+                        }
+                        reader.skipValueTo(daysReader.readDays(reader.getPosition()));
+                    }
+                    sawList = true;
                     break;
-                case HttpURLConnection.HTTP_NOT_FOUND:
-                    /* Location invalid */
-                    return null;
                 default:
-                    /* Server probably down */
-                    return null;
+                    reader.skipValue();
+                    break;
             }
         }
+        reader.endObject();
 
-        JSONArray jsonCentzArray = forecastJson.getJSONArray(OWM_LIST);
-
-        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-
-        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-        double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-        double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-        CentzPreferences.setLocationDetails(context, cityLatitude, cityLongitude);
+        if (!sawList) throw new JSONException("No value for " + OWM_LIST);
+        if (!sawCoord) throw new JSONException("No value for " + OWM_COORD);
+        return true;
+    }
 
-        ContentValues[] centzContentValues = new ContentValues[jsonCentzArray.length()];
+    private static boolean readCity(CentzJsonReader reader, ForecastHandler handler)
+            throws JSONException {
+        boolean sawCoord = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.selectName(CITY_NAMES) != 0) {
+                reader.skipValue();
+                continue;
+            }
+            double latitude = Double.NaN;
+            double longitude = Double.NaN;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.selectName(COORD_NAMES)) {
+                    case 0:
+                        latitude = reader.nextDouble();
+                        break;
+                    case 1:
+                        longitude = reader.nextDouble();
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+                throw new JSONException("Incomplete " + OWM_COORD);
+            }
+            handler.onLocation(latitude, longitude);
+            sawCoord = true;
+        }
+        reader.endObject();
+        return sawCoord;
+    }
 
-        /*
-         * OWM returns daily forecasts based upon the local time of the city that is being asked
-         * for, which means that we need to know the GMT offset to translate this data properly.
-         * Since this data is also sent in-order and the first day is always the current day, we're
-         * going to take advantage of that to get a nice normalized UTC date for all of our centz.
-         */
-//        long now = System.currentTimeMillis();
-//        long normalizedUtcStartDay = CentzDateUtils.normalizeDate(now);
+    private static void readDays(CentzJsonReader reader, ForecastHandler handler)
+            throws JSONException {
+        int index = 0;
+        ForecastDetail detail = new ForecastDetail();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            readDay(reader, handler, index++, detail);
+        }
+        reader.endArray();
+    }
 
-        long normalizedUtcStartDay = CentzDateUtils.getNormalizedUtcDateForToday();
+    /**
+     * Reads one element of the "list" array and hands it to the handler. Also used by
+     * {@link ChunkedForecastParser} to parse a slice of the array on its own thread.
+     *
+     * @param index  Position of the day in the whole response
+     * @param detail Reused from day to day to hand the detail fields to the handler
+     */
+    static void readDay(CentzJsonReader reader, ForecastHandler handler, int index,
+                        ForecastDetail detail)
+            throws JSONException {
+        long high = 0;
+        long low = 0;
+        int centzId = 0;
+        int seen = 0;
+
+        detail.reset(reader.getData());
+        reader.beginObject();
+        while (reader.hasNext()) {
+            int field = reader.selectName(DAY_NAMES);
+            switch (field) {
+                /* The detail fields are only checked to be numbers, not converted */
+                case DAY_PRESSURE:
+                    detail.setField(CentzDetail.PRESSURE, reader.nextNumberSpan());
+                    break;
+                case DAY_HUMIDITY:
+                    detail.setField(CentzDetail.HUMIDITY, reader.nextNumberSpan());
+                    break;
+                case DAY_WINDSPEED:
+                    detail.setField(CentzDetail.WIND_SPEED, reader.nextNumberSpan());
+                    break;
+                case DAY_WIND_DIRECTION:
+                    detail.setField(CentzDetail.DEGREES, reader.nextNumberSpan());
+                    break;
+                case DAY_TEMPERATURE:
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        switch (reader.selectName(TEMPERATURE_NAMES)) {
+                            case 0:
+                                high = reader.nextFixedPoint();
+                                seen |= FIELD_MAX;
+                                break;
+                            case 1:
+                                low = reader.nextFixedPoint();
+                                seen |= FIELD_MIN;
+                                break;
+                            default:
+                                reader.skipValue();
+                                break;
+                        }
+                    }
+                    reader.endObject();
+                    break;
+                case DAY_CENTZ:
+                    /* Only the first element of the "centz" array carries the code we use */
+                    boolean sawId = false;
+                    reader.beginArray();
+                    if (reader.hasNext()) {
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.selectName(CENTZ_NAMES) == 0) {
+                                centzId = reader.nextInt();
+                                sawId = true;
+                            } else {
+                                reader.skipValue();
+                            }
+                        }
+                        reader.endObject();
+                    }
+                    if (!sawId) field = -1;
+                    while (reader.hasNext()) reader.skipValue();
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+            if (field >= 0) seen |= 1 << field;
+        }
+        reader.endObject();
 
-        for (int i = 0; i < jsonCentzArray.length(); i++) {
-
-            long dateTimeMillis;
-            double pressure;
-            int humidity;
-            double windSpeed;
-            double windDirection;
-
-            double high;
-            double low;
-
-            int centzId;
-
-            /* Get the JSON object representing the day */
-            JSONObject dayForecast = jsonCentzArray.getJSONObject(i);
-
-            /*
-             * We ignore all the datetime values embedded in the JSON and assume that
-             * the values are returned in-order by day (which is not guaranteed to be correct).
-             */
-            dateTimeMillis = normalizedUtcStartDay + CentzDateUtils.DAY_IN_MILLIS * i;
-
-            pressure = dayForecast.getDouble(OWM_PRESSURE);
-            humidity = dayForecast.getInt(OWM_HUMIDITY);
-            windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-            windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-            /*
-             * Description is in a child array called "centz", which is 1 element long.
-             * That element also contains a centz code.
-             */
-            JSONObject centzObject =
-                    dayForecast.getJSONArray(OWM_CENTZ).getJSONObject(0);
-
-            centzId = centzObject.getInt(OWM_CENTZ_ID);
-
-            /*
-             * Temperatures are sent by Open Centz Map in a child object called "temp".
-             *
-             * Editor's Note: Try not to name variables "temp" when working with temperature.
-             * It confuses everybody. Temp could easily mean any number of things, including
-             * temperature, temporary variable, temporary folder, temporary employee, or many
-             * others, and is just a bad variable name.
-             */
-            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-            high = temperatureObject.getDouble(OWM_MAX);
-            low = temperatureObject.getDouble(OWM_MIN);
-
-            ContentValues centzValues = new ContentValues();
-            centzValues.put(CentzContract.CentzEntry.COLUMN_DATE, dateTimeMillis);
-            centzValues.put(CentzContract.CentzEntry.COLUMN_HUMIDITY, humidity);
-            centzValues.put(CentzContract.CentzEntry.COLUMN_PRESSURE, pressure);
-            centzValues.put(CentzContract.CentzEntry.COLUMN_WIND_SPEED, windSpeed);
-            centzValues.put(CentzContract.CentzEntry.COLUMN_DEGREES, windDirection);
-            centzValues.put(CentzContract.CentzEntry.COLUMN_MAX_TEMP, high);
-            centzValues.put(CentzContract.CentzEntry.COLUMN_MIN_TEMP, low);
-            centzValues.put(CentzContract.CentzEntry.COLUMN_CENTZ_ID, centzId);
-
-            centzContentValues[i] = centzValues;
+        if ((seen & DAY_FIELDS_REQUIRED) != DAY_FIELDS_REQUIRED) {
+            throw new JSONException("Day " + index + " is missing required fields");
         }
+        handler.onDay(index, high, low, centzId, detail);
+    }
 
-        return centzContentValues;
+    private static byte[][] encode(String... names) {
+        byte[][] encoded = new byte[names.length][];
+        for (int i = 0; i < names.length; i++) {
+            try {
+                encoded[i] = names[i].getBytes("UTF-8");
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+        return encoded;
     }
-}
\ No newline at end of file
+}
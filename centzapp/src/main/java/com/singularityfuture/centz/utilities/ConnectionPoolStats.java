@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+
+/**
+ * Keeps per-host counters for the shared connection pool used by {@link NetworkUtils}. Every
+ * call made through the shared client reports here, which lets us see how often a sync was able
+ * to ride an existing keep-alive connection instead of paying for DNS, TCP and TLS again.
+ */
+public final class ConnectionPoolStats {
+
+    private static final ConcurrentHashMap<String, HostStats> sHostStats =
+            new ConcurrentHashMap<>();
+
+    /* A single listener is enough, all of the state lives in the per-host counters */
+    static final EventListener LISTENER = new PoolEventListener();
+
+    private ConnectionPoolStats() {
+    }
+
+    /**
+     * Counters for a single host. All values are cumulative since the process started or since
+     * the last call to {@link #reset()}.
+     */
+    public static final class HostStats {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong connectionsAcquired = new AtomicLong();
+        final AtomicLong newConnections = new AtomicLong();
+        final AtomicLong tlsHandshakes = new AtomicLong();
+        final AtomicLong multiplexedConnections = new AtomicLong();
+
+        public long getCalls() {
+            return calls.get();
+        }
+
+        /* Number of times a call was handed a connection, whether pooled or fresh */
+        public long getConnectionsAcquired() {
+            return connectionsAcquired.get();
+        }
+
+        /* Number of TCP connects we had to make, each one is a pool miss */
+        public long getNewConnections() {
+            return newConnections.get();
+        }
+
+        public long getTlsHandshakes() {
+            return tlsHandshakes.get();
+        }
+
+        /* Connections that negotiated HTTP/2 and can carry concurrent calls */
+        public long getMultiplexedConnections() {
+            return multiplexedConnections.get();
+        }
+
+        /**
+         * Returns the fraction of acquired connections that came out of the pool rather than
+         * from a fresh connect.
+         *
+         * @return reuse ratio between 0 and 1, or 0 if nothing has been acquired yet
+         */
+        public double getReuseRatio() {
+            long acquired = connectionsAcquired.get();
+            if (acquired == 0) return 0;
+            long reused = acquired - newConnections.get();
+            return Math.max(0, reused) / (double) acquired;
+        }
+
+        @Override
+        public String toString() {
+            return "calls=" + getCalls()
+                    + " acquired=" + getConnectionsAcquired()
+                    + " connects=" + getNewConnections()
+                    + " handshakes=" + getTlsHandshakes()
+                    + " h2=" + getMultiplexedConnections()
+                    + " reuse=" + String.format("%.2f", getReuseRatio());
+        }
+    }
+
+    /**
+     * Returns the counters for a host, or null if we have never talked to that host.
+     *
+     * @param host Host name as it appears in the request URL
+     * @return The counters for that host
+     */
+    public static HostStats getHostStats(String host) {
+        return sHostStats.get(host);
+    }
+
+    /**
+     * @return A copy of the host to counters mapping, safe to iterate while syncs are running
+     */
+    public static Map<String, HostStats> snapshot() {
+        return new HashMap<>(sHostStats);
+    }
+
+    /**
+     * Clears all counters. Mostly useful for tests that want to measure a single scenario.
+     */
+    public static void reset() {
+        sHostStats.clear();
+    }
+
+    private static HostStats statsFor(Call call) {
+        String host = call.request().url().host();
+        HostStats stats = sHostStats.get(host);
+        if (stats == null) {
+            HostStats created = new HostStats();
+            stats = sHostStats.putIfAbsent(host, created);
+            if (stats == null) stats = created;
+        }
+        return stats;
+    }
+
+    private static final class PoolEventListener extends EventListener {
+
+        @Override
+        public void callStart(Call call) {
+            statsFor(call).calls.incrementAndGet();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            statsFor(call).newConnections.incrementAndGet();
+        }
+
+        @Override
+        public void secureConnectEnd(Call call, Handshake handshake) {
+            statsFor(call).tlsHandshakes.incrementAndGet();
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                               Protocol protocol) {
+            if (protocol == Protocol.HTTP_2) {
+                statsFor(call).multiplexedConnections.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            statsFor(call).connectionsAcquired.incrementAndGet();
+        }
+    }
+}
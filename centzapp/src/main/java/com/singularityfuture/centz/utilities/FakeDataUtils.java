@@ -27,8 +27,9 @@ public class FakeDataUtils {
         testCentzValues.put(CentzEntry.COLUMN_HUMIDITY, Math.random()*100);
         testCentzValues.put(CentzEntry.COLUMN_PRESSURE, 870 + Math.random()*100);
         int maxTemp = (int)(Math.random()*100);
-        testCentzValues.put(CentzEntry.COLUMN_MAX_TEMP, maxTemp);
-        testCentzValues.put(CentzEntry.COLUMN_MIN_TEMP, maxTemp - (int) (Math.random()*10));
+        int minTemp = maxTemp - (int) (Math.random()*10);
+        testCentzValues.put(CentzEntry.COLUMN_MAX_TEMP, maxTemp * FixedPointParser.ONE);
+        testCentzValues.put(CentzEntry.COLUMN_MIN_TEMP, minTemp * FixedPointParser.ONE);
         testCentzValues.put(CentzEntry.COLUMN_WIND_SPEED, Math.random()*10);
         testCentzValues.put(CentzEntry.COLUMN_CENTZ_ID, centzIDs[(int)(Math.random()*10)%5]);
         return testCentzValues;
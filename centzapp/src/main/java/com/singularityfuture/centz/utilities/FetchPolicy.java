@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps {@link NetworkUtils#fetch} with the rules we follow when talking to a host:
+ * <ul>
+ * <li>Transient failures (I/O errors and 5xx) are retried with exponential backoff and full
+ * jitter, a handful of times at most.</li>
+ * <li>After enough failures in a row the circuit opens and every request is refused locally
+ * until a cool down has passed. The first request after that is let through as a probe.</li>
+ * <li>Every attempt, retries included, takes a token from a bucket sized to the host's rate
+ * limit. A 429 drains the bucket until the time given by Retry-After.</li>
+ * </ul>
+ * There is one policy per host, shared by every sync in the process.
+ */
+public final class FetchPolicy {
+
+    private static final String TAG = FetchPolicy.class.getSimpleName();
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 4;
+    private static final long DEFAULT_BASE_BACKOFF_MILLIS = 500;
+    private static final long DEFAULT_MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final long DEFAULT_OPEN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int DEFAULT_BUCKET_CAPACITY = 10;
+    private static final double DEFAULT_TOKENS_PER_SECOND = 1;
+
+    /* How long a caller may wait for a token before we give up on the request */
+    private static final long MAX_TOKEN_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+    /* Used when a 429 comes without a usable Retry-After header */
+    private static final long DEFAULT_RATE_LIMIT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final ConcurrentHashMap<String, FetchPolicy> sPolicies =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Thrown when the policy refuses to send a request at all, because the circuit is open or
+     * the rate limit budget is used up.
+     */
+    public static final class RejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final long mRetryAtMillis;
+
+        RejectedException(String message, long retryAtMillis) {
+            super(message);
+            mRetryAtMillis = retryAtMillis;
+        }
+
+        /**
+         * @return The clock time at which a request has a chance of being let through again
+         */
+        public long getRetryAtMillis() {
+            return mRetryAtMillis;
+        }
+    }
+
+    /**
+     * Time source, replaced in tests so nothing has to actually sleep.
+     */
+    @VisibleForTesting
+    interface Clock {
+        long now();
+
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long now() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void sleep(long millis) throws InterruptedException {
+            Thread.sleep(millis);
+        }
+    };
+
+    private enum CircuitState {CLOSED, OPEN, HALF_OPEN}
+
+    private final String mHost;
+    private final int mMaxAttempts;
+    private final long mBaseBackoffMillis;
+    private final long mMaxBackoffMillis;
+    private final int mFailureThreshold;
+    private final long mOpenMillis;
+    private final int mBucketCapacity;
+    private final double mTokensPerMilli;
+    private final Clock mClock;
+    private final Random mJitter = new Random();
+
+    /* Circuit and bucket state, guarded by this */
+    private CircuitState mCircuit = CircuitState.CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenUntil;
+    private long mProbeStartedAt;
+    private double mTokens;
+    private long mLastRefill;
+    private long mRateLimitedUntil;
+
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mCircuitRejections = new AtomicLong();
+    private final AtomicLong mBudgetRejections = new AtomicLong();
+    private final AtomicLong mRateLimitResponses = new AtomicLong();
+
+    @VisibleForTesting
+    FetchPolicy(String host, int maxAttempts, long baseBackoffMillis, long maxBackoffMillis,
+                int failureThreshold, long openMillis, int bucketCapacity,
+                double tokensPerSecond, Clock clock) {
+        mHost = host;
+        mMaxAttempts = maxAttempts;
+        mBaseBackoffMillis = baseBackoffMillis;
+        mMaxBackoffMillis = maxBackoffMillis;
+        mFailureThreshold = failureThreshold;
+        mOpenMillis = openMillis;
+        mBucketCapacity = bucketCapacity;
+        mTokensPerMilli = tokensPerSecond / 1000;
+        mClock = clock;
+        mTokens = bucketCapacity;
+        mLastRefill = clock.now();
+    }
+
+    /**
+     * Returns the policy shared by every request to the host of the given URL.
+     *
+     * @param url Any URL on the host
+     * @return The policy for that host
+     */
+    public static FetchPolicy forUrl(URL url) {
+        String host = url.getHost();
+        FetchPolicy policy = sPolicies.get(host);
+        if (policy == null) {
+            FetchPolicy created = new FetchPolicy(host, DEFAULT_MAX_ATTEMPTS,
+                    DEFAULT_BASE_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS,
+                    DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS,
+                    DEFAULT_BUCKET_CAPACITY, DEFAULT_TOKENS_PER_SECOND, SYSTEM_CLOCK);
+            policy = sPolicies.putIfAbsent(host, created);
+            if (policy == null) policy = created;
+        }
+        return policy;
+    }
+
+    /**
+     * Replaces the policy of a host with one that has a different request budget. Meant for
+     * benchmarks that deliberately send more requests than a real exchange would accept.
+     *
+     * @param host            The host name
+     * @param bucketCapacity  How many requests may be sent back to back
+     * @param tokensPerSecond How fast the budget refills
+     */
+    @VisibleForTesting
+    public static void setBudget(String host, int bucketCapacity, double tokensPerSecond) {
+        sPolicies.put(host, new FetchPolicy(host, DEFAULT_MAX_ATTEMPTS,
+                DEFAULT_BASE_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS,
+                DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS,
+                bucketCapacity, tokensPerSecond, SYSTEM_CLOCK));
+    }
+
+    /**
+     * Forgets the state of every host. Mostly useful for tests.
+     */
+    public static void resetAll() {
+        sPolicies.clear();
+    }
+
+    /**
+     * Same as {@link NetworkUtils#fetch(URL, String, String, ResponseBuffer)}, but retried,
+     * throttled and guarded by the circuit breaker as described above.
+     *
+     * @throws RejectedException    If the request was not sent at all
+     * @throws HttpStatusException  If the server kept answering with an error status
+     * @throws IOException          If the last attempt failed for any other reason
+     */
+    public HttpFetchResult fetch(URL url, String etag, String lastModified,
+                                 ResponseBuffer buffer) throws IOException {
+        return fetch(url, etag, lastModified, buffer, null);
+    }
+
+    /**
+     * Same as {@link #fetch(URL, String, String, ResponseBuffer)}, but the fetch, including any
+     * backoff in between attempts, can be abandoned through the given token.
+     *
+     * @param token Aborts the fetch when cancelled, or null if it can't be cancelled
+     * @throws CancellationToken.CancelledException If the token was cancelled
+     */
+    public HttpFetchResult fetch(URL url, String etag, String lastModified,
+                                 ResponseBuffer buffer, CancellationToken token)
+            throws IOException {
+        IOException lastFailure = null;
+
+        for (int attempt = 0; attempt < mMaxAttempts; attempt++) {
+            if (attempt > 0) {
+                mRetries.incrementAndGet();
+                sleep(backoffMillis(attempt));
+            }
+            if (token != null) token.throwIfCancelled();
+            acquirePermit();
+
+            try {
+                HttpFetchResult result = NetworkUtils.fetch(url, etag, lastModified, buffer,
+                        token);
+                onSuccess();
+                return result;
+            } catch (CancellationToken.CancelledException e) {
+                /* Says nothing about the host, but a probe must not keep the circuit half open */
+                onCancelled();
+                throw e;
+            } catch (HttpStatusException e) {
+                if (e.isRateLimited()) {
+                    onRateLimited(e.getRetryAfterMillis());
+                    throw e;
+                }
+                if (!e.isServerError()) {
+                    /* Our request is wrong, sending it again won't help and the host is fine */
+                    onSuccess();
+                    throw e;
+                }
+                lastFailure = e;
+            } catch (InterruptedIOException e) {
+                if (Thread.currentThread().isInterrupted()) throw e;
+                /* A timeout, worth another try */
+                lastFailure = e;
+            } catch (IOException e) {
+                lastFailure = e;
+            }
+
+            if (onFailure()) {
+                /* The circuit just opened, no point in trying again right now */
+                break;
+            }
+            Log.w(TAG, "Attempt " + (attempt + 1) + " of " + mMaxAttempts + " to " + mHost
+                    + " failed: " + lastFailure);
+        }
+        throw lastFailure;
+    }
+
+    /*
+     * Full jitter: anywhere between zero and the exponential delay. This spreads retries from
+     * many clients out better than adding a little noise to a fixed delay.
+     */
+    private long backoffMillis(int attempt) {
+        int exponent = Math.min(attempt - 1, 30);
+        long ceiling = Math.min(mMaxBackoffMillis, mBaseBackoffMillis << exponent);
+        synchronized (mJitter) {
+            return (long) (mJitter.nextDouble() * ceiling);
+        }
+    }
+
+    private void acquirePermit() throws IOException {
+        long waitMillis;
+        synchronized (this) {
+            long now = mClock.now();
+            boolean probe = false;
+            if (mCircuit == CircuitState.OPEN) {
+                if (now < mOpenUntil) {
+                    mCircuitRejections.incrementAndGet();
+                    throw new RejectedException("Circuit to " + mHost + " is open", mOpenUntil);
+                }
+                /* Cool down is over, let this one request through to see if the host is back */
+                probe = true;
+            } else if (mCircuit == CircuitState.HALF_OPEN) {
+                if (now - mProbeStartedAt < mOpenMillis) {
+                    mCircuitRejections.incrementAndGet();
+                    throw new RejectedException("Probe to " + mHost + " is in flight",
+                            mProbeStartedAt + mOpenMillis);
+                }
+                /* The last probe never reported back, send another one */
+                probe = true;
+            }
+
+            if (now < mRateLimitedUntil) {
+                mBudgetRejections.incrementAndGet();
+                throw new RejectedException(mHost + " asked us to back off", mRateLimitedUntil);
+            }
+
+            refill(now);
+            if (mTokens >= 1) {
+                waitMillis = 0;
+            } else {
+                waitMillis = (long) Math.ceil((1 - mTokens) / mTokensPerMilli);
+                if (waitMillis > MAX_TOKEN_WAIT_MILLIS) {
+                    mBudgetRejections.incrementAndGet();
+                    throw new RejectedException("Request budget for " + mHost + " is used up",
+                            now + waitMillis);
+                }
+            }
+            /* Taken up front so callers waiting at the same time don't share a token */
+            mTokens -= 1;
+
+            if (probe) {
+                mCircuit = CircuitState.HALF_OPEN;
+                mProbeStartedAt = now;
+            }
+        }
+        sleep(waitMillis);
+    }
+
+    private void refill(long now) {
+        long elapsed = now - mLastRefill;
+        if (elapsed > 0) {
+            mTokens = Math.min(mBucketCapacity, mTokens + elapsed * mTokensPerMilli);
+            mLastRefill = now;
+        }
+    }
+
+    private synchronized void onCancelled() {
+        if (mCircuit == CircuitState.HALF_OPEN) {
+            mCircuit = CircuitState.OPEN;
+            mOpenUntil = mClock.now();
+        }
+    }
+
+    private synchronized void onSuccess() {
+        mConsecutiveFailures = 0;
+        mCircuit = CircuitState.CLOSED;
+    }
+
+    /**
+     * @return true if this failure opened the circuit
+     */
+    private synchronized boolean onFailure() {
+        mConsecutiveFailures++;
+        if (mCircuit == CircuitState.HALF_OPEN || mConsecutiveFailures >= mFailureThreshold) {
+            mCircuit = CircuitState.OPEN;
+            mOpenUntil = mClock.now() + mOpenMillis;
+            Log.w(TAG, "Opening circuit to " + mHost + " after " + mConsecutiveFailures
+                    + " failures");
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized void onRateLimited(long retryAfterMillis) {
+        mRateLimitResponses.incrementAndGet();
+        long delay = retryAfterMillis >= 0 ? retryAfterMillis : DEFAULT_RATE_LIMIT_MILLIS;
+        long now = mClock.now();
+        mRateLimitedUntil = Math.max(mRateLimitedUntil, now + delay);
+        /* Whatever we had saved up clearly doesn't match the server's idea of our budget */
+        mTokens = 0;
+        mLastRefill = mRateLimitedUntil;
+        /* The host answered, so it is up. A probe that got a 429 shouldn't leave us half open */
+        if (mCircuit == CircuitState.HALF_OPEN) mCircuit = CircuitState.CLOSED;
+    }
+
+    private void sleep(long millis) throws InterruptedIOException {
+        if (millis <= 0) return;
+        try {
+            mClock.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while backing off");
+        }
+    }
+
+    /**
+     * @return true if requests to this host are currently refused by the circuit breaker
+     */
+    public synchronized boolean isCircuitOpen() {
+        return mCircuit == CircuitState.OPEN && mClock.now() < mOpenUntil;
+    }
+
+    public long getRetryCount() {
+        return mRetries.get();
+    }
+
+    public long getCircuitRejectionCount() {
+        return mCircuitRejections.get();
+    }
+
+    public long getBudgetRejectionCount() {
+        return mBudgetRejections.get();
+    }
+
+    public long getRateLimitResponseCount() {
+        return mRateLimitResponses.get();
+    }
+
+    @Override
+    public String toString() {
+        return mHost + ": retries=" + getRetryCount()
+                + " circuitRejections=" + getCircuitRejectionCount()
+                + " budgetRejections=" + getBudgetRejectionCount()
+                + " rateLimited=" + getRateLimitResponseCount()
+                + " circuitOpen=" + isCircuitOpen();
+    }
+}
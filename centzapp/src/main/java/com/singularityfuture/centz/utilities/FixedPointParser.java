@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.Charset;
+
+/**
+ * Turns decimal text, as exchange APIs send prices, straight into fixed-point longs with
+ * {@link #SCALE} decimal places, so a price never takes a detour through binary floating point.
+ * For example "4321.01" becomes 432101000000.
+ * <p>
+ * Plain decimals with at most {@link #SCALE} decimal places, which is every price we have seen,
+ * are converted digit by digit without allocating and are always exact. Anything else (an
+ * exponent, more decimal places, a leading plus sign) goes through {@link BigDecimal} and is
+ * rounded half-even to {@link #SCALE} places.
+ */
+public final class FixedPointParser {
+
+    /** Decimal places of every fixed-point value */
+    public static final int SCALE = 8;
+
+    /** The fixed-point value of 1 */
+    public static final long ONE = 100000000L;
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L
+    };
+
+    /* Whole units up to this can't overflow once the decimal places are added */
+    private static final long MAX_FAST_UNITS = Long.MAX_VALUE / ONE - 1;
+
+    /* Digits left of the point of the largest value a long can hold at our scale */
+    private static final int MAX_INTEGER_DIGITS = 11;
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private FixedPointParser() {
+    }
+
+    /**
+     * @param data  ASCII text holding a decimal number
+     * @param start Offset of the first character
+     * @param end   Offset after the last character
+     * @return The number as a fixed-point long
+     * @throws NumberFormatException If the text isn't a number or doesn't fit in a long
+     */
+    public static long parse(byte[] data, int start, int end) {
+        int i = start;
+        boolean negative = i < end && data[i] == '-';
+        if (negative) i++;
+
+        int integerStart = i;
+        long units = 0;
+        while (i < end && data[i] >= '0' && data[i] <= '9') {
+            units = units * 10 + (data[i++] - '0');
+            if (units > MAX_FAST_UNITS) return parseSlowly(data, start, end);
+        }
+        boolean sawDigits = i > integerStart;
+
+        long fraction = 0;
+        int places = 0;
+        if (i < end && data[i] == '.') {
+            i++;
+            int fractionStart = i;
+            while (i < end && data[i] >= '0' && data[i] <= '9') {
+                int digit = data[i++] - '0';
+                if (places < SCALE) {
+                    fraction = fraction * 10 + digit;
+                    places++;
+                } else if (digit != 0) {
+                    return parseSlowly(data, start, end);
+                }
+            }
+            sawDigits &= i > fractionStart;
+        }
+        if (i != end || !sawDigits) return parseSlowly(data, start, end);
+
+        long value = units * ONE + fraction * POWERS_OF_TEN[SCALE - places];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Same as {@link #parse(byte[], int, int)} for text that already is a String.
+     */
+    public static long parse(CharSequence text) {
+        int end = text.length();
+        int i = 0;
+        boolean negative = i < end && text.charAt(i) == '-';
+        if (negative) i++;
+
+        int integerStart = i;
+        long units = 0;
+        while (i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+            units = units * 10 + (text.charAt(i++) - '0');
+            if (units > MAX_FAST_UNITS) return parseSlowly(text.toString());
+        }
+        boolean sawDigits = i > integerStart;
+
+        long fraction = 0;
+        int places = 0;
+        if (i < end && text.charAt(i) == '.') {
+            i++;
+            int fractionStart = i;
+            while (i < end && text.charAt(i) >= '0' && text.charAt(i) <= '9') {
+                int digit = text.charAt(i++) - '0';
+                if (places < SCALE) {
+                    fraction = fraction * 10 + digit;
+                    places++;
+                } else if (digit != 0) {
+                    return parseSlowly(text.toString());
+                }
+            }
+            sawDigits &= i > fractionStart;
+        }
+        if (i != end || !sawDigits) return parseSlowly(text.toString());
+
+        long value = units * ONE + fraction * POWERS_OF_TEN[SCALE - places];
+        return negative ? -value : value;
+    }
+
+    private static long parseSlowly(byte[] data, int start, int end) {
+        return parseSlowly(new String(data, start, end - start, US_ASCII));
+    }
+
+    private static long parseSlowly(String text) {
+        BigDecimal decimal = new BigDecimal(text);
+        return fromDecimal(decimal, text);
+    }
+
+    /**
+     * Converts a value that only exists as a double, such as a number org.json has already
+     * parsed. The double is taken at its shortest decimal representation, so 0.1 becomes
+     * exactly 0.1 and not the binary value closest to it.
+     *
+     * @throws NumberFormatException If the value is NaN, infinite or too large
+     */
+    public static long fromDouble(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new NumberFormatException("Not a finite number: " + value);
+        }
+        return fromDecimal(BigDecimal.valueOf(value), String.valueOf(value));
+    }
+
+    private static long fromDecimal(BigDecimal decimal, String text) {
+        /*
+         * Settles huge exponents either way before setScale would try to expand them: the
+         * number of digits left of the point decides if it fits, or rounds to zero.
+         */
+        long integerDigits = (long) decimal.precision() - decimal.scale();
+        if (decimal.signum() == 0 || integerDigits < -SCALE) return 0;
+        if (integerDigits > MAX_INTEGER_DIGITS) {
+            throw new NumberFormatException("Out of range: " + text);
+        }
+        try {
+            return decimal.setScale(SCALE, RoundingMode.HALF_EVEN).movePointRight(SCALE)
+                    .longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Out of range: " + text);
+        }
+    }
+
+    /**
+     * @return The value as a double, for display and for math that doesn't need to be exact
+     */
+    public static double toDouble(long value) {
+        return value / (double) ONE;
+    }
+
+    /**
+     * @return The value rounded half away from zero to whole units
+     */
+    public static long roundToUnits(long value) {
+        return (value >= 0 ? value + ONE / 2 : value - ONE / 2) / ONE;
+    }
+
+    /**
+     * Formats a value as plain decimal text, without trailing zeros: 432101000000 becomes
+     * "4321.01" and 7500000000 becomes "75".
+     */
+    public static String format(long value) {
+        long units = Math.abs(value / ONE);
+        long fraction = Math.abs(value % ONE);
+        StringBuilder text = new StringBuilder(24);
+        if (value < 0) text.append('-');
+        text.append(units);
+        if (fraction != 0) {
+            int places = SCALE;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                places--;
+            }
+            text.append('.');
+            String digits = Long.toString(fraction);
+            for (int pad = digits.length(); pad < places; pad++) {
+                text.append('0');
+            }
+            text.append(digits);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import com.singularityfuture.centz.data.CentzDetail;
+
+import java.nio.charset.Charset;
+
+/**
+ * The detail fields of one day of a forecast response, still as number text in the response
+ * bytes. The parser hands one of these to {@link OpenCentzJsonUtils.ForecastHandler#onDay} and
+ * reuses it for the next day, so it is only valid during that call.
+ * <p>
+ * Copying the text with {@link #writeTo(byte[], int)} is what the sync does; the getters decode
+ * a field for callers that want the number right away.
+ */
+public final class ForecastDetail {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private byte[] mData;
+
+    /* Offset in the upper and length in the lower 32 bits, see CentzJsonReader#nextNumberSpan */
+    private final long[] mSpans = new long[CentzDetail.FIELD_COUNT];
+
+    ForecastDetail() {
+    }
+
+    void reset(byte[] data) {
+        mData = data;
+    }
+
+    void setField(int field, long span) {
+        mSpans[field] = span;
+    }
+
+    /**
+     * @return How many bytes {@link #writeTo(byte[], int)} writes
+     */
+    public int length() {
+        int length = CentzDetail.FIELD_COUNT - 1;
+        for (long span : mSpans) {
+            length += (int) span;
+        }
+        return length;
+    }
+
+    /**
+     * Copies the fields in the {@link CentzDetail} text format.
+     *
+     * @param dest   Must have room for {@link #length()} bytes from offset on
+     * @param offset Where to start writing
+     * @return The number of bytes written
+     */
+    public int writeTo(byte[] dest, int offset) {
+        int position = offset;
+        for (int field = 0; field < CentzDetail.FIELD_COUNT; field++) {
+            if (field > 0) dest[position++] = CentzDetail.SEPARATOR;
+            long span = mSpans[field];
+            int length = (int) span;
+            System.arraycopy(mData, (int) (span >>> 32), dest, position, length);
+            position += length;
+        }
+        return position - offset;
+    }
+
+    public double getPressure() {
+        return decode(CentzDetail.PRESSURE);
+    }
+
+    public int getHumidity() {
+        return (int) decode(CentzDetail.HUMIDITY);
+    }
+
+    public double getWindSpeed() {
+        return decode(CentzDetail.WIND_SPEED);
+    }
+
+    public double getWindDirection() {
+        return decode(CentzDetail.DEGREES);
+    }
+
+    private double decode(int field) {
+        long span = mSpans[field];
+        /* The parser already checked that the text is a well formed number */
+        return Double.parseDouble(new String(mData, (int) (span >>> 32), (int) span, US_ASCII));
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.os.SystemClock;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a request to the primary {@link PriceSource} and, if no answer has arrived after a delay
+ * derived from the recent p95 latency, sends the same request to the next source as well. The
+ * first good response wins and the other request is cancelled. Since only the slowest few percent
+ * of requests are ever hedged, this costs only a few percent of extra requests while cutting the
+ * tail latency down to roughly the p95.
+ * <p>
+ * Only a source on another endpoint than the primary is ever asked, a second request to the same
+ * endpoint would just double the load on a host that is already slow. A primary that answers
+ * with a client error or a 429 isn't hedged either, the request itself is the problem or the
+ * host wants fewer of them.
+ */
+public final class HedgedFetcher {
+
+    private static final String TAG = HedgedFetcher.class.getSimpleName();
+
+    /* Percentile of recent latencies after which we stop waiting for the primary alone */
+    private static final double HEDGE_PERCENTILE = 95;
+
+    /* Used until enough latencies have been seen to trust the percentile */
+    private static final int MIN_SAMPLES = 20;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 1000;
+
+    /* Keeps a burst of fast responses from making us hedge everything, and vice versa */
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+    private static final long MAX_HEDGE_DELAY_MILLIS = 5000;
+
+    private static final int LATENCY_SAMPLES = 200;
+
+    private static final HedgedFetcher sDefault = new HedgedFetcher();
+
+    private final List<PriceSource> mSources;
+    private final ThreadPoolExecutor mExecutor;
+    private final LatencyTracker mLatencies = new LatencyTracker(LATENCY_SAMPLES);
+
+    private final AtomicLong mFetches = new AtomicLong();
+    private final AtomicLong mHedges = new AtomicLong();
+    private final AtomicLong mHedgeWins = new AtomicLong();
+
+    private HedgedFetcher() {
+        this(null);
+    }
+
+    /**
+     * @param sources The sources to use, the primary first, or null to always use whatever
+     *                {@link NetworkUtils#getPriceSources()} currently returns
+     */
+    @VisibleForTesting
+    public HedgedFetcher(List<PriceSource> sources) {
+        mSources = sources;
+        /* Legs are short lived and bounded by the sync's own parallelism */
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>());
+    }
+
+    /**
+     * @return The fetcher shared by every sync, using the configured price sources
+     */
+    public static HedgedFetcher getDefault() {
+        return sDefault;
+    }
+
+    private List<PriceSource> sources() {
+        return mSources != null ? mSources : NetworkUtils.getPriceSources();
+    }
+
+    /**
+     * Fetches the request from the primary source, hedging to the secondary when the primary is
+     * slow or fails. Each leg goes through the {@link FetchPolicy} of its own host.
+     *
+     * @param requestUrl   The request as built by {@link NetworkUtils}
+     * @param etag         ETag from the last good response, only sent to the primary since
+     *                     other sources have their own
+     * @param lastModified Last-Modified from the last good response
+     * @param buffer       Receives the winning body
+     * @return The result of the winning leg
+     * @throws IOException If every leg failed, the primary's failure is reported
+     */
+    public HttpFetchResult fetch(URL requestUrl, String etag, String lastModified,
+                                 ResponseBuffer buffer) throws IOException {
+        return fetch(requestUrl, etag, lastModified, buffer, null);
+    }
+
+    /**
+     * Same as {@link #fetch(URL, String, String, ResponseBuffer)}, but the fetch can be abandoned
+     * from another thread through the given token. Cancelling it aborts every leg in flight.
+     *
+     * @param token Aborts the fetch when cancelled, or null if it can't be cancelled
+     * @throws CancellationToken.CancelledException If the token was cancelled
+     */
+    public HttpFetchResult fetch(URL requestUrl, String etag, String lastModified,
+                                 ResponseBuffer buffer, CancellationToken token)
+            throws IOException {
+        if (token != null) token.throwIfCancelled();
+        mFetches.incrementAndGet();
+        List<PriceSource> sources = sources();
+        long start = SystemClock.elapsedRealtime();
+
+        URL primaryUrl = sources.isEmpty() ? requestUrl : sources.get(0).buildUrl(requestUrl);
+        PriceSource hedgeSource = null;
+        URL hedgeUrl = null;
+        for (int i = 1; i < sources.size() && hedgeSource == null; i++) {
+            URL url = sources.get(i).buildUrl(requestUrl);
+            if (!url.getAuthority().equals(primaryUrl.getAuthority())) {
+                hedgeSource = sources.get(i);
+                hedgeUrl = url;
+            }
+        }
+
+        if (hedgeSource == null) {
+            HttpFetchResult result = FetchPolicy.forUrl(primaryUrl)
+                    .fetch(primaryUrl, etag, lastModified, buffer, token);
+            mLatencies.record(SystemClock.elapsedRealtime() - start);
+            return result;
+        }
+
+        ExecutorCompletionService<Leg> completion = new ExecutorCompletionService<>(mExecutor);
+        List<Leg> legs = new ArrayList<>(2);
+        List<Future<Leg>> futures = new ArrayList<>(2);
+
+        Leg primary = new Leg(sources.get(0), primaryUrl, etag, lastModified,
+                buffer.getMaxBytes());
+        legs.add(primary);
+        if (token != null) token.link(primary.token);
+        futures.add(completion.submit(primary));
+
+        try {
+            Future<Leg> done = completion.poll(getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+            if (done != null && done.get().failure != null && !isWorthHedging(done.get().failure)) {
+                if (token != null) token.throwIfCancelled();
+                throw done.get().failure;
+            }
+            if (done == null || done.get().failure != null) {
+                /* The primary is slow or already failed, ask the secondary too */
+                mHedges.incrementAndGet();
+                /* An ETag is only meaningful to the host that made it */
+                boolean sameHost = hedgeUrl.getHost().equals(primaryUrl.getHost());
+                Leg secondary = new Leg(hedgeSource, hedgeUrl, sameHost ? etag : null,
+                        lastModified, buffer.getMaxBytes());
+                legs.add(secondary);
+                if (token != null) token.link(secondary.token);
+                futures.add(completion.submit(secondary));
+            }
+
+            Leg winner = done != null && done.get().failure == null ? done.get() : null;
+            int outstanding = legs.size() - (done == null ? 0 : 1);
+            while (winner == null && outstanding > 0) {
+                Leg leg = completion.take().get();
+                outstanding--;
+                if (leg.failure == null) winner = leg;
+            }
+
+            if (winner == null) {
+                if (token != null) token.throwIfCancelled();
+                throw primary.failure;
+            }
+            if (winner != primary) {
+                mHedgeWins.incrementAndGet();
+                Log.d(TAG, "Hedge to " + winner.source.getName() + " beat the primary");
+            }
+            mLatencies.record(SystemClock.elapsedRealtime() - start);
+            buffer.swap(winner.buffer);
+            return winner.result;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a price source");
+        } catch (ExecutionException e) {
+            /* Leg.call() catches everything it expects, anything else is a bug */
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            for (int i = 0; i < legs.size(); i++) {
+                if (token != null) token.unlink(legs.get(i).token);
+                legs.get(i).token.cancel();
+                futures.get(i).cancel(true);
+            }
+        }
+    }
+
+    /*
+     * Timeouts, connection failures and server errors may well go better elsewhere. A client
+     * error would only be repeated, and a 429 asks for fewer requests, not more.
+     */
+    private static boolean isWorthHedging(IOException failure) {
+        if (failure instanceof HttpStatusException) {
+            return ((HttpStatusException) failure).isServerError();
+        }
+        return true;
+    }
+
+    /**
+     * @return How long the primary gets before the request is hedged
+     */
+    public long getHedgeDelayMillis() {
+        if (mLatencies.getCount() < MIN_SAMPLES) return DEFAULT_HEDGE_DELAY_MILLIS;
+        long p95 = mLatencies.getPercentile(HEDGE_PERCENTILE);
+        return Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(MAX_HEDGE_DELAY_MILLIS, p95));
+    }
+
+    /**
+     * @return Latency of completed fetches, from the first request to the winning response
+     */
+    public LatencyTracker getLatencies() {
+        return mLatencies;
+    }
+
+    public long getFetchCount() {
+        return mFetches.get();
+    }
+
+    /**
+     * @return Number of fetches for which a second request was sent
+     */
+    public long getHedgeCount() {
+        return mHedges.get();
+    }
+
+    /**
+     * @return Number of fetches won by the second request
+     */
+    public long getHedgeWinCount() {
+        return mHedgeWins.get();
+    }
+
+    @Override
+    public String toString() {
+        return "fetches=" + getFetchCount() + " hedges=" + getHedgeCount()
+                + " hedgeWins=" + getHedgeWinCount()
+                + " hedgeDelay=" + getHedgeDelayMillis() + "ms " + mLatencies;
+    }
+
+    /**
+     * One request to one source. Never throws, the outcome is left in the fields.
+     */
+    private static final class Leg implements Callable<Leg> {
+        final PriceSource source;
+        final URL url;
+        final String etag;
+        final String lastModified;
+        final CancellationToken token = new CancellationToken();
+        /*
+         * Every leg gets a buffer of its own, since both legs may be reading at the same time.
+         * The winner's contents are swapped into the caller's buffer.
+         */
+        final ResponseBuffer buffer;
+        /* Set by call(), read after the future completed */
+        HttpFetchResult result;
+        IOException failure;
+
+        Leg(PriceSource source, URL url, String etag, String lastModified, int maxBodyBytes) {
+            this.source = source;
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.buffer = new ResponseBuffer(maxBodyBytes);
+        }
+
+        @Override
+        public Leg call() {
+            try {
+                result = FetchPolicy.forUrl(url).fetch(url, etag, lastModified, buffer, token);
+            } catch (IOException e) {
+                failure = e;
+            }
+            return this;
+        }
+    }
+}
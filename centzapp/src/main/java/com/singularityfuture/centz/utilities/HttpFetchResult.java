@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Describes the outcome of a single fetch made by {@link NetworkUtils}. The body itself lives in
+ * the {@link ResponseBuffer} that was passed to the fetch, this class only carries the metadata
+ * that the sync needs to decide what to do next.
+ */
+public final class HttpFetchResult {
+
+    private final int mStatusCode;
+    private final String mEtag;
+    private final String mLastModified;
+    private final int mBodyLength;
+    private final long mWireBytes;
+    private final String mContentEncoding;
+
+    HttpFetchResult(int statusCode, String etag, String lastModified, int bodyLength,
+                    long wireBytes, String contentEncoding) {
+        mStatusCode = statusCode;
+        mEtag = etag;
+        mLastModified = lastModified;
+        mBodyLength = bodyLength;
+        mWireBytes = wireBytes;
+        mContentEncoding = contentEncoding;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return true if the server answered 304 and the data we already have is still current
+     */
+    public boolean isNotModified() {
+        return mStatusCode == HttpURLConnection.HTTP_NOT_MODIFIED;
+    }
+
+    /**
+     * @return The ETag validator to send on the next request, or null if the server sent none
+     */
+    public String getEtag() {
+        return mEtag;
+    }
+
+    /**
+     * @return The Last-Modified validator to send on the next request, or null if none was sent
+     */
+    public String getLastModified() {
+        return mLastModified;
+    }
+
+    /**
+     * @return Number of decoded body bytes written into the buffer, 0 for a 304
+     */
+    public int getBodyLength() {
+        return mBodyLength;
+    }
+
+    /**
+     * @return Number of body bytes that crossed the wire, before any decompression
+     */
+    public long getWireBytes() {
+        return mWireBytes;
+    }
+
+    /**
+     * @return The Content-Encoding the server applied (for example "gzip"), or null for none
+     */
+    public String getContentEncoding() {
+        return mContentEncoding;
+    }
+}
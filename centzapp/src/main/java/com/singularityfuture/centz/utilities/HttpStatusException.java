@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.io.IOException;
+
+/**
+ * Thrown by {@link NetworkUtils#fetch} when the server answers with a status we can't use. Keeps
+ * the status code and any Retry-After hint so that {@link FetchPolicy} can decide whether and
+ * when to try again.
+ */
+public class HttpStatusException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    /* RFC 6585, not defined by HttpURLConnection */
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mStatusCode;
+    private final long mRetryAfterMillis;
+
+    /**
+     * @param statusCode       The HTTP status code of the response
+     * @param retryAfterMillis How long the server asked us to wait, or -1 if it didn't say
+     * @param message          Describes the failed request
+     */
+    public HttpStatusException(int statusCode, long retryAfterMillis, String message) {
+        super(message);
+        mStatusCode = statusCode;
+        mRetryAfterMillis = retryAfterMillis;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return The delay requested by a Retry-After header, or -1 if there was none
+     */
+    public long getRetryAfterMillis() {
+        return mRetryAfterMillis;
+    }
+
+    /**
+     * @return true if the server told us we are sending too many requests
+     */
+    public boolean isRateLimited() {
+        return mStatusCode == HTTP_TOO_MANY_REQUESTS;
+    }
+
+    /**
+     * @return true for server side failures that may well go away if we try again later
+     */
+    public boolean isServerError() {
+        return mStatusCode >= 500;
+    }
+}
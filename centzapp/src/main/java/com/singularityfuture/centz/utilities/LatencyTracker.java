@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the most recent latency samples and answers percentile queries over them. Older
+ * samples fall out as new ones arrive, so the percentiles follow the current network.
+ */
+public final class LatencyTracker {
+
+    private final long[] mSamples;
+    private int mNext;
+    private int mCount;
+
+    /**
+     * @param capacity How many of the most recent samples to keep
+     */
+    public LatencyTracker(int capacity) {
+        mSamples = new long[capacity];
+    }
+
+    public synchronized void record(long millis) {
+        mSamples[mNext] = millis;
+        mNext = (mNext + 1) % mSamples.length;
+        if (mCount < mSamples.length) mCount++;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the value below which the given share of the kept samples fall, using the nearest
+     * rank method.
+     *
+     * @param percentile Between 0 and 100, for example 95 for the p95
+     * @return The percentile in milliseconds, or -1 if there are no samples yet
+     */
+    public long getPercentile(double percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (mCount == 0) return -1;
+            sorted = Arrays.copyOf(mSamples, mCount);
+        }
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount()
+                + " p50=" + getPercentile(50) + "ms"
+                + " p95=" + getPercentile(95) + "ms"
+                + " p99=" + getPercentile(99) + "ms";
+    }
+}
@@ -17,17 +17,33 @@ package com.singularityfuture.centz.utilities;
 
 import android.content.Context;
 import android.net.Uri;
+import android.support.annotation.VisibleForTesting;
 import android.util.Log;
 
 import com.singularityfuture.centz.BuildConfig;
 import com.singularityfuture.centz.data.CentzPreferences;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 /**
  * These utilities will be used to communicate with the centz servers.
@@ -59,6 +75,36 @@ public final class NetworkUtils {
 
     private static final String FORECAST_BASE_URL = DYNAMIC_CENTZ_URL;
 
+    /* Tests point this at a local stand-in server */
+    private static String sBaseUrl = FORECAST_BASE_URL;
+
+    /*
+     * Requests are built for whatever endpoint the base URL points at and sent there as is. No
+     * mirrors are configured, so requests aren't hedged: a second request to the same endpoint
+     * would only add to the load and the rate limit of a host that is already slow.
+     */
+    private static final PriceSource DEFAULT_SOURCE = new PriceSource() {
+        @Override
+        public String getName() {
+            return "default";
+        }
+
+        @Override
+        public URL buildUrl(URL requestUrl) {
+            return requestUrl;
+        }
+    };
+
+    private static final List<PriceSource> DEFAULT_PRICE_SOURCES =
+            Collections.singletonList(DEFAULT_SOURCE);
+
+    private static volatile List<PriceSource> sPriceSources = DEFAULT_PRICE_SOURCES;
+
+    /* Streams a message for every trade on the products we subscribe to */
+    private static final String LIVE_TICKER_URL = "wss://ws-feed.gdax.com";
+
+    private static String sLiveTickerUrl = LIVE_TICKER_URL;
+
     /*
      * NOTE: These values only effect responses from OpenCentzMap, NOT from the fake centz
      * server. They are simply here to allow us to teach you how to build a URL if you were to use
@@ -87,6 +133,37 @@ public final class NetworkUtils {
     private static final String DAYS_PARAM = "cnt";
     private static final String APPID ="appid";
 
+    /*
+     * Every sync goes through one shared client so that consecutive polls can reuse the same
+     * keep-alive connection (and share a single HTTP/2 connection when the server offers it)
+     * instead of paying for DNS, TCP and TLS setup each time.
+     */
+    private static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    private static final long DEFAULT_READ_TIMEOUT_MILLIS = 15000;
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+
+    private static OkHttpClient sHttpClient;
+
+    /* Validator headers used for conditional GETs */
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    private static final String IF_NONE_MATCH = "If-None-Match";
+    private static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    /*
+     * We negotiate compression ourselves rather than letting the client do it transparently, so
+     * that we can count the compressed bytes before decoding them.
+     */
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+    private static final String ACCEPTED_ENCODINGS = ENCODING_GZIP + ", " + ENCODING_DEFLATE;
+
+    /* Sent with 429 and 503 responses to tell us how long to stay away */
+    private static final String RETRY_AFTER = "Retry-After";
+
     /**
      * Retrieves the proper URL to query for the centz data. The reason for both this method as
      * well as {@link #buildUrlWithLocationQuery(String)} is two fold.
@@ -113,6 +190,73 @@ public final class NetworkUtils {
         }
     }
 
+    /**
+     * Builds the URL for one symbol's request. The daily forecast endpoint takes exactly one
+     * query and has no batch variant, so every symbol gets a call of its own. The preferred
+     * location keeps using {@link #getUrl(Context)} so that it still benefits from stored
+     * coordinates, every other symbol is sent as a location query.
+     *
+     * @param context used to access other Utility methods
+     * @param symbol  The symbol to ask for
+     * @return URL to query centz service
+     */
+    public static URL buildUrlForSymbol(Context context, String symbol) {
+        if (symbol.equals(CentzPreferences.getPreferredCentzLocation(context))) {
+            return getUrl(context);
+        }
+        return buildUrlWithLocationQuery(symbol);
+    }
+
+    /**
+     * Points every URL built from now on at a different server. Only meant for tests that run
+     * against a local stand-in server.
+     *
+     * @param baseUrl The base URL to use, or null to go back to the real server
+     */
+    @VisibleForTesting
+    public static void setBaseUrl(String baseUrl) {
+        sBaseUrl = baseUrl == null ? FORECAST_BASE_URL : baseUrl;
+    }
+
+    /**
+     * @return The endpoints that can answer a request, the primary first. The rest are only
+     * asked when the primary is slow to answer.
+     */
+    public static List<PriceSource> getPriceSources() {
+        return sPriceSources;
+    }
+
+    /**
+     * Replaces the configured endpoints. Only meant for tests that run against local stand-in
+     * servers.
+     *
+     * @param sources The endpoints to use, the primary first, or null to go back to the default
+     */
+    @VisibleForTesting
+    public static void setPriceSources(List<PriceSource> sources) {
+        sPriceSources = sources == null
+                ? DEFAULT_PRICE_SOURCES
+                : Collections.unmodifiableList(new ArrayList<>(sources));
+    }
+
+    /**
+     * @return The URL of the WebSocket ticker feed used while the app is in the foreground
+     */
+    public static String getLiveTickerUrl() {
+        return sLiveTickerUrl;
+    }
+
+    /**
+     * Points the live ticker feed at a different server. Only meant for tests that run against
+     * a local stand-in server.
+     *
+     * @param liveTickerUrl The ws:// or wss:// URL to use, or null to go back to the real feed
+     */
+    @VisibleForTesting
+    public static void setLiveTickerUrl(String liveTickerUrl) {
+        sLiveTickerUrl = liveTickerUrl == null ? LIVE_TICKER_URL : liveTickerUrl;
+    }
+
     /**
      * Builds the URL used to talk to the centz server using latitude and longitude of a
      * location.
@@ -122,7 +266,7 @@ public final class NetworkUtils {
      * @return The Url to use to query the centz server.
      */
     private static URL buildUrlWithLatitudeLongitude(Double latitude, Double longitude) {
-        Uri centzQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+        Uri centzQueryUri = Uri.parse(sBaseUrl).buildUpon()
                 .appendQueryParameter(LAT_PARAM, String.valueOf(latitude))
                 .appendQueryParameter(LON_PARAM, String.valueOf(longitude))
                 .appendQueryParameter(FORMAT_PARAM, format)
@@ -149,7 +293,7 @@ public final class NetworkUtils {
      * @return The URL to use to query the centz server.
      */
     private static URL buildUrlWithLocationQuery(String locationQuery) {
-        Uri centzQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+        Uri centzQueryUri = Uri.parse(sBaseUrl).buildUpon()
                 .appendQueryParameter(QUERY_PARAM, locationQuery)
                 .appendQueryParameter(FORMAT_PARAM, format)
                 .appendQueryParameter(UNITS_PARAM, units)
@@ -168,29 +312,216 @@ public final class NetworkUtils {
     }
 
     /**
-     * This method returns the entire result from the HTTP response.
+     * Returns the client every centz fetch should go through. The client is created lazily and
+     * owns the connection pool, so callers must not build their own.
      *
-     * @param url The URL to fetch the HTTP response from.
-     * @return The contents of the HTTP response, null if no response
-     * @throws IOException Related to network and stream reading
+     * @return The shared, connection-pooled HTTP client
      */
-    public static String getResponseFromHttpUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+    public static synchronized OkHttpClient getHttpClient() {
+        if (sHttpClient == null) {
+            sHttpClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS,
+                            KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                    .connectTimeout(DEFAULT_CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    .readTimeout(DEFAULT_READ_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                    /* Times every call and feeds the pool statistics */
+                    .eventListenerFactory(RequestTimingListener.FACTORY)
+                    .build();
+        }
+        return sHttpClient;
+    }
+
+    /**
+     * Changes the connect and read timeouts used for centz fetches. The new client shares the
+     * connection pool of the old one, so warm connections survive the change.
+     *
+     * @param connectTimeoutMillis Time allowed to establish a connection
+     * @param readTimeoutMillis    Time allowed between two reads of the response
+     */
+    public static synchronized void setTimeouts(long connectTimeoutMillis, long readTimeoutMillis) {
+        sHttpClient = getHttpClient().newBuilder()
+                .connectTimeout(connectTimeoutMillis, TimeUnit.MILLISECONDS)
+                .readTimeout(readTimeoutMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Streams the body of the HTTP response into the given buffer. Nothing is decoded or copied
+     * into a String along the way, the JSON layer reads the bytes straight out of the buffer.
+     *
+     * @param url    The URL to fetch the HTTP response from.
+     * @param buffer Reusable buffer that receives the body. Its previous contents are replaced.
+     * @return The number of body bytes read, 0 if the response had no body
+     * @throws IOException Related to network and stream reading, or if the body is larger than
+     *                     the buffer allows
+     */
+    public static int fetchIntoBuffer(URL url, ResponseBuffer buffer) throws IOException {
+        return fetch(url, null, null, buffer).getBodyLength();
+    }
+
+    /**
+     * Performs a conditional GET. When validators from a previous response are supplied, the
+     * server may answer 304 Not Modified, in which case the buffer is left empty and the caller
+     * can skip parsing and writing altogether.
+     *
+     * @param url          The URL to fetch the HTTP response from.
+     * @param etag         ETag from the last successful response for this URL, or null
+     * @param lastModified Last-Modified from the last successful response for this URL, or null
+     * @param buffer       Reusable buffer that receives the body. Its previous contents are
+     *                     replaced.
+     * @return The status and validators of the response
+     * @throws IOException Related to network and stream reading, or if the body is larger than
+     *                     the buffer allows
+     */
+    public static HttpFetchResult fetch(URL url, String etag, String lastModified,
+                                        ResponseBuffer buffer) throws IOException {
+        return fetch(url, etag, lastModified, buffer, null);
+    }
+
+    /**
+     * Same as {@link #fetch(URL, String, String, ResponseBuffer)}, but the call can be aborted
+     * from another thread through the given token.
+     *
+     * @param token Cancels the call when cancelled, or null if the fetch can't be cancelled
+     * @throws CancellationToken.CancelledException If the token was cancelled
+     */
+    public static HttpFetchResult fetch(URL url, String etag, String lastModified,
+                                        ResponseBuffer buffer, CancellationToken token)
+            throws IOException {
+        Request.Builder requestBuilder = new Request.Builder()
+                .url(url)
+                .header(ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+        if (etag != null) {
+            requestBuilder.header(IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            requestBuilder.header(IF_MODIFIED_SINCE, lastModified);
+        }
+
+        Call call = getHttpClient().newCall(requestBuilder.build());
+        if (token == null) {
+            return execute(call, url, etag, lastModified, buffer);
+        }
+
+        /* The call stays attached until the body is read, so a cancel aborts that too */
+        token.throwIfCancelled();
+        token.attach(call);
         try {
-            InputStream in = urlConnection.getInputStream();
+            return execute(call, url, etag, lastModified, buffer);
+        } catch (IOException e) {
+            /* OkHttp reports a cancelled call as a plain IOException */
+            token.throwIfCancelled();
+            throw e;
+        } finally {
+            token.detach(call);
+        }
+    }
 
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+    private static HttpFetchResult execute(Call call, URL url, String etag, String lastModified,
+                                           ResponseBuffer buffer) throws IOException {
+        Response response = call.execute();
+        try {
+            int code = response.code();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                buffer.clear();
+                return new HttpFetchResult(code, etag, lastModified, 0, 0, null);
+            }
+            if (!response.isSuccessful()) {
+                throw new HttpStatusException(code, parseRetryAfter(response),
+                        "Unexpected HTTP response " + code + " for " + url);
+            }
 
-            boolean hasInput = scanner.hasNext();
-            String response = null;
-            if (hasInput) {
-                response = scanner.next();
+            /*
+             * Reading the body to the end and closing the response (rather than disconnecting)
+             * hands the connection back to the pool for the next sync.
+             */
+            ResponseBody body = response.body();
+            String contentEncoding = response.header(CONTENT_ENCODING);
+            int length = 0;
+            long wireBytes = 0;
+            if (body == null) {
+                buffer.clear();
+            } else {
+                CountingInputStream wire = new CountingInputStream(body.byteStream());
+                if (contentEncoding == null || "identity".equalsIgnoreCase(contentEncoding)) {
+                    length = buffer.readFrom(wire, body.contentLength());
+                } else {
+                    /* Content-Length describes the compressed body, so it can't size the buffer */
+                    length = buffer.readFrom(decode(wire, contentEncoding), -1);
+                }
+                wireBytes = wire.getCount();
             }
-            scanner.close();
-            return response;
+            return new HttpFetchResult(code,
+                    response.header(ETAG),
+                    response.header(LAST_MODIFIED),
+                    length,
+                    wireBytes,
+                    contentEncoding);
         } finally {
-            urlConnection.disconnect();
+            response.close();
+        }
+    }
+
+    /**
+     * Reads the Retry-After header, which holds either a number of seconds or an HTTP date.
+     *
+     * @param response The response to look at
+     * @return The requested delay in milliseconds, or -1 if there is no usable header
+     */
+    private static long parseRetryAfter(Response response) {
+        String retryAfter = response.header(RETRY_AFTER);
+        if (retryAfter == null) return -1;
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(retryAfter.trim())));
+        } catch (NumberFormatException e) {
+            Date retryAt = response.headers().getDate(RETRY_AFTER);
+            if (retryAt == null) return -1;
+            return Math.max(0, retryAt.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Wraps the raw body stream in a decoder for the given Content-Encoding. The maximum size of
+     * the ResponseBuffer applies to the decoded bytes, so a small compressed body can't expand
+     * into an unbounded amount of memory.
+     *
+     * @param in              The raw body stream
+     * @param contentEncoding The Content-Encoding header of the response
+     * @return A stream of decoded bytes
+     * @throws IOException If the encoding is not one we asked for, or the stream is corrupt
+     */
+    private static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(in);
+        }
+        if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+            /*
+             * "deflate" is supposed to be zlib wrapped, but some servers send a raw deflate
+             * stream instead. Peek at the header to tell the two apart.
+             */
+            BufferedInputStream buffered = new BufferedInputStream(in);
+            buffered.mark(2);
+            int cmf = buffered.read();
+            int flg = buffered.read();
+            buffered.reset();
+            boolean zlibWrapped = cmf != -1 && flg != -1
+                    && (cmf & 0x0F) == 8
+                    && ((cmf << 8) | flg) % 31 == 0;
+            return new InflaterInputStream(buffered, new Inflater(!zlibWrapped));
         }
+        throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+    }
+
+    /**
+     * This method returns the entire result from the HTTP response.
+     *
+     * @param url The URL to fetch the HTTP response from.
+     * @return The contents of the HTTP response, null if no response
+     * @throws IOException Related to network and stream reading
+     */
+    public static String getResponseFromHttpUrl(URL url) throws IOException {
+        ResponseBuffer buffer = new ResponseBuffer();
+        int length = fetchIntoBuffer(url, buffer);
+        return length == 0 ? null : buffer.decodeUtf8();
     }
-}
\ No newline at end of file
+}
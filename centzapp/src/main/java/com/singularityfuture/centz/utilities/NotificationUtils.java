@@ -76,8 +76,8 @@ public class NotificationUtils {
 
             /* Centz ID as returned by API, used to identify the icon to be used */
             int centzId = todayCentzCursor.getInt(INDEX_CENTZ_ID);
-            double high = todayCentzCursor.getDouble(INDEX_MAX_TEMP);
-            double low = todayCentzCursor.getDouble(INDEX_MIN_TEMP);
+            long high = todayCentzCursor.getLong(INDEX_MAX_TEMP);
+            long low = todayCentzCursor.getLong(INDEX_MIN_TEMP);
 
             Resources resources = context.getResources();
             int largeArtResourceId = CentzCentzUtils
@@ -156,7 +156,7 @@ public class NotificationUtils {
      * @param low       Low temperature (either celsius or fahrenheit depending on preferences)
      * @return Summary of a particular day's forecast
      */
-    private static String getNotificationText(Context context, int centzId, double high, double low) {
+    private static String getNotificationText(Context context, int centzId, long high, long low) {
 
         /*
          * Short description of the centz, as provided by the API.
@@ -170,8 +170,8 @@ public class NotificationUtils {
         /* Using String's format method, we create the forecast summary */
         String notificationText = String.format(notificationFormat,
                 shortDescription,
-                CentzCentzUtils.formatTemperature(context, high),
-                CentzCentzUtils.formatTemperature(context, low));
+                CentzCentzUtils.formatFixedPointTemperature(context, high),
+                CentzCentzUtils.formatFixedPointTemperature(context, low));
 
         return notificationText;
     }
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.net.URL;
+
+/**
+ * An upstream endpoint that can answer our price queries. Every source understands the same
+ * query, so a request planned for one source can be sent to any other one as is.
+ */
+public interface PriceSource {
+
+    /**
+     * @return A short name for logs
+     */
+    String getName();
+
+    /**
+     * Turns a request built by {@link NetworkUtils} into the equivalent request for this source.
+     *
+     * @param requestUrl The request as built for the default endpoint
+     * @return The same query aimed at this source
+     */
+    URL buildUrl(URL requestUrl);
+}
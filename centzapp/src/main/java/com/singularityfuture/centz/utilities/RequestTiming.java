@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+/**
+ * How long each phase of a single HTTP request took. Phases that didn't happen, such as DNS and
+ * connect on a pooled connection or the download of a failed call, are reported as -1.
+ */
+public final class RequestTiming {
+
+    private final String mUrl;
+    private final long mStartedAtMillis;
+    private final int mStatusCode;
+    private final boolean mConnectionReused;
+    private final long mDnsMillis;
+    private final long mConnectMillis;
+    private final long mTlsMillis;
+    private final long mTimeToFirstByteMillis;
+    private final long mDownloadMillis;
+    private final long mTotalMillis;
+    private final long mBodyBytes;
+    private final String mFailure;
+
+    RequestTiming(String url, long startedAtMillis, int statusCode, boolean connectionReused,
+                  long dnsMillis, long connectMillis, long tlsMillis, long timeToFirstByteMillis,
+                  long downloadMillis, long totalMillis, long bodyBytes, String failure) {
+        mUrl = url;
+        mStartedAtMillis = startedAtMillis;
+        mStatusCode = statusCode;
+        mConnectionReused = connectionReused;
+        mDnsMillis = dnsMillis;
+        mConnectMillis = connectMillis;
+        mTlsMillis = tlsMillis;
+        mTimeToFirstByteMillis = timeToFirstByteMillis;
+        mDownloadMillis = downloadMillis;
+        mTotalMillis = totalMillis;
+        mBodyBytes = bodyBytes;
+        mFailure = failure;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return Wall clock time at which the call started, in milliseconds since the epoch
+     */
+    public long getStartedAtMillis() {
+        return mStartedAtMillis;
+    }
+
+    /**
+     * @return The HTTP status code, or -1 if no response was received
+     */
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    /**
+     * @return true if the call rode a pooled connection and skipped DNS, connect and TLS
+     */
+    public boolean isConnectionReused() {
+        return mConnectionReused;
+    }
+
+    public long getDnsMillis() {
+        return mDnsMillis;
+    }
+
+    /**
+     * @return Time to establish the TCP connection, not counting the TLS handshake
+     */
+    public long getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    public long getTlsMillis() {
+        return mTlsMillis;
+    }
+
+    /**
+     * @return Time from sending the request headers to receiving the first response byte
+     */
+    public long getTimeToFirstByteMillis() {
+        return mTimeToFirstByteMillis;
+    }
+
+    /**
+     * @return Time spent reading the response body
+     */
+    public long getDownloadMillis() {
+        return mDownloadMillis;
+    }
+
+    public long getTotalMillis() {
+        return mTotalMillis;
+    }
+
+    /**
+     * @return Body bytes as they crossed the wire, before any decompression
+     */
+    public long getBodyBytes() {
+        return mBodyBytes;
+    }
+
+    /**
+     * @return Why the call failed, or null if it completed
+     */
+    public String getFailure() {
+        return mFailure;
+    }
+
+    public boolean isFailed() {
+        return mFailure != null;
+    }
+
+    @Override
+    public String toString() {
+        return mUrl + " status=" + mStatusCode
+                + (mConnectionReused ? " reused" : "")
+                + " dns=" + mDnsMillis + "ms"
+                + " connect=" + mConnectMillis + "ms"
+                + " tls=" + mTlsMillis + "ms"
+                + " ttfb=" + mTimeToFirstByteMillis + "ms"
+                + " download=" + mDownloadMillis + "ms"
+                + " total=" + mTotalMillis + "ms"
+                + " bytes=" + mBodyBytes
+                + (mFailure != null ? " failure=" + mFailure : "");
+    }
+}
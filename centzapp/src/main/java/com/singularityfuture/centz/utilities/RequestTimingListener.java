@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Follows a single call through its phases and adds a {@link RequestTiming} to the
+ * {@link RequestTimingLog} when it ends. Also passes the connection events on to
+ * {@link ConnectionPoolStats}, since a client can only have one listener per call.
+ */
+final class RequestTimingListener extends EventListener {
+
+    static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            return new RequestTimingListener();
+        }
+    };
+
+    private static final long NONE = -1;
+
+    private final EventListener mPoolStats = ConnectionPoolStats.LISTENER;
+
+    /* Every event of a call is delivered on the thread running it, one at a time */
+    private long mCallStart;
+    private long mStartedAtMillis;
+    private long mDnsStart = NONE;
+    private long mDnsMillis = NONE;
+    private long mConnectStart = NONE;
+    private long mSecureConnectStart = NONE;
+    private long mConnectMillis = NONE;
+    private long mTlsMillis = NONE;
+    private long mRequestStart = NONE;
+    private long mTimeToFirstByteMillis = NONE;
+    private long mBodyStart = NONE;
+    private long mDownloadMillis = NONE;
+    private long mBodyBytes;
+    private int mStatusCode = -1;
+    private boolean mConnected;
+    private boolean mAcquired;
+
+    private static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void callStart(Call call) {
+        mCallStart = now();
+        mStartedAtMillis = System.currentTimeMillis();
+        mPoolStats.callStart(call);
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        mDnsStart = now();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        mDnsMillis = now() - mDnsStart;
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        mConnectStart = now();
+        mConnected = true;
+        mPoolStats.connectStart(call, inetSocketAddress, proxy);
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        mSecureConnectStart = now();
+        mConnectMillis = mSecureConnectStart - mConnectStart;
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        mTlsMillis = now() - mSecureConnectStart;
+        mPoolStats.secureConnectEnd(call, handshake);
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy,
+                           Protocol protocol) {
+        if (mSecureConnectStart == NONE) {
+            mConnectMillis = now() - mConnectStart;
+        }
+        mPoolStats.connectEnd(call, inetSocketAddress, proxy, protocol);
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        mAcquired = true;
+        mPoolStats.connectionAcquired(call, connection);
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        mRequestStart = now();
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        if (mRequestStart != NONE) {
+            mTimeToFirstByteMillis = now() - mRequestStart;
+        }
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        mStatusCode = response.code();
+    }
+
+    @Override
+    public void responseBodyStart(Call call) {
+        mBodyStart = now();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        mBodyBytes = byteCount;
+        if (mBodyStart != NONE) {
+            mDownloadMillis = now() - mBodyStart;
+        }
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        record(call, null);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        record(call, String.valueOf(ioe));
+    }
+
+    private void record(Call call, String failure) {
+        Request request = call.request();
+        RequestTiming timing = new RequestTiming(
+                request.url().host() + request.url().encodedPath(),
+                mStartedAtMillis,
+                mStatusCode,
+                mAcquired && !mConnected,
+                mDnsMillis,
+                mConnectMillis,
+                mTlsMillis,
+                mTimeToFirstByteMillis,
+                mDownloadMillis,
+                now() - mCallStart,
+                mBodyBytes,
+                failure);
+        RequestTimingLog.record(timing);
+    }
+}
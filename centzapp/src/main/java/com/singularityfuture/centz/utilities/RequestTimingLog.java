@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the timing of the most recent HTTP requests made through the shared client. The log is
+ * a fixed size ring, so it never grows no matter how long the process lives. It is meant to be
+ * read by logs, debug screens and tests when tuning timeouts and pool sizes.
+ */
+public final class RequestTimingLog {
+
+    public static final int CAPACITY = 100;
+
+    private static final RequestTiming[] sRing = new RequestTiming[CAPACITY];
+    private static int sNext;
+    private static int sCount;
+
+    private RequestTimingLog() {
+    }
+
+    static synchronized void record(RequestTiming timing) {
+        sRing[sNext] = timing;
+        sNext = (sNext + 1) % CAPACITY;
+        if (sCount < CAPACITY) sCount++;
+    }
+
+    /**
+     * @return A copy of the kept timings, oldest first
+     */
+    public static synchronized List<RequestTiming> snapshot() {
+        List<RequestTiming> timings = new ArrayList<>(sCount);
+        int oldest = (sNext - sCount + CAPACITY) % CAPACITY;
+        for (int i = 0; i < sCount; i++) {
+            timings.add(sRing[(oldest + i) % CAPACITY]);
+        }
+        return timings;
+    }
+
+    /**
+     * @return The most recent timing, or null if no request has completed yet
+     */
+    public static synchronized RequestTiming getLatest() {
+        if (sCount == 0) return null;
+        return sRing[(sNext - 1 + CAPACITY) % CAPACITY];
+    }
+
+    public static synchronized void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            sRing[i] = null;
+        }
+        sNext = 0;
+        sCount = 0;
+    }
+
+    /**
+     * @return Median of every phase over the kept timings, one line for logcat
+     */
+    public static String summary() {
+        List<RequestTiming> timings = snapshot();
+        LatencyTracker dns = new LatencyTracker(CAPACITY);
+        LatencyTracker connect = new LatencyTracker(CAPACITY);
+        LatencyTracker tls = new LatencyTracker(CAPACITY);
+        LatencyTracker ttfb = new LatencyTracker(CAPACITY);
+        LatencyTracker download = new LatencyTracker(CAPACITY);
+        LatencyTracker total = new LatencyTracker(CAPACITY);
+        int reused = 0;
+        int failed = 0;
+        for (RequestTiming timing : timings) {
+            if (timing.isConnectionReused()) reused++;
+            if (timing.isFailed()) failed++;
+            recordIfPresent(dns, timing.getDnsMillis());
+            recordIfPresent(connect, timing.getConnectMillis());
+            recordIfPresent(tls, timing.getTlsMillis());
+            recordIfPresent(ttfb, timing.getTimeToFirstByteMillis());
+            recordIfPresent(download, timing.getDownloadMillis());
+            recordIfPresent(total, timing.getTotalMillis());
+        }
+        return "requests=" + timings.size() + " reused=" + reused + " failed=" + failed
+                + " median dns=" + dns.getPercentile(50) + "ms"
+                + " connect=" + connect.getPercentile(50) + "ms"
+                + " tls=" + tls.getPercentile(50) + "ms"
+                + " ttfb=" + ttfb.getPercentile(50) + "ms"
+                + " download=" + download.getPercentile(50) + "ms"
+                + " total=" + total.getPercentile(50) + "ms";
+    }
+
+    private static void recordIfPresent(LatencyTracker tracker, long millis) {
+        if (millis >= 0) tracker.record(millis);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.singularityfuture.centz.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * A reusable, bounded byte buffer that response bodies are streamed into. The raw bytes are
+ * handed straight to the JSON layer, so a sync never has to build an intermediate String copy
+ * of the whole body. One buffer is meant to be kept around and reused from sync to sync.
+ */
+public final class ResponseBuffer {
+
+    /* Largest body we are willing to hold in memory unless a caller asks for more */
+    public static final int DEFAULT_MAX_BODY_BYTES = 4 * 1024 * 1024;
+
+    private static final int INITIAL_CAPACITY = 16 * 1024;
+
+    /*
+     * If a single unusually large response grew the buffer beyond this size, we drop the backing
+     * array on clear() rather than keeping megabytes alive between polls.
+     */
+    private static final int RETAINED_CAPACITY = 256 * 1024;
+
+    private static final int READ_CHUNK_BYTES = 8 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int mMaxBytes;
+    private byte[] mData;
+    private int mLength;
+
+    public ResponseBuffer() {
+        this(DEFAULT_MAX_BODY_BYTES);
+    }
+
+    /**
+     * @param maxBytes Bodies larger than this are rejected with an IOException
+     */
+    public ResponseBuffer(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mData = new byte[Math.min(INITIAL_CAPACITY, maxBytes)];
+    }
+
+    /**
+     * Reads the stream to the end, replacing whatever the buffer held before. The stream is not
+     * closed by this method.
+     *
+     * @param in            The stream to read from
+     * @param contentLength The advertised length of the body, or -1 if unknown. Used to size the
+     *                      buffer up front and to fail fast on oversized bodies.
+     * @return The number of bytes read
+     * @throws IOException If reading fails or the body exceeds the maximum size
+     */
+    public int readFrom(InputStream in, long contentLength) throws IOException {
+        mLength = 0;
+
+        if (contentLength > mMaxBytes) {
+            throw new IOException("Response body of " + contentLength
+                    + " bytes exceeds the limit of " + mMaxBytes + " bytes");
+        }
+        if (contentLength > mData.length) {
+            mData = new byte[(int) contentLength];
+        }
+
+        while (true) {
+            if (mLength == mData.length) {
+                /*
+                 * A buffer sized from the Content-Length is full right before the end of the
+                 * stream, so only grow once there turns out to be more to read.
+                 */
+                int next = in.read();
+                if (next == -1) break;
+                grow();
+                mData[mLength++] = (byte) next;
+            }
+            int toRead = Math.min(READ_CHUNK_BYTES, mData.length - mLength);
+            int read = in.read(mData, mLength, toRead);
+            if (read == -1) break;
+            mLength += read;
+        }
+        return mLength;
+    }
+
+    private void grow() throws IOException {
+        if (mData.length >= mMaxBytes) {
+            throw new IOException("Response body exceeds the limit of " + mMaxBytes + " bytes");
+        }
+        int newCapacity = (int) Math.min((long) mData.length * 2, mMaxBytes);
+        byte[] grown = new byte[newCapacity];
+        System.arraycopy(mData, 0, grown, 0, mLength);
+        mData = grown;
+    }
+
+    /**
+     * @return The backing array. Only the first {@link #getLength()} bytes are valid.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public boolean isEmpty() {
+        return mLength == 0;
+    }
+
+    /**
+     * @return A stream over the valid bytes, without copying them
+     */
+    public InputStream asInputStream() {
+        return new ByteArrayInputStream(mData, 0, mLength);
+    }
+
+    /**
+     * Decodes the valid bytes as UTF-8. Only meant for callers that really need a String.
+     *
+     * @return The body as a String
+     */
+    public String decodeUtf8() {
+        return new String(mData, 0, mLength, UTF_8);
+    }
+
+    /**
+     * Exchanges the contents of this buffer with another one without copying any bytes. Used to
+     * hand over a body that was read into a scratch buffer.
+     *
+     * @param other The buffer to trade contents with, it must allow bodies as large as this one
+     */
+    void swap(ResponseBuffer other) {
+        if (other.mMaxBytes != mMaxBytes) {
+            throw new IllegalArgumentException("Buffers of different limits can't be swapped");
+        }
+        byte[] data = mData;
+        int length = mLength;
+        mData = other.mData;
+        mLength = other.mLength;
+        other.mData = data;
+        other.mLength = length;
+    }
+
+    /**
+     * Forgets the current contents so the buffer can be reused by the next sync.
+     */
+    public void clear() {
+        mLength = 0;
+        if (mData.length > RETAINED_CAPACITY) {
+            mData = new byte[Math.min(INITIAL_CAPACITY, mMaxBytes)];
+        }
+    }
+}